@@ -0,0 +1,813 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link FileChannel} that goes through a reusable direct buffer, so that
+ * the many small reads and writes done by {@link PersistenceToolbox} end up
+ * in a few large system calls. The buffer is big endian, the produced files
+ * are the same as the ones written directly on the underlying channel.
+ *
+ * The channel is either in read or in write mode, switching is done
+ * transparently. {@link #flush()} or {@link #close()} must be called once
+ * the writes are done.
+ *
+ * A read only channel on a single block of a file can also be obtained with
+ * {@link #readBlock(FileChannel, long, int)}. The block is read at once with
+ * a positional read, so that several threads can decode their own blocks of
+ * a shared channel.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class BufferedFileChannel extends FileChannel {
+
+	/** The Constant DEFAULT_BUFFER_SIZE. */
+	public final static int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	/** The Constant NO_BLOCK. */
+	private final static long NO_BLOCK = -1;
+
+	/**
+	 * Read a block of a file in a read only channel. The position of the
+	 * underlying channel is neither used nor modified, and it is not closed
+	 * with the block.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @param position
+	 *            the position of the block in the file
+	 * @param length
+	 *            the length of the block, shorter at the end of the file
+	 * @return the channel on the block
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static BufferedFileChannel readBlock(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(length);
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position + bb.position()) < 0) {
+				break;
+			}
+		}
+		bb.flip();
+		return new BufferedFileChannel(channel, bb, position);
+	}
+
+	/** The underlying channel. */
+	private final FileChannel channel;
+
+	/** The buffer. */
+	private final ByteBuffer buffer;
+
+	/** The position of the block in the file, NO_BLOCK for a full channel. */
+	private final long blockStart;
+
+	/** The writing mode. */
+	private boolean writing;
+
+	/**
+	 * Instantiates a new buffered file channel.
+	 *
+	 * @param channel
+	 *            the channel
+	 */
+	public BufferedFileChannel(FileChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Instantiates a new buffered file channel.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @param bufferSize
+	 *            the buffer size
+	 */
+	public BufferedFileChannel(FileChannel channel, int bufferSize) {
+		super();
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, PersistenceToolbox.LONG_NB_BYTES));
+		this.buffer.limit(0);
+		this.blockStart = NO_BLOCK;
+		this.writing = false;
+	}
+
+	/**
+	 * Instantiates a read only channel on an already read block.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @param block
+	 *            the block, ready to be read
+	 * @param blockStart
+	 *            the position of the block in the file
+	 */
+	private BufferedFileChannel(FileChannel channel, ByteBuffer block, long blockStart) {
+		super();
+		this.channel = channel;
+		this.buffer = block;
+		this.blockStart = blockStart;
+		this.writing = false;
+	}
+
+	/**
+	 * Checks if the channel only covers a block of the file.
+	 *
+	 * @return true, if is block
+	 */
+	private boolean isBlock() {
+		return blockStart != NO_BLOCK;
+	}
+
+	/**
+	 * Makes sure that at least n bytes are available in the buffer for
+	 * reading.
+	 *
+	 * @param n
+	 *            the n
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void ensureReadable(int n) throws IOException {
+		toReadMode();
+		if (buffer.remaining() < n) {
+			if (isBlock()) {
+				throw new EOFException("End of block reached while " + n + " bytes were expected");
+			}
+			buffer.compact();
+			while (buffer.position() < n) {
+				if (channel.read(buffer) < 0) {
+					buffer.flip();
+					throw new EOFException("End of file reached while " + n + " bytes were expected");
+				}
+			}
+			buffer.flip();
+		}
+	}
+
+	/**
+	 * Makes sure that at least n bytes are available in the buffer for
+	 * writing.
+	 *
+	 * @param n
+	 *            the n
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void ensureWritable(int n) throws IOException {
+		toWriteMode();
+		if (buffer.remaining() < n) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the pending data to the underlying channel.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void flush() throws IOException {
+		if (writing && (buffer.position() > 0)) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#force(boolean)
+	 */
+	@Override
+	public void force(boolean metaData) throws IOException {
+		flush();
+		channel.force(metaData);
+	}
+
+	/**
+	 * Gets the underlying channel.
+	 *
+	 * @return the channel
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.spi.AbstractInterruptibleChannel#implCloseChannel()
+	 */
+	@Override
+	protected void implCloseChannel() throws IOException {
+		if (isBlock()) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#lock(long, long, boolean)
+	 */
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		return channel.lock(position, size, shared);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#map(java.nio.channels.FileChannel.MapMode, long, long)
+	 */
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		flush();
+		return channel.map(mode, position, size);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#position()
+	 */
+	@Override
+	public long position() throws IOException {
+		if (isBlock()) {
+			return blockStart + buffer.position();
+		}
+		if (writing) {
+			return channel.position() + buffer.position();
+		}
+		return channel.position() - buffer.remaining();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#position(long)
+	 */
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		if (isBlock()) {
+			if ((newPosition < blockStart) || (newPosition > blockStart + buffer.limit())) {
+				throw new IOException("Position " + newPosition + " outside of the block");
+			}
+			buffer.position((int) (newPosition - blockStart));
+			return this;
+		}
+		if (!writing) {
+			long end = channel.position();
+			long start = end - buffer.limit();
+			if ((newPosition >= start) && (newPosition <= end)) {
+				buffer.position((int) (newPosition - start));
+				return this;
+			}
+		}
+		flush();
+		channel.position(newPosition);
+		buffer.clear();
+		if (!writing) {
+			buffer.limit(0);
+		}
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		toReadMode();
+		int total = 0;
+		while (dst.hasRemaining()) {
+			if (!buffer.hasRemaining()) {
+				if (isBlock()) {
+					break;
+				}
+				if (dst.remaining() >= buffer.capacity()) {
+					buffer.clear();
+					buffer.limit(0);
+					int n = channel.read(dst);
+					if (n < 0) {
+						break;
+					}
+					total += n;
+					continue;
+				}
+				buffer.clear();
+				int n = channel.read(buffer);
+				buffer.flip();
+				if (n < 0) {
+					break;
+				}
+			}
+			int n = Math.min(dst.remaining(), buffer.remaining());
+			int lim = buffer.limit();
+			buffer.limit(buffer.position() + n);
+			dst.put(buffer);
+			buffer.limit(lim);
+			total += n;
+		}
+		return ((total == 0) && dst.hasRemaining()) ? -1 : total;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#read(java.nio.ByteBuffer, long)
+	 */
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		flush();
+		return channel.read(dst, position);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#read(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int n = read(dsts[i]);
+			if (n < 0) {
+				return total == 0 ? -1 : total;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Read doubles.
+	 *
+	 * @param dst
+	 *            the dst
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void readDoubles(double[] dst, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureReadable(PersistenceToolbox.DOUBLE_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.DOUBLE_NB_BYTES);
+			buffer.asDoubleBuffer().get(dst, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.DOUBLE_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Read double.
+	 *
+	 * @return the double
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public double readDouble() throws IOException {
+		ensureReadable(PersistenceToolbox.DOUBLE_NB_BYTES);
+		return buffer.getDouble();
+	}
+
+	/**
+	 * Read float.
+	 *
+	 * @return the float
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public float readFloat() throws IOException {
+		ensureReadable(PersistenceToolbox.FLOAT_NB_BYTES);
+		return buffer.getFloat();
+	}
+
+	/**
+	 * Read floats.
+	 *
+	 * @param dst
+	 *            the dst
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void readFloats(float[] dst, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureReadable(PersistenceToolbox.FLOAT_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.FLOAT_NB_BYTES);
+			buffer.asFloatBuffer().get(dst, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.FLOAT_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Read int.
+	 *
+	 * @return the int
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public int readInt() throws IOException {
+		ensureReadable(PersistenceToolbox.INT_NB_BYTES);
+		return buffer.getInt();
+	}
+
+	/**
+	 * Read ints.
+	 *
+	 * @param dst
+	 *            the dst
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void readInts(int[] dst, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureReadable(PersistenceToolbox.INT_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.INT_NB_BYTES);
+			buffer.asIntBuffer().get(dst, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.INT_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Read long.
+	 *
+	 * @return the long
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public long readLong() throws IOException {
+		ensureReadable(PersistenceToolbox.LONG_NB_BYTES);
+		return buffer.getLong();
+	}
+
+	/**
+	 * Read longs.
+	 *
+	 * @param dst
+	 *            the dst
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void readLongs(long[] dst, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureReadable(PersistenceToolbox.LONG_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.LONG_NB_BYTES);
+			buffer.asLongBuffer().get(dst, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.LONG_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#size()
+	 */
+	@Override
+	public long size() throws IOException {
+		flush();
+		return channel.size();
+	}
+
+	/**
+	 * Switch to read mode.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void toReadMode() throws IOException {
+		if (writing) {
+			flush();
+			buffer.clear();
+			buffer.limit(0);
+			writing = false;
+		}
+	}
+
+	/**
+	 * Switch to write mode.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void toWriteMode() throws IOException {
+		if (isBlock()) {
+			throw new NonWritableChannelException();
+		}
+		if (!writing) {
+			if (buffer.hasRemaining()) {
+				channel.position(position());
+			}
+			buffer.clear();
+			writing = true;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)
+	 */
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		if (isBlock()) {
+			throw new NonWritableChannelException();
+		}
+		flush();
+		return channel.transferFrom(src, position, count);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+	 */
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		flush();
+		return channel.transferTo(position, count, target);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#truncate(long)
+	 */
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		if (isBlock()) {
+			throw new NonWritableChannelException();
+		}
+		flush();
+		long pos = position();
+		channel.truncate(size);
+		if (pos > size) {
+			position(size);
+		}
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#tryLock(long, long, boolean)
+	 */
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		return channel.tryLock(position, size, shared);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		toWriteMode();
+		int n = src.remaining();
+		if (n > buffer.remaining()) {
+			flush();
+			if (n > buffer.capacity()) {
+				while (src.hasRemaining()) {
+					channel.write(src);
+				}
+				return n;
+			}
+		}
+		buffer.put(src);
+		return n;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#write(java.nio.ByteBuffer, long)
+	 */
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		if (isBlock()) {
+			throw new NonWritableChannelException();
+		}
+		flush();
+		return channel.write(src, position);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.nio.channels.FileChannel#write(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += write(srcs[i]);
+		}
+		return total;
+	}
+
+	/**
+	 * Write double.
+	 *
+	 * @param d
+	 *            the d
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeDouble(double d) throws IOException {
+		ensureWritable(PersistenceToolbox.DOUBLE_NB_BYTES);
+		buffer.putDouble(d);
+	}
+
+	/**
+	 * Write doubles.
+	 *
+	 * @param src
+	 *            the src
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeDoubles(double[] src, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureWritable(PersistenceToolbox.DOUBLE_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.DOUBLE_NB_BYTES);
+			buffer.asDoubleBuffer().put(src, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.DOUBLE_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write float.
+	 *
+	 * @param f
+	 *            the f
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeFloat(float f) throws IOException {
+		ensureWritable(PersistenceToolbox.FLOAT_NB_BYTES);
+		buffer.putFloat(f);
+	}
+
+	/**
+	 * Write floats.
+	 *
+	 * @param src
+	 *            the src
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeFloats(float[] src, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureWritable(PersistenceToolbox.FLOAT_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.FLOAT_NB_BYTES);
+			buffer.asFloatBuffer().put(src, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.FLOAT_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write int.
+	 *
+	 * @param i
+	 *            the i
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeInt(int i) throws IOException {
+		ensureWritable(PersistenceToolbox.INT_NB_BYTES);
+		buffer.putInt(i);
+	}
+
+	/**
+	 * Write ints.
+	 *
+	 * @param src
+	 *            the src
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeInts(int[] src, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureWritable(PersistenceToolbox.INT_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.INT_NB_BYTES);
+			buffer.asIntBuffer().put(src, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.INT_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write long.
+	 *
+	 * @param l
+	 *            the l
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeLong(long l) throws IOException {
+		ensureWritable(PersistenceToolbox.LONG_NB_BYTES);
+		buffer.putLong(l);
+	}
+
+	/**
+	 * Write longs.
+	 *
+	 * @param src
+	 *            the src
+	 * @param off
+	 *            the off
+	 * @param len
+	 *            the len
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeLongs(long[] src, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureWritable(PersistenceToolbox.LONG_NB_BYTES);
+			int n = Math.min(len, buffer.remaining() / PersistenceToolbox.LONG_NB_BYTES);
+			buffer.asLongBuffer().put(src, off, n);
+			buffer.position(buffer.position() + n * PersistenceToolbox.LONG_NB_BYTES);
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -19,6 +19,7 @@
  */
 package plugins.nherve.toolbox;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -38,9 +39,13 @@ import java.util.Map;
 
 import plugins.nherve.toolbox.image.feature.Signature;
 import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
+import plugins.nherve.toolbox.image.feature.signature.ByteDenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.CompactSparseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.FloatDenseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.IndexSignature;
+import plugins.nherve.toolbox.image.feature.signature.MappedVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
 import plugins.nherve.toolbox.image.feature.signature.SparseVectorSignature;
 
@@ -54,6 +59,9 @@ public class PersistenceToolbox {
 	/** The Constant BAG_TYPE. */
 	public final static int BAG_TYPE = 2;
 
+	/** The Constant BYTE_DENSE_TYPE. */
+	public final static int BYTE_DENSE_TYPE = 7;
+
 	/** The Constant cs. */
 	private final static Charset cs = Charset.forName("UTF-8");
 
@@ -63,12 +71,18 @@ public class PersistenceToolbox {
 	/** The Constant cse. */
 	private final static CharsetEncoder cse = cs.newEncoder();
 
+	/** The Constant COMPACT_SPARSE_TYPE. */
+	public final static int COMPACT_SPARSE_TYPE = 5;
+
 	/** The Constant DENSE_TYPE. */
 	public final static int DENSE_TYPE = 0;
 
 	/** The Constant DOUBLE_NB_BYTES. */
 	public final static int DOUBLE_NB_BYTES = 8;
 
+	/** The Constant FLOAT_DENSE_TYPE. */
+	public final static int FLOAT_DENSE_TYPE = 6;
+
 	/** The Constant FLOAT_NB_BYTES. */
 	public final static int FLOAT_NB_BYTES = 4;
 
@@ -85,6 +99,9 @@ public class PersistenceToolbox {
 	/** The Constant SPARSE_TYPE. */
 	public final static int SPARSE_TYPE = 1;
 
+	/** The highest type code used by the built-in signatures, the hooks have to use greater codes. */
+	public final static int LAST_BUILTIN_TYPE = BYTE_DENSE_TYPE;
+
 	public final static Map<Integer, SignaturePersistenceHook<? extends Signature>> HOOKS_BY_TYPE = new HashMap<Integer, SignaturePersistenceHook<? extends Signature>>();
 	public final static Map<Class<? extends Signature>, SignaturePersistenceHook<? extends Signature>> HOOKS_BY_CLASS = new HashMap<Class<? extends Signature>, SignaturePersistenceHook<? extends Signature>>();
 
@@ -123,6 +140,47 @@ public class PersistenceToolbox {
 		}
 	}
 
+	/**
+	 * Dump byte dense vector signature.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @param s
+	 *            the s
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void dumpByteDenseVectorSignature(FileChannel fc, ByteDenseVectorSignature s) throws IOException {
+		dumpDouble(fc, s.getOffset());
+		dumpDouble(fc, s.getScale());
+		dumpFullByteArray(fc, s.getReadOnlyData());
+	}
+
+	/**
+	 * Dump compact sparse vector signature. The layout is the same as the one
+	 * of {@link #dumpSparseVectorSignature(FileChannel, SparseVectorSignature)}.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @param s
+	 *            the s
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void dumpCompactSparseVectorSignature(FileChannel fc, CompactSparseVectorSignature s) throws IOException {
+		int nzb = s.getNonZeroBins();
+
+		dumpInt(fc, s.getSize());
+		dumpInt(fc, nzb);
+
+		ByteBuffer bb = ByteBuffer.allocate((INT_NB_BYTES + DOUBLE_NB_BYTES) * nzb);
+		bb.asIntBuffer().put(s.getIndexes(), 0, nzb);
+		bb.position(INT_NB_BYTES * nzb);
+		bb.asDoubleBuffer().put(s.getReadOnlyValues(), 0, nzb);
+		bb.rewind();
+		fc.write(bb);
+	}
+
 	/**
 	 * Dump dense vector signature.
 	 *
@@ -135,9 +193,13 @@ public class PersistenceToolbox {
 	 */
 	public static void dumpDenseVectorSignature(FileChannel fc, DenseVectorSignature s) throws IOException {
 		dumpInt(fc, s.getSize());
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeDoubles(s.getReadOnlyData(), 0, s.getSize());
+			return;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(DOUBLE_NB_BYTES * s.getSize());
 		DoubleBuffer db = bb.asDoubleBuffer();
-		db.put(s.getData());
+		db.put(s.getReadOnlyData());
 		db.flip();
 		fc.write(bb);
 	}
@@ -153,6 +215,10 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static void dumpDouble(FileChannel fc, double d) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeDouble(d);
+			return;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(DOUBLE_NB_BYTES);
 		DoubleBuffer db = bb.asDoubleBuffer();
 		db.put(d);
@@ -160,6 +226,29 @@ public class PersistenceToolbox {
 		fc.write(bb);
 	}
 
+	/**
+	 * Dump float dense vector signature.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @param s
+	 *            the s
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void dumpFloatDenseVectorSignature(FileChannel fc, FloatDenseVectorSignature s) throws IOException {
+		dumpInt(fc, s.getSize());
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeFloats(s.getReadOnlyData(), 0, s.getSize());
+			return;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(FLOAT_NB_BYTES * s.getSize());
+		FloatBuffer db = bb.asFloatBuffer();
+		db.put(s.getReadOnlyData());
+		db.flip();
+		fc.write(bb);
+	}
+
 	/**
 	 * Dump float.
 	 *
@@ -171,6 +260,10 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static void dumpFloat(FileChannel fc, float f) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeFloat(f);
+			return;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(FLOAT_NB_BYTES);
 		FloatBuffer db = bb.asFloatBuffer();
 		db.put(f);
@@ -178,6 +271,14 @@ public class PersistenceToolbox {
 		fc.write(bb);
 	}
 
+	public static void dumpFullByteArray(FileChannel fc, byte[] b) throws IOException {
+		dumpInt(fc, b.length);
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		while (bb.hasRemaining()) {
+			fc.write(bb);
+		}
+	}
+
 	public static void dumpFullIntArray(FileChannel fc, int[] i) throws IOException {
 		dumpInt(fc, i.length);
 		dumpIntArray(fc, i);
@@ -208,6 +309,10 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static void dumpInt(FileChannel fc, int i) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeInt(i);
+			return;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(INT_NB_BYTES);
 		IntBuffer ib = bb.asIntBuffer();
 		ib.put(i);
@@ -226,6 +331,10 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static void dumpIntArray(FileChannel fc, int[] i) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeInts(i, 0, i.length);
+			return;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(i.length * INT_NB_BYTES);
 		IntBuffer ib = bb.asIntBuffer();
 		ib.put(i);
@@ -234,6 +343,10 @@ public class PersistenceToolbox {
 	}
 
 	public static void dumpLong(FileChannel fc, long l) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeLong(l);
+			return;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(LONG_NB_BYTES);
 		LongBuffer lb = bb.asLongBuffer();
 		lb.put(l);
@@ -242,6 +355,10 @@ public class PersistenceToolbox {
 	}
 
 	public static void dumpLongArray(FileChannel fc, long[] i) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).writeLongs(i, 0, i.length);
+			return;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(i.length * LONG_NB_BYTES);
 		LongBuffer ib = bb.asLongBuffer();
 		ib.put(i);
@@ -266,9 +383,21 @@ public class PersistenceToolbox {
 		} else if (s instanceof DenseVectorSignature) {
 			dumpInt(fc, DENSE_TYPE);
 			dumpDenseVectorSignature(fc, (DenseVectorSignature) s);
+		} else if (s instanceof FloatDenseVectorSignature) {
+			dumpInt(fc, FLOAT_DENSE_TYPE);
+			dumpFloatDenseVectorSignature(fc, (FloatDenseVectorSignature) s);
+		} else if (s instanceof ByteDenseVectorSignature) {
+			dumpInt(fc, BYTE_DENSE_TYPE);
+			dumpByteDenseVectorSignature(fc, (ByteDenseVectorSignature) s);
+		} else if (s instanceof MappedVectorSignature) {
+			dumpInt(fc, DENSE_TYPE);
+			dumpDenseVectorSignature(fc, new DenseVectorSignature(((MappedVectorSignature) s).toArray()));
 		} else if (s instanceof IndexSignature) {
 			dumpInt(fc, INDEX_TYPE);
 			dumpIndexSignature(fc, (IndexSignature) s);
+		} else if (s instanceof CompactSparseVectorSignature) {
+			dumpInt(fc, COMPACT_SPARSE_TYPE);
+			dumpCompactSparseVectorSignature(fc, (CompactSparseVectorSignature) s);
 		} else if (s instanceof SparseVectorSignature) {
 			dumpInt(fc, SPARSE_TYPE);
 			dumpSparseVectorSignature(fc, (SparseVectorSignature) s);
@@ -368,6 +497,28 @@ public class PersistenceToolbox {
 		}
 	}
 
+	/**
+	 * Move a file, replacing the destination if it exists.
+	 *
+	 * @param from
+	 *            the file to move
+	 * @param to
+	 *            the destination
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void moveFile(File from, File to) throws IOException {
+		if (from.renameTo(to)) {
+			return;
+		}
+		if (to.exists() && !to.delete()) {
+			throw new IOException("Unable to replace " + to.getAbsolutePath());
+		}
+		if (!from.renameTo(to)) {
+			throw new IOException("Unable to move " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+		}
+	}
+
 	/**
 	 * Load bag of signatures.
 	 *
@@ -378,6 +529,22 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static BagOfSignatures<DefaultVectorSignature> loadBagOfSignatures(FileChannel fc) throws IOException {
+		return loadBagOfSignatures(fc, false);
+	}
+
+	/**
+	 * Load bag of signatures.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @param sparseAsCompact
+	 *            load the SPARSE_TYPE signatures as
+	 *            {@link CompactSparseVectorSignature}
+	 * @return the bag of signatures
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static BagOfSignatures<DefaultVectorSignature> loadBagOfSignatures(FileChannel fc, boolean sparseAsCompact) throws IOException {
 		int type = loadInt(fc);
 		if (type == NULL_TYPE) {
 			return null;
@@ -388,7 +555,7 @@ public class PersistenceToolbox {
 		int sz = loadInt(fc);
 		BagOfSignatures<DefaultVectorSignature> bag = new BagOfSignatures<DefaultVectorSignature>();
 		for (int i = 0; i < sz; i++) {
-			bag.add(loadVectorSignature(fc));
+			bag.add(loadVectorSignature(fc, sparseAsCompact));
 		}
 		return bag;
 	}
@@ -406,6 +573,46 @@ public class PersistenceToolbox {
 		return loadInt(fc) == 1;
 	}
 
+	/**
+	 * Load byte dense vector signature.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @return the byte dense vector signature
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static ByteDenseVectorSignature loadByteDenseVectorSignature(FileChannel fc) throws IOException {
+		double offset = loadDouble(fc);
+		double scale = loadDouble(fc);
+		return new ByteDenseVectorSignature(loadFullByteArray(fc), offset, scale);
+	}
+
+	/**
+	 * Load compact sparse vector signature.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @return the compact sparse vector signature
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static CompactSparseVectorSignature loadCompactSparseVectorSignature(FileChannel fc) throws IOException {
+		int sz = loadInt(fc);
+		int nzb = loadInt(fc);
+
+		ByteBuffer bb = ByteBuffer.allocate((INT_NB_BYTES + DOUBLE_NB_BYTES) * nzb);
+		fc.read(bb);
+		bb.flip();
+		int[] idx = new int[Math.max(nzb, 1)];
+		double[] val = new double[Math.max(nzb, 1)];
+		bb.asIntBuffer().get(idx, 0, nzb);
+		bb.position(INT_NB_BYTES * nzb);
+		bb.asDoubleBuffer().get(val, 0, nzb);
+
+		return new CompactSparseVectorSignature(sz, idx, val, nzb);
+	}
+
 	/**
 	 * Load dense vector signature.
 	 *
@@ -417,6 +624,11 @@ public class PersistenceToolbox {
 	 */
 	public static DenseVectorSignature loadDenseVectorSignature(FileChannel fc) throws IOException {
 		int sz = loadInt(fc);
+		if (fc instanceof BufferedFileChannel) {
+			double[] data = new double[sz];
+			((BufferedFileChannel) fc).readDoubles(data, 0, sz);
+			return new DenseVectorSignature(data);
+		}
 		ByteBuffer bb = ByteBuffer.allocate(DOUBLE_NB_BYTES * sz);
 		fc.read(bb);
 		bb.flip();
@@ -437,6 +649,9 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static double loadDouble(FileChannel fc) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			return ((BufferedFileChannel) fc).readDouble();
+		}
 		ByteBuffer bb = ByteBuffer.allocate(DOUBLE_NB_BYTES);
 		fc.read(bb);
 		bb.flip();
@@ -444,6 +659,29 @@ public class PersistenceToolbox {
 		return db.get();
 	}
 
+	/**
+	 * Load float dense vector signature.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @return the float dense vector signature
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static FloatDenseVectorSignature loadFloatDenseVectorSignature(FileChannel fc) throws IOException {
+		int sz = loadInt(fc);
+		float[] data = new float[sz];
+		if (fc instanceof BufferedFileChannel) {
+			((BufferedFileChannel) fc).readFloats(data, 0, sz);
+			return new FloatDenseVectorSignature(data);
+		}
+		ByteBuffer bb = ByteBuffer.allocate(FLOAT_NB_BYTES * sz);
+		fc.read(bb);
+		bb.flip();
+		bb.asFloatBuffer().get(data);
+		return new FloatDenseVectorSignature(data);
+	}
+
 	/**
 	 * Load float.
 	 *
@@ -454,6 +692,9 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static float loadFloat(FileChannel fc) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			return ((BufferedFileChannel) fc).readFloat();
+		}
 		ByteBuffer bb = ByteBuffer.allocate(FLOAT_NB_BYTES);
 		fc.read(bb);
 		bb.flip();
@@ -461,6 +702,17 @@ public class PersistenceToolbox {
 		return db.get();
 	}
 
+	public static byte[] loadFullByteArray(FileChannel fc) throws IOException {
+		byte[] b = new byte[loadInt(fc)];
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		while (bb.hasRemaining()) {
+			if (fc.read(bb) < 0) {
+				throw new EOFException();
+			}
+		}
+		return b;
+	}
+
 	public static int[] loadFullIntArray(FileChannel fc) throws IOException {
 		int sz = loadInt(fc);
 		return loadIntArray(fc, sz);
@@ -493,6 +745,9 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static int loadInt(FileChannel fc) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			return ((BufferedFileChannel) fc).readInt();
+		}
 		ByteBuffer bb = ByteBuffer.allocate(INT_NB_BYTES);
 		fc.read(bb);
 		bb.flip();
@@ -501,6 +756,11 @@ public class PersistenceToolbox {
 	}
 
 	public static int[] loadIntArray(FileChannel fc, int sz) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			int[] res = new int[sz];
+			((BufferedFileChannel) fc).readInts(res, 0, sz);
+			return res;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(PersistenceToolbox.INT_NB_BYTES * sz);
 		fc.read(bb);
 		bb.flip();
@@ -511,6 +771,9 @@ public class PersistenceToolbox {
 	}
 
 	public static long loadLong(FileChannel fc) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			return ((BufferedFileChannel) fc).readLong();
+		}
 		ByteBuffer bb = ByteBuffer.allocate(LONG_NB_BYTES);
 		fc.read(bb);
 		bb.flip();
@@ -519,6 +782,11 @@ public class PersistenceToolbox {
 	}
 
 	public static long[] loadLongArray(FileChannel fc, int sz) throws IOException {
+		if (fc instanceof BufferedFileChannel) {
+			long[] res = new long[sz];
+			((BufferedFileChannel) fc).readLongs(res, 0, sz);
+			return res;
+		}
 		ByteBuffer bb = ByteBuffer.allocate(PersistenceToolbox.LONG_NB_BYTES * sz);
 		fc.read(bb);
 		bb.flip();
@@ -598,6 +866,24 @@ public class PersistenceToolbox {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public static DefaultVectorSignature loadVectorSignature(FileChannel fc) throws IOException {
+		return loadVectorSignature(fc, false);
+	}
+
+	/**
+	 * Load vector signature. The signatures stored with the SPARSE_TYPE code
+	 * may be loaded as {@link CompactSparseVectorSignature} instead of
+	 * {@link SparseVectorSignature}, both share the same layout on disk.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @param sparseAsCompact
+	 *            load the SPARSE_TYPE signatures as
+	 *            {@link CompactSparseVectorSignature}
+	 * @return the vector signature
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static DefaultVectorSignature loadVectorSignature(FileChannel fc, boolean sparseAsCompact) throws IOException {
 		int type = loadInt(fc);
 		switch (type) {
 		case NULL_TYPE:
@@ -605,7 +891,16 @@ public class PersistenceToolbox {
 		case DENSE_TYPE:
 			return loadDenseVectorSignature(fc);
 		case SPARSE_TYPE:
+			if (sparseAsCompact) {
+				return loadCompactSparseVectorSignature(fc);
+			}
 			return loadSparseVectorSignature(fc);
+		case COMPACT_SPARSE_TYPE:
+			return loadCompactSparseVectorSignature(fc);
+		case FLOAT_DENSE_TYPE:
+			return loadFloatDenseVectorSignature(fc);
+		case BYTE_DENSE_TYPE:
+			return loadByteDenseVectorSignature(fc);
 		}
 		if (HOOKS_BY_TYPE.containsKey(type)) {
 			return HOOKS_BY_TYPE.get(type).loadSignature(fc);
@@ -613,7 +908,79 @@ public class PersistenceToolbox {
 		throw new IOException("Unknown VectorSignature type (" + type + ")");
 	}
 
+	/**
+	 * Skip a signature, as written by {@link #dumpSignature(FileChannel, Signature)},
+	 * without building it. The signatures handled by a hook are loaded and
+	 * dropped since their length is unknown.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void skipSignature(FileChannel fc) throws IOException {
+		int type = loadInt(fc);
+		switch (type) {
+		case NULL_TYPE:
+			return;
+		case DENSE_TYPE:
+			skip(fc, (long) DOUBLE_NB_BYTES * loadInt(fc));
+			return;
+		case FLOAT_DENSE_TYPE:
+		case INDEX_TYPE:
+			skip(fc, (long) INT_NB_BYTES * loadInt(fc));
+			return;
+		case BYTE_DENSE_TYPE:
+			skip(fc, 2 * DOUBLE_NB_BYTES);
+			skip(fc, loadInt(fc));
+			return;
+		case SPARSE_TYPE:
+		case COMPACT_SPARSE_TYPE:
+			loadInt(fc);
+			skip(fc, (long) (INT_NB_BYTES + DOUBLE_NB_BYTES) * loadInt(fc));
+			return;
+		case BAG_TYPE:
+			int sz = loadInt(fc);
+			for (int i = 0; i < sz; i++) {
+				skipSignature(fc);
+			}
+			return;
+		}
+		if (HOOKS_BY_TYPE.containsKey(type)) {
+			HOOKS_BY_TYPE.get(type).loadSignature(fc);
+			return;
+		}
+		throw new IOException("Unknown Signature type (" + type + ")");
+	}
+
+	/**
+	 * Skip some bytes.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @param n
+	 *            the number of bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void skip(FileChannel fc, long n) throws IOException {
+		fc.position(fc.position() + n);
+	}
+
+	/**
+	 * Register a hook for the persistence of another type of signature. Its
+	 * type code must be greater than {@link #LAST_BUILTIN_TYPE}, the built-in
+	 * codes are read before the hooks and would shadow it.
+	 *
+	 * @param hook
+	 *            the hook
+	 * @throws IllegalArgumentException
+	 *             if the type code of the hook is a built-in one
+	 */
 	public static void registerSignaturePersistenceHook(SignaturePersistenceHook<? extends Signature> hook) {
+		if ((hook.getTypeCode() >= 0) && (hook.getTypeCode() <= LAST_BUILTIN_TYPE)) {
+			throw new IllegalArgumentException("Signature type code " + hook.getTypeCode() + " is reserved, use a code greater than " + LAST_BUILTIN_TYPE);
+		}
 		HOOKS_BY_TYPE.put(hook.getTypeCode(), hook);
 		HOOKS_BY_CLASS.put(hook.getSignatureClass(), hook);
 	}
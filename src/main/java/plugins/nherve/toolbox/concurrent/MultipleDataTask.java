@@ -66,6 +66,15 @@ public abstract class MultipleDataTask<Input, Output> implements Callable<Output
 		this.idx2 = idx2;
 	}
 
+	/**
+	 * Gets all the data, not only the range of this task.
+	 * 
+	 * @return the all data
+	 */
+	public List<Input> getAllData() {
+		return allData;
+	}
+
 	/**
 	 * Gets the idx1.
 	 * 
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.concurrent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import plugins.nherve.toolbox.Algorithm;
+
+/**
+ * Streaming pipeline : the items go through a sequence of stages, each one
+ * with its own {@link TaskManager} pool, connected by bounded queues. A stage blocks when the
+ * queue of the next one is full, so the number of items in flight never
+ * exceeds the sum of the queue capacities and threads, whatever the size of
+ * the source.
+ *
+ * An item for which a stage fails skips the remaining stages. The listener is
+ * called once per item, when it leaves the pipeline.
+ *
+ * @param <T>
+ *            the item type
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class Pipeline<T> extends Algorithm {
+
+	/**
+	 * One step of the processing of an item.
+	 *
+	 * @param <T>
+	 *            the item type
+	 */
+	public interface Stage<T> {
+		void process(T item) throws Exception;
+	}
+
+	/**
+	 * Completion callback.
+	 *
+	 * @param <T>
+	 *            the item type
+	 */
+	public interface Listener<T> {
+
+		/**
+		 * Called when an item leaves the pipeline.
+		 *
+		 * @param item
+		 *            the item
+		 * @param error
+		 *            the error that stopped the item, null if it went through
+		 *            all the stages
+		 */
+		void itemDone(T item, Throwable error);
+	}
+
+	/**
+	 * The Class StageRunner.
+	 *
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class StageRunner implements Runnable {
+
+		/** The stage index. */
+		private final int idx;
+
+		/**
+		 * Instantiates a new stage runner.
+		 *
+		 * @param idx
+		 *            the idx
+		 */
+		public StageRunner(int idx) {
+			super();
+			this.idx = idx;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public void run() {
+			BlockingQueue<Object> in = queues.get(idx);
+			BlockingQueue<Object> out = (idx + 1 < stages.size()) ? queues.get(idx + 1) : null;
+			Stage<T> stage = stages.get(idx);
+			try {
+				while (true) {
+					Object o = in.take();
+					if (o == END) {
+						break;
+					}
+					T item = (T) o;
+					try {
+						stage.process(item);
+					} catch (Throwable t) {
+						done(item, t);
+						continue;
+					}
+					if (out != null) {
+						out.put(item);
+					} else {
+						done(item, null);
+					}
+				}
+			} catch (InterruptedException e) {
+				// stop
+			} finally {
+				if (remainingThreads[idx].decrementAndGet() == 0) {
+					if (out != null) {
+						try {
+							for (int t = 0; t < nbThreads.get(idx + 1); t++) {
+								out.put(END);
+							}
+						} catch (InterruptedException e) {
+							// stop
+						}
+					} else {
+						finished.countDown();
+					}
+				}
+			}
+		}
+	}
+
+	/** The end of stream marker. */
+	private final static Object END = new Object();
+
+	/** The name. */
+	private final String name;
+
+	/** The queue capacity. */
+	private final int queueCapacity;
+
+	/** The stage names. */
+	private final List<String> names;
+
+	/** The stages. */
+	private final List<Stage<T>> stages;
+
+	/** The number of threads of each stage. */
+	private final List<Integer> nbThreads;
+
+	/** The input queue of each stage. */
+	private List<BlockingQueue<Object>> queues;
+
+	/** The number of running threads of each stage. */
+	private AtomicInteger[] remainingThreads;
+
+	/** The listener. */
+	private Listener<T> listener;
+
+	/** The number of items out of the pipeline. */
+	private AtomicInteger nbDone;
+
+	/** The number of failed items. */
+	private AtomicInteger nbErrors;
+
+	/** The progress report period. */
+	private long progressSleep;
+
+	/** Counted down when all the items are out. */
+	private CountDownLatch finished;
+
+	/**
+	 * Instantiates a new pipeline.
+	 *
+	 * @param name
+	 *            the name
+	 * @param queueCapacity
+	 *            the capacity of the queue in front of each stage
+	 */
+	public Pipeline(String name, int queueCapacity) {
+		super();
+		this.name = name;
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.names = new ArrayList<String>();
+		this.stages = new ArrayList<Stage<T>>();
+		this.nbThreads = new ArrayList<Integer>();
+		this.listener = null;
+		this.progressSleep = 5000;
+	}
+
+	/**
+	 * Adds a stage.
+	 *
+	 * @param stageName
+	 *            the stage name
+	 * @param threads
+	 *            the number of threads of the stage
+	 * @param stage
+	 *            the stage
+	 */
+	public void addStage(String stageName, int threads, Stage<T> stage) {
+		names.add(stageName);
+		nbThreads.add(Math.max(1, threads));
+		stages.add(stage);
+	}
+
+	/**
+	 * An item leaves the pipeline.
+	 *
+	 * @param item
+	 *            the item
+	 * @param error
+	 *            the error
+	 */
+	private void done(T item, Throwable error) {
+		if (error != null) {
+			nbErrors.incrementAndGet();
+		}
+		try {
+			if (listener != null) {
+				listener.itemDone(item, error);
+			}
+		} catch (Throwable t) {
+			err(t);
+		}
+		nbDone.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of failed items of the last run.
+	 *
+	 * @return the nb errors
+	 */
+	public int getNbErrors() {
+		return nbErrors == null ? 0 : nbErrors.get();
+	}
+
+	/**
+	 * Run the pipeline on all the items of the source and wait for them to
+	 * leave it. The source is consumed only as fast as the first stage
+	 * accepts the items.
+	 *
+	 * @param source
+	 *            the source
+	 * @return the number of processed items
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	public int run(Iterator<T> source) throws InterruptedException {
+		if (stages.isEmpty()) {
+			throw new IllegalStateException("No stage in pipeline " + name);
+		}
+
+		queues = new ArrayList<BlockingQueue<Object>>();
+		remainingThreads = new AtomicInteger[stages.size()];
+		nbDone = new AtomicInteger(0);
+		nbErrors = new AtomicInteger(0);
+
+		for (int s = 0; s < stages.size(); s++) {
+			queues.add(new ArrayBlockingQueue<Object>(queueCapacity));
+			remainingThreads[s] = new AtomicInteger(nbThreads.get(s));
+		}
+
+		finished = new CountDownLatch(1);
+
+		long start = System.currentTimeMillis();
+		info(name + " launched (" + describe() + ")");
+		List<TaskManager> pools = new ArrayList<TaskManager>();
+		for (int s = 0; s < stages.size(); s++) {
+			TaskManager pool = TaskManager.create(name + "-" + names.get(s), nbThreads.get(s));
+			pools.add(pool);
+			for (int t = 0; t < nbThreads.get(s); t++) {
+				pool.execute(new StageRunner(s));
+			}
+		}
+
+		int nbIn = 0;
+		BlockingQueue<Object> first = queues.get(0);
+		try {
+			try {
+				while (source.hasNext()) {
+					T item = source.next();
+					while (!first.offer(item, progressSleep, TimeUnit.MILLISECONDS)) {
+						report(nbIn);
+					}
+					nbIn++;
+				}
+			} finally {
+				for (int t = 0; t < nbThreads.get(0); t++) {
+					first.put(END);
+				}
+			}
+			while (!finished.await(progressSleep, TimeUnit.MILLISECONDS)) {
+				report(nbIn);
+			}
+		} catch (InterruptedException e) {
+			for (TaskManager pool : pools) {
+				pool.shutdownNow();
+			}
+			throw e;
+		} finally {
+			for (TaskManager pool : pools) {
+				pool.shutdown();
+			}
+		}
+
+		info(name + " done : " + nbDone.get() + " items (" + nbErrors.get() + " errors) in " + (System.currentTimeMillis() - start) + " ms");
+		return nbDone.get();
+	}
+
+	/**
+	 * Describe the stages.
+	 *
+	 * @return the description
+	 */
+	private String describe() {
+		StringBuilder sb = new StringBuilder();
+		for (int s = 0; s < stages.size(); s++) {
+			if (s > 0) {
+				sb.append(" > ");
+			}
+			sb.append(names.get(s) + " x" + nbThreads.get(s));
+		}
+		sb.append(", queues of " + queueCapacity);
+		return sb.toString();
+	}
+
+	/**
+	 * Report the progress.
+	 *
+	 * @param nbIn
+	 *            the number of items given to the pipeline so far
+	 */
+	private void report(int nbIn) {
+		StringBuilder sb = new StringBuilder(" - working (" + name + ") : " + nbDone.get() + " / " + nbIn + " done, queues");
+		for (int s = 0; s < stages.size(); s++) {
+			sb.append(" " + names.get(s) + "=" + queues.get(s).size());
+		}
+		info(sb.toString());
+	}
+
+	/**
+	 * Sets the listener.
+	 *
+	 * @param listener
+	 *            the new listener
+	 */
+	public void setListener(Listener<T> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the progress report period.
+	 *
+	 * @param progressSleep
+	 *            the new progress sleep
+	 */
+	public void setProgressSleep(long progressSleep) {
+		this.progressSleep = Math.max(1, progressSleep);
+	}
+
+}
@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -45,6 +46,15 @@ import plugins.nherve.toolbox.Algorithm;
  */
 public class TaskManager extends Algorithm {
 
+	static class TaskManagerThread extends Thread {
+		private final TaskManagerThreadFactory factory;
+
+		TaskManagerThread(TaskManagerThreadFactory factory, ThreadGroup group, Runnable r, String name) {
+			super(group, r, name, 0);
+			this.factory = factory;
+		}
+	}
+
 	static class TaskManagerThreadFactory implements ThreadFactory {
 		private static final AtomicInteger poolNumber = new AtomicInteger(1);
 		private final ThreadGroup group;
@@ -59,7 +69,7 @@ public class TaskManager extends Algorithm {
 
 		@Override
 		public Thread newThread(Runnable r) {
-			Thread t = new Thread(group, r, namePrefix + threadNumber.getAndIncrement(), 0);
+			Thread t = new TaskManagerThread(this, group, r, namePrefix + threadNumber.getAndIncrement());
 			if (t.isDaemon()) {
 				t.setDaemon(false);
 			}
@@ -198,6 +208,9 @@ public class TaskManager extends Algorithm {
 		}
 	}
 
+	/** The thread factory. */
+	private TaskManagerThreadFactory threadFactory;
+
 	/** The thread pool. */
 	private ThreadPoolExecutor threadPool;
 
@@ -221,7 +234,8 @@ public class TaskManager extends Algorithm {
 	public TaskManager(String pfx, int nbt) {
 		super();
 
-		threadPool = (ThreadPoolExecutor) (Executors.newFixedThreadPool(nbt, new TaskManagerThreadFactory(pfx)));
+		threadFactory = new TaskManagerThreadFactory(pfx);
+		threadPool = (ThreadPoolExecutor) (Executors.newFixedThreadPool(nbt, threadFactory));
 		threadPool.prestartAllCoreThreads();
 
 		setShowProgress(true);
@@ -274,6 +288,18 @@ public class TaskManager extends Algorithm {
 		return showProgress;
 	}
 
+	/**
+	 * Checks if the current thread is one of the threads of this pool. A task
+	 * running on the pool must not block on other tasks submitted to it, they
+	 * may never get a thread.
+	 *
+	 * @return true, if the current thread belongs to the pool
+	 */
+	public boolean isPoolThread() {
+		Thread t = Thread.currentThread();
+		return (t instanceof TaskManagerThread) && (((TaskManagerThread) t).factory == threadFactory);
+	}
+
 	public boolean isShutdown() {
 		return threadPool.isShutdown();
 	}
@@ -649,6 +675,10 @@ public class TaskManager extends Algorithm {
 							outWithTime(" - working (" + msg + ") : " + cf.format(pct) + " %");
 						}
 						Thread.sleep(slp);
+					} else {
+						// block instead of spinning, the waiting thread may be
+						// needed by the tasks
+						waitDone(poolResults);
 					}
 				}
 			} while (!finished);
@@ -668,6 +698,27 @@ public class TaskManager extends Algorithm {
 		}
 	}
 
+	/**
+	 * Wait for all the tasks to be done, whether they succeed or not.
+	 *
+	 * @param <Output>
+	 *            the generic type
+	 * @param poolResults
+	 *            the pool results
+	 * @throws InterruptedException
+	 */
+	private <Output> void waitDone(List<Future<Output>> poolResults) throws InterruptedException {
+		for (Future<Output> tr : poolResults) {
+			try {
+				tr.get();
+			} catch (ExecutionException e) {
+				// reported by the caller
+			} catch (CancellationException e) {
+				// reported by the caller
+			}
+		}
+	}
+
 	/**
 	 * Wait results.
 	 *
@@ -17,6 +17,15 @@ import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 
 public class DatabaseManager<T extends SegmentableImage> extends Algorithm {
+	public final static int FULL_LOAD = 0;
+	public final static int HEADERS_ONLY_LOAD = 1;
+	public final static int LAZY_LOAD = 2;
+
+	private boolean useMappedSignatures;
+	private long lazyCacheMaxBytes = SignatureCache.DEFAULT_MAX_BYTES;
+	private boolean journaledPartialDump;
+	private boolean pipelineIndexing;
+	private boolean parallelPersistence;
 
 	public DatabaseManager() {
 		super();
@@ -56,20 +65,45 @@ public class DatabaseManager<T extends SegmentableImage> extends Algorithm {
 
 	public void save(final ImageDatabase<T> db) throws IOException {
 		ImageDatabasePersistence<T> ptv = new ImageDatabasePersistence<T>(db);
+		ptv.setLogEnabled(isLogEnabled());
+		ptv.setParallel(isParallelPersistence());
 		ptv.dump();
 	}
 
+	public void saveMatrix(final ImageDatabase<T> db, String desc, boolean asFloat) throws IOException {
+		ImageDatabasePersistence<T> ptv = new ImageDatabasePersistence<T>(db);
+		ptv.setLogEnabled(isLogEnabled());
+		ptv.dumpMatrix(desc, asFloat);
+	}
+
 	public ImageDatabase<T> load(final DatabaseConfiguration conf) throws IOException {
 		return load(conf, false);
 	}
 
 	public ImageDatabase<T> load(final DatabaseConfiguration conf, boolean headersOnly) throws IOException {
+		return load(conf, headersOnly ? HEADERS_ONLY_LOAD : FULL_LOAD);
+	}
+
+	/**
+	 * Load a database. With LAZY_LOAD, only the headers are read and the
+	 * signatures are fetched from the files when accessed, the most recently
+	 * used ones being kept in a cache of getLazyCacheMaxBytes() bytes. The
+	 * signature files then stay opened until ImageDatabase.close() is called.
+	 */
+	public ImageDatabase<T> load(final DatabaseConfiguration conf, int mode) throws IOException {
 		info("Loading database " + conf.getName());
 		ImageDatabasePersistence<T> ptv = new ImageDatabasePersistence<T>(conf.getRoot() + "/" + conf.getSignatures());
 		ptv.setLogEnabled(isLogEnabled());
-		if (headersOnly) {
+		ptv.setUseMappedSignatures(isUseMappedSignatures());
+		ptv.setParallel(isParallelPersistence());
+		switch (mode) {
+		case HEADERS_ONLY_LOAD:
 			ptv.loadHeaders();
-		} else {
+			break;
+		case LAZY_LOAD:
+			ptv.loadLazy(getLazyCacheMaxBytes(), false);
+			break;
+		default:
 			ptv.load(false);
 		}
 		ImageDatabase<T> db = ptv.getDb();
@@ -87,6 +121,8 @@ public class DatabaseManager<T extends SegmentableImage> extends Algorithm {
 
 		ImageDatabaseIndexer<T> idxr = new ImageDatabaseIndexer<T>(db, imageLoader);
 		idxr.setDoPartialDump(partialDump);
+		idxr.setJournaledPartialDump(isJournaledPartialDump());
+		idxr.setUsePipeline(isPipelineIndexing());
 		idxr.setPartialDumpSleep((long) (waitMinutesBetweenEachDump * 60 * 1000));
 		idxr.setDoOnlyMissingStuff(doOnlyMissingStuff);
 		idxr.setLogEnabled(isLogEnabled());
@@ -175,4 +211,44 @@ public class DatabaseManager<T extends SegmentableImage> extends Algorithm {
 
 		w.close();
 	}
+
+	public boolean isUseMappedSignatures() {
+		return useMappedSignatures;
+	}
+
+	public void setUseMappedSignatures(boolean useMappedSignatures) {
+		this.useMappedSignatures = useMappedSignatures;
+	}
+
+	public boolean isParallelPersistence() {
+		return parallelPersistence;
+	}
+
+	public void setParallelPersistence(boolean parallelPersistence) {
+		this.parallelPersistence = parallelPersistence;
+	}
+
+	public long getLazyCacheMaxBytes() {
+		return lazyCacheMaxBytes;
+	}
+
+	public void setLazyCacheMaxBytes(long lazyCacheMaxBytes) {
+		this.lazyCacheMaxBytes = lazyCacheMaxBytes;
+	}
+
+	public boolean isJournaledPartialDump() {
+		return journaledPartialDump;
+	}
+
+	public void setJournaledPartialDump(boolean journaledPartialDump) {
+		this.journaledPartialDump = journaledPartialDump;
+	}
+
+	public boolean isPipelineIndexing() {
+		return pipelineIndexing;
+	}
+
+	public void setPipelineIndexing(boolean pipelineIndexing) {
+		this.pipelineIndexing = pipelineIndexing;
+	}
 }
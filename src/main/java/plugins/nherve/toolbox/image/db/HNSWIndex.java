@@ -0,0 +1,994 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.feature.FeatureException;
+import plugins.nherve.toolbox.image.feature.SegmentableImage;
+import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * Hierarchical navigable small world graph over a global descriptor of an
+ * {@link ImageDatabase} (Malkov &amp; Yashunin). Each signature is a node
+ * linked to its approximate nearest neighbours on a number of layers, the
+ * upper layers being sparser. A query greedily descends the layers and then
+ * explores the bottom one with a beam of width efSearch.
+ * 
+ * The graph is built by several threads of a {@link TaskManager} created for
+ * the build, as large as the second level one. Once built it is read-only and can be searched
+ * concurrently. The nodes refer to the entries by id ; the signatures are
+ * taken from the database the index is searched with.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class HNSWIndex extends Algorithm implements KnnIndex {
+
+	/**
+	 * The signatures and positions of the nodes in a given database.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private static class Attachment {
+
+		/** The db. */
+		private final ImageDatabase<?> db;
+
+		/** The size of the db when attached. */
+		private final int size;
+
+		/** The signature of each node. */
+		private final DefaultVectorSignature[] vectors;
+
+		/** The position of each node in the db. */
+		private final int[] positions;
+
+		/**
+		 * Instantiates a new attachment.
+		 * 
+		 * @param db
+		 *            the db
+		 * @param vectors
+		 *            the vectors
+		 * @param positions
+		 *            the positions
+		 */
+		public Attachment(ImageDatabase<?> db, DefaultVectorSignature[] vectors, int[] positions) {
+			super();
+			this.db = db;
+			this.size = db.size();
+			this.vectors = vectors;
+			this.positions = positions;
+		}
+	}
+
+	/**
+	 * A growable binary heap of (distance, node), min or max on the distance.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private static class NodeHeap {
+
+		/** The distances. */
+		private double[] d;
+
+		/** The nodes. */
+		private int[] n;
+
+		/** The size. */
+		private int size;
+
+		/** The max. */
+		private final boolean max;
+
+		/**
+		 * Instantiates a new node heap.
+		 * 
+		 * @param capacity
+		 *            the initial capacity
+		 * @param max
+		 *            true for a max-heap
+		 */
+		public NodeHeap(int capacity, boolean max) {
+			super();
+			this.d = new double[Math.max(4, capacity)];
+			this.n = new int[d.length];
+			this.size = 0;
+			this.max = max;
+		}
+
+		/**
+		 * Checks if a is above b in the heap.
+		 */
+		private boolean above(double a, double b) {
+			return max ? a > b : a < b;
+		}
+
+		/**
+		 * Copy the heap.
+		 * 
+		 * @return the copy
+		 */
+		public NodeHeap copy() {
+			NodeHeap c = new NodeHeap(0, max);
+			c.d = Arrays.copyOf(d, d.length);
+			c.n = Arrays.copyOf(n, n.length);
+			c.size = size;
+			return c;
+		}
+
+		/**
+		 * Pop the top node.
+		 * 
+		 * @return the node
+		 */
+		public int pop() {
+			int top = n[0];
+			size--;
+			if (size > 0) {
+				double ld = d[size];
+				int ln = n[size];
+				int i = 0;
+				while (true) {
+					int c = 2 * i + 1;
+					if (c >= size) {
+						break;
+					}
+					if ((c + 1 < size) && above(d[c + 1], d[c])) {
+						c++;
+					}
+					if (!above(d[c], ld)) {
+						break;
+					}
+					d[i] = d[c];
+					n[i] = n[c];
+					i = c;
+				}
+				d[i] = ld;
+				n[i] = ln;
+			}
+			return top;
+		}
+
+		/**
+		 * Push a node.
+		 * 
+		 * @param dist
+		 *            the distance
+		 * @param node
+		 *            the node
+		 */
+		public void push(double dist, int node) {
+			if (size == d.length) {
+				d = Arrays.copyOf(d, 2 * size);
+				n = Arrays.copyOf(n, 2 * size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int p = (i - 1) >>> 1;
+				if (!above(dist, d[p])) {
+					break;
+				}
+				d[i] = d[p];
+				n[i] = n[p];
+				i = p;
+			}
+			d[i] = dist;
+			n[i] = node;
+		}
+
+		/**
+		 * Distance of the top node.
+		 * 
+		 * @return the distance
+		 */
+		public double topDistance() {
+			return d[0];
+		}
+
+		/**
+		 * The top node.
+		 * 
+		 * @return the node
+		 */
+		public int topNode() {
+			return n[0];
+		}
+	}
+
+	/**
+	 * Marks the visited nodes of a search without clearing an array for each
+	 * search.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private static class Visited {
+
+		/** The marks. */
+		private int[] marks;
+
+		/** The current generation. */
+		private int generation;
+
+		/**
+		 * Start a new search.
+		 * 
+		 * @param nbNodes
+		 *            the nb nodes
+		 */
+		public void reset(int nbNodes) {
+			if ((marks == null) || (marks.length < nbNodes)) {
+				marks = new int[nbNodes];
+				generation = 0;
+			}
+			generation++;
+			if (generation == Integer.MAX_VALUE) {
+				Arrays.fill(marks, 0);
+				generation = 1;
+			}
+		}
+
+		/**
+		 * Mark a node.
+		 * 
+		 * @param node
+		 *            the node
+		 * @return true, if the node was not visited yet
+		 */
+		public boolean visit(int node) {
+			if (marks[node] == generation) {
+				return false;
+			}
+			marks[node] = generation;
+			return true;
+		}
+	}
+
+	/**
+	 * Inserts the nodes whose number is taken from a shared counter.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class InsertWorker implements Callable<Integer> {
+
+		/** The next node to insert. */
+		private final AtomicInteger next;
+
+		/**
+		 * Instantiates a new insert worker.
+		 * 
+		 * @param next
+		 *            the next
+		 */
+		public InsertWorker(AtomicInteger next) {
+			super();
+			this.next = next;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Integer call() throws Exception {
+			int nb = 0;
+			int node;
+			while ((node = next.getAndIncrement()) < ids.length) {
+				insert(node);
+				nb++;
+			}
+			return nb;
+		}
+	}
+
+	/** The Constant VERSION. */
+	public final static String VERSION = "HNSWIndex_v1.0.0";
+
+	/** The Constant DEFAULT_M. */
+	public final static int DEFAULT_M = 16;
+
+	/** The Constant DEFAULT_EF_CONSTRUCTION. */
+	public final static int DEFAULT_EF_CONSTRUCTION = 200;
+
+	/** The Constant DEFAULT_EF_SEARCH. */
+	public final static int DEFAULT_EF_SEARCH = 64;
+
+	/** The visited marks of each thread. */
+	private final static ThreadLocal<Visited> VISITED = new ThreadLocal<Visited>() {
+		@Override
+		protected Visited initialValue() {
+			return new Visited();
+		}
+	};
+
+	/**
+	 * Build the graph over the signatures of a global descriptor.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param db
+	 *            the database
+	 * @param desc
+	 *            the descriptor
+	 * @param distance
+	 *            the distance
+	 * @param m
+	 *            the number of links of a node on the upper layers, twice as
+	 *            much on the bottom one
+	 * @param efConstruction
+	 *            the width of the beam used to find the links of a new node
+	 * @return the index
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public static <T extends SegmentableImage> HNSWIndex build(ImageDatabase<T> db, String desc, SignatureDistance<VectorSignature> distance, int m, int efConstruction) throws FeatureException {
+		if (!db.containsGlobalDescriptor(desc)) {
+			throw new FeatureException("HNSWIndex only available for global descriptors (" + desc + ")");
+		}
+
+		List<DefaultVectorSignature> sigs = new ArrayList<DefaultVectorSignature>(db.size());
+		long[] ids = new long[db.size()];
+		int[] positions = new int[db.size()];
+		int nb = 0;
+		for (int i = 0; i < db.size(); i++) {
+			ImageEntry<T> e = db.get(i);
+			DefaultVectorSignature s = db.getGlobalSignature(e, desc);
+			if (s != null) {
+				sigs.add(s);
+				ids[nb] = e.getId();
+				positions[nb] = i;
+				nb++;
+			}
+		}
+
+		HNSWIndex index = new HNSWIndex(desc, distance, m, efConstruction, Arrays.copyOf(ids, nb));
+		index.attachment = new Attachment(db, sigs.toArray(new DefaultVectorSignature[nb]), Arrays.copyOf(positions, nb));
+		index.build();
+		return index;
+	}
+
+	/**
+	 * Load an index file.
+	 * 
+	 * @param f
+	 *            the file
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	public static HNSWIndex load(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			String version = PersistenceToolbox.loadString(fc);
+			if (!VERSION.equals(version)) {
+				throw new IOException("Incompatible index version (" + version + "/" + VERSION + ")");
+			}
+			String desc = PersistenceToolbox.loadString(fc);
+			String distanceClass = PersistenceToolbox.loadString(fc);
+			SignatureDistance<VectorSignature> distance;
+			try {
+				distance = (SignatureDistance<VectorSignature>) Class.forName(distanceClass).getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				throw new IOException("Unable to instantiate the distance " + distanceClass, e);
+			}
+			int m = PersistenceToolbox.loadInt(fc);
+			int efConstruction = PersistenceToolbox.loadInt(fc);
+			int efSearch = PersistenceToolbox.loadInt(fc);
+			long[] ids = PersistenceToolbox.loadFullLongArray(fc);
+
+			HNSWIndex index = new HNSWIndex(desc, distance, m, efConstruction, ids);
+			index.setEfSearch(efSearch);
+			index.entryPoint = PersistenceToolbox.loadInt(fc);
+			index.maxLevel = PersistenceToolbox.loadInt(fc);
+			for (int node = 0; node < ids.length; node++) {
+				int level = PersistenceToolbox.loadInt(fc);
+				index.links[node] = new int[level + 1][];
+				for (int layer = 0; layer <= level; layer++) {
+					int[] nb = PersistenceToolbox.loadFullIntArray(fc);
+					int[] l = new int[index.maxConnections(layer) + 1];
+					l[0] = nb.length;
+					System.arraycopy(nb, 0, l, 1, nb.length);
+					index.links[node][layer] = l;
+				}
+			}
+			return index;
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/** The descriptor. */
+	private final String desc;
+
+	/** The distance. */
+	private final SignatureDistance<VectorSignature> distance;
+
+	/** The m. */
+	private final int m;
+
+	/** The ef construction. */
+	private final int efConstruction;
+
+	/** The ef search. */
+	private int efSearch;
+
+	/** The ids of the entries of the nodes. */
+	private final long[] ids;
+
+	/**
+	 * The links of each node on each of its layers, the first value of each
+	 * array is the number of links.
+	 */
+	private final int[][][] links;
+
+	/** The entry point. */
+	private int entryPoint;
+
+	/** The top layer. */
+	private int maxLevel;
+
+	/** True while the graph is being built. */
+	private volatile boolean building;
+
+	/** The attachment. */
+	private volatile Attachment attachment;
+
+	/**
+	 * Instantiates a new empty index.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param distance
+	 *            the distance
+	 * @param m
+	 *            the m
+	 * @param efConstruction
+	 *            the ef construction
+	 * @param ids
+	 *            the ids of the entries of the nodes
+	 */
+	private HNSWIndex(String desc, SignatureDistance<VectorSignature> distance, int m, int efConstruction, long[] ids) {
+		super();
+		this.desc = desc;
+		this.distance = distance;
+		this.m = Math.max(2, m);
+		this.efConstruction = Math.max(this.m, efConstruction);
+		this.efSearch = DEFAULT_EF_SEARCH;
+		this.ids = ids;
+		this.links = new int[ids.length][][];
+		this.entryPoint = -1;
+		this.maxLevel = -1;
+		this.building = false;
+		this.attachment = null;
+	}
+
+	/**
+	 * Attach the index to a database.
+	 * 
+	 * @param db
+	 *            the db
+	 * @return the attachment
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	private synchronized <T extends SegmentableImage> Attachment attach(ImageDatabase<T> db) throws FeatureException {
+		return attach(db, null);
+	}
+
+	/**
+	 * Attach the index to a database.
+	 * 
+	 * @param db
+	 *            the db
+	 * @param stale
+	 *            an attachment found out of date although the size of the
+	 *            database has not changed, null if none
+	 * @return the attachment
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	private synchronized <T extends SegmentableImage> Attachment attach(ImageDatabase<T> db, Attachment stale) throws FeatureException {
+		Attachment a = attachment;
+		if ((a != null) && (a != stale) && (a.db == db) && (a.size == db.size())) {
+			return a;
+		}
+		DefaultVectorSignature[] vectors = new DefaultVectorSignature[ids.length];
+		int[] positions = new int[ids.length];
+		int missing = 0;
+		for (int node = 0; node < ids.length; node++) {
+			positions[node] = db.indexOfId(ids[node]);
+			if (positions[node] >= 0) {
+				vectors[node] = db.getGlobalSignature(db.get(positions[node]), desc);
+			}
+			if (vectors[node] == null) {
+				missing++;
+			}
+		}
+		if (missing > 0) {
+			info("HNSWIndex " + desc + " : " + missing + " nodes without signature in " + db.getName());
+		}
+		a = new Attachment(db, vectors, positions);
+		attachment = a;
+		return a;
+	}
+
+	/**
+	 * Build the graph.
+	 * 
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	private void build() throws FeatureException {
+		long start = System.currentTimeMillis();
+		info("Building HNSWIndex " + desc + " on " + ids.length + " signatures (M = " + m + ", efConstruction = " + efConstruction + ")");
+
+		Random rd = new Random(ids.length);
+		double levelMult = 1 / Math.log(m);
+		for (int node = 0; node < ids.length; node++) {
+			int level = (int) (-Math.log(1 - rd.nextDouble()) * levelMult);
+			links[node] = new int[level + 1][];
+			for (int layer = 0; layer <= level; layer++) {
+				links[node][layer] = new int[maxConnections(layer) + 1];
+			}
+		}
+
+		if (ids.length == 0) {
+			return;
+		}
+
+		building = true;
+		try {
+			insert(0);
+			AtomicInteger next = new AtomicInteger(1);
+			// a pool of its own, as the build blocks until its tasks are done
+			// and may itself be called from a task of the shared pools
+			int nbt = TaskManager.getSecondLevelInstance().getCorePoolSize();
+			TaskManager tm = TaskManager.create("hnsw", nbt);
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < nbt; t++) {
+				results.add(tm.submit(new InsertWorker(next)));
+			}
+			try {
+				for (Future<Integer> f : results) {
+					f.get();
+				}
+			} catch (ExecutionException e) {
+				throw new FeatureException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FeatureException(e);
+			} finally {
+				for (Future<Integer> f : results) {
+					f.cancel(true);
+				}
+				tm.shutdown();
+			}
+		} finally {
+			building = false;
+		}
+
+		info("HNSWIndex " + desc + " built in " + (System.currentTimeMillis() - start) + " ms (" + (maxLevel + 1) + " layers)");
+	}
+
+	/**
+	 * Dump the index.
+	 * 
+	 * @param f
+	 *            the file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dump(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, true);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			PersistenceToolbox.dumpString(fc, VERSION);
+			PersistenceToolbox.dumpString(fc, desc);
+			PersistenceToolbox.dumpString(fc, distance.getClass().getName());
+			PersistenceToolbox.dumpInt(fc, m);
+			PersistenceToolbox.dumpInt(fc, efConstruction);
+			PersistenceToolbox.dumpInt(fc, efSearch);
+			PersistenceToolbox.dumpFullLongArray(fc, ids);
+			PersistenceToolbox.dumpInt(fc, entryPoint);
+			PersistenceToolbox.dumpInt(fc, maxLevel);
+			for (int node = 0; node < ids.length; node++) {
+				PersistenceToolbox.dumpInt(fc, links[node].length - 1);
+				for (int[] l : links[node]) {
+					PersistenceToolbox.dumpFullIntArray(fc, Arrays.copyOfRange(l, 1, l[0] + 1));
+				}
+			}
+			fc.flush();
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the distance.
+	 * 
+	 * @return the distance
+	 */
+	public SignatureDistance<VectorSignature> getDistance() {
+		return distance;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see plugins.nherve.toolbox.image.db.KnnIndex#getDescriptor()
+	 */
+	@Override
+	public String getDescriptor() {
+		return desc;
+	}
+
+	/**
+	 * Gets the ef search.
+	 * 
+	 * @return the ef search
+	 */
+	public int getEfSearch() {
+		return efSearch;
+	}
+
+	/**
+	 * Gets the links of a node on a layer. During the build they are copied
+	 * under the lock of the node.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param layer
+	 *            the layer
+	 * @return the links, the first value is their number
+	 */
+	private int[] getLinks(int node, int layer) {
+		if (!building) {
+			return links[node][layer];
+		}
+		synchronized (links[node]) {
+			int[] l = links[node][layer];
+			return Arrays.copyOf(l, l[0] + 1);
+		}
+	}
+
+	/**
+	 * Gets the m.
+	 * 
+	 * @return the m
+	 */
+	public int getM() {
+		return m;
+	}
+
+	/**
+	 * Insert a node in the graph.
+	 * 
+	 * @param node
+	 *            the node
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void insert(int node) throws SignatureException {
+		DefaultVectorSignature[] vectors = attachment.vectors;
+		DefaultVectorSignature q = vectors[node];
+		int level = links[node].length - 1;
+
+		int ep;
+		int top;
+		synchronized (this) {
+			if (entryPoint < 0) {
+				entryPoint = node;
+				maxLevel = level;
+				return;
+			}
+			ep = entryPoint;
+			top = maxLevel;
+		}
+
+		NodeHeap entry = new NodeHeap(1, true);
+		entry.push(distance.computeDistance(q, vectors[ep]), ep);
+		for (int layer = top; layer > level; layer--) {
+			entry = closest(searchLayer(q, entry, 1, layer, vectors));
+		}
+
+		for (int layer = Math.min(level, top); layer >= 0; layer--) {
+			NodeHeap candidates = searchLayer(q, entry, efConstruction, layer, vectors);
+			int[] selected = selectNeighbours(candidates.copy(), m, vectors);
+			synchronized (links[node]) {
+				int[] l = links[node][layer];
+				l[0] = selected.length;
+				System.arraycopy(selected, 0, l, 1, selected.length);
+			}
+			for (int nb : selected) {
+				link(nb, node, layer, vectors);
+			}
+			entry = candidates;
+		}
+
+		if (level > top) {
+			synchronized (this) {
+				if (level > maxLevel) {
+					maxLevel = level;
+					entryPoint = node;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keep only the closest node of a heap.
+	 * 
+	 * @param h
+	 *            the max-heap
+	 * @return a heap with its closest node
+	 */
+	private NodeHeap closest(NodeHeap h) {
+		double bestD = Double.MAX_VALUE;
+		int best = -1;
+		for (int i = 0; i < h.size; i++) {
+			if ((best < 0) || (h.d[i] < bestD)) {
+				bestD = h.d[i];
+				best = h.n[i];
+			}
+		}
+		NodeHeap res = new NodeHeap(1, true);
+		res.push(bestD, best);
+		return res;
+	}
+
+	/**
+	 * Add a link from a node to a new one, pruning the links of the node if it
+	 * has too many.
+	 * 
+	 * @param from
+	 *            the node
+	 * @param to
+	 *            the new node
+	 * @param layer
+	 *            the layer
+	 * @param vectors
+	 *            the vectors
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void link(int from, int to, int layer, DefaultVectorSignature[] vectors) throws SignatureException {
+		synchronized (links[from]) {
+			int[] l = links[from][layer];
+			int max = maxConnections(layer);
+			if (l[0] < max) {
+				l[0]++;
+				l[l[0]] = to;
+				return;
+			}
+			NodeHeap candidates = new NodeHeap(max + 1, true);
+			candidates.push(distance.computeDistance(vectors[from], vectors[to]), to);
+			for (int i = 1; i <= l[0]; i++) {
+				candidates.push(distance.computeDistance(vectors[from], vectors[l[i]]), l[i]);
+			}
+			int[] selected = selectNeighbours(candidates, max, vectors);
+			l[0] = selected.length;
+			System.arraycopy(selected, 0, l, 1, selected.length);
+		}
+	}
+
+	/**
+	 * Maximum number of links of a node on a layer.
+	 * 
+	 * @param layer
+	 *            the layer
+	 * @return the max connections
+	 */
+	private int maxConnections(int layer) {
+		return layer == 0 ? 2 * m : m;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.db.KnnIndex#search(plugins.nherve.toolbox
+	 * .image.db.ImageDatabase,
+	 * plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature,
+	 * plugins.nherve.toolbox.image.feature.SignatureDistance,
+	 * plugins.nherve.toolbox.image.db.TopKCollector)
+	 */
+	@Override
+	public <T extends SegmentableImage> void search(ImageDatabase<T> db, DefaultVectorSignature query, SignatureDistance<VectorSignature> rankingDistance, TopKCollector top) throws FeatureException {
+		Attachment a = attachment;
+		if ((a == null) || (a.db != db) || (a.size != db.size())) {
+			a = attach(db);
+		}
+		if ((entryPoint < 0) || (a.vectors[entryPoint] == null)) {
+			return;
+		}
+
+		NodeHeap entry = new NodeHeap(1, true);
+		entry.push(distance.computeDistance(query, a.vectors[entryPoint]), entryPoint);
+		for (int layer = maxLevel; layer > 0; layer--) {
+			entry = closest(searchLayer(query, entry, 1, layer, a.vectors));
+		}
+		NodeHeap found = searchLayer(query, entry, Math.max(efSearch, top.getK()), 0, a.vectors);
+
+		boolean sameDistance = rankingDistance.getClass() == distance.getClass();
+		for (int i = 0; i < found.size; i++) {
+			int node = found.n[i];
+			int pos = a.positions[node];
+			if ((pos < 0) || (pos >= db.size()) || (db.get(pos).getId() != ids[node])) {
+				// entries have been removed and added since the attachment
+				a = attach(db, a);
+				pos = a.positions[node];
+				if ((pos < 0) || (a.vectors[node] == null)) {
+					continue;
+				}
+			}
+			double d = sameDistance ? found.d[i] : rankingDistance.computeDistance(a.vectors[node], query, top.getThreshold());
+			top.offer(pos, -1, d);
+		}
+	}
+
+	/**
+	 * Beam search on a layer.
+	 * 
+	 * @param q
+	 *            the query
+	 * @param entry
+	 *            the entry points
+	 * @param ef
+	 *            the beam width
+	 * @param layer
+	 *            the layer
+	 * @param vectors
+	 *            the vectors
+	 * @return the ef closest nodes found, as a max-heap
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private NodeHeap searchLayer(DefaultVectorSignature q, NodeHeap entry, int ef, int layer, DefaultVectorSignature[] vectors) throws SignatureException {
+		Visited visited = VISITED.get();
+		visited.reset(ids.length);
+
+		NodeHeap candidates = new NodeHeap(ef, false);
+		NodeHeap results = new NodeHeap(ef + 1, true);
+		for (int i = 0; i < entry.size; i++) {
+			visited.visit(entry.n[i]);
+			candidates.push(entry.d[i], entry.n[i]);
+			results.push(entry.d[i], entry.n[i]);
+		}
+		while (results.size > ef) {
+			results.pop();
+		}
+
+		while (candidates.size > 0) {
+			double cd = candidates.topDistance();
+			if ((results.size >= ef) && (cd > results.topDistance())) {
+				break;
+			}
+			int c = candidates.pop();
+			if (layer >= links[c].length) {
+				continue;
+			}
+			int[] l = getLinks(c, layer);
+			for (int i = 1; i <= l[0]; i++) {
+				int nb = l[i];
+				if (!visited.visit(nb) || (vectors[nb] == null)) {
+					continue;
+				}
+				double bound = results.size < ef ? Double.POSITIVE_INFINITY : results.topDistance();
+				double d = distance.computeDistance(q, vectors[nb], bound);
+				if (d < bound) {
+					candidates.push(d, nb);
+					results.push(d, nb);
+					if (results.size > ef) {
+						results.pop();
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Select the links of a node among candidates, with the heuristic that
+	 * favours diversity : a candidate is kept only if it is closer to the node
+	 * than to any already kept one.
+	 * 
+	 * @param candidates
+	 *            the candidates, as a max-heap of their distance to the node ;
+	 *            emptied by the selection
+	 * @param max
+	 *            the maximum number of links
+	 * @param vectors
+	 *            the vectors
+	 * @return the selected nodes
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private int[] selectNeighbours(NodeHeap candidates, int max, DefaultVectorSignature[] vectors) throws SignatureException {
+		int nb = candidates.size;
+		double[] d = new double[nb];
+		int[] n = new int[nb];
+		for (int i = nb - 1; i >= 0; i--) {
+			d[i] = candidates.topDistance();
+			n[i] = candidates.pop();
+		}
+
+		int[] selected = new int[Math.min(max, nb)];
+		int nbSelected = 0;
+		for (int i = 0; (i < nb) && (nbSelected < selected.length); i++) {
+			boolean keep = true;
+			for (int j = 0; j < nbSelected; j++) {
+				if (distance.computeDistance(vectors[n[i]], vectors[selected[j]], d[i]) < d[i]) {
+					keep = false;
+					break;
+				}
+			}
+			if (keep) {
+				selected[nbSelected++] = n[i];
+			}
+		}
+		return Arrays.copyOf(selected, nbSelected);
+	}
+
+	/**
+	 * Sets the width of the beam used by the searches. It is raised to k when
+	 * more answers are asked.
+	 * 
+	 * @param efSearch
+	 *            the new ef search
+	 */
+	public void setEfSearch(int efSearch) {
+		this.efSearch = Math.max(1, efSearch);
+	}
+
+	/**
+	 * Number of nodes.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+}
@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
@@ -87,6 +88,9 @@ public class ImageDatabase<T extends SegmentableImage> implements Iterable<Image
 	/** The utd entries. */
 	private transient boolean utdEntries;
 
+	/** The persistence that has lazily loaded the signatures, if any. */
+	private transient ImageDatabasePersistence<T> persistence;
+
 	/**
 	 * Instantiates a new image database.
 	 */
@@ -101,6 +105,7 @@ public class ImageDatabase<T extends SegmentableImage> implements Iterable<Image
 		negClassesEntries = new HashMap<String, List<ImageEntry<T>>>();
 		utdEntries = false;
 		nextId = 0l;
+		persistence = null;
 	}
 
 	/**
@@ -183,6 +188,20 @@ public class ImageDatabase<T extends SegmentableImage> implements Iterable<Image
 		updateAvailableDescriptors();
 	}
 
+	/**
+	 * Close the signature files kept opened by a lazy load, see
+	 * {@link ImageDatabasePersistence#loadLazy(long, boolean)}. Nothing is done
+	 * if the database has not been loaded lazily.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void close() throws IOException {
+		if (persistence != null) {
+			persistence.closeLazyStores();
+		}
+	}
+
 	/**
 	 * Contains.
 	 * 
@@ -467,6 +486,51 @@ public class ImageDatabase<T extends SegmentableImage> implements Iterable<Image
 		return all;
 	}
 
+	/**
+	 * Iterate over all the local signatures of a descriptor, one bag at a
+	 * time, instead of gathering them in a list.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the iterator
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public Iterator<DefaultVectorSignature> getLocalSignaturesIterator(final String desc) throws FeatureException {
+		if (!availableLocalDescriptors.contains(desc)) {
+			throw new FeatureException("Descriptor " + desc + " not available for database " + getName());
+		}
+		final Iterator<ImageEntry<T>> entryIt = iterator();
+		return new Iterator<DefaultVectorSignature>() {
+			private Iterator<DefaultVectorSignature> bag = null;
+
+			@Override
+			public boolean hasNext() {
+				while ((bag == null) || !bag.hasNext()) {
+					if (!entryIt.hasNext()) {
+						return false;
+					}
+					BagOfSignatures<DefaultVectorSignature> bs = entryIt.next().getLocalSignatures().get(desc);
+					bag = (bs == null) ? null : bs.iterator();
+				}
+				return true;
+			}
+
+			@Override
+			public DefaultVectorSignature next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return bag.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
 	/**
 	 * Gets the name.
 	 * 
@@ -518,6 +582,53 @@ public class ImageDatabase<T extends SegmentableImage> implements Iterable<Image
 		return entries.indexOf(o);
 	}
 
+	/**
+	 * Position of the entry with the given id. The entries are added with
+	 * increasing ids, so a binary search is tried first, with a linear scan as
+	 * a fallback for databases whose order has been changed.
+	 * 
+	 * @param id
+	 *            the id
+	 * @return the position, -1 if there is no such entry
+	 */
+	public int indexOfId(long id) {
+		int lo = 0;
+		int hi = entries.size() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long midId = entries.get(mid).getId();
+			if (midId < id) {
+				lo = mid + 1;
+			} else if (midId > id) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).getId() == id) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Position of each entry, by id. Used to resolve many ids at once, where
+	 * {@link #indexOfId(long)} would fall back on a linear scan for each id
+	 * that is not in the database anymore.
+	 * 
+	 * @return the positions by id
+	 */
+	public Map<Long, Integer> getPositionsById() {
+		Map<Long, Integer> res = new HashMap<Long, Integer>(2 * entries.size());
+		int pos = 0;
+		for (ImageEntry<T> e : entries) {
+			res.put(e.getId(), pos++);
+		}
+		return res;
+	}
+
 	/**
 	 * Checks if is empty.
 	 * 
@@ -719,4 +830,23 @@ public class ImageDatabase<T extends SegmentableImage> implements Iterable<Image
 		this.signatureDirectory = signatureDirectory;
 	}
 
+	/**
+	 * Gets the persistence that has lazily loaded the signatures.
+	 * 
+	 * @return the persistence, null if the database has not been loaded lazily
+	 */
+	public ImageDatabasePersistence<T> getPersistence() {
+		return persistence;
+	}
+
+	/**
+	 * Sets the persistence that has lazily loaded the signatures.
+	 * 
+	 * @param persistence
+	 *            the new persistence
+	 */
+	public void setPersistence(ImageDatabasePersistence<T> persistence) {
+		this.persistence = persistence;
+	}
+
 }
@@ -22,12 +22,16 @@ package plugins.nherve.toolbox.image.db;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
 import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.concurrent.Pipeline;
 import plugins.nherve.toolbox.concurrent.TaskException;
 import plugins.nherve.toolbox.concurrent.TaskManager;
 import plugins.nherve.toolbox.image.ImageLoader;
@@ -72,12 +76,23 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 				err(e1);
 			}
 
+			boolean baseDumped = false;
 			while (running) {
 				try {
 					Thread.sleep(getPartialDumpSleep());
 					try {
 						info("processed : " + countProcessed + " - ignored : " + countIgnored);
-						ptv.dumpSignatures();
+						if (journal != null) {
+							if (baseDumped) {
+								checkpoint(ptv);
+							} else {
+								takeJournal();
+								ptv.dumpSignatures();
+								baseDumped = true;
+							}
+						} else {
+							ptv.dumpSignatures();
+						}
 					} catch (IOException e) {
 						err(e);
 					}
@@ -91,7 +106,10 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 	}
 
 	/**
-	 * The Class SingleImageWorker.
+	 * The Class SingleImageWorker. The indexing of an entry is split in three
+	 * steps (image decoding, support regions extraction, signatures
+	 * computation) so that they can be run by the different stages of the
+	 * streaming pipeline, or all at once by {@link #call()}.
 	 * 
 	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
 	 */
@@ -102,6 +120,9 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		private T sbi;
 		private boolean imageLoaded;
 
+		/** The support regions, by factory. */
+		private Map<String, List<? extends SupportRegion<Pixel>>> srCache;
+
 		/**
 		 * Instantiates a new single image worker.
 		 * 
@@ -113,6 +134,7 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 			this.e = e;
 			sbi = null;
 			imageLoaded = false;
+			srCache = null;
 		}
 
 		/*
@@ -123,70 +145,142 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		@Override
 		public Integer call() throws Exception {
 			try {
-				if ((globalDescriptors.size() + localDescriptors.size() + entryDescriptors.size()) > 0) {
-					Map<String, List<SupportRegion>> srCache = new HashMap<String, List<SupportRegion>>();
-					for (String name : localDescriptors.keySet()) {
-						if (!isDoOnlyMissingStuff() || !e.getLocalSignatures().containsKey(name)) {
-							loadImage();
-							List<SupportRegion> sr = null;
-							String srn = factoryForLocalDescriptor.get(name);
-							if (srn != null) {
-								if (srCache.containsKey(srn)) {
-									sr = srCache.get(srn);
-								} else {
-									sr = regionFactories.get(srn).extractRegions(sbi);
-									srCache.put(srn, sr);
-								}
-							}
-							LocalDescriptor<T, DefaultVectorSignature, Pixel> desc = localDescriptors.get(name);
-							desc.preProcess(sbi);
-							BagOfSignatures<DefaultVectorSignature> bag = new BagOfSignatures<DefaultVectorSignature>();
-							for (SupportRegion reg : sr) {
-								DefaultVectorSignature sig = desc.extractLocalSignature(sbi, reg);
-								bag.add(sig);
-							}
-							desc.postProcess(sbi);
-							e.putSignature(name, bag);
+				decode();
+				extractRegions();
+				computeSignatures();
+				readyToDumpHeaders = true;
+				notifyListener(e, null);
+				return 0;
+			} catch (Throwable error) {
+				failed(error);
+				notifyListener(e, error);
+				return 1;
+			}
+		}
+
+		/**
+		 * Compute the signatures, then release the image.
+		 * 
+		 * @throws Exception
+		 *             the exception
+		 */
+		private void computeSignatures() throws Exception {
+			if (hasDescriptors()) {
+				for (String name : localDescriptors.keySet()) {
+					if (!isDoOnlyMissingStuff() || !e.getLocalSignatures().containsKey(name)) {
+						loadImage();
+						List<? extends SupportRegion<Pixel>> sr = null;
+						String srn = factoryForLocalDescriptor.get(name);
+						if (srn != null) {
+							sr = srCache.get(srn);
 						}
-					}
-					srCache.clear();
-					srCache = null;
-
-					for (String name : globalDescriptors.keySet()) {
-						if (!isDoOnlyMissingStuff() || !e.getGlobalSignatures().containsKey(name)) {
-							loadImage();
-							GlobalDescriptor<T, DefaultVectorSignature> desc = globalDescriptors.get(name);
-							desc.preProcess(sbi);
-							DefaultVectorSignature sig = desc.extractGlobalSignature(sbi);
-							desc.postProcess(sbi);
-							e.putSignature(name, sig);
-							countProcessed++;
-						} else {
-							countIgnored++;
+						LocalDescriptor<T, DefaultVectorSignature, Pixel> desc = localDescriptors.get(name);
+						desc.preProcess(sbi);
+						BagOfSignatures<DefaultVectorSignature> bag = new BagOfSignatures<DefaultVectorSignature>();
+						for (SupportRegion<Pixel> reg : sr) {
+							DefaultVectorSignature sig = desc.extractLocalSignature(sbi, reg);
+							bag.add(sig);
 						}
+						desc.postProcess(sbi);
+						e.putSignature(name, bag);
+						journal(name, e, false);
 					}
+				}
+				srCache.clear();
+				srCache = null;
+
+				for (String name : globalDescriptors.keySet()) {
+					if (!isDoOnlyMissingStuff() || !e.getGlobalSignatures().containsKey(name)) {
+						loadImage();
+						GlobalDescriptor<T, DefaultVectorSignature> desc = globalDescriptors.get(name);
+						desc.preProcess(sbi);
+						DefaultVectorSignature sig = desc.extractGlobalSignature(sbi);
+						desc.postProcess(sbi);
+						e.putSignature(name, sig);
+						journal(name, e, true);
+						countProcessed++;
+					} else {
+						countIgnored++;
+					}
+				}
 
-					for (String name : entryDescriptors.keySet()) {
-						if (!isDoOnlyMissingStuff() || !e.getGlobalSignatures().containsKey(name)) {
-							loadImage();
-							GlobalDescriptor<ImageEntry<T>, DefaultVectorSignature> desc = entryDescriptors.get(name);
-							desc.preProcess(e);
-							DefaultVectorSignature sig = desc.extractGlobalSignature(e);
-							desc.postProcess(e);
-							e.putSignature(name, sig);
-						}
+				for (String name : entryDescriptors.keySet()) {
+					if (!isDoOnlyMissingStuff() || !e.getGlobalSignatures().containsKey(name)) {
+						loadImage();
+						GlobalDescriptor<ImageEntry<T>, DefaultVectorSignature> desc = entryDescriptors.get(name);
+						desc.preProcess(e);
+						DefaultVectorSignature sig = desc.extractGlobalSignature(e);
+						desc.postProcess(e);
+						e.putSignature(name, sig);
+						journal(name, e, true);
 					}
+				}
 
-					unloadImage();
+				unloadImage();
+			}
+		}
+
+		/**
+		 * Load the image if at least one signature has to be computed.
+		 * 
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private void decode() throws IOException {
+			if (hasDescriptors()) {
+				boolean needed = false;
+				for (String name : localDescriptors.keySet()) {
+					needed |= !isDoOnlyMissingStuff() || !e.getLocalSignatures().containsKey(name);
+				}
+				for (String name : globalDescriptors.keySet()) {
+					needed |= !isDoOnlyMissingStuff() || !e.getGlobalSignatures().containsKey(name);
+				}
+				for (String name : entryDescriptors.keySet()) {
+					needed |= !isDoOnlyMissingStuff() || !e.getGlobalSignatures().containsKey(name);
+				}
+				if (needed) {
+					loadImage();
+				}
+			}
+		}
+
+		/**
+		 * Extract the support regions needed by the local descriptors.
+		 * 
+		 * @throws Exception
+		 *             the exception
+		 */
+		private void extractRegions() throws Exception {
+			srCache = new HashMap<String, List<? extends SupportRegion<Pixel>>>();
+			if (hasDescriptors()) {
+				for (String name : localDescriptors.keySet()) {
+					if (!isDoOnlyMissingStuff() || !e.getLocalSignatures().containsKey(name)) {
+						loadImage();
+						String srn = factoryForLocalDescriptor.get(name);
+						if ((srn != null) && !srCache.containsKey(srn)) {
+							srCache.put(srn, regionFactories.get(srn).extractRegions(sbi));
+						}
+					}
 				}
-				readyToDumpHeaders = true;
-				return 0;
-			} catch (Throwable error) {
-				e.setError(error);
-				return 1;
 			}
 		}
 
+		/**
+		 * Keep the error on the entry and release the image.
+		 * 
+		 * @param error
+		 *            the error
+		 */
+		private void failed(Throwable error) {
+			e.setError(error);
+			srCache = null;
+			unloadImage();
+		}
+
+		private boolean hasDescriptors() {
+			return (globalDescriptors.size() + localDescriptors.size() + entryDescriptors.size()) > 0;
+		}
+
 		private void loadImage() throws IOException {
 			if (loadImages && !imageLoaded) {
 				try {
@@ -207,6 +301,7 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		private void unloadImage() {
 			if (imageLoaded) {
 				db.unloadImage(e);
+				imageLoaded = false;
 				sbi = null;
 			}
 		}
@@ -220,7 +315,7 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 	private Map<String, GlobalDescriptor<T, DefaultVectorSignature>> globalDescriptors;
 
 	/** The region factories. */
-	private Map<String, SupportRegionFactory> regionFactories;
+	private Map<String, SupportRegionFactory<? extends SupportRegion<Pixel>>> regionFactories;
 
 	/** The local descriptors. */
 	private Map<String, LocalDescriptor<T, DefaultVectorSignature, Pixel>> localDescriptors;
@@ -233,7 +328,14 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 	/** The load images. */
 	private boolean loadImages;
 	private boolean doPartialDump;
+	private boolean journaledPartialDump;
 	private long partialDumpSleep;
+
+	/** The entries updated since the last checkpoint, by descriptor. */
+	private Map<String, List<ImageEntry<T>>> journal;
+
+	/** The local descriptors found in the journal. */
+	private Set<String> journalLocalDescriptors;
 	private boolean readyToDumpHeaders;
 
 	private boolean running;
@@ -245,6 +347,15 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 
 	private ImageLoader<T> imageLoader;
 
+	/** Index through the streaming pipeline instead of one task per entry. */
+	private boolean usePipeline;
+	private int decodeThreads;
+	private int regionThreads;
+	private int descriptorThreads;
+	private int pipelineQueueSize;
+
+	private IndexingListener<T> listener;
+
 	/**
 	 * Instantiates a new image database indexer.
 	 * 
@@ -256,13 +367,20 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		this.db = db;
 		this.loadImages = true;
 		this.globalDescriptors = new HashMap<String, GlobalDescriptor<T, DefaultVectorSignature>>();
-		this.regionFactories = new HashMap<String, SupportRegionFactory>();
+		this.regionFactories = new HashMap<String, SupportRegionFactory<? extends SupportRegion<Pixel>>>();
 		this.localDescriptors = new HashMap<String, LocalDescriptor<T, DefaultVectorSignature, Pixel>>();
 		this.factoryForLocalDescriptor = new HashMap<String, String>();
 		this.entryDescriptors = new HashMap<String, GlobalDescriptor<ImageEntry<T>, DefaultVectorSignature>>();
 
 		setImageLoader(imageLoader);
 		setDoPartialDump(false);
+		setJournaledPartialDump(false);
+
+		int nbt = TaskManager.getMainInstance().getCorePoolSize();
+		setUsePipeline(false);
+		setPipelineThreads(Math.max(1, nbt / 4), Math.max(1, nbt / 2), nbt);
+		setPipelineQueueSize(2 * nbt);
+		setListener(null);
 		setPartialDumpSleep(5 * 60 * 1000);
 		setDoOnlyMissingStuff(false);
 		running = false;
@@ -330,10 +448,30 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 	 * @param rf
 	 *            the rf
 	 */
-	public void addRegionFactory(String name, SupportRegionFactory rf) {
+	public void addRegionFactory(String name, SupportRegionFactory<? extends SupportRegion<Pixel>> rf) {
 		regionFactories.put(name, rf);
 	}
 
+	/**
+	 * Append the signatures computed since the last checkpoint to the segment
+	 * files.
+	 * 
+	 * @param ptv
+	 *            the persistence
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void checkpoint(ImageDatabasePersistence<T> ptv) throws IOException {
+		long start = System.currentTimeMillis();
+		Set<String> locals = new HashSet<String>();
+		Map<String, List<ImageEntry<T>>> delta = takeJournal(locals);
+		int count = 0;
+		for (Map.Entry<String, List<ImageEntry<T>>> d : delta.entrySet()) {
+			count += ptv.appendSegment(d.getKey(), d.getValue(), !locals.contains(d.getKey()));
+		}
+		info("Checkpoint : " + count + " signatures appended in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
 	public ImageLoader<T> getImageLoader() {
 		return imageLoader;
 	}
@@ -350,6 +488,65 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		return doPartialDump;
 	}
 
+	public boolean isUsePipeline() {
+		return usePipeline;
+	}
+
+	public boolean isJournaledPartialDump() {
+		return journaledPartialDump;
+	}
+
+	/**
+	 * Keep track of an updated signature for the next checkpoint.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param e
+	 *            the entry
+	 * @param global
+	 *            the global
+	 */
+	private void journal(String desc, ImageEntry<T> e, boolean global) {
+		if (journal != null) {
+			synchronized (journal) {
+				List<ImageEntry<T>> entries = journal.get(desc);
+				if (entries == null) {
+					entries = new ArrayList<ImageEntry<T>>();
+					journal.put(desc, entries);
+				}
+				entries.add(e);
+				if (!global) {
+					journalLocalDescriptors.add(desc);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the content of the journal, leaving it empty.
+	 * 
+	 * @return the updated entries, by descriptor
+	 */
+	private Map<String, List<ImageEntry<T>>> takeJournal() {
+		return takeJournal(new HashSet<String>());
+	}
+
+	/**
+	 * Take the content of the journal, leaving it empty.
+	 * 
+	 * @param locals
+	 *            filled with the local descriptors
+	 * @return the updated entries, by descriptor
+	 */
+	private Map<String, List<ImageEntry<T>>> takeJournal(Set<String> locals) {
+		synchronized (journal) {
+			Map<String, List<ImageEntry<T>>> delta = new HashMap<String, List<ImageEntry<T>>>(journal);
+			journal.clear();
+			locals.addAll(journalLocalDescriptors);
+			return delta;
+		}
+	}
+
 	/**
 	 * Launch.
 	 */
@@ -402,23 +599,38 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		countIgnored = 0;
 		countProcessed = 0;
 
+		journal = null;
+		if (doPartialDump && journaledPartialDump) {
+			journal = new HashMap<String, List<ImageEntry<T>>>();
+			journalLocalDescriptors = new HashSet<String>();
+		}
+
 		Thread partialDumpProcess = null;
 		if (doPartialDump) {
 			partialDumpProcess = new Thread(new PartialDumpProcess());
 			partialDumpProcess.start();
 		}
 
-		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
-		for (ImageEntry<T> e : db) {
-			results.add(tm.submit(new SingleImageWorker(e)));
-		}
+		if (usePipeline) {
+			try {
+				launchPipeline();
+			} catch (InterruptedException e) {
+				err(e);
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (ImageEntry<T> e : db) {
+				results.add(tm.submit(new SingleImageWorker(e)));
+			}
 
-		try {
-			tm.waitResults(results, "ImageDatabaseIndexer", 5000);
-		} catch (TaskException e) {
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			try {
+				tm.waitResults(results, "ImageDatabaseIndexer", 5000);
+			} catch (TaskException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
 
 		running = false;
@@ -437,6 +649,75 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 				e1.printStackTrace();
 			}
 		}
+
+		if (journal != null) {
+			info("Compacting the checkpoint segments");
+			ImageDatabasePersistence<T> ptv = new ImageDatabasePersistence<T>(db);
+			ptv.setLogEnabled(isLogEnabled());
+			try {
+				ptv.dumpHeaders();
+				ptv.dumpSignatures();
+			} catch (IOException e) {
+				err(e);
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * Stream the entries through a three stages pipeline (image decoding,
+	 * support regions extraction, signatures computation) connected by
+	 * bounded queues. Only a bounded number of entries is in flight at any
+	 * time, whatever the size of the database.
+	 * 
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private void launchPipeline() throws InterruptedException {
+		Pipeline<SingleImageWorker> pipeline = new Pipeline<SingleImageWorker>("ImageDatabaseIndexer", pipelineQueueSize);
+		pipeline.setLogEnabled(isLogEnabled());
+		pipeline.addStage("decode", decodeThreads, w -> w.decode());
+		pipeline.addStage("regions", regionThreads, w -> w.extractRegions());
+		pipeline.addStage("descriptors", descriptorThreads, w -> w.computeSignatures());
+		pipeline.setListener((w, error) -> {
+			if (error != null) {
+				w.failed(error);
+			} else {
+				readyToDumpHeaders = true;
+			}
+			notifyListener(w.e, error);
+		});
+
+		final Iterator<ImageEntry<T>> entries = db.iterator();
+		pipeline.run(new Iterator<SingleImageWorker>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public SingleImageWorker next() {
+				return new SingleImageWorker(entries.next());
+			}
+		});
+	}
+
+	/**
+	 * Call the listener, if any.
+	 * 
+	 * @param e
+	 *            the entry
+	 * @param error
+	 *            the error
+	 */
+	private void notifyListener(ImageEntry<T> e, Throwable error) {
+		if (listener != null) {
+			try {
+				listener.entryIndexed(e, error);
+			} catch (Throwable t) {
+				err(t);
+			}
+		}
 	}
 
 	public void setDoOnlyMissingStuff(boolean doOnlyMissingStuff) {
@@ -447,6 +728,19 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		this.doPartialDump = doPartialDump;
 	}
 
+	/**
+	 * In journaled mode, only the first partial dump rewrites the descriptor
+	 * files. The next ones append the signatures computed in between to
+	 * segment files, which are compacted in the descriptor files at the end of
+	 * the indexing.
+	 * 
+	 * @param journaledPartialDump
+	 *            the new journaled partial dump
+	 */
+	public void setJournaledPartialDump(boolean journaledPartialDump) {
+		this.journaledPartialDump = journaledPartialDump;
+	}
+
 	public void setImageLoader(ImageLoader<T> imageLoader) {
 		this.imageLoader = imageLoader;
 	}
@@ -455,4 +749,32 @@ public class ImageDatabaseIndexer<T extends SegmentableImage> extends Algorithm
 		this.partialDumpSleep = partialDumpSleep;
 	}
 
+	public void setListener(IndexingListener<T> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the number of threads of each stage of the pipeline.
+	 * 
+	 * @param decodeThreads
+	 *            the decode threads
+	 * @param regionThreads
+	 *            the region threads
+	 * @param descriptorThreads
+	 *            the descriptor threads
+	 */
+	public void setPipelineThreads(int decodeThreads, int regionThreads, int descriptorThreads) {
+		this.decodeThreads = decodeThreads;
+		this.regionThreads = regionThreads;
+		this.descriptorThreads = descriptorThreads;
+	}
+
+	public void setPipelineQueueSize(int pipelineQueueSize) {
+		this.pipelineQueueSize = pipelineQueueSize;
+	}
+
+	public void setUsePipeline(boolean usePipeline) {
+		this.usePipeline = usePipeline;
+	}
+
 }
@@ -18,19 +18,29 @@
  */
 package plugins.nherve.toolbox.image.db;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.BufferedFileChannel;
 import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.feature.FeatureException;
 import plugins.nherve.toolbox.image.feature.SegmentableImage;
+import plugins.nherve.toolbox.image.feature.Signature;
 import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 
@@ -41,15 +51,83 @@ import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
  */
 public class ImageDatabasePersistence<T extends SegmentableImage> extends Algorithm {
 
+	/**
+	 * Loads or dumps the signatures of one descriptor.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class DescriptorWorker implements Callable<Long> {
+
+		/** The desc. */
+		private final String desc;
+
+		/** Dump instead of load. */
+		private final boolean dump;
+
+		/**
+		 * Instantiates a new descriptor worker.
+		 * 
+		 * @param desc
+		 *            the desc
+		 * @param dump
+		 *            the dump
+		 */
+		public DescriptorWorker(String desc, boolean dump) {
+			super();
+			this.desc = desc;
+			this.dump = dump;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Long call() throws Exception {
+			long start = System.currentTimeMillis();
+			if (dump) {
+				dumpSignatures(desc);
+			} else {
+				loadDescriptor(desc);
+			}
+			return System.currentTimeMillis() - start;
+		}
+	}
+
 	/** The Constant HEADERS_FILE. */
 	public final static String HEADERS_FILE = "db_headers";
 
 	/** The Constant SIGNATURES_FILE. */
 	public final static String SIGNATURES_FILE = "sigs_";
 
+	/** The Constant INDEX_FILE. */
+	public final static String INDEX_FILE = "idx_";
+
+	/** The Constant SEGMENT_FILE. */
+	public final static String SEGMENT_FILE = "seg_";
+
+	/** The Constant SEGMENT_VERSION. */
+	public final static String SEGMENT_VERSION = "SignatureSegment_v1.0.0";
+
+	/** The Constant IVF_FILE. */
+	public final static String IVF_FILE = "ivf_";
+
+	/** The Constant HNSW_FILE. */
+	public final static String HNSW_FILE = "hnsw_";
+
+	/** The Constant PQ_FILE. */
+	public final static String PQ_FILE = "pq_";
+
+	/** The Constant MATRIX_FILE. */
+	public final static String MATRIX_FILE = "mat_";
+
 	/** The Constant EXT. */
 	public final static String EXT = ".obj";
 
+	/** The Constant TMP_EXT. */
+	public final static String TMP_EXT = ".tmp";
+
 	/** The Constant EOL. */
 	public final static String EOL = "\n";
 
@@ -59,6 +137,30 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 	/** The db. */
 	private ImageDatabase<T> db;
 
+	/** Map the matrix files instead of loading the signatures, when available. */
+	private boolean useMappedSignatures;
+
+	/** The mapped matrices. */
+	private Map<String, SignatureMatrix> matrices;
+
+	/** Load and dump the descriptor files concurrently. */
+	private boolean parallel;
+
+	/** Load the sparse signatures as CompactSparseVectorSignature. */
+	private boolean loadSparseAsCompact;
+
+	/** The offset indexes, by descriptor. */
+	private Map<String, SignatureOffsetIndex> offsetIndexes;
+
+	/** The offset indexes of the segments, by descriptor. */
+	private Map<String, SegmentOffsetIndex> segmentIndexes;
+
+	/** The lazy stores, by descriptor. */
+	private Map<String, LazySignatureStore> lazyStores;
+
+	/** The cache of the lazily loaded signatures. */
+	private SignatureCache signatureCache;
+
 	/**
 	 * Instantiates a new image database persistence.
 	 * 
@@ -80,6 +182,14 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 		super(true);
 		this.db = null;
 		this.rootDirectory = rootDirectory;
+		this.useMappedSignatures = false;
+		this.matrices = new HashMap<String, SignatureMatrix>();
+		this.parallel = false;
+		this.loadSparseAsCompact = false;
+		this.offsetIndexes = new HashMap<String, SignatureOffsetIndex>();
+		this.segmentIndexes = new HashMap<String, SegmentOffsetIndex>();
+		this.lazyStores = new HashMap<String, LazySignatureStore>();
+		this.signatureCache = null;
 
 	}
 
@@ -95,12 +205,24 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 		dumpSignatures();
 	}
 
+	/**
+	 * Dump the signatures of all the descriptors, concurrently if the parallel
+	 * mode is on.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
 	public void dumpSignatures() throws IOException {
-		for (String d : db.getAvailableGlobalDescriptors()) {
-			dumpSignatures(d);
-		}
-		for (String d : db.getAvailableLocalDescriptors()) {
-			dumpSignatures(d);
+		List<String> descs = new ArrayList<String>();
+		descs.addAll(db.getAvailableGlobalDescriptors());
+		descs.addAll(db.getAvailableLocalDescriptors());
+
+		if (parallel && (descs.size() > 1)) {
+			runInParallel(descs, true, true);
+		} else {
+			for (String d : descs) {
+				dumpSignatures(d);
+			}
 		}
 	}
 
@@ -115,7 +237,7 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 		RandomAccessFile raf = null;
 		try {
 			raf = getHeadersFile(true);
-			FileChannel fc = raf.getChannel();
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
 			PersistenceToolbox.dumpString(fc, ImageDatabase.VERSION);
 			PersistenceToolbox.dumpString(fc, db.getName());
 			PersistenceToolbox.dumpString(fc, db.getImageDirectory());
@@ -142,6 +264,7 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 					PersistenceToolbox.dumpDouble(fc, v);
 				}
 			}
+			fc.flush();
 		} catch (IOException e) {
 			throw e;
 		} finally {
@@ -153,7 +276,10 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 	}
 
 	/**
-	 * Dump signatures.
+	 * Dump signatures. The file is written next to the current one and then
+	 * renamed, so that the signatures of a lazily loaded database are read from
+	 * the old file while it is written. Its lazy store is then switched to the
+	 * new file.
 	 * 
 	 * @param desc
 	 *            the desc
@@ -168,28 +294,43 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 			global = false;
 		}
 
+		long start = System.currentTimeMillis();
 		RandomAccessFile raf = null;
 		int count = 0;
+		File tmp = new File(rootDirectory, SIGNATURES_FILE + desc + EXT + TMP_EXT);
+		long[] ids = new long[db.size()];
+		long[] offsets = new long[db.size()];
+		long length = 0;
 		try {
-			raf = getSignaturesFile(desc, true);
-			FileChannel fc = raf.getChannel();
+			raf = PersistenceToolbox.getFile(tmp, true);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			int pos = 0;
 			PersistenceToolbox.dumpInt(fc, db.size());
 			for (ImageEntry<T> e : db.getEntries()) {
 				PersistenceToolbox.dumpLong(fc, e.getId());
+				ids[pos] = e.getId();
+				offsets[pos] = fc.position();
 				if (global) {
 					DefaultVectorSignature vs = e.getGlobalSignatures().get(desc);
 					if (vs != null) {
 						count++;
+					} else {
+						offsets[pos] = SignatureOffsetIndex.NO_SIGNATURE;
 					}
 					PersistenceToolbox.dumpSignature(fc, vs);
 				} else {
 					BagOfSignatures<DefaultVectorSignature> bs = e.getLocalSignatures().get(desc);
 					if (bs != null) {
 						count++;
+					} else {
+						offsets[pos] = SignatureOffsetIndex.NO_SIGNATURE;
 					}
 					PersistenceToolbox.dumpSignature(fc, bs);
 				}
+				pos++;
 			}
+			fc.flush();
+			length = fc.position();
 		} catch (IOException e) {
 			throw e;
 		} finally {
@@ -197,7 +338,231 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 				raf.close();
 			}
 		}
-		info("Dumping descriptor " + desc + " done (" + count + " / " + db.size() + ")");
+		// the file keeps its modification time when it is renamed
+		SignatureOffsetIndex index = new SignatureOffsetIndex(global, length, tmp.lastModified(), ids, offsets);
+
+		// the new matrix is written aside and the old one removed before the
+		// new signatures are in place, so that an interrupted dump can not
+		// leave an out of date one
+		File matrix = getMatrixFile(desc);
+		File matrixTmp = null;
+		if (global && matrix.exists()) {
+			boolean matrixAsFloat;
+			try {
+				matrixAsFloat = SignatureMatrix.isFloat(matrix);
+			} catch (IOException e) {
+				matrixAsFloat = false;
+			}
+			matrixTmp = new File(rootDirectory, MATRIX_FILE + desc + EXT + TMP_EXT);
+			dumpMatrix(desc, matrixAsFloat, matrixTmp);
+			if (!matrix.delete()) {
+				matrixTmp.delete();
+				throw new IOException("Unable to remove the matrix of " + desc + ", it may still be mapped");
+			}
+		}
+
+		LazySignatureStore store = getLazyStore(desc);
+		if (store != null) {
+			store.replace(tmp, index);
+		} else {
+			PersistenceToolbox.moveFile(tmp, getSignaturesPath(desc));
+		}
+		index.dump(getIndexPath(desc));
+		synchronized (offsetIndexes) {
+			offsetIndexes.put(desc, index);
+		}
+		deleteSegment(desc);
+		if (matrixTmp != null) {
+			PersistenceToolbox.moveFile(matrixTmp, matrix);
+		}
+		info("Dumping descriptor " + desc + " done (" + count + " / " + db.size() + ") in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Dump the signatures of a global descriptor as a memory mappable matrix,
+	 * see {@link SignatureMatrix}. Once it exists, the matrix is written again
+	 * with each dump of the signatures of the descriptor.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param asFloat
+	 *            store the values as float instead of double
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dumpMatrix(String desc, boolean asFloat) throws IOException {
+		info("Dumping matrix " + desc + " for " + db.getName());
+		if (!db.containsGlobalDescriptor(desc)) {
+			throw new IOException("Matrix only available for global descriptors (" + desc + ")");
+		}
+		// written aside, the current matrix may still be mapped
+		File tmp = new File(rootDirectory, MATRIX_FILE + desc + EXT + TMP_EXT);
+		int count = dumpMatrix(desc, asFloat, tmp);
+		PersistenceToolbox.moveFile(tmp, getMatrixFile(desc));
+		info("Dumping matrix " + desc + " done (" + count + " / " + db.size() + ")");
+	}
+
+	/**
+	 * Dump the signatures of a global descriptor as a matrix in a given file.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param asFloat
+	 *            store the values as float instead of double
+	 * @param f
+	 *            the file
+	 * @return the number of rows written
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private int dumpMatrix(String desc, boolean asFloat, File f) throws IOException {
+		List<Long> ids = new ArrayList<Long>(db.size());
+		List<DefaultVectorSignature> sigs = new ArrayList<DefaultVectorSignature>(db.size());
+		for (ImageEntry<T> e : db.getEntries()) {
+			ids.add(e.getId());
+			sigs.add(e.getGlobalSignatures().get(desc));
+		}
+		return SignatureMatrix.dump(f, ids, sigs, asFloat);
+	}
+
+	/**
+	 * Dump an inverted file index next to the signatures of its descriptor.
+	 * 
+	 * @param index
+	 *            the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dumpInvertedFileIndex(InvertedFileIndex index) throws IOException {
+		index.dump(getInvertedFileIndexPath(index.getDescriptor()));
+	}
+
+	/**
+	 * Dump a HNSW index next to the signatures of its descriptor.
+	 * 
+	 * @param index
+	 *            the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dumpHNSWIndex(HNSWIndex index) throws IOException {
+		index.dump(getHNSWIndexPath(index.getDescriptor()));
+	}
+
+	/**
+	 * Gets the path of the HNSW index of a descriptor.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the path
+	 */
+	protected File getHNSWIndexPath(String desc) {
+		return new File(rootDirectory, HNSW_FILE + desc + EXT);
+	}
+
+	/**
+	 * Load the HNSW index of a descriptor. The entries added to the database
+	 * since it has been built are not in the graph.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the index, null if there is none for this descriptor
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public HNSWIndex loadHNSWIndex(String desc) throws IOException {
+		File f = getHNSWIndexPath(desc);
+		if (!f.exists()) {
+			return null;
+		}
+		HNSWIndex index = HNSWIndex.load(f);
+		index.setLogEnabled(isLogEnabled());
+		return index;
+	}
+
+	/**
+	 * Dump a product quantization index next to the signatures of its
+	 * descriptor.
+	 * 
+	 * @param index
+	 *            the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dumpPQIndex(PQIndex index) throws IOException {
+		index.dump(getPQIndexPath(index.getDescriptor()));
+	}
+
+	/**
+	 * Gets the path of the product quantization index of a descriptor.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the path
+	 */
+	protected File getPQIndexPath(String desc) {
+		return new File(rootDirectory, PQ_FILE + desc + EXT);
+	}
+
+	/**
+	 * Load the product quantization index of a descriptor, and encode the
+	 * entries that have been added to the database since it has been dumped.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the index, null if there is none for this descriptor
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public PQIndex loadPQIndex(String desc) throws IOException {
+		File f = getPQIndexPath(desc);
+		if (!f.exists()) {
+			return null;
+		}
+		PQIndex index = PQIndex.load(f);
+		index.setLogEnabled(isLogEnabled());
+		try {
+			index.update(db);
+		} catch (FeatureException e) {
+			throw new IOException(e);
+		}
+		return index;
+	}
+
+	/**
+	 * Gets the path of the inverted file index of a descriptor.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the path
+	 */
+	protected File getInvertedFileIndexPath(String desc) {
+		return new File(rootDirectory, IVF_FILE + desc + EXT);
+	}
+
+	/**
+	 * Load the inverted file index of a descriptor, and index the entries that
+	 * have been added to the database since it has been dumped.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the index, null if there is none for this descriptor
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public InvertedFileIndex loadInvertedFileIndex(String desc) throws IOException {
+		File f = getInvertedFileIndexPath(desc);
+		if (!f.exists()) {
+			return null;
+		}
+		InvertedFileIndex index = InvertedFileIndex.load(f);
+		index.setLogEnabled(isLogEnabled());
+		try {
+			index.update(db);
+		} catch (FeatureException e) {
+			throw new IOException(e);
+		}
+		return index;
 	}
 
 	/**
@@ -209,6 +574,30 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 		return db;
 	}
 
+	/**
+	 * Gets the matrix file.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the matrix file
+	 */
+	protected File getMatrixFile(String desc) {
+		return new File(rootDirectory, MATRIX_FILE + desc + EXT);
+	}
+
+	/**
+	 * Gets a mapped matrix.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the matrix, null if it has not been mapped
+	 */
+	public SignatureMatrix getMatrix(String desc) {
+		synchronized (matrices) {
+			return matrices.get(desc);
+		}
+	}
+
 	/**
 	 * Gets the headers file.
 	 * 
@@ -234,7 +623,216 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 	 *             the file not found exception
 	 */
 	protected RandomAccessFile getSignaturesFile(String desc, boolean write) throws FileNotFoundException {
-		return PersistenceToolbox.getFile(new File(rootDirectory, SIGNATURES_FILE + desc + EXT), write);
+		return PersistenceToolbox.getFile(getSignaturesPath(desc), write);
+	}
+
+	/**
+	 * Gets the path of the offset index of a signatures file.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the index path
+	 */
+	protected File getIndexPath(String desc) {
+		return new File(rootDirectory, INDEX_FILE + desc + EXT);
+	}
+
+	/**
+	 * Gets the offset index of a signatures file. The index file is used when
+	 * it is up to date, otherwise the index is rebuilt from the signatures file
+	 * and saved.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the offset index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public SignatureOffsetIndex getOffsetIndex(String desc) throws IOException {
+		synchronized (offsetIndexes) {
+			File sigs = getSignaturesPath(desc);
+			SignatureOffsetIndex index = offsetIndexes.get(desc);
+			if ((index != null) && index.isUpToDate(sigs)) {
+				return index;
+			}
+			index = null;
+
+			File idx = getIndexPath(desc);
+			if (idx.exists()) {
+				try {
+					index = SignatureOffsetIndex.load(idx);
+					if (!index.isUpToDate(sigs)) {
+						info("Offset index of " + desc + " is out of date");
+						index = null;
+					}
+				} catch (IOException e) {
+					info("Unable to read the offset index of " + desc + " : " + e.getMessage());
+				}
+			}
+
+			if (index == null) {
+				info("Building the offset index of " + desc);
+				index = SignatureOffsetIndex.build(sigs);
+				try {
+					index.dump(idx);
+				} catch (IOException e) {
+					info("Unable to save the offset index of " + desc + " : " + e.getMessage());
+				}
+			}
+
+			offsetIndexes.put(desc, index);
+			return index;
+		}
+	}
+
+	/**
+	 * Read the signature of a single entry. The pending segment of the
+	 * descriptor is read first, as it holds the most recent signatures,
+	 * otherwise the signature is read seeking directly to it in the
+	 * signatures file.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param entryId
+	 *            the entry id
+	 * @return the signature, a DefaultVectorSignature for a global descriptor
+	 *         or a BagOfSignatures for a local one, null if the entry has no
+	 *         signature
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public Signature loadSignature(String desc, long entryId) throws IOException {
+		Signature fromSegment = loadSegmentSignature(desc, entryId);
+		if (fromSegment != null) {
+			return fromSegment;
+		}
+
+		SignatureOffsetIndex index = getOffsetIndex(desc);
+		int pos = index.getPosition(entryId);
+		if (pos < 0) {
+			throw new IOException("Unknown entry " + entryId + " for " + desc);
+		}
+		if (!index.contains(pos)) {
+			return null;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = getSignaturesFile(desc, false);
+			FileChannel fc = raf.getChannel();
+			fc.position(index.getOffset(pos));
+			if (index.isGlobal()) {
+				return PersistenceToolbox.loadVectorSignature(fc, loadSparseAsCompact);
+			}
+			return PersistenceToolbox.loadBagOfSignatures(fc, loadSparseAsCompact);
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the offset index of the segment file of a descriptor. It is built
+	 * once and kept until the segment changes.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the segment index, null if there is no segment
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private SegmentOffsetIndex getSegmentIndex(String desc) throws IOException {
+		synchronized (segmentIndexes) {
+			File f = getSegmentPath(desc);
+			if (!f.exists()) {
+				segmentIndexes.remove(desc);
+				return null;
+			}
+			SegmentOffsetIndex index = segmentIndexes.get(desc);
+			if ((index == null) || !index.isUpToDate(f)) {
+				index = SegmentOffsetIndex.build(f);
+				segmentIndexes.put(desc, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Read the last signature of an entry in the segment file of a
+	 * descriptor, seeking directly to it through the segment index.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param entryId
+	 *            the entry id
+	 * @return the signature, null if there is no segment or if the entry is
+	 *         not in it
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private Signature loadSegmentSignature(String desc, long entryId) throws IOException {
+		SegmentOffsetIndex index = getSegmentIndex(desc);
+		if (index == null) {
+			return null;
+		}
+		long offset = index.getOffset(entryId);
+		if (offset == SegmentOffsetIndex.NO_SIGNATURE) {
+			return null;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(getSegmentPath(desc), false);
+			FileChannel fc = raf.getChannel();
+			fc.position(offset);
+			if (PersistenceToolbox.loadInt(fc) == PersistenceToolbox.BAG_TYPE) {
+				fc.position(offset);
+				return PersistenceToolbox.loadBagOfSignatures(fc, loadSparseAsCompact);
+			}
+			fc.position(offset);
+			return PersistenceToolbox.loadVectorSignature(fc, loadSparseAsCompact);
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the path of the signatures file.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the signatures path
+	 */
+	protected File getSignaturesPath(String desc) {
+		return new File(rootDirectory, SIGNATURES_FILE + desc + EXT);
+	}
+
+	/**
+	 * Stream all the vector signatures of a descriptor file, without loading
+	 * the database signatures. Only the signatures of the last full dump are
+	 * read, not the ones of a pending segment.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the iterator, to be closed if it is not read to the end
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public SignatureFileIterator getSignatureIterator(String desc) throws IOException {
+		return new SignatureFileIterator(getSignaturesPath(desc), loadSparseAsCompact);
+	}
+
+	/**
+	 * Gets the cache of the lazily loaded signatures.
+	 * 
+	 * @return the signature cache, null if the database has not been loaded
+	 *         lazily
+	 */
+	public SignatureCache getSignatureCache() {
+		return signatureCache;
 	}
 
 	public void load() throws IOException {
@@ -249,20 +847,397 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 	 */
 	public void load(boolean stopOnFirstError) throws IOException {
 		loadHeaders();
+		List<String> descs = new ArrayList<String>(db.getAllDescriptors());
+		if (parallel && (descs.size() > 1)) {
+			runInParallel(descs, false, stopOnFirstError);
+		} else {
+			for (String d : descs) {
+				try {
+					loadDescriptor(d);
+				} catch (IOException e) {
+					if (stopOnFirstError) {
+						throw e;
+					} else {
+						info(e.getMessage());
+					}
+				}
+			}
+		}
+		db.updateAvailableDescriptors();
+	}
+
+	/**
+	 * Load the signatures of a descriptor, from its matrix file if mapping is
+	 * enabled and available.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void loadDescriptor(String desc) throws IOException {
+		SignatureMatrix m = null;
+		if (useMappedSignatures && !db.containsLocalDescriptor(desc)) {
+			m = mapMatrixIfUpToDate(desc);
+		}
+		if (m != null) {
+			loadMappedSignatures(desc, m);
+		} else {
+			loadSignatures(desc);
+		}
+		replaySegment(desc);
+	}
+
+	/**
+	 * Append the current signatures of some entries to the segment file of a
+	 * descriptor. The segment is a journal of the signatures computed since
+	 * the last full dump of the descriptor, it is replayed on top of the
+	 * signatures file when loading and deleted by the next full dump. When the
+	 * append fails, the segment is truncated back to its previous length.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param entries
+	 *            the entries
+	 * @param global
+	 *            the global
+	 * @return the number of appended signatures
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public int appendSegment(String desc, List<ImageEntry<T>> entries, boolean global) throws IOException {
+		RandomAccessFile raf = null;
+		int count = 0;
+		long end = -1;
+		boolean appended = false;
+		try {
+			File f = getSegmentPath(desc);
+			f.getParentFile().mkdirs();
+			raf = new RandomAccessFile(f, "rw");
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			end = fc.size();
+			fc.position(end);
+			if (end == 0) {
+				PersistenceToolbox.dumpString(fc, SEGMENT_VERSION);
+			}
+			for (ImageEntry<T> e : entries) {
+				Signature sig = global ? e.getGlobalSignatures().get(desc) : e.getLocalSignatures().get(desc);
+				if (sig != null) {
+					PersistenceToolbox.dumpLong(fc, e.getId());
+					PersistenceToolbox.dumpSignature(fc, sig);
+					count++;
+				}
+			}
+			fc.flush();
+			appended = true;
+		} finally {
+			if (raf != null) {
+				try {
+					// a partial append is removed, the next records would
+					// otherwise follow a torn one
+					if (!appended && (end >= 0)) {
+						raf.getChannel().truncate(end);
+					}
+				} finally {
+					raf.close();
+				}
+			}
+			synchronized (segmentIndexes) {
+				segmentIndexes.remove(desc);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Delete the segment file of a descriptor.
+	 * 
+	 * @param desc
+	 *            the desc
+	 */
+	public void deleteSegment(String desc) {
+		File f = getSegmentPath(desc);
+		synchronized (segmentIndexes) {
+			if (f.exists()) {
+				f.delete();
+			}
+			segmentIndexes.remove(desc);
+		}
+	}
+
+	/**
+	 * Gets the path of the segment file of a descriptor.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the segment path
+	 */
+	protected File getSegmentPath(String desc) {
+		return new File(rootDirectory, SEGMENT_FILE + desc + EXT);
+	}
+
+	/**
+	 * Replay the segment file of a descriptor, if any, on the loaded entries.
+	 * A truncated last record, left by an interrupted checkpoint, is ignored.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the number of replayed signatures
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public int replaySegment(String desc) throws IOException {
+		File f = getSegmentPath(desc);
+		if (!f.exists()) {
+			return 0;
+		}
+
+		info("Replaying " + desc + " segment");
+		Map<Long, ImageEntry<T>> entries = new HashMap<Long, ImageEntry<T>>();
+		for (ImageEntry<T> e : db.getEntries()) {
+			entries.put(e.getId(), e);
+		}
+
+		RandomAccessFile raf = null;
+		int count = 0;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			long size = fc.size();
+			String version = PersistenceToolbox.loadString(fc);
+			if (!SEGMENT_VERSION.equals(version)) {
+				throw new IOException("Incompatible segment version (" + version + "/" + SEGMENT_VERSION + ")");
+			}
+			try {
+				while (fc.position() < size) {
+					long id = PersistenceToolbox.loadLong(fc);
+					long start = fc.position();
+					int type = PersistenceToolbox.loadInt(fc);
+					fc.position(start);
+					ImageEntry<T> e = entries.get(id);
+					if (type == PersistenceToolbox.BAG_TYPE) {
+						BagOfSignatures<DefaultVectorSignature> bs = PersistenceToolbox.loadBagOfSignatures(fc, loadSparseAsCompact);
+						if (e != null) {
+							e.putSignature(desc, bs);
+						}
+					} else {
+						DefaultVectorSignature vs = PersistenceToolbox.loadVectorSignature(fc, loadSparseAsCompact);
+						if (e != null) {
+							e.putSignature(desc, vs);
+						}
+					}
+					if (e != null) {
+						count++;
+					}
+				}
+			} catch (EOFException e) {
+				info("Truncated " + desc + " segment, last record ignored");
+			}
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+		info("Replaying " + desc + " segment done (" + count + " signatures)");
+		return count;
+	}
+
+	/**
+	 * Load or dump the descriptors concurrently, one task per descriptor file on
+	 * a {@link TaskManager} created for the call. The shared pools are not
+	 * used, as this method blocks until its tasks are done and may itself be
+	 * called from one of their tasks. All the tasks are waited for, even on
+	 * error, so that nothing keeps on writing in the database once this method
+	 * returns.
+	 * 
+	 * @param descs
+	 *            the descs
+	 * @param dump
+	 *            the dump
+	 * @param stopOnFirstError
+	 *            throw the first error encountered instead of only reporting
+	 *            it
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void runInParallel(List<String> descs, boolean dump, boolean stopOnFirstError) throws IOException {
+		String what = dump ? "Dumping" : "Loading";
+		info(what + " " + descs.size() + " descriptors in parallel");
+		long start = System.currentTimeMillis();
+
+		TaskManager tm = TaskManager.create("persistence", Math.max(1, Math.min(descs.size(), Runtime.getRuntime().availableProcessors())));
+		IOException firstError = null;
+		boolean interrupted = false;
+		try {
+			Map<String, Future<Long>> results = new LinkedHashMap<String, Future<Long>>();
+			for (String d : descs) {
+				results.put(d, tm.submit(new DescriptorWorker(d, dump)));
+			}
+
+			for (Map.Entry<String, Future<Long>> r : results.entrySet()) {
+				try {
+					long time = r.getValue().get();
+					info(" - " + r.getKey() + " : " + time + " ms");
+				} catch (InterruptedException e) {
+					interrupted = true;
+					if (firstError == null) {
+						firstError = new IOException(e);
+					}
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					IOException ioe = (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+					info(ioe.getMessage());
+					if (firstError == null) {
+						firstError = ioe;
+					}
+				}
+			}
+		} finally {
+			tm.shutdown();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		info(what + " " + descs.size() + " descriptors done in " + (System.currentTimeMillis() - start) + " ms");
+
+		if (stopOnFirstError && (firstError != null)) {
+			throw firstError;
+		}
+	}
+
+	/**
+	 * Load the headers and only the offset indexes of the signature files, see
+	 * {@link #getOffsetIndex(String)}. The signatures are
+	 * read on demand when accessed through the entries maps and kept in a
+	 * {@link SignatureCache}. The files stay opened until
+	 * {@link #closeLazyStores()} or {@link ImageDatabase#close()} is called.
+	 * The database keeps a reference to this persistence, which is used by
+	 * {@link #dumpSignatures(String)} to switch the stores to the new files.
+	 * The global descriptors that have a
+	 * matrix file are mapped instead when {@link #isUseMappedSignatures()} is
+	 * set.
+	 * 
+	 * @param cacheMaxBytes
+	 *            the maximum memory used by the cached signatures
+	 * @param stopOnFirstError
+	 *            the stop on first error
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void loadLazy(long cacheMaxBytes, boolean stopOnFirstError) throws IOException {
+		loadHeaders();
+		closeLazyStores();
+		signatureCache = new SignatureCache(cacheMaxBytes);
+
+		Map<String, LazySignatureStore> globalStores = new HashMap<String, LazySignatureStore>();
+		Map<String, LazySignatureStore> localStores = new HashMap<String, LazySignatureStore>();
+		Map<String, SignatureMatrix> mapped = new HashMap<String, SignatureMatrix>();
+		int sid = 0;
 		for (String d : db.getAllDescriptors()) {
+			boolean global = !db.containsLocalDescriptor(d);
+			if (useMappedSignatures && global) {
+				SignatureMatrix m = mapMatrixIfUpToDate(d);
+				if (m != null) {
+					mapped.put(d, m);
+					continue;
+				}
+			}
 			try {
-				loadSignatures(d);
+				info("Opening " + d + " signatures");
+				long start = System.currentTimeMillis();
+				LazySignatureStore store = LazySignatureStore.open(sid++, d, getSignaturesPath(d), getOffsetIndex(d), db.getEntries());
+				store.setLoadSparseAsCompact(loadSparseAsCompact);
+				if (global) {
+					globalStores.put(d, store);
+				} else {
+					localStores.put(d, store);
+				}
+				synchronized (lazyStores) {
+					lazyStores.put(d, store);
+				}
+				info("Opening " + d + " done in " + (System.currentTimeMillis() - start) + " ms");
 			} catch (IOException e) {
 				if (stopOnFirstError) {
+					closeLazyStores();
 					throw e;
 				} else {
 					info(e.getMessage());
 				}
 			}
 		}
+
+		for (ImageEntry<T> e : db.getEntries()) {
+			e.setGlobalSignatures(new LazySignatureMap<DefaultVectorSignature>(globalStores, signatureCache, e.getId()));
+			e.setLocalSignatures(new LazySignatureMap<BagOfSignatures<DefaultVectorSignature>>(localStores, signatureCache, e.getId()));
+		}
+		db.setPersistence(this);
+
+		for (Map.Entry<String, SignatureMatrix> m : mapped.entrySet()) {
+			loadMappedSignatures(m.getKey(), m.getValue());
+		}
+
+		for (String d : db.getAllDescriptors()) {
+			try {
+				replaySegment(d);
+			} catch (IOException e) {
+				if (stopOnFirstError) {
+					throw e;
+				} else {
+					info(e.getMessage());
+				}
+			}
+		}
+
 		db.updateAvailableDescriptors();
 	}
 
+	/**
+	 * Gets the lazy store of a descriptor, opened by this persistence or by the
+	 * one that has lazily loaded the database.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the store, null if the signatures file of the descriptor is not
+	 *         lazily read
+	 */
+	private LazySignatureStore getLazyStore(String desc) {
+		LazySignatureStore store = null;
+		synchronized (lazyStores) {
+			store = lazyStores.get(desc);
+		}
+		ImageDatabasePersistence<T> owner = db.getPersistence();
+		if ((store == null) && (owner != null) && (owner != this)) {
+			synchronized (owner.lazyStores) {
+				store = owner.lazyStores.get(desc);
+			}
+		}
+		if ((store != null) && store.getFile().getAbsoluteFile().equals(getSignaturesPath(desc).getAbsoluteFile())) {
+			return store;
+		}
+		return null;
+	}
+
+	/**
+	 * Close the files opened by {@link #loadLazy(long, boolean)}. The lazily
+	 * loaded signatures can still be accessed, the files are opened again when
+	 * needed.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void closeLazyStores() throws IOException {
+		synchronized (lazyStores) {
+			for (LazySignatureStore store : lazyStores.values()) {
+				store.close();
+			}
+			lazyStores.clear();
+		}
+		if (signatureCache != null) {
+			signatureCache.clear();
+		}
+	}
+
 	/**
 	 * Load headers.
 	 * 
@@ -274,7 +1249,7 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 		RandomAccessFile raf = null;
 		try {
 			raf = getHeadersFile(false);
-			FileChannel fc = raf.getChannel();
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
 
 			db = new ImageDatabase<T>();
 			db.setRootDirectory(rootDirectory);
@@ -346,6 +1321,119 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 		return res;
 	}
 
+	/**
+	 * Map the matrix file of a global descriptor and put a read only view of
+	 * each row in the corresponding entry. The matrix must hold the same
+	 * entries as the signatures file, see {@link #isMatrixUpToDate(String)}.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void loadMappedSignatures(String desc) throws IOException {
+		info("Mapping " + desc + " signatures");
+		if (!db.getAllDescriptors().contains(desc) || db.containsLocalDescriptor(desc)) {
+			throw new IOException("Global descriptor " + desc + " not available for mapping on " + db.getName());
+		}
+		SignatureMatrix m = SignatureMatrix.map(getMatrixFile(desc));
+		if (!isMatrixUpToDate(desc, m)) {
+			throw new IOException("Matrix of " + desc + " is out of date, the signatures file has other entries");
+		}
+		loadMappedSignatures(desc, m);
+	}
+
+	/**
+	 * Put a read only view of each row of an already mapped and checked matrix
+	 * in the corresponding entry.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param m
+	 *            the matrix
+	 */
+	private void loadMappedSignatures(String desc, SignatureMatrix m) {
+		int count = 0;
+		for (ImageEntry<T> e : db.getEntries()) {
+			int row = m.getRow(e.getId());
+			if (row >= 0) {
+				e.putSignature(desc, m.getSignature(row));
+				count++;
+			}
+		}
+		synchronized (matrices) {
+			matrices.put(desc, m);
+		}
+		info("Mapping " + desc + " done (" + count + " / " + db.size() + ")");
+	}
+
+	/**
+	 * Checks if the matrix file of a descriptor can be used instead of its
+	 * signatures file.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return true, if the matrix exists and is up to date
+	 */
+	public boolean isMatrixUpToDate(String desc) {
+		return mapMatrixIfUpToDate(desc) != null;
+	}
+
+	/**
+	 * Map the matrix file of a descriptor if it can be used instead of its
+	 * signatures file.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @return the matrix, null if it does not exist or is out of date
+	 */
+	private SignatureMatrix mapMatrixIfUpToDate(String desc) {
+		if (!getMatrixFile(desc).exists()) {
+			return null;
+		}
+		try {
+			SignatureMatrix m = SignatureMatrix.map(getMatrixFile(desc));
+			if (isMatrixUpToDate(desc, m)) {
+				return m;
+			}
+			info("Matrix of " + desc + " is out of date, using the signatures file");
+		} catch (IOException e) {
+			info("Unable to check the matrix of " + desc + " : " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if a matrix has a row for exactly the entries that have a
+	 * signature in the signatures file. The signature values themselves are
+	 * kept in sync by {@link #dumpSignatures(String)}, which writes the matrix
+	 * again when there is one.
+	 * 
+	 * @param desc
+	 *            the desc
+	 * @param m
+	 *            the matrix
+	 * @return true, if is up to date
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean isMatrixUpToDate(String desc, SignatureMatrix m) throws IOException {
+		if (!getSignaturesPath(desc).exists()) {
+			return true;
+		}
+		SignatureOffsetIndex index = getOffsetIndex(desc);
+		int nb = 0;
+		for (int pos = 0; pos < index.size(); pos++) {
+			if (index.contains(pos)) {
+				if (m.getRow(index.getId(pos)) < 0) {
+					return false;
+				}
+				nb++;
+			}
+		}
+		return nb == m.getNbRows();
+	}
+
 	/**
 	 * Load signatures.
 	 * 
@@ -385,10 +1473,12 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 				global = false;
 			}
 
+			long start = System.currentTimeMillis();
+			int loaded = 0;
 			RandomAccessFile raf = null;
 			try {
 				raf = getSignaturesFile(desc, false);
-				FileChannel fc = raf.getChannel();
+				BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
 				int dbs = PersistenceToolbox.loadInt(fc);
 				if (dbs != db.size()) {
 					throw new IOException("Wrong number of signatures for " + desc + " (" + dbs + "/" + db.size() + ")");
@@ -401,18 +1491,20 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 						throw new IOException("Wrong id of entry for " + desc + " (" + id + "/" + e.getId() + ")");
 					}
 					if (global) {
-						DefaultVectorSignature vs = PersistenceToolbox.loadVectorSignature(fc);
+						DefaultVectorSignature vs = PersistenceToolbox.loadVectorSignature(fc, loadSparseAsCompact);
 						if (vs != null) {
 							e.putSignature(desc, vs);
+							loaded++;
 						}
 					} else {
-						BagOfSignatures<DefaultVectorSignature> bs = PersistenceToolbox.loadBagOfSignatures(fc);
+						BagOfSignatures<DefaultVectorSignature> bs = PersistenceToolbox.loadBagOfSignatures(fc, loadSparseAsCompact);
 						if (bs != null) {
 							e.putSignature(desc, bs);
+							loaded++;
 						}
 					}
 					if (count % 10000 == 0) {
-						info(" - " + count);
+						info(" - " + desc + " : " + count + " / " + dbs);
 					}
 				}
 			} catch (IOException e) {
@@ -422,8 +1514,42 @@ public class ImageDatabasePersistence<T extends SegmentableImage> extends Algori
 					raf.close();
 				}
 			}
-
+			info("Loading " + desc + " done (" + loaded + " / " + db.size() + ") in " + (System.currentTimeMillis() - start) + " ms");
 		}
 	}
 
+	public boolean isUseMappedSignatures() {
+		return useMappedSignatures;
+	}
+
+	public void setUseMappedSignatures(boolean useMappedSignatures) {
+		this.useMappedSignatures = useMappedSignatures;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean isLoadSparseAsCompact() {
+		return loadSparseAsCompact;
+	}
+
+	/**
+	 * When set, the sparse signatures are loaded as
+	 * {@link plugins.nherve.toolbox.image.feature.signature.CompactSparseVectorSignature}
+	 * instead of
+	 * {@link plugins.nherve.toolbox.image.feature.signature.SparseVectorSignature}.
+	 * Both share the same layout on disk.
+	 * 
+	 * @param loadSparseAsCompact
+	 *            the new load sparse as compact
+	 */
+	public void setLoadSparseAsCompact(boolean loadSparseAsCompact) {
+		this.loadSparseAsCompact = loadSparseAsCompact;
+	}
+
 }
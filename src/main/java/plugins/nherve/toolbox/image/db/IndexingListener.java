@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import plugins.nherve.toolbox.image.feature.SegmentableImage;
+
+/**
+ * Completion callback of the {@link ImageDatabaseIndexer}, called from the
+ * indexing threads once per entry.
+ * 
+ * @param <T>
+ *            the generic type
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public interface IndexingListener<T extends SegmentableImage> {
+
+	/**
+	 * Called when the signatures of an entry have been computed.
+	 * 
+	 * @param e
+	 *            the entry
+	 * @param error
+	 *            the error that stopped the indexing of the entry, null on
+	 *            success
+	 */
+	void entryIndexed(ImageEntry<T> e, Throwable error);
+}
@@ -0,0 +1,655 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.image.feature.ClusteringAlgorithm;
+import plugins.nherve.toolbox.image.feature.FeatureException;
+import plugins.nherve.toolbox.image.feature.SegmentableImage;
+import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.clustering.KMeans;
+import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * Inverted file index over one descriptor of an {@link ImageDatabase}. A
+ * coarse quantizer (the centroids of a {@link KMeans}, or of any other
+ * clustering algorithm) splits the signature space in cells, and each cell
+ * keeps the list of the signatures it contains. A query only scans the lists
+ * of the nprobe cells closest to it.
+ * 
+ * The lists hold the ids of the entries (and the position of the signature in
+ * the bag for a local descriptor), the signatures themselves are read from the
+ * database at query time.
+ * 
+ * The index is not notified of the changes of the database : the entries
+ * added with {@link ImageDatabase#add(ImageEntry)} are only indexed by
+ * {@link #update(ImageDatabase)}, which the caller has to run after adding
+ * them. The removed entries are dropped by the update, or by the first
+ * search that meets them.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class InvertedFileIndex extends Algorithm implements KnnIndex {
+
+	/** The Constant VERSION. */
+	public final static String VERSION = "InvertedFileIndex_v1.0.0";
+
+	/** The Constant DEFAULT_NPROBE. */
+	public final static int DEFAULT_NPROBE = 8;
+
+	/**
+	 * Train the coarse quantizer on the signatures of a database and index
+	 * all its entries.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param db
+	 *            the database
+	 * @param desc
+	 *            the descriptor
+	 * @param quantizer
+	 *            the clustering algorithm, typically a KMeans
+	 * @param maxTrainingPoints
+	 *            the maximum number of signatures, randomly chosen, used to
+	 *            train the quantizer
+	 * @return the index
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public static <T extends SegmentableImage> InvertedFileIndex train(ImageDatabase<T> db, String desc, ClusteringAlgorithm<DefaultVectorSignature> quantizer, int maxTrainingPoints) throws FeatureException {
+		boolean global = db.containsGlobalDescriptor(desc);
+		if (!global && !db.containsLocalDescriptor(desc)) {
+			throw new FeatureException("Unknown descriptor " + desc);
+		}
+
+		List<DefaultVectorSignature> points = new ArrayList<DefaultVectorSignature>();
+		for (ImageEntry<T> e : db) {
+			if (global) {
+				DefaultVectorSignature s = db.getGlobalSignature(e, desc);
+				if (s != null) {
+					points.add(s);
+				}
+			} else {
+				BagOfSignatures<DefaultVectorSignature> bag = db.getLocalSignature(e, desc);
+				if (bag != null) {
+					points.addAll(bag.getSignatures());
+				}
+			}
+		}
+		if (points.size() > maxTrainingPoints) {
+			Collections.shuffle(points, new Random(points.size()));
+			points = new ArrayList<DefaultVectorSignature>(points.subList(0, maxTrainingPoints));
+		}
+
+		quantizer.compute(points);
+
+		InvertedFileIndex index = new InvertedFileIndex(desc, global, quantizer.getCentroids());
+		if (quantizer instanceof KMeans) {
+			index.setQuantizerDistance(((KMeans) quantizer).getDistance());
+		}
+		index.setLogEnabled(quantizer.isLogEnabled());
+		index.update(db);
+		return index;
+	}
+
+	/**
+	 * Load an index file.
+	 * 
+	 * @param f
+	 *            the file
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	public static InvertedFileIndex load(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			String version = PersistenceToolbox.loadString(fc);
+			if (!VERSION.equals(version)) {
+				throw new IOException("Incompatible index version (" + version + "/" + VERSION + ")");
+			}
+			String desc = PersistenceToolbox.loadString(fc);
+			boolean global = PersistenceToolbox.loadBoolean(fc);
+			String distanceClass = PersistenceToolbox.loadString(fc);
+			int nprobe = PersistenceToolbox.loadInt(fc);
+			long lastIndexedId = PersistenceToolbox.loadLong(fc);
+			int nbLists = PersistenceToolbox.loadInt(fc);
+			List<DefaultVectorSignature> centroids = new ArrayList<DefaultVectorSignature>(nbLists);
+			for (int l = 0; l < nbLists; l++) {
+				centroids.add(PersistenceToolbox.loadVectorSignature(fc));
+			}
+
+			InvertedFileIndex index = new InvertedFileIndex(desc, global, centroids);
+			try {
+				index.setQuantizerDistance((SignatureDistance<VectorSignature>) Class.forName(distanceClass).getDeclaredConstructor().newInstance());
+			} catch (Exception e) {
+				throw new IOException("Unable to instantiate the distance " + distanceClass, e);
+			}
+			index.setNprobe(nprobe);
+			index.lastIndexedId = lastIndexedId;
+			for (int l = 0; l < nbLists; l++) {
+				index.ids[l] = PersistenceToolbox.loadFullLongArray(fc);
+				index.lids[l] = PersistenceToolbox.loadFullIntArray(fc);
+				index.sizes[l] = index.ids[l].length;
+				index.positions[l] = new int[index.sizes[l]];
+				Arrays.fill(index.positions[l], -1);
+			}
+			return index;
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/** The descriptor. */
+	private final String desc;
+
+	/** The global. */
+	private final boolean global;
+
+	/** The centroids of the cells. */
+	private final List<DefaultVectorSignature> centroids;
+
+	/** The distance used to assign the signatures to the cells. */
+	private SignatureDistance<VectorSignature> quantizerDistance;
+
+	/** The ids of the entries, by cell. */
+	private final long[][] ids;
+
+	/** The positions of the signatures in their bag, by cell. */
+	private final int[][] lids;
+
+	/**
+	 * The last known position of the entries in the database, by cell, -1 when
+	 * not resolved yet.
+	 */
+	private final int[][] positions;
+
+	/** The number of signatures of each cell. */
+	private final int[] sizes;
+
+	/** The highest indexed entry id. */
+	private long lastIndexedId;
+
+	/** The number of probed cells. */
+	private int nprobe;
+
+	/** The lock. */
+	private final ReadWriteLock lock;
+
+	/**
+	 * Instantiates a new empty inverted file index.
+	 * 
+	 * @param desc
+	 *            the descriptor
+	 * @param global
+	 *            true for a global descriptor
+	 * @param centroids
+	 *            the centroids of the cells
+	 */
+	public InvertedFileIndex(String desc, boolean global, List<DefaultVectorSignature> centroids) {
+		super();
+		this.desc = desc;
+		this.global = global;
+		this.centroids = centroids;
+		this.quantizerDistance = new L2Distance();
+		this.ids = new long[centroids.size()][];
+		this.lids = new int[centroids.size()][];
+		this.positions = new int[centroids.size()][];
+		this.sizes = new int[centroids.size()];
+		for (int l = 0; l < centroids.size(); l++) {
+			ids[l] = new long[0];
+			lids[l] = new int[0];
+			positions[l] = new int[0];
+		}
+		this.lastIndexedId = -1;
+		this.nprobe = DEFAULT_NPROBE;
+		this.lock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Add the signatures of an entry to the index.
+	 * 
+	 * @param e
+	 *            the entry
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public void add(ImageEntry<?> e) throws FeatureException {
+		lock.writeLock().lock();
+		try {
+			if (global) {
+				DefaultVectorSignature s = e.getGlobalSignatures().get(desc);
+				if (s != null) {
+					append(closestLists(s, 1)[0], e.getId(), -1);
+				}
+			} else {
+				BagOfSignatures<DefaultVectorSignature> bag = e.getLocalSignatures().get(desc);
+				if (bag != null) {
+					int lid = 0;
+					for (DefaultVectorSignature s : bag) {
+						append(closestLists(s, 1)[0], e.getId(), lid);
+						lid++;
+					}
+				}
+			}
+			lastIndexedId = Math.max(lastIndexedId, e.getId());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Append a signature to a cell.
+	 * 
+	 * @param l
+	 *            the cell
+	 * @param id
+	 *            the entry id
+	 * @param lid
+	 *            the position in the bag
+	 */
+	private void append(int l, long id, int lid) {
+		if (sizes[l] == ids[l].length) {
+			int capacity = Math.max(16, 2 * sizes[l]);
+			ids[l] = Arrays.copyOf(ids[l], capacity);
+			lids[l] = Arrays.copyOf(lids[l], capacity);
+			positions[l] = Arrays.copyOf(positions[l], capacity);
+		}
+		ids[l][sizes[l]] = id;
+		lids[l][sizes[l]] = lid;
+		positions[l][sizes[l]] = -1;
+		sizes[l]++;
+	}
+
+	/**
+	 * Find the cells closest to a signature.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @param n
+	 *            the number of cells
+	 * @return the cells, closest first
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public int[] closestLists(DefaultVectorSignature s, int n) throws FeatureException {
+		TopKCollector top = new TopKCollector(Math.min(n, centroids.size()));
+		for (int l = 0; l < centroids.size(); l++) {
+			top.offer(l, -1, quantizerDistance.computeDistance(centroids.get(l), s, top.getThreshold()));
+		}
+		top.sort();
+		int[] lists = new int[top.size()];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = top.getItem(i);
+		}
+		return lists;
+	}
+
+	/**
+	 * Dump the index.
+	 * 
+	 * @param f
+	 *            the file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dump(File f) throws IOException {
+		lock.readLock().lock();
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, true);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			PersistenceToolbox.dumpString(fc, VERSION);
+			PersistenceToolbox.dumpString(fc, desc);
+			PersistenceToolbox.dumpBoolean(fc, global);
+			PersistenceToolbox.dumpString(fc, quantizerDistance.getClass().getName());
+			PersistenceToolbox.dumpInt(fc, nprobe);
+			PersistenceToolbox.dumpLong(fc, lastIndexedId);
+			PersistenceToolbox.dumpInt(fc, centroids.size());
+			for (DefaultVectorSignature c : centroids) {
+				PersistenceToolbox.dumpSignature(fc, c);
+			}
+			for (int l = 0; l < centroids.size(); l++) {
+				PersistenceToolbox.dumpFullLongArray(fc, Arrays.copyOf(ids[l], sizes[l]));
+				PersistenceToolbox.dumpFullIntArray(fc, Arrays.copyOf(lids[l], sizes[l]));
+			}
+			fc.flush();
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see plugins.nherve.toolbox.image.db.KnnIndex#getDescriptor()
+	 */
+	@Override
+	public String getDescriptor() {
+		return desc;
+	}
+
+	/**
+	 * Gets the highest indexed entry id.
+	 * 
+	 * @return the last indexed id
+	 */
+	public long getLastIndexedId() {
+		return lastIndexedId;
+	}
+
+	/**
+	 * Gets the number of cells.
+	 * 
+	 * @return the nb lists
+	 */
+	public int getNbLists() {
+		return centroids.size();
+	}
+
+	/**
+	 * Gets the number of signatures of a cell.
+	 * 
+	 * @param l
+	 *            the cell
+	 * @return the list size
+	 */
+	public int getListSize(int l) {
+		return sizes[l];
+	}
+
+	/**
+	 * Gets the number of probed cells.
+	 * 
+	 * @return the nprobe
+	 */
+	public int getNprobe() {
+		return nprobe;
+	}
+
+	/**
+	 * Checks if is global.
+	 * 
+	 * @return true, if is global
+	 */
+	public boolean isGlobal() {
+		return global;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.db.KnnIndex#search(plugins.nherve.toolbox
+	 * .image.db.ImageDatabase,
+	 * plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature,
+	 * plugins.nherve.toolbox.image.feature.SignatureDistance,
+	 * plugins.nherve.toolbox.image.db.TopKCollector)
+	 */
+	@Override
+	public <T extends SegmentableImage> void search(ImageDatabase<T> db, DefaultVectorSignature query, SignatureDistance<VectorSignature> distance, TopKCollector top) throws FeatureException {
+		int[] lists;
+		lock.readLock().lock();
+		try {
+			lists = closestLists(query, nprobe);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// the entries removed from the database since the last update are
+		// dropped the first time a search meets them, so that they do not
+		// need a scan of the database for each query
+		long[] candidates = candidates(db, lists, false);
+		if (candidates == null) {
+			compact(db);
+			candidates = candidates(db, lists, true);
+		}
+		int nb = candidates.length;
+
+		// the candidates are visited in the database order, which is much more
+		// cache friendly than the order of the lists
+		Arrays.sort(candidates, 0, nb);
+
+		int bagItem = -1;
+		BagOfSignatures<DefaultVectorSignature> bag = null;
+		for (int c = 0; c < nb; c++) {
+			int item = (int) (candidates[c] >>> 32);
+			int lid = (int) candidates[c];
+			DefaultVectorSignature s;
+			if (global) {
+				s = db.getGlobalSignature(db.get(item), desc);
+			} else {
+				if (item != bagItem) {
+					bag = db.getLocalSignature(db.get(item), desc);
+					bagItem = item;
+				}
+				s = ((bag != null) && (lid < bag.size())) ? bag.getSignatures().get(lid) : null;
+			}
+			if (s != null) {
+				top.offer(item, lid, distance.computeDistance(s, query, top.getThreshold()));
+			}
+		}
+	}
+
+	/**
+	 * Gather the postings of some lists, as {@code (position << 32) | lid}.
+	 * 
+	 * @param db
+	 *            the db
+	 * @param lists
+	 *            the lists
+	 * @param resolve
+	 *            look up the entries whose position is not up to date, instead
+	 *            of giving up
+	 * @return the candidates, null if a position is not up to date and
+	 *         resolve is false
+	 */
+	private long[] candidates(ImageDatabase<?> db, int[] lists, boolean resolve) {
+		lock.readLock().lock();
+		try {
+			int total = 0;
+			for (int l : lists) {
+				total += sizes[l];
+			}
+			long[] candidates = new long[total];
+			int nb = 0;
+			for (int l : lists) {
+				long[] listIds = ids[l];
+				int[] listLids = lids[l];
+				int[] listPositions = positions[l];
+				for (int p = 0; p < sizes[l]; p++) {
+					int item = listPositions[p];
+					if ((item < 0) || (item >= db.size()) || (db.get(item).getId() != listIds[p])) {
+						if (!resolve) {
+							return null;
+						}
+						// the database is being modified concurrently
+						item = db.indexOfId(listIds[p]);
+						if (item < 0) {
+							continue;
+						}
+					}
+					candidates[nb++] = ((long) item << 32) | (listLids[p] & 0xFFFFFFFFl);
+				}
+			}
+			return nb == total ? candidates : Arrays.copyOf(candidates, nb);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Drop the postings of the entries that are not in the database anymore
+	 * and update the positions of the other ones.
+	 * 
+	 * @param db
+	 *            the db
+	 * @return the number of dropped postings
+	 */
+	private int compact(ImageDatabase<?> db) {
+		lock.writeLock().lock();
+		try {
+			Map<Long, Integer> positionsById = db.getPositionsById();
+			int dropped = 0;
+			for (int l = 0; l < sizes.length; l++) {
+				int kept = 0;
+				for (int p = 0; p < sizes[l]; p++) {
+					Integer item = positionsById.get(ids[l][p]);
+					if (item != null) {
+						ids[l][kept] = ids[l][p];
+						lids[l][kept] = lids[l][p];
+						positions[l][kept] = item;
+						kept++;
+					}
+				}
+				dropped += sizes[l] - kept;
+				sizes[l] = kept;
+			}
+			return dropped;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Compare the recall and the latency of the index with the ones of the
+	 * exhaustive search, for several numbers of probed cells.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param qm
+	 *            the query manager, that gives the distance
+	 * @param db
+	 *            the database
+	 * @param queries
+	 *            the queries
+	 * @param k
+	 *            the number of neighbours
+	 * @param nprobes
+	 *            the numbers of probed cells to evaluate
+	 * @return the report, one line per nprobe
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public <T extends SegmentableImage> String recallReport(QueryManager<T> qm, ImageDatabase<T> db, List<DefaultVectorSignature> queries, int k, int... nprobes) throws FeatureException {
+		int initialNprobe = nprobe;
+		StringBuilder report = new StringBuilder("InvertedFileIndex " + desc + " (" + size() + " signatures in " + centroids.size() + " lists), recall@" + k + " :\n");
+		try {
+			for (int np : nprobes) {
+				setNprobe(np);
+				report.append(" - nprobe " + nprobe + " : " + qm.evaluateIndex(this, db, queries, k) + "\n");
+			}
+		} finally {
+			setNprobe(initialNprobe);
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Sets the number of probed cells. More cells give a better recall and a
+	 * slower search.
+	 * 
+	 * @param nprobe
+	 *            the new nprobe
+	 */
+	public void setNprobe(int nprobe) {
+		this.nprobe = Math.max(1, nprobe);
+	}
+
+	/**
+	 * Sets the distance used to assign the signatures to the cells. It should
+	 * be the one the quantizer has been trained with.
+	 * 
+	 * @param quantizerDistance
+	 *            the new quantizer distance
+	 */
+	public void setQuantizerDistance(SignatureDistance<VectorSignature> quantizerDistance) {
+		this.quantizerDistance = quantizerDistance;
+	}
+
+	/**
+	 * Number of indexed signatures.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		int n = 0;
+		for (int sz : sizes) {
+			n += sz;
+		}
+		return n;
+	}
+
+	/**
+	 * Index the entries of a database that have been added since the last
+	 * update, and forget the entries that have been removed from it.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param db
+	 *            the database
+	 * @return the number of indexed entries
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public <T extends SegmentableImage> int update(ImageDatabase<T> db) throws FeatureException {
+		lock.writeLock().lock();
+		try {
+			int dropped = compact(db);
+			long from = lastIndexedId;
+			int nb = 0;
+			for (ImageEntry<T> e : db) {
+				if (e.getId() > from) {
+					add(e);
+					nb++;
+				}
+			}
+			info("InvertedFileIndex " + desc + " : " + nb + " new entries, " + dropped + " removed, " + size() + " signatures in " + centroids.size() + " lists");
+			return nb;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+}
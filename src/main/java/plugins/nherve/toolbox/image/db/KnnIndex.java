@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import plugins.nherve.toolbox.image.feature.FeatureException;
+import plugins.nherve.toolbox.image.feature.SegmentableImage;
+import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * An index over one descriptor of an {@link ImageDatabase}, used by the
+ * {@link QueryManager} instead of the exhaustive scan when it is registered
+ * for the queried descriptor. The answers may be approximate.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public interface KnnIndex {
+
+	/**
+	 * Gets the indexed descriptor.
+	 * 
+	 * @return the descriptor
+	 */
+	String getDescriptor();
+
+	/**
+	 * Search the nearest neighbours of a query. The answers are offered to the
+	 * collector, with the position of the entries in the database as items.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param db
+	 *            the database
+	 * @param query
+	 *            the query
+	 * @param distance
+	 *            the distance used to rank the answers
+	 * @param top
+	 *            the collector
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	<T extends SegmentableImage> void search(ImageDatabase<T> db, DefaultVectorSignature query, SignatureDistance<VectorSignature> distance, TopKCollector top) throws FeatureException;
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import plugins.nherve.toolbox.image.feature.Signature;
+
+/**
+ * The signatures of one {@link ImageEntry}, resolved on demand from the
+ * {@link LazySignatureStore} of each descriptor through a shared
+ * {@link SignatureCache}. The signatures put in the map are kept in memory
+ * and take precedence over the stored ones.
+ *
+ * @param <S>
+ *            the signature type
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class LazySignatureMap<S extends Signature> extends AbstractMap<String, S> {
+
+	/** The stores, by descriptor. */
+	private final Map<String, LazySignatureStore> stores;
+
+	/** The cache. */
+	private final SignatureCache cache;
+
+	/** The id of the entry. */
+	private final long entryId;
+
+	/** The signatures put in the map. */
+	private final Map<String, S> local;
+
+	/** The stored descriptors that have been removed. */
+	private final Set<String> removed;
+
+	/**
+	 * Instantiates a new lazy signature map.
+	 *
+	 * @param stores
+	 *            the stores
+	 * @param cache
+	 *            the cache
+	 * @param entryId
+	 *            the id of the entry
+	 */
+	public LazySignatureMap(Map<String, LazySignatureStore> stores, SignatureCache cache, long entryId) {
+		super();
+		this.stores = stores;
+		this.cache = cache;
+		this.entryId = entryId;
+		this.local = new HashMap<String, S>();
+		this.removed = new HashSet<String>();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#clear()
+	 */
+	@Override
+	public void clear() {
+		local.clear();
+		removed.addAll(stores.keySet());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#containsKey(java.lang.Object)
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		if (local.containsKey(key)) {
+			return true;
+		}
+		return isStored(key);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#entrySet()
+	 */
+	@Override
+	public Set<Map.Entry<String, S>> entrySet() {
+		Map<String, S> all = new HashMap<String, S>();
+		for (String k : keySet()) {
+			all.put(k, get(k));
+		}
+		return all.entrySet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#get(java.lang.Object)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public S get(Object key) {
+		if (local.containsKey(key)) {
+			return local.get(key);
+		}
+		if (!isStored(key)) {
+			return null;
+		}
+		try {
+			return (S) cache.get(stores.get(key), entryId);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to load the " + key + " signature : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Checks if a descriptor is available from the stores.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true, if is stored
+	 */
+	private boolean isStored(Object key) {
+		if (removed.contains(key)) {
+			return false;
+		}
+		LazySignatureStore store = stores.get(key);
+		return (store != null) && store.contains(entryId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#keySet()
+	 */
+	@Override
+	public Set<String> keySet() {
+		Set<String> keys = new HashSet<String>(local.keySet());
+		for (String k : stores.keySet()) {
+			if (isStored(k)) {
+				keys.add(k);
+			}
+		}
+		return keys;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public S put(String key, S value) {
+		S old = get(key);
+		local.put(key, value);
+		return old;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#remove(java.lang.Object)
+	 */
+	@Override
+	public S remove(Object key) {
+		S old = get(key);
+		local.remove(key);
+		if (stores.containsKey(key)) {
+			removed.add((String) key);
+		}
+		return old;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.AbstractMap#size()
+	 */
+	@Override
+	public int size() {
+		return keySet().size();
+	}
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.image.feature.Signature;
+
+/**
+ * Random access to the signatures of one descriptor file, through its
+ * {@link SignatureOffsetIndex}. The signatures are read on demand, nothing is
+ * kept in memory but the offsets. The entries are looked up by id, so that the
+ * file can be replaced by a new dump of the database, see
+ * {@link #replace(File, SignatureOffsetIndex)}.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class LazySignatureStore {
+
+	/**
+	 * Open a descriptor file through its offset index, checking that the index
+	 * matches the entries of the database.
+	 *
+	 * @param id
+	 *            the id of the store, used by the cache
+	 * @param desc
+	 *            the desc
+	 * @param f
+	 *            the signatures file
+	 * @param index
+	 *            the offset index of the file
+	 * @param entries
+	 *            the entries of the database, in the file order
+	 * @return the store
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static LazySignatureStore open(int id, String desc, File f, SignatureOffsetIndex index, List<? extends ImageEntry<?>> entries) throws IOException {
+		if (index.size() != entries.size()) {
+			throw new IOException("Wrong number of signatures for " + desc + " (" + index.size() + "/" + entries.size() + ")");
+		}
+		int pos = 0;
+		for (ImageEntry<?> e : entries) {
+			if (index.getId(pos) != e.getId()) {
+				throw new IOException("Wrong id of entry for " + desc + " (" + index.getId(pos) + "/" + e.getId() + ")");
+			}
+			pos++;
+		}
+
+		return new LazySignatureStore(id, desc, f, index);
+	}
+
+	/** The id. */
+	private final int id;
+
+	/** The desc. */
+	private final String desc;
+
+	/** The file. */
+	private final File file;
+
+	/** The offset index. */
+	private SignatureOffsetIndex index;
+
+	/** The opened file. */
+	private RandomAccessFile raf;
+
+	/** The channel. */
+	private FileChannel channel;
+
+	/** Load the sparse signatures as CompactSparseVectorSignature. */
+	private boolean loadSparseAsCompact;
+
+	/**
+	 * Instantiates a new lazy signature store.
+	 *
+	 * @param id
+	 *            the id
+	 * @param desc
+	 *            the desc
+	 * @param file
+	 *            the file
+	 * @param index
+	 *            the offset index
+	 */
+	public LazySignatureStore(int id, String desc, File file, SignatureOffsetIndex index) {
+		super();
+		this.id = id;
+		this.desc = desc;
+		this.file = file;
+		this.index = index;
+		this.raf = null;
+		this.channel = null;
+		this.loadSparseAsCompact = false;
+	}
+
+	/**
+	 * Close the file.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public synchronized void close() throws IOException {
+		if (raf != null) {
+			raf.close();
+			raf = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * Checks if an entry has a signature.
+	 *
+	 * @param entryId
+	 *            the id of the entry
+	 * @return true, if successful
+	 */
+	public synchronized boolean contains(long entryId) {
+		return index.contains(index.getPosition(entryId));
+	}
+
+	/**
+	 * Gets the descriptor.
+	 *
+	 * @return the desc
+	 */
+	public String getDesc() {
+		return desc;
+	}
+
+	/**
+	 * Gets the file.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the id.
+	 *
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the offset index.
+	 *
+	 * @return the index
+	 */
+	public synchronized SignatureOffsetIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Checks if is global.
+	 *
+	 * @return true, if is global
+	 */
+	public synchronized boolean isGlobal() {
+		return index.isGlobal();
+	}
+
+	/**
+	 * Read the signature of an entry. Its bytes are read at once with a
+	 * positional read and decoded outside of the lock, so that several threads
+	 * can read the same descriptor.
+	 *
+	 * @param entryId
+	 *            the id of the entry
+	 * @return the signature, null if the entry has none
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public Signature load(long entryId) throws IOException {
+		while (true) {
+			SignatureOffsetIndex idx;
+			FileChannel fc;
+			boolean compact;
+			synchronized (this) {
+				idx = index;
+				if ((raf == null) || !channel.isOpen()) {
+					close();
+					raf = PersistenceToolbox.getFile(file, false);
+					channel = raf.getChannel();
+				}
+				fc = channel;
+				compact = loadSparseAsCompact;
+			}
+
+			int pos = idx.getPosition(entryId);
+			if (!idx.contains(pos)) {
+				return null;
+			}
+			long start = idx.getOffset(pos);
+			long length = idx.getEnd(pos) - start;
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Signature too large for " + desc + " (" + length + " bytes)");
+			}
+
+			BufferedFileChannel block;
+			try {
+				block = BufferedFileChannel.readBlock(fc, start, (int) length);
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				// closed by a replacement of the file, read it again from the
+				// new one
+				continue;
+			}
+			if (idx.isGlobal()) {
+				return PersistenceToolbox.loadVectorSignature(block, compact);
+			}
+			return PersistenceToolbox.loadBagOfSignatures(block, compact);
+		}
+	}
+
+	/**
+	 * Replace the signatures file by a new one, typically a new dump written
+	 * next to it. The current file is closed first, the reads in progress on
+	 * it are then done again on the new file with its own index.
+	 *
+	 * @param newFile
+	 *            the new signatures file, renamed to the file of the store
+	 * @param newIndex
+	 *            the offset index of the new file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public synchronized void replace(File newFile, SignatureOffsetIndex newIndex) throws IOException {
+		close();
+		PersistenceToolbox.moveFile(newFile, file);
+		index = newIndex;
+	}
+
+	/**
+	 * When set, the sparse signatures are loaded as
+	 * CompactSparseVectorSignature.
+	 *
+	 * @param loadSparseAsCompact
+	 *            the new load sparse as compact
+	 */
+	public synchronized void setLoadSparseAsCompact(boolean loadSparseAsCompact) {
+		this.loadSparseAsCompact = loadSparseAsCompact;
+	}
+
+}
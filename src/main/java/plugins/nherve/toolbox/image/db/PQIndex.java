@@ -0,0 +1,477 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.image.feature.FeatureException;
+import plugins.nherve.toolbox.image.feature.SegmentableImage;
+import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.clustering.ProductQuantizer;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.L1Distance;
+import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * Compressed copy of a global descriptor of an {@link ImageDatabase}, each
+ * signature being stored as its {@link ProductQuantizer} code. A search scans
+ * all the codes with the asymmetric distance computed from a per-query table,
+ * then optionally re-ranks the best candidates with their exact signatures.
+ * 
+ * Combined with a lazily loaded database, only the codes are kept in memory
+ * and the exact signatures are read for the re-ranked candidates only.
+ * 
+ * The codes only approximate the L1 and L2 distances, a search with any other
+ * distance is refused. The index is not notified of the changes of the
+ * database : the entries added to it are only encoded by
+ * {@link #update(ImageDatabase)}, the removed ones are dropped by the update
+ * or by the first search that meets them.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class PQIndex extends Algorithm implements KnnIndex {
+
+	/** The Constant VERSION. */
+	public final static String VERSION = "PQIndex_v1.0.0";
+
+	/** The Constant DEFAULT_RERANK. */
+	public final static int DEFAULT_RERANK = 10;
+
+	/**
+	 * Load an index file.
+	 * 
+	 * @param f
+	 *            the file
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static PQIndex load(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			String version = PersistenceToolbox.loadString(fc);
+			if (!VERSION.equals(version)) {
+				throw new IOException("Incompatible index version (" + version + "/" + VERSION + ")");
+			}
+			String desc = PersistenceToolbox.loadString(fc);
+			int rerank = PersistenceToolbox.loadInt(fc);
+			long lastIndexedId = PersistenceToolbox.loadLong(fc);
+			ProductQuantizer pq = ProductQuantizer.load(fc);
+
+			PQIndex index = new PQIndex(desc, pq);
+			index.setRerank(rerank);
+			index.lastIndexedId = lastIndexedId;
+			index.ids = PersistenceToolbox.loadFullLongArray(fc);
+			index.codes = PersistenceToolbox.loadFullByteArray(fc);
+			index.size = index.ids.length;
+			if (index.codes.length != index.size * pq.getNbSubspaces()) {
+				throw new IOException("Corrupted index " + f.getName() + " (" + index.codes.length + "/" + index.size + ")");
+			}
+			index.positions = new int[index.size];
+			Arrays.fill(index.positions, -1);
+			return index;
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Train a codec on the signatures of a global descriptor and encode all
+	 * the entries.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param db
+	 *            the database
+	 * @param desc
+	 *            the descriptor
+	 * @param nbSubspaces
+	 *            the number of sub-spaces, i.e. the number of bytes of a code
+	 * @param nbCentroids
+	 *            the number of centroids of each sub-space, at most 256
+	 * @param maxTrainingPoints
+	 *            the maximum number of signatures, randomly chosen, used to
+	 *            train the codec
+	 * @return the index
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public static <T extends SegmentableImage> PQIndex train(ImageDatabase<T> db, String desc, int nbSubspaces, int nbCentroids, int maxTrainingPoints) throws FeatureException {
+		if (!db.containsGlobalDescriptor(desc)) {
+			throw new FeatureException("PQIndex only available for global descriptors (" + desc + ")");
+		}
+		List<DefaultVectorSignature> points = new ArrayList<DefaultVectorSignature>();
+		for (ImageEntry<T> e : db) {
+			DefaultVectorSignature s = db.getGlobalSignature(e, desc);
+			if (s != null) {
+				points.add(s);
+			}
+		}
+		if (points.size() > maxTrainingPoints) {
+			Collections.shuffle(points, new Random(points.size()));
+			points = new ArrayList<DefaultVectorSignature>(points.subList(0, maxTrainingPoints));
+		}
+
+		PQIndex index = new PQIndex(desc, ProductQuantizer.train(points, nbSubspaces, nbCentroids, 25));
+		index.update(db);
+		return index;
+	}
+
+	/** The descriptor. */
+	private final String desc;
+
+	/** The codec. */
+	private final ProductQuantizer pq;
+
+	/** The ids of the entries. */
+	private long[] ids;
+
+	/** The last known positions of the entries in the database. */
+	private int[] positions;
+
+	/** The codes, one after the other. */
+	private byte[] codes;
+
+	/** The number of encoded signatures. */
+	private int size;
+
+	/** The highest indexed entry id. */
+	private long lastIndexedId;
+
+	/** The re-ranking factor. */
+	private int rerank;
+
+	/** The lock. */
+	private final ReadWriteLock lock;
+
+	/**
+	 * Instantiates a new empty index.
+	 * 
+	 * @param desc
+	 *            the descriptor
+	 * @param pq
+	 *            the codec
+	 */
+	public PQIndex(String desc, ProductQuantizer pq) {
+		super();
+		this.desc = desc;
+		this.pq = pq;
+		this.ids = new long[0];
+		this.positions = new int[0];
+		this.codes = new byte[0];
+		this.size = 0;
+		this.lastIndexedId = -1;
+		this.rerank = DEFAULT_RERANK;
+		this.lock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Encode the signature of an entry.
+	 * 
+	 * @param e
+	 *            the entry
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public void add(ImageEntry<?> e) throws FeatureException {
+		lock.writeLock().lock();
+		try {
+			DefaultVectorSignature s = e.getGlobalSignatures().get(desc);
+			if (s != null) {
+				if (size == ids.length) {
+					int capacity = Math.max(1024, 2 * size);
+					ids = Arrays.copyOf(ids, capacity);
+					positions = Arrays.copyOf(positions, capacity);
+					codes = Arrays.copyOf(codes, capacity * pq.getNbSubspaces());
+				}
+				pq.encode(s, codes, size * pq.getNbSubspaces());
+				ids[size] = e.getId();
+				positions[size] = -1;
+				size++;
+			}
+			lastIndexedId = Math.max(lastIndexedId, e.getId());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Dump the index.
+	 * 
+	 * @param f
+	 *            the file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dump(File f) throws IOException {
+		lock.readLock().lock();
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, true);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			PersistenceToolbox.dumpString(fc, VERSION);
+			PersistenceToolbox.dumpString(fc, desc);
+			PersistenceToolbox.dumpInt(fc, rerank);
+			PersistenceToolbox.dumpLong(fc, lastIndexedId);
+			pq.dump(fc);
+			PersistenceToolbox.dumpFullLongArray(fc, Arrays.copyOf(ids, size));
+			PersistenceToolbox.dumpFullByteArray(fc, Arrays.copyOf(codes, size * pq.getNbSubspaces()));
+			fc.flush();
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the codec.
+	 * 
+	 * @return the codec
+	 */
+	public ProductQuantizer getCodec() {
+		return pq;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see plugins.nherve.toolbox.image.db.KnnIndex#getDescriptor()
+	 */
+	@Override
+	public String getDescriptor() {
+		return desc;
+	}
+
+	/**
+	 * Gets the highest indexed entry id.
+	 * 
+	 * @return the last indexed id
+	 */
+	public long getLastIndexedId() {
+		return lastIndexedId;
+	}
+
+	/**
+	 * Estimate the memory used by the codes and the ids.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getMemoryBytes() {
+		return (long) size * (pq.getNbSubspaces() + 12);
+	}
+
+	/**
+	 * Gets the re-ranking factor.
+	 * 
+	 * @return the rerank
+	 */
+	public int getRerank() {
+		return rerank;
+	}
+
+	/**
+	 * Drop the codes of the entries that are not in the database anymore and
+	 * update the positions of the other ones.
+	 * 
+	 * @param db
+	 *            the db
+	 * @return the number of dropped codes
+	 */
+	private int compact(ImageDatabase<?> db) {
+		lock.writeLock().lock();
+		try {
+			Map<Long, Integer> positionsById = db.getPositionsById();
+			int m = pq.getNbSubspaces();
+			int kept = 0;
+			for (int node = 0; node < size; node++) {
+				Integer item = positionsById.get(ids[node]);
+				if (item != null) {
+					if (kept != node) {
+						ids[kept] = ids[node];
+						System.arraycopy(codes, node * m, codes, kept * m, m);
+					}
+					positions[kept] = item;
+					kept++;
+				}
+			}
+			int dropped = size - kept;
+			size = kept;
+			return dropped;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks if the last known position of a node is still the one of its
+	 * entry.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param db
+	 *            the db
+	 * @return true, if is up to date
+	 */
+	private boolean isResolved(int node, ImageDatabase<?> db) {
+		int item = positions[node];
+		return (item >= 0) && (item < db.size()) && (db.get(item).getId() == ids[node]);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.db.KnnIndex#search(plugins.nherve.toolbox
+	 * .image.db.ImageDatabase,
+	 * plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature,
+	 * plugins.nherve.toolbox.image.feature.SignatureDistance,
+	 * plugins.nherve.toolbox.image.db.TopKCollector)
+	 */
+	@Override
+	public <T extends SegmentableImage> void search(ImageDatabase<T> db, DefaultVectorSignature query, SignatureDistance<VectorSignature> distance, TopKCollector top) throws FeatureException {
+		boolean l1 = distance instanceof L1Distance;
+		if (!l1 && !(distance instanceof L2Distance)) {
+			throw new FeatureException("PQIndex only supports the L1 and L2 distances (" + distance.getClass().getSimpleName() + ")");
+		}
+		double[] table = pq.computeTable(query, l1);
+		int m = pq.getNbSubspaces();
+
+		TopKCollector candidates = null;
+		int[] items = null;
+		// the entries removed from the database since the last update are
+		// dropped the first time a search meets them, so that they neither
+		// take the place of valid candidates nor need a scan of the database
+		for (int attempt = 0; items == null; attempt++) {
+			candidates = new TopKCollector(rerank > 0 ? top.getK() * rerank : top.getK());
+			lock.readLock().lock();
+			try {
+				for (int node = 0, o = 0; node < size; node++, o += m) {
+					candidates.offer(node, -1, pq.distance(table, codes, o));
+				}
+				candidates.sort();
+				items = new int[candidates.size()];
+				for (int i = 0; (items != null) && (i < items.length); i++) {
+					int node = candidates.getItem(i);
+					if (isResolved(node, db)) {
+						items[i] = positions[node];
+					} else if (attempt == 0) {
+						items = null;
+					} else {
+						// the database is being modified concurrently
+						items[i] = db.indexOfId(ids[node]);
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (items == null) {
+				compact(db);
+			}
+		}
+
+		for (int i = 0; i < items.length; i++) {
+			if (items[i] < 0) {
+				continue;
+			}
+			if (rerank > 0) {
+				DefaultVectorSignature s = db.getGlobalSignature(db.get(items[i]), desc);
+				if (s != null) {
+					top.offer(items[i], -1, distance.computeDistance(s, query, top.getThreshold()));
+				}
+			} else {
+				double d = candidates.getDistance(i);
+				top.offer(items[i], -1, l1 ? d : Math.sqrt(d));
+			}
+		}
+	}
+
+	/**
+	 * Sets the re-ranking factor : k * rerank candidates are found with the
+	 * codes, then ranked with their exact signatures. With 0, the answers are
+	 * ranked with the approximate distance and the exact signatures are never
+	 * read.
+	 * 
+	 * @param rerank
+	 *            the new rerank
+	 */
+	public void setRerank(int rerank) {
+		this.rerank = Math.max(0, rerank);
+	}
+
+	/**
+	 * Number of encoded signatures.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Drop the codes of the entries that have been removed from a database
+	 * and encode the ones that have been added since the last update.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param db
+	 *            the database
+	 * @return the number of encoded entries
+	 * @throws FeatureException
+	 *             the feature exception
+	 */
+	public <T extends SegmentableImage> int update(ImageDatabase<T> db) throws FeatureException {
+		lock.writeLock().lock();
+		try {
+			int dropped = compact(db);
+			long from = lastIndexedId;
+			int nb = 0;
+			for (ImageEntry<T> e : db) {
+				if (e.getId() > from) {
+					add(e);
+					nb++;
+				}
+			}
+			info("PQIndex " + desc + " : " + nb + " new entries, " + dropped + " removed, " + size + " codes of " + pq.getNbSubspaces() + " bytes");
+			return nb;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+}
@@ -2,21 +2,32 @@ package plugins.nherve.toolbox.image.db;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.concurrent.TaskManager;
 import plugins.nherve.toolbox.image.feature.FeatureException;
 import plugins.nherve.toolbox.image.feature.SegmentableImage;
 import plugins.nherve.toolbox.image.feature.SignatureDistance;
 import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.L1Distance;
+import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.L2DistanceMatrix;
+import plugins.nherve.toolbox.image.feature.signature.SignatureBlock;
 import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
 
 public class QueryManager<T extends SegmentableImage> extends Algorithm {
@@ -129,12 +140,179 @@ public class QueryManager<T extends SegmentableImage> extends Algorithm {
 		}
 	}
 
+	public class IndexEvaluation {
+		private int nbQueries;
+		private double recall;
+		private double exactTime;
+		private double indexTime;
+
+		public double getExactTime() {
+			return exactTime;
+		}
+
+		public double getIndexTime() {
+			return indexTime;
+		}
+
+		public int getNbQueries() {
+			return nbQueries;
+		}
+
+		public double getRecall() {
+			return recall;
+		}
+
+		@Override
+		public String toString() {
+			DecimalFormat df = new DecimalFormat("0.000");
+			return "recall " + df.format(recall) + ", index " + df.format(indexTime) + " ms/query, exhaustive " + df.format(exactTime) + " ms/query (" + nbQueries + " queries)";
+		}
+	}
+
+	private class SearchWorker implements Callable<TopKCollector[]> {
+		private final ImageDatabase<T> db;
+		private final String desc;
+		private final DefaultVectorSignature[] queries;
+		private final int k;
+		private final int from;
+		private final int to;
+
+		public SearchWorker(ImageDatabase<T> db, String desc, DefaultVectorSignature[] queries, int k, int from, int to) {
+			super();
+			this.db = db;
+			this.desc = desc;
+			this.queries = queries;
+			this.k = k;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public TopKCollector[] call() throws Exception {
+			return scan(db, desc, queries, k, from, to);
+		}
+	}
+
+	/**
+	 * Signatures of the database buffered to be compared to all the queries at
+	 * once with an {@link L2DistanceMatrix}. Only the signatures whose
+	 * approximated distance may enter a top k are compared exactly, so that the
+	 * answers are the ones of a plain scan.
+	 */
+	private static class L2Tile {
+		private final L2DistanceMatrix queries;
+		private final TopKCollector[] tops;
+		private final SignatureBlock rows;
+		private final int[] items;
+		private final int[] lids;
+		private final double[] distances;
+		private final double[] sqNorms;
+		private int size;
+
+		public L2Tile(L2DistanceMatrix queries, TopKCollector[] tops) {
+			super();
+			this.queries = queries;
+			this.tops = tops;
+			rows = new SignatureBlock(L2DistanceMatrix.ROW_TILE, queries.getColumns().getDim());
+			items = new int[rows.size()];
+			lids = new int[rows.size()];
+			distances = new double[rows.size() * queries.size()];
+			sqNorms = new double[rows.size()];
+			size = 0;
+		}
+
+		public void add(int item, int lid, VectorSignature s) throws FeatureException {
+			rows.set(size, s);
+			items[size] = item;
+			lids[size] = lid;
+			size++;
+			if (size == rows.size()) {
+				flush();
+			}
+		}
+
+		public void flush() throws FeatureException {
+			int nq = queries.size();
+			queries.squaredDistances(rows, 0, size, distances, sqNorms);
+			for (int r = 0; r < size; r++) {
+				for (int q = 0; q < nq; q++) {
+					double lower = distances[r * nq + q] - queries.getError(sqNorms[r], q);
+					if ((lower > 0) && (Math.sqrt(lower) > tops[q].getThreshold())) {
+						continue;
+					}
+					tops[q].offer(items[r], lids[r], Math.sqrt(queries.exactSquaredDistance(rows, r, q)));
+				}
+			}
+			size = 0;
+		}
+	}
+
+	private final static int CHUNKS_PER_THREAD = 4;
+
 	private SignatureDistance<VectorSignature> distance;
+	private boolean parallel;
+	private Map<String, KnnIndex> indexes;
+	private boolean useIndexes;
 
 	public QueryManager(boolean display) {
 		super(display);
 
 		distance = new L1Distance();
+		parallel = false;
+		indexes = new HashMap<String, KnnIndex>();
+		useIndexes = true;
+	}
+
+	public IndexEvaluation evaluateIndex(final KnnIndex index, final ImageDatabase<T> db, final List<DefaultVectorSignature> queries, final int k) throws FeatureException {
+		IndexEvaluation eval = new IndexEvaluation();
+		eval.nbQueries = queries.size();
+
+		long found = 0;
+		long expected = 0;
+		long exactTime = 0;
+		long indexTime = 0;
+		for (DefaultVectorSignature q : queries) {
+			DefaultVectorSignature[] qs = new DefaultVectorSignature[] { q };
+
+			long start = System.nanoTime();
+			TopKCollector exact = scan(db, index.getDescriptor(), qs, k, 0, db.size())[0];
+			exactTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			TopKCollector approx = indexSearch(index, db, qs, k)[0];
+			indexTime += System.nanoTime() - start;
+
+			Set<Long> answers = new HashSet<Long>();
+			for (int i = 0; i < exact.size(); i++) {
+				answers.add(((long) exact.getItem(i) << 32) | (exact.getLid(i) & 0xFFFFFFFFl));
+			}
+			for (int i = 0; i < approx.size(); i++) {
+				if (answers.contains(((long) approx.getItem(i) << 32) | (approx.getLid(i) & 0xFFFFFFFFl))) {
+					found++;
+				}
+			}
+			expected += exact.size();
+		}
+
+		eval.recall = expected == 0 ? 1 : (double) found / expected;
+		if (eval.nbQueries > 0) {
+			eval.exactTime = exactTime / 1e6 / eval.nbQueries;
+			eval.indexTime = indexTime / 1e6 / eval.nbQueries;
+		}
+		return eval;
+	}
+
+	public KnnIndex getIndex(String desc) {
+		return indexes.get(desc);
+	}
+
+	private TopKCollector[] indexSearch(final KnnIndex index, final ImageDatabase<T> db, final DefaultVectorSignature[] queries, final int k) throws FeatureException {
+		TopKCollector[] tops = new TopKCollector[queries.length];
+		for (int q = 0; q < queries.length; q++) {
+			tops[q] = new TopKCollector(k);
+			index.search(db, queries[q], distance, tops[q]);
+		}
+		return tops;
 	}
 
 	public Response knnQuery(final String queryId, final ImageDatabase<T> db, final String desc, final ImageEntry<T> query, final int k) throws FeatureException {
@@ -143,37 +321,67 @@ public class QueryManager<T extends SegmentableImage> extends Algorithm {
 	}
 
 	public Response knnQuery(final String queryId, final ImageDatabase<T> db, final String desc, final DefaultVectorSignature query, final int k) throws FeatureException {
-		Response result = new Response(queryId);
-		if (db.containsGlobalDescriptor(desc)) {
-			for (ImageEntry<T> e : db) {
-				DefaultVectorSignature s = db.getGlobalSignature(e, desc);
-				if (s != null) {
-					ResponseUnit ru = new ResponseUnit();
-					ru.entry = e;
-					ru.distanceToQuery = distance.computeDistance(s, query);
-					result.add(ru);
-				}
-			}
-		} else if (db.containsLocalDescriptor(desc)) {
-			for (ImageEntry<T> e : db) {
-				BagOfSignatures<DefaultVectorSignature> bag = db.getLocalSignature(e, desc);
-				if (bag != null) {
-					int lid = 0;
-					for (DefaultVectorSignature s : bag) {
-						ResponseUnit ru = new ResponseUnit();
-						ru.entry = e;
-						ru.lid = lid;
-						ru.distanceToQuery = distance.computeDistance(s, query);
-						result.add(ru);
-						lid++;
+		return knnQueries(Collections.singletonList(queryId), db, desc, Collections.singletonList(query), k).get(0);
+	}
+
+	public List<Response> knnQueries(final List<String> queryIds, final ImageDatabase<T> db, final String desc, final List<DefaultVectorSignature> queries, final int k) throws FeatureException {
+		if (queryIds.size() != queries.size()) {
+			throw new FeatureException("Query ids and queries mismatch (" + queryIds.size() + " / " + queries.size() + ")");
+		}
+
+		DefaultVectorSignature[] qs = queries.toArray(new DefaultVectorSignature[queries.size()]);
+		TopKCollector[] tops;
+		KnnIndex index = useIndexes ? indexes.get(desc) : null;
+		if (index != null) {
+			tops = indexSearch(index, db, qs, k);
+		} else if (parallel && (db.size() > 1) && !TaskManager.getSecondLevelInstance().isPoolThread()) {
+			// from a task of the second level pool, waiting for other tasks
+			// of the same pool could deadlock, the scan stays in this thread
+			tops = parallelScan(db, desc, qs, k);
+		} else {
+			tops = scan(db, desc, qs, k, 0, db.size());
+		}
+
+		List<Response> results = new ArrayList<Response>(qs.length);
+		for (int q = 0; q < qs.length; q++) {
+			results.add(toResponse(queryIds.get(q), db, tops[q]));
+		}
+		return results;
+	}
+
+	private TopKCollector[] parallelScan(final ImageDatabase<T> db, final String desc, final DefaultVectorSignature[] queries, final int k) throws FeatureException {
+		TaskManager tm = TaskManager.getSecondLevelInstance();
+		int nbChunks = Math.min(db.size(), tm.getCorePoolSize() * CHUNKS_PER_THREAD);
+		List<Future<TopKCollector[]>> results = new ArrayList<Future<TopKCollector[]>>();
+		for (int c = 0; c < nbChunks; c++) {
+			int from = (int) ((long) db.size() * c / nbChunks);
+			int to = (int) ((long) db.size() * (c + 1) / nbChunks);
+			results.add(tm.submit(new SearchWorker(db, desc, queries, k, from, to)));
+		}
+
+		TopKCollector[] tops = null;
+		try {
+			for (Future<TopKCollector[]> f : results) {
+				TopKCollector[] part = f.get();
+				if (tops == null) {
+					tops = part;
+				} else {
+					for (int q = 0; q < queries.length; q++) {
+						tops[q].merge(part[q]);
 					}
 				}
 			}
+		} catch (ExecutionException e) {
+			throw new FeatureException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FeatureException(e);
+		} finally {
+			for (Future<TopKCollector[]> f : results) {
+				f.cancel(true);
+			}
 		}
-
-		result.sortAndTruncate(k);
-
-		return result;
+		return tops;
 	}
 
 	public Response randomQuery(final String queryId, final ImageDatabase<T> db, int n) throws FeatureException {
@@ -201,8 +409,106 @@ public class QueryManager<T extends SegmentableImage> extends Algorithm {
 		return result;
 	}
 
+	private TopKCollector[] scan(final ImageDatabase<T> db, final String desc, final DefaultVectorSignature[] queries, final int k, final int from, final int to) throws FeatureException {
+		TopKCollector[] tops = new TopKCollector[queries.length];
+		for (int q = 0; q < queries.length; q++) {
+			tops[q] = new TopKCollector(k);
+		}
+
+		L2Tile tile = null;
+		if ((queries.length > 1) && (distance.getClass() == L2Distance.class)) {
+			tile = new L2Tile(new L2DistanceMatrix(Arrays.asList(queries)), tops);
+		}
+
+		if ((tile != null) && db.containsGlobalDescriptor(desc)) {
+			for (int i = from; i < to; i++) {
+				DefaultVectorSignature s = db.getGlobalSignature(db.get(i), desc);
+				if (s != null) {
+					tile.add(i, -1, s);
+				}
+			}
+			tile.flush();
+		} else if ((tile != null) && db.containsLocalDescriptor(desc)) {
+			for (int i = from; i < to; i++) {
+				BagOfSignatures<DefaultVectorSignature> bag = db.getLocalSignature(db.get(i), desc);
+				if (bag != null) {
+					int lid = 0;
+					for (DefaultVectorSignature s : bag) {
+						tile.add(i, lid, s);
+						lid++;
+					}
+				}
+			}
+			tile.flush();
+		} else if (db.containsGlobalDescriptor(desc)) {
+			for (int i = from; i < to; i++) {
+				DefaultVectorSignature s = db.getGlobalSignature(db.get(i), desc);
+				if (s != null) {
+					for (int q = 0; q < queries.length; q++) {
+						tops[q].offer(i, -1, distance.computeDistance(s, queries[q], tops[q].getThreshold()));
+					}
+				}
+			}
+		} else if (db.containsLocalDescriptor(desc)) {
+			for (int i = from; i < to; i++) {
+				BagOfSignatures<DefaultVectorSignature> bag = db.getLocalSignature(db.get(i), desc);
+				if (bag != null) {
+					int lid = 0;
+					for (DefaultVectorSignature s : bag) {
+						for (int q = 0; q < queries.length; q++) {
+							tops[q].offer(i, lid, distance.computeDistance(s, queries[q], tops[q].getThreshold()));
+						}
+						lid++;
+					}
+				}
+			}
+		}
+
+		return tops;
+	}
+
+	public boolean isUseIndexes() {
+		return useIndexes;
+	}
+
+	public void setUseIndexes(boolean useIndexes) {
+		this.useIndexes = useIndexes;
+	}
+
+	public void setIndex(KnnIndex index) {
+		indexes.put(index.getDescriptor(), index);
+	}
+
+	public KnnIndex removeIndex(String desc) {
+		return indexes.remove(desc);
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
 	public void setDistance(SignatureDistance<VectorSignature> distance) {
 		this.distance = distance;
 	}
 
+	private Response toResponse(final String queryId, final ImageDatabase<T> db, final TopKCollector top) {
+		top.sort();
+		Response result = new Response(queryId);
+		for (int i = 0; i < top.size(); i++) {
+			ResponseUnit ru = new ResponseUnit();
+			ru.entry = db.get(top.getItem(i));
+			ru.lid = top.getLid(i);
+			ru.distanceToQuery = top.getDistance(i);
+			result.add(ru);
+		}
+		if (top.size() > 0) {
+			result.setCurrentMin(top.getDistance(top.size() - 1));
+		}
+		return result;
+	}
+
 }
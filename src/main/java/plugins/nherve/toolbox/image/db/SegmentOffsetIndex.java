@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+
+/**
+ * Offset of the last signature of each entry in a segment file, see
+ * {@link ImageDatabasePersistence#appendSegment(String, java.util.List, boolean)}.
+ * It is only kept in memory, with the length and the modification time of the
+ * segment it has been computed on, to detect a stale index.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class SegmentOffsetIndex {
+
+	/** The Constant NO_SIGNATURE. */
+	public final static long NO_SIGNATURE = -1;
+
+	/**
+	 * Build the index of a segment file with a single sequential scan. The
+	 * signatures are skipped, not built. A truncated last record is ignored.
+	 *
+	 * @param f
+	 *            the segment file
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static SegmentOffsetIndex build(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			long lastModified = f.lastModified();
+			raf = PersistenceToolbox.getFile(f, false);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			long size = fc.size();
+			String version = PersistenceToolbox.loadString(fc);
+			if (!ImageDatabasePersistence.SEGMENT_VERSION.equals(version)) {
+				throw new IOException("Incompatible segment version (" + version + "/" + ImageDatabasePersistence.SEGMENT_VERSION + ")");
+			}
+			Map<Long, Long> offsets = new HashMap<Long, Long>();
+			try {
+				while (fc.position() < size) {
+					long id = PersistenceToolbox.loadLong(fc);
+					long start = fc.position();
+					PersistenceToolbox.skipSignature(fc);
+					if (fc.position() > size) {
+						break;
+					}
+					offsets.put(id, start);
+				}
+			} catch (EOFException e) {
+				// truncated last record, ignored as in replaySegment
+			}
+			return new SegmentOffsetIndex(size, lastModified, offsets);
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/** The length of the indexed segment file. */
+	private final long dataLength;
+
+	/** The modification time of the indexed segment file. */
+	private final long lastModified;
+
+	/** The offset of the last signature of each entry. */
+	private final Map<Long, Long> offsets;
+
+	/**
+	 * Instantiates a new segment offset index.
+	 *
+	 * @param dataLength
+	 *            the length of the indexed segment file
+	 * @param lastModified
+	 *            the modification time of the indexed segment file
+	 * @param offsets
+	 *            the offsets, by entry id
+	 */
+	public SegmentOffsetIndex(long dataLength, long lastModified, Map<Long, Long> offsets) {
+		super();
+		this.dataLength = dataLength;
+		this.lastModified = lastModified;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Gets the offset of the last signature of an entry.
+	 *
+	 * @param id
+	 *            the id of the entry
+	 * @return the offset, NO_SIGNATURE if the entry is not in the segment
+	 */
+	public long getOffset(long id) {
+		Long o = offsets.get(id);
+		return o == null ? NO_SIGNATURE : o;
+	}
+
+	/**
+	 * Checks if the index has been computed on the current version of a
+	 * segment file.
+	 *
+	 * @param f
+	 *            the segment file
+	 * @return true, if is up to date
+	 */
+	public boolean isUpToDate(File f) {
+		return (f.length() == dataLength) && (f.lastModified() == lastModified);
+	}
+
+	/**
+	 * Number of indexed entries.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return offsets.size();
+	}
+
+}
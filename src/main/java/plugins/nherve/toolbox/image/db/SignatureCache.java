@@ -0,0 +1,329 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import plugins.nherve.toolbox.image.feature.Signature;
+import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
+import plugins.nherve.toolbox.image.feature.signature.ByteDenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.CompactSparseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.FloatDenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.MappedVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.SparseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * Least recently used cache of the signatures read from the
+ * {@link LazySignatureStore}, bounded by an estimation of their size in
+ * memory.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class SignatureCache {
+
+	/**
+	 * The Class CachedSignature.
+	 *
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private static class CachedSignature {
+
+		/** The signature. */
+		private final Signature signature;
+
+		/** The bytes. */
+		private final long bytes;
+
+		/**
+		 * Instantiates a new cached signature.
+		 *
+		 * @param signature
+		 *            the signature
+		 * @param bytes
+		 *            the bytes
+		 */
+		public CachedSignature(Signature signature, long bytes) {
+			super();
+			this.signature = signature;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * The Class Key.
+	 *
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private static class Key {
+
+		/** The store id. */
+		private final int store;
+
+		/** The entry id. */
+		private final long entry;
+
+		/**
+		 * Instantiates a new key.
+		 *
+		 * @param store
+		 *            the store id
+		 * @param entry
+		 *            the entry id
+		 */
+		public Key(int store, long entry) {
+			super();
+			this.store = store;
+			this.entry = entry;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return (store == other.store) && (entry == other.entry);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * store + (int) (entry ^ (entry >>> 32));
+		}
+	}
+
+	/** The Constant DEFAULT_MAX_BYTES. */
+	public final static long DEFAULT_MAX_BYTES = 256l * 1024 * 1024;
+
+	/** The Constant OBJECT_OVERHEAD. */
+	private final static long OBJECT_OVERHEAD = 32;
+
+	/**
+	 * Estimate the memory used by a signature.
+	 *
+	 * @param s
+	 *            the signature
+	 * @return the number of bytes
+	 */
+	public static long estimateBytes(Signature s) {
+		if (s == null) {
+			return 0;
+		}
+		try {
+			if (s instanceof MappedVectorSignature) {
+				return OBJECT_OVERHEAD;
+			}
+			if (s instanceof CompactSparseVectorSignature) {
+				return 2 * OBJECT_OVERHEAD + 12l * ((CompactSparseVectorSignature) s).getIndexes().length;
+			}
+			if (s instanceof SparseVectorSignature) {
+				return OBJECT_OVERHEAD + 72l * ((SparseVectorSignature) s).getNonZeroBins();
+			}
+			if (s instanceof FloatDenseVectorSignature) {
+				return OBJECT_OVERHEAD + 4l * ((FloatDenseVectorSignature) s).getSize();
+			}
+			if (s instanceof ByteDenseVectorSignature) {
+				return OBJECT_OVERHEAD + 16 + ((ByteDenseVectorSignature) s).getSize();
+			}
+			if (s instanceof BagOfSignatures<?>) {
+				long bytes = OBJECT_OVERHEAD;
+				for (Object o : (BagOfSignatures<?>) s) {
+					bytes += 8 + estimateBytes((Signature) o);
+				}
+				return bytes;
+			}
+			if (s instanceof VectorSignature) {
+				return OBJECT_OVERHEAD + 8l * ((VectorSignature) s).getSize();
+			}
+		} catch (SignatureException e) {
+			// fall back on the default estimation
+		}
+		return OBJECT_OVERHEAD;
+	}
+
+	/** The cached signatures, in access order. */
+	private final LinkedHashMap<Key, CachedSignature> cache;
+
+	/** The max bytes. */
+	private long maxBytes;
+
+	/** The current bytes. */
+	private long bytes;
+
+	/** The hits. */
+	private long hits;
+
+	/** The misses. */
+	private long misses;
+
+	/**
+	 * Instantiates a new signature cache.
+	 *
+	 * @param maxBytes
+	 *            the max bytes
+	 */
+	public SignatureCache(long maxBytes) {
+		super();
+		this.cache = new LinkedHashMap<Key, CachedSignature>(1024, 0.75f, true);
+		this.maxBytes = maxBytes;
+		this.bytes = 0;
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Clear the cache.
+	 */
+	public synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Evict the least recently used signatures until the cache fits in its
+	 * bounds.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key, CachedSignature>> it = cache.entrySet().iterator();
+		while ((bytes > maxBytes) && it.hasNext()) {
+			bytes -= it.next().getValue().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Gets a signature, reading it from its store if it is not in the cache.
+	 *
+	 * @param store
+	 *            the store
+	 * @param entryId
+	 *            the id of the entry
+	 * @return the signature
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public Signature get(LazySignatureStore store, long entryId) throws IOException {
+		Key key = new Key(store.getId(), entryId);
+		synchronized (this) {
+			CachedSignature cs = cache.get(key);
+			if (cs != null) {
+				hits++;
+				return cs.signature;
+			}
+			misses++;
+		}
+
+		Signature s = store.load(entryId);
+		if (s == null) {
+			return null;
+		}
+
+		CachedSignature cs = new CachedSignature(s, estimateBytes(s));
+		synchronized (this) {
+			CachedSignature old = cache.put(key, cs);
+			if (old != null) {
+				bytes -= old.bytes;
+			}
+			bytes += cs.bytes;
+			evict();
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the current size.
+	 *
+	 * @return the bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Gets the hits.
+	 *
+	 * @return the hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the max bytes.
+	 *
+	 * @return the max bytes
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Gets the misses.
+	 *
+	 * @return the misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of cached signatures.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Sets the max bytes.
+	 *
+	 * @param maxBytes
+	 *            the new max bytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "SignatureCache (" + cache.size() + " signatures, " + bytes + " / " + maxBytes + " bytes, " + hits + " hits, " + misses + " misses)";
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+
+/**
+ * Sequential read of all the vector signatures of a descriptor file : the
+ * global signatures, or each local signature of the bags. Only the bag being
+ * read is kept in memory, so that a whole collection can be streamed, for
+ * instance to a {@link plugins.nherve.toolbox.image.feature.clustering.MiniBatchKMeans}.
+ * 
+ * The file is closed when the last signature has been read, or by
+ * {@link #close()}.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class SignatureFileIterator implements Iterator<DefaultVectorSignature>, Closeable {
+
+	/** The opened file. */
+	private RandomAccessFile raf;
+
+	/** The channel. */
+	private BufferedFileChannel fc;
+
+	/** The number of entries not read yet. */
+	private int remainingEntries;
+
+	/** The bag being read. */
+	private Iterator<DefaultVectorSignature> bag;
+
+	/** The next signature. */
+	private DefaultVectorSignature next;
+
+	/** The number of signatures read. */
+	private long nbRead;
+
+	/** Load the sparse signatures as CompactSparseVectorSignature. */
+	private final boolean loadSparseAsCompact;
+
+	/**
+	 * Instantiates a new signature file iterator.
+	 * 
+	 * @param f
+	 *            the signatures file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public SignatureFileIterator(File f) throws IOException {
+		this(f, false);
+	}
+
+	/**
+	 * Instantiates a new signature file iterator.
+	 * 
+	 * @param f
+	 *            the signatures file
+	 * @param loadSparseAsCompact
+	 *            load the sparse signatures as CompactSparseVectorSignature
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public SignatureFileIterator(File f, boolean loadSparseAsCompact) throws IOException {
+		super();
+		this.loadSparseAsCompact = loadSparseAsCompact;
+		raf = PersistenceToolbox.getFile(f, false);
+		try {
+			fc = new BufferedFileChannel(raf.getChannel());
+			remainingEntries = PersistenceToolbox.loadInt(fc);
+			bag = null;
+			nbRead = 0;
+			advance();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the next signature.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void advance() throws IOException {
+		next = null;
+		while (next == null) {
+			if ((bag != null) && bag.hasNext()) {
+				next = bag.next();
+				continue;
+			}
+			bag = null;
+			if ((remainingEntries <= 0) || (raf == null)) {
+				close();
+				return;
+			}
+			remainingEntries--;
+			PersistenceToolbox.loadLong(fc);
+			long start = fc.position();
+			int type = PersistenceToolbox.loadInt(fc);
+			fc.position(start);
+			if (type == PersistenceToolbox.BAG_TYPE) {
+				BagOfSignatures<DefaultVectorSignature> bs = PersistenceToolbox.loadBagOfSignatures(fc, loadSparseAsCompact);
+				if (bs != null) {
+					bag = bs.iterator();
+				}
+			} else {
+				next = PersistenceToolbox.loadVectorSignature(fc, loadSparseAsCompact);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (raf != null) {
+			raf.close();
+			raf = null;
+			fc = null;
+		}
+	}
+
+	/**
+	 * Gets the number of signatures read so far.
+	 * 
+	 * @return the nb read
+	 */
+	public long getNbRead() {
+		return nbRead;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Iterator#hasNext()
+	 */
+	@Override
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Iterator#next()
+	 */
+	@Override
+	public DefaultVectorSignature next() {
+		if (next == null) {
+			throw new NoSuchElementException();
+		}
+		DefaultVectorSignature s = next;
+		nbRead++;
+		try {
+			advance();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read the signatures : " + e.getMessage(), e);
+		}
+		return s;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Iterator#remove()
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
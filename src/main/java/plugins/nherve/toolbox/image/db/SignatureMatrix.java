@@ -0,0 +1,388 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.image.feature.signature.MappedVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * Columnar storage of the signatures of one global descriptor : a contiguous
+ * matrix with one fixed stride row per signature, stored as float or double,
+ * and accessed through {@link FileChannel#map(MapMode, long, long)}. The rows
+ * are exposed as read only {@link MappedVectorSignature} without any
+ * deserialization.
+ *
+ * The file starts with a header (version, element size, byte order, number of
+ * rows, dimension), followed by the ids of the rows and then by the rows
+ * themselves, aligned on 8 bytes.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class SignatureMatrix {
+
+	/** The Constant VERSION. */
+	public final static String VERSION = "SignatureMatrix_v1.0.0";
+
+	/** The Constant WRITE_BLOCK_SIZE. */
+	private final static int WRITE_BLOCK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Dump the signatures in a matrix file. The null signatures are skipped.
+	 *
+	 * @param f
+	 *            the file
+	 * @param ids
+	 *            the ids of the signatures
+	 * @param sigs
+	 *            the signatures
+	 * @param asFloat
+	 *            store the values as float instead of double
+	 * @return the number of rows written
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static int dump(File f, List<Long> ids, List<? extends VectorSignature> sigs, boolean asFloat) throws IOException {
+		if (ids.size() != sigs.size()) {
+			throw new IOException("Ids and signatures sizes mismatch (" + ids.size() + " / " + sigs.size() + ")");
+		}
+
+		int dim = -1;
+		int nbRows = 0;
+		for (VectorSignature s : sigs) {
+			if (s != null) {
+				if (dim < 0) {
+					dim = s.getSize();
+				} else if (dim != s.getSize()) {
+					throw new IOException("Unable to build a matrix with signatures of different sizes (" + dim + " / " + s.getSize() + ")");
+				}
+				nbRows++;
+			}
+		}
+		if (dim < 0) {
+			dim = 0;
+		}
+
+		long[] rowIds = new long[nbRows];
+		int r = 0;
+		for (int i = 0; i < sigs.size(); i++) {
+			if (sigs.get(i) != null) {
+				rowIds[r++] = ids.get(i);
+			}
+		}
+
+		int elementBytes = asFloat ? PersistenceToolbox.FLOAT_NB_BYTES : PersistenceToolbox.DOUBLE_NB_BYTES;
+		ByteOrder order = ByteOrder.nativeOrder();
+
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, true);
+			FileChannel fc = raf.getChannel();
+			PersistenceToolbox.dumpString(fc, VERSION);
+			PersistenceToolbox.dumpInt(fc, elementBytes);
+			PersistenceToolbox.dumpBoolean(fc, order == ByteOrder.LITTLE_ENDIAN);
+			PersistenceToolbox.dumpInt(fc, nbRows);
+			PersistenceToolbox.dumpInt(fc, dim);
+			PersistenceToolbox.dumpLongArray(fc, rowIds);
+			int pad = (int) ((8 - (fc.position() % 8)) % 8);
+			if (pad > 0) {
+				fc.write(ByteBuffer.allocate(pad));
+			}
+
+			if (dim > 0) {
+				int rowBytes = dim * elementBytes;
+				int blockRows = Math.max(1, WRITE_BLOCK_SIZE / rowBytes);
+				ByteBuffer bb = ByteBuffer.allocateDirect(blockRows * rowBytes).order(order);
+				for (VectorSignature s : sigs) {
+					if (s != null) {
+						if (bb.remaining() < rowBytes) {
+							bb.flip();
+							while (bb.hasRemaining()) {
+								fc.write(bb);
+							}
+							bb.clear();
+						}
+						for (int d = 0; d < dim; d++) {
+							if (asFloat) {
+								bb.putFloat((float) s.get(d));
+							} else {
+								bb.putDouble(s.get(d));
+							}
+						}
+					}
+				}
+				bb.flip();
+				while (bb.hasRemaining()) {
+					fc.write(bb);
+				}
+			}
+		} catch (SignatureException e) {
+			throw new IOException(e);
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+
+		return nbRows;
+	}
+
+	/**
+	 * Map a matrix file.
+	 *
+	 * @param f
+	 *            the file
+	 * @return the signature matrix
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static SignatureMatrix map(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			FileChannel fc = raf.getChannel();
+			SignatureMatrix m = new SignatureMatrix();
+			m.elementBytes = loadElementBytes(fc);
+			ByteOrder order = PersistenceToolbox.loadBoolean(fc) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			m.nbRows = PersistenceToolbox.loadInt(fc);
+			m.dim = PersistenceToolbox.loadInt(fc);
+
+			long idsStart = fc.position();
+			long idsBytes = (long) m.nbRows * PersistenceToolbox.LONG_NB_BYTES;
+			m.ids = fc.map(MapMode.READ_ONLY, idsStart, idsBytes).asLongBuffer();
+			long dataStart = idsStart + idsBytes;
+			dataStart += (8 - (dataStart % 8)) % 8;
+
+			long rowBytes = (long) m.dim * m.elementBytes;
+			m.rowsPerChunk = rowBytes == 0 ? Math.max(m.nbRows, 1) : (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+			int nbChunks = (m.nbRows + m.rowsPerChunk - 1) / m.rowsPerChunk;
+			m.doubleChunks = new DoubleBuffer[nbChunks];
+			m.floatChunks = new FloatBuffer[nbChunks];
+			for (int c = 0; c < nbChunks; c++) {
+				int rows = Math.min(m.rowsPerChunk, m.nbRows - c * m.rowsPerChunk);
+				MappedByteBuffer mbb = fc.map(MapMode.READ_ONLY, dataStart + c * m.rowsPerChunk * rowBytes, rows * rowBytes);
+				mbb.order(order);
+				if (m.isFloat()) {
+					m.floatChunks[c] = mbb.asFloatBuffer();
+				} else {
+					m.doubleChunks[c] = mbb.asDoubleBuffer();
+				}
+			}
+
+			m.buildIdIndex();
+			return m;
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Checks if the values of a matrix file are stored as float, reading only
+	 * its header.
+	 *
+	 * @param f
+	 *            the file
+	 * @return true, if is float
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static boolean isFloat(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			return loadElementBytes(raf.getChannel()) == PersistenceToolbox.FLOAT_NB_BYTES;
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Load the version and the element size at the start of the header.
+	 *
+	 * @param fc
+	 *            the fc
+	 * @return the element size in bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static int loadElementBytes(FileChannel fc) throws IOException {
+		String version = PersistenceToolbox.loadString(fc);
+		if (!VERSION.equals(version)) {
+			throw new IOException("Incompatible matrix version (" + version + "/" + VERSION + ")");
+		}
+		int elementBytes = PersistenceToolbox.loadInt(fc);
+		if ((elementBytes != PersistenceToolbox.FLOAT_NB_BYTES) && (elementBytes != PersistenceToolbox.DOUBLE_NB_BYTES)) {
+			throw new IOException("Unknown matrix element size (" + elementBytes + ")");
+		}
+		return elementBytes;
+	}
+
+	/** The element size in bytes. */
+	private int elementBytes;
+
+	/** The number of rows. */
+	private int nbRows;
+
+	/** The dimension. */
+	private int dim;
+
+	/** The ids of the rows. */
+	private LongBuffer ids;
+
+	/** The row of each id, only built when the ids are not sorted. */
+	private Map<Long, Integer> rowById;
+
+	/** The number of rows in each mapped chunk. */
+	private int rowsPerChunk;
+
+	/** The double chunks. */
+	private DoubleBuffer[] doubleChunks;
+
+	/** The float chunks. */
+	private FloatBuffer[] floatChunks;
+
+	/**
+	 * Instantiates a new signature matrix.
+	 */
+	private SignatureMatrix() {
+		super();
+	}
+
+	/**
+	 * Builds the id index when the ids are not sorted.
+	 */
+	private void buildIdIndex() {
+		rowById = null;
+		for (int r = 1; r < nbRows; r++) {
+			if (ids.get(r) <= ids.get(r - 1)) {
+				rowById = new HashMap<Long, Integer>();
+				for (int r2 = 0; r2 < nbRows; r2++) {
+					rowById.put(ids.get(r2), r2);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the dimension.
+	 *
+	 * @return the dim
+	 */
+	public int getDim() {
+		return dim;
+	}
+
+	/**
+	 * Gets the id of a row.
+	 *
+	 * @param row
+	 *            the row
+	 * @return the id
+	 */
+	public long getId(int row) {
+		return ids.get(row);
+	}
+
+	/**
+	 * Gets the number of rows.
+	 *
+	 * @return the nb rows
+	 */
+	public int getNbRows() {
+		return nbRows;
+	}
+
+	/**
+	 * Gets the row of an id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the row, -1 if the id is not in the matrix
+	 */
+	public int getRow(long id) {
+		if (rowById != null) {
+			Integer r = rowById.get(id);
+			return r == null ? -1 : r;
+		}
+		int lo = 0;
+		int hi = nbRows - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long v = ids.get(mid);
+			if (v < id) {
+				lo = mid + 1;
+			} else if (v > id) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets a read only view on a row.
+	 *
+	 * @param row
+	 *            the row
+	 * @return the signature
+	 */
+	public MappedVectorSignature getSignature(int row) {
+		if ((row < 0) || (row >= nbRows)) {
+			throw new IndexOutOfBoundsException("Invalid matrix row (" + row + ")");
+		}
+		int c = row / rowsPerChunk;
+		int offset = (row % rowsPerChunk) * dim;
+		if (isFloat()) {
+			return new MappedVectorSignature(floatChunks[c], offset, dim);
+		}
+		return new MappedVectorSignature(doubleChunks[c], offset, dim);
+	}
+
+	/**
+	 * Checks if the values are stored as float.
+	 *
+	 * @return true, if is float
+	 */
+	public boolean isFloat() {
+		return elementBytes == PersistenceToolbox.FLOAT_NB_BYTES;
+	}
+
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+
+/**
+ * Offset of the signature of each entry in a signatures file, so that a
+ * single signature can be read without scanning the whole file. The index is
+ * stored next to the signatures file with the length and the modification
+ * time of the file it has been computed on. They are checked, as well as the
+ * number of entries written at the head of the file, to detect a stale index.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class SignatureOffsetIndex {
+
+	/** The Constant VERSION. */
+	public final static String VERSION = "SignatureOffsetIndex_v1.1.0";
+
+	/** The Constant NO_SIGNATURE. */
+	public final static long NO_SIGNATURE = -1;
+
+	/**
+	 * Build the index of a signatures file with a single sequential scan. The
+	 * signatures are skipped, not built.
+	 *
+	 * @param f
+	 *            the signatures file
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static SignatureOffsetIndex build(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			long lastModified = f.lastModified();
+			raf = PersistenceToolbox.getFile(f, false);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			int dbs = PersistenceToolbox.loadInt(fc);
+			long[] ids = new long[dbs];
+			long[] offsets = new long[dbs];
+			boolean global = true;
+			for (int pos = 0; pos < dbs; pos++) {
+				ids[pos] = PersistenceToolbox.loadLong(fc);
+				long start = fc.position();
+				int type = PersistenceToolbox.loadInt(fc);
+				if (type == PersistenceToolbox.NULL_TYPE) {
+					offsets[pos] = NO_SIGNATURE;
+				} else {
+					if (type == PersistenceToolbox.BAG_TYPE) {
+						global = false;
+					}
+					offsets[pos] = start;
+					fc.position(start);
+					PersistenceToolbox.skipSignature(fc);
+				}
+			}
+			return new SignatureOffsetIndex(global, fc.position(), lastModified, ids, offsets);
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Load an index file.
+	 *
+	 * @param f
+	 *            the index file
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static SignatureOffsetIndex load(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			String version = PersistenceToolbox.loadString(fc);
+			if (!VERSION.equals(version)) {
+				throw new IOException("Incompatible index version (" + version + "/" + VERSION + ")");
+			}
+			boolean global = PersistenceToolbox.loadBoolean(fc);
+			long dataLength = PersistenceToolbox.loadLong(fc);
+			long lastModified = PersistenceToolbox.loadLong(fc);
+			long[] ids = PersistenceToolbox.loadFullLongArray(fc);
+			long[] offsets = PersistenceToolbox.loadFullLongArray(fc);
+			if (ids.length != offsets.length) {
+				throw new IOException("Corrupted index " + f.getName() + " (" + ids.length + "/" + offsets.length + ")");
+			}
+			return new SignatureOffsetIndex(global, dataLength, lastModified, ids, offsets);
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/** The global. */
+	private final boolean global;
+
+	/** The length of the indexed signatures file. */
+	private final long dataLength;
+
+	/** The modification time of the indexed signatures file. */
+	private final long lastModified;
+
+	/** The ids of the entries. */
+	private final long[] ids;
+
+	/** The offsets of the signatures. */
+	private final long[] offsets;
+
+	/** The position of each id, only built when the ids are not sorted. */
+	private Map<Long, Integer> positionById;
+
+	/**
+	 * Instantiates a new signature offset index.
+	 *
+	 * @param global
+	 *            the global
+	 * @param dataLength
+	 *            the length of the indexed signatures file
+	 * @param lastModified
+	 *            the modification time of the indexed signatures file
+	 * @param ids
+	 *            the ids
+	 * @param offsets
+	 *            the offsets
+	 */
+	public SignatureOffsetIndex(boolean global, long dataLength, long lastModified, long[] ids, long[] offsets) {
+		super();
+		this.global = global;
+		this.dataLength = dataLength;
+		this.lastModified = lastModified;
+		this.ids = ids;
+		this.offsets = offsets;
+		this.positionById = null;
+
+		for (int p = 1; p < ids.length; p++) {
+			if (ids[p] <= ids[p - 1]) {
+				positionById = new HashMap<Long, Integer>();
+				for (int p2 = 0; p2 < ids.length; p2++) {
+					positionById.put(ids[p2], p2);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Checks if an entry has a signature.
+	 *
+	 * @param pos
+	 *            the position of the entry
+	 * @return true, if successful
+	 */
+	public boolean contains(int pos) {
+		return (pos >= 0) && (pos < offsets.length) && (offsets[pos] != NO_SIGNATURE);
+	}
+
+	/**
+	 * Dump the index.
+	 *
+	 * @param f
+	 *            the index file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dump(File f) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, true);
+			BufferedFileChannel fc = new BufferedFileChannel(raf.getChannel());
+			PersistenceToolbox.dumpString(fc, VERSION);
+			PersistenceToolbox.dumpBoolean(fc, global);
+			PersistenceToolbox.dumpLong(fc, dataLength);
+			PersistenceToolbox.dumpLong(fc, lastModified);
+			PersistenceToolbox.dumpFullLongArray(fc, ids);
+			PersistenceToolbox.dumpFullLongArray(fc, offsets);
+			fc.flush();
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the length of the indexed signatures file.
+	 *
+	 * @return the data length
+	 */
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * Gets the modification time of the indexed signatures file.
+	 *
+	 * @return the last modified
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Gets the end of the signature of an entry, that is the offset of the
+	 * next signature or the length of the file for the last one. The bytes up
+	 * to the next signature may also hold the ids of entries without
+	 * signature.
+	 * 
+	 * @param pos
+	 *            the position of the entry
+	 * @return the end
+	 */
+	public long getEnd(int pos) {
+		for (int p = pos + 1; p < offsets.length; p++) {
+			if (offsets[p] != NO_SIGNATURE) {
+				return offsets[p];
+			}
+		}
+		return dataLength;
+	}
+
+	/**
+	 * Gets the id of an entry.
+	 *
+	 * @param pos
+	 *            the position of the entry
+	 * @return the id
+	 */
+	public long getId(int pos) {
+		return ids[pos];
+	}
+
+	/**
+	 * Gets the offset of the signature of an entry.
+	 *
+	 * @param pos
+	 *            the position of the entry
+	 * @return the offset, NO_SIGNATURE if the entry has none
+	 */
+	public long getOffset(int pos) {
+		return offsets[pos];
+	}
+
+	/**
+	 * Gets the position of an entry.
+	 *
+	 * @param id
+	 *            the id of the entry
+	 * @return the position, -1 if the entry is not in the index
+	 */
+	public int getPosition(long id) {
+		if (positionById != null) {
+			Integer p = positionById.get(id);
+			return p == null ? -1 : p;
+		}
+		int lo = 0;
+		int hi = ids.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ids[mid] < id) {
+				lo = mid + 1;
+			} else if (ids[mid] > id) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if the signatures are bags of local signatures.
+	 *
+	 * @return true, if is global
+	 */
+	public boolean isGlobal() {
+		return global;
+	}
+
+	/**
+	 * Checks if the index has been computed on the current version of a
+	 * signatures file.
+	 *
+	 * @param f
+	 *            the signatures file
+	 * @return true, if is up to date
+	 */
+	public boolean isUpToDate(File f) {
+		if ((f.length() != dataLength) || (f.lastModified() != lastModified)) {
+			return false;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = PersistenceToolbox.getFile(f, false);
+			return PersistenceToolbox.loadInt(raf.getChannel()) == ids.length;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// ignored
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number of indexed entries.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+}
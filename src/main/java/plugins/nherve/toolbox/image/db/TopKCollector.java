@@ -0,0 +1,321 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.db;
+
+/**
+ * Keeps the k nearest answers of a query in a bounded max-heap stored in
+ * primitive arrays, so that scanning a database only allocates the heap
+ * itself. An answer is identified by an item (the position of the entry in
+ * the database) and a local id (the position of the signature in its bag, -1
+ * for a global signature).
+ * 
+ * Ties are broken on the item and then on the local id, so that the answers
+ * kept are the same as with a stable sort of all the distances in the scan
+ * order.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class TopKCollector {
+
+	/** The k. */
+	private final int k;
+
+	/** The distances. */
+	private final double[] distances;
+
+	/** The items. */
+	private final int[] items;
+
+	/** The local ids. */
+	private final int[] lids;
+
+	/** The size. */
+	private int size;
+
+	/** The sorted. */
+	private boolean sorted;
+
+	/**
+	 * Instantiates a new top k collector.
+	 * 
+	 * @param k
+	 *            the k
+	 */
+	public TopKCollector(int k) {
+		super();
+		this.k = Math.max(0, k);
+		this.distances = new double[this.k];
+		this.items = new int[this.k];
+		this.lids = new int[this.k];
+		this.size = 0;
+		this.sorted = false;
+	}
+
+	/**
+	 * Compare two answers.
+	 * 
+	 * @param d1
+	 *            the distance of the first answer
+	 * @param item1
+	 *            the item of the first answer
+	 * @param lid1
+	 *            the local id of the first answer
+	 * @param d2
+	 *            the distance of the second answer
+	 * @param item2
+	 *            the item of the second answer
+	 * @param lid2
+	 *            the local id of the second answer
+	 * @return true if the first answer is worse than the second one
+	 */
+	private static boolean after(double d1, int item1, int lid1, double d2, int item2, int lid2) {
+		if (d1 != d2) {
+			return d1 > d2;
+		}
+		if (item1 != item2) {
+			return item1 > item2;
+		}
+		return lid1 > lid2;
+	}
+
+	/**
+	 * Compare an answer to one of the heap.
+	 * 
+	 * @param d
+	 *            the distance
+	 * @param item
+	 *            the item
+	 * @param lid
+	 *            the local id
+	 * @param b
+	 *            the position in the heap
+	 * @return true if the answer is worse than the one of the heap
+	 */
+	private boolean after(double d, int item, int lid, int b) {
+		return after(d, item, lid, distances[b], items[b], lids[b]);
+	}
+
+	/**
+	 * Gets the distance of the i-th answer.
+	 * 
+	 * @param i
+	 *            the i
+	 * @return the distance
+	 */
+	public double getDistance(int i) {
+		return distances[i];
+	}
+
+	/**
+	 * Gets the item of the i-th answer.
+	 * 
+	 * @param i
+	 *            the i
+	 * @return the item
+	 */
+	public int getItem(int i) {
+		return items[i];
+	}
+
+	/**
+	 * Gets the k.
+	 * 
+	 * @return the k
+	 */
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Gets the local id of the i-th answer.
+	 * 
+	 * @param i
+	 *            the i
+	 * @return the lid
+	 */
+	public int getLid(int i) {
+		return lids[i];
+	}
+
+	/**
+	 * Gets the distance an answer has to beat to enter the heap. Any distance
+	 * computation whose result would be above it can be abandoned.
+	 * 
+	 * @return the threshold
+	 */
+	public double getThreshold() {
+		if (size < k) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if (k == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		return distances[0];
+	}
+
+	/**
+	 * Checks if is full.
+	 * 
+	 * @return true, if is full
+	 */
+	public boolean isFull() {
+		return size == k;
+	}
+
+	/**
+	 * Offer all the answers of another collector, typically the one of a
+	 * worker that scanned another part of the database.
+	 * 
+	 * @param other
+	 *            the other
+	 */
+	public void merge(TopKCollector other) {
+		for (int i = 0; i < other.size; i++) {
+			offer(other.items[i], other.lids[i], other.distances[i]);
+		}
+	}
+
+	/**
+	 * Offer an answer.
+	 * 
+	 * @param item
+	 *            the item
+	 * @param lid
+	 *            the local id
+	 * @param d
+	 *            the distance
+	 * @return true, if the answer has been kept
+	 */
+	public boolean offer(int item, int lid, double d) {
+		if (sorted) {
+			throw new IllegalStateException("TopKCollector already sorted");
+		}
+		if (size < k) {
+			int i = size;
+			size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!after(d, item, lid, parent)) {
+					break;
+				}
+				set(i, parent);
+				i = parent;
+			}
+			set(i, d, item, lid);
+			return true;
+		}
+		if ((k == 0) || !after(distances[0], items[0], lids[0], d, item, lid)) {
+			return false;
+		}
+		siftDown(0, size, d, item, lid);
+		return true;
+	}
+
+	/**
+	 * Copy an answer of the heap.
+	 * 
+	 * @param to
+	 *            the to
+	 * @param from
+	 *            the from
+	 */
+	private void set(int to, int from) {
+		distances[to] = distances[from];
+		items[to] = items[from];
+		lids[to] = lids[from];
+	}
+
+	/**
+	 * Sets an answer of the heap.
+	 * 
+	 * @param i
+	 *            the i
+	 * @param d
+	 *            the d
+	 * @param item
+	 *            the item
+	 * @param lid
+	 *            the lid
+	 */
+	private void set(int i, double d, int item, int lid) {
+		distances[i] = d;
+		items[i] = item;
+		lids[i] = lid;
+	}
+
+	/**
+	 * Place an answer at position i of the heap and move it down to its place.
+	 * 
+	 * @param i
+	 *            the i
+	 * @param n
+	 *            the size of the heap
+	 * @param d
+	 *            the d
+	 * @param item
+	 *            the item
+	 * @param lid
+	 *            the lid
+	 */
+	private void siftDown(int i, int n, double d, int item, int lid) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				break;
+			}
+			if ((child + 1 < n) && after(distances[child + 1], items[child + 1], lids[child + 1], child)) {
+				child++;
+			}
+			if (!after(distances[child], items[child], lids[child], d, item, lid)) {
+				break;
+			}
+			set(i, child);
+			i = child;
+		}
+		set(i, d, item, lid);
+	}
+
+	/**
+	 * Number of answers.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sort the answers by increasing distance, in place. No answer can be
+	 * offered afterwards.
+	 */
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		for (int n = size - 1; n > 0; n--) {
+			double d = distances[n];
+			int item = items[n];
+			int lid = lids[n];
+			set(n, 0);
+			siftDown(0, n, d, item, lid);
+		}
+		sorted = true;
+	}
+
+}
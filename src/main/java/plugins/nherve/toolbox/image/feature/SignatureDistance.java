@@ -31,8 +31,32 @@ import plugins.nherve.toolbox.image.feature.signature.SignatureException;
  */
 public abstract class SignatureDistance<T extends Signature> extends Algorithm implements Distance<T> {
 	
+	/** Number of dimensions accumulated between two checks of the abort threshold. */
+	protected final static int ABORT_CHECK_STEP = 16;
+	
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.Distance#computeDistance(java.lang.Object, java.lang.Object)
 	 */
 	public abstract double computeDistance(T s1, T s2) throws SignatureException;
+	
+	/**
+	 * Compute the distance, knowing that the caller is not interested in
+	 * distances above a threshold. The computation may be abandoned as soon as
+	 * the result is known to be above it, in which case some value that is not
+	 * below the threshold is returned instead of the actual distance. Below the
+	 * threshold, the result is the same as computeDistance(s1, s2).
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param threshold
+	 *            the abort threshold
+	 * @return the distance
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public double computeDistance(T s1, T s2, double threshold) throws SignatureException {
+		return computeDistance(s1, s2);
+	}
 }
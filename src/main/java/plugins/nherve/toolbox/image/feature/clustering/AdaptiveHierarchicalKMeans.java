@@ -19,10 +19,17 @@
 package plugins.nherve.toolbox.image.feature.clustering;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import plugins.nherve.toolbox.concurrent.TaskManager;
 import plugins.nherve.toolbox.image.feature.DefaultClusteringAlgorithmImpl;
 import plugins.nherve.toolbox.image.feature.Distance;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
@@ -75,6 +82,51 @@ public class AdaptiveHierarchicalKMeans extends DefaultClusteringAlgorithmImpl<D
 		setSubDisplayEnabled(false);
 	}
 
+	/**
+	 * Split of one cluster.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class SplitTask implements Callable<List<List<DefaultVectorSignature>>> {
+
+		/** The points of the cluster. */
+		private final List<DefaultVectorSignature> points;
+
+		/** The centroids of the sub-clusters. */
+		private List<DefaultVectorSignature> centroids;
+
+		/**
+		 * Instantiates a new split task.
+		 * 
+		 * @param points
+		 *            the points
+		 */
+		public SplitTask(List<DefaultVectorSignature> points) {
+			super();
+			this.points = points;
+			this.centroids = null;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public List<List<DefaultVectorSignature>> call() throws ClusteringException {
+			KMeans km = new KMeans(eachLevelNbClasses, eachLevelNbMaxIterations, eachLevelStabilizationCriterion);
+			km.setLogEnabled(isSubDisplayEnabled());
+			try {
+				km.sanityCheck(points);
+			} catch (SignatureException e) {
+				return null;
+			}
+			km.compute(points);
+			centroids = km.getCentroids();
+			return HierarchicalKMeans.split(points, km.getAffectations(), centroids.size());
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#compute(java.util.List)
 	 */
@@ -85,49 +137,54 @@ public class AdaptiveHierarchicalKMeans extends DefaultClusteringAlgorithmImpl<D
 
 		List<DefaultVectorSignature> unableTocluster = new ArrayList<DefaultVectorSignature>();
 
-		int iter = 0;
-		List<DefaultVectorSignature> current = null;
-		while (data.size() + unableTocluster.size() < finalNbCluster) {
-			DefaultVectorSignature biggest = null;
-			int biggestSize = 0;
-			for (DefaultVectorSignature c : data.keySet()) {
-				if (data.get(c).size() > biggestSize) {
-					biggestSize = data.get(c).size();
-					biggest = c;
+		// the biggest clusters are split concurrently, as many at once as
+		// needed to reach the final number of clusters
+		ForkJoinPool pool = new ForkJoinPool(TaskManager.getSecondLevelInstance().getCorePoolSize());
+		int gain = Math.max(1, eachLevelNbClasses - 1);
+
+		try {
+			int iter = 0;
+			while (!data.isEmpty() && (data.size() + unableTocluster.size() < finalNbCluster)) {
+				int missing = finalNbCluster - data.size() - unableTocluster.size();
+				int nbSplits = Math.min(pool.getParallelism(), (missing + gain - 1) / gain);
+
+				List<DefaultVectorSignature> biggest = new ArrayList<DefaultVectorSignature>(data.keySet());
+				Collections.sort(biggest, new Comparator<DefaultVectorSignature>() {
+					@Override
+					public int compare(DefaultVectorSignature o1, DefaultVectorSignature o2) {
+						return data.get(o2).size() - data.get(o1).size();
+					}
+				});
+				biggest = biggest.subList(0, Math.min(nbSplits, biggest.size()));
+
+				List<SplitTask> tasks = new ArrayList<SplitTask>();
+				for (DefaultVectorSignature c : biggest) {
+					tasks.add(new SplitTask(data.remove(c)));
 				}
-			}
-
-			current = data.get(biggest);
-			data.remove(biggest);
-
-			kmeans = new KMeans(eachLevelNbClasses, eachLevelNbMaxIterations, eachLevelStabilizationCriterion);
-			kmeans.setLogEnabled(isSubDisplayEnabled());
-			String dbg = "";
-			try {
-				kmeans.sanityCheck(current);
-				kmeans.compute(current);
-
-				int[] aff = kmeans.getAffectations();
-				List<DefaultVectorSignature> ct = kmeans.getCentroids();
-				ArrayList<ArrayList<DefaultVectorSignature>> ppc = new ArrayList<ArrayList<DefaultVectorSignature>>();
-				for (int i = 0; i < ct.size(); i++) {
-					ppc.add(new ArrayList<DefaultVectorSignature>());
+				List<Future<List<List<DefaultVectorSignature>>>> results = pool.invokeAll(tasks);
+
+				for (int t = 0; t < tasks.size(); t++) {
+					SplitTask task = tasks.get(t);
+					List<List<DefaultVectorSignature>> ppc = results.get(t).get();
+					String dbg = "";
+					if (ppc == null) {
+						unableTocluster.add(biggest.get(t));
+					} else {
+						for (int i = 0; i < ppc.size(); i++) {
+							dbg += ppc.get(i).size() + " ";
+							data.put(task.centroids.get(i), ppc.get(i));
+						}
+					}
+					info("[" + iter + "] " + task.points.size() + " : " + dbg);
+					iter++;
 				}
-				int a = 0;
-				for (DefaultVectorSignature vs : current) {
-					ppc.get(aff[a]).add(vs);
-					a++;
-				}
-
-				for (int i = 0; i < ct.size(); i++) {
-					dbg += ppc.get(i).size() + " ";
-					data.put(ct.get(i), ppc.get(i));
-				}
-			} catch (SignatureException e) {
-				unableTocluster.add(biggest);
 			}
-			info("[" + iter + "] " + biggestSize + " : " + dbg);
-			iter++;
+		} catch (InterruptedException e) {
+			throw new ClusteringException(e);
+		} catch (ExecutionException e) {
+			throw HierarchicalKMeans.clusteringException(e);
+		} finally {
+			pool.shutdown();
 		}
 
 		kmeans = new KMeans(data.size(), 0, 0);
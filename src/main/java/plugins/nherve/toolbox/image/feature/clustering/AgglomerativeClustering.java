@@ -2,8 +2,6 @@ package plugins.nherve.toolbox.image.feature.clustering;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -17,7 +15,7 @@ import plugins.nherve.toolbox.image.feature.signature.L2Distance;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
 
 public class AgglomerativeClustering<T extends Signature> extends DefaultClusteringAlgorithmImpl<T> {
-	private class ComputeDistancesWorker implements Callable<List<AgglomerativeClusteringSingleDistance>> {
+	private class ComputeDistancesWorker implements Callable<Integer> {
 		public ComputeDistancesWorker(List<T> points, int start, int end) {
 			super();
 			this.points = points;
@@ -30,33 +28,35 @@ public class AgglomerativeClustering<T extends Signature> extends DefaultCluster
 		private int end;
 
 		@Override
-		public List<AgglomerativeClusteringSingleDistance> call() throws Exception {
-			List<AgglomerativeClusteringSingleDistance> distances = new ArrayList<AgglomerativeClusteringSingleDistance>();
-			for (int i = start; i <= end; i++) {
-				for (int j = i + 1; j < points.size(); j++) {
-					AgglomerativeClusteringSingleDistance sd = new AgglomerativeClusteringSingleDistance();
-					sd.i = i;
-					sd.j = j;
+		public Integer call() throws Exception {
+			int n = points.size();
+			for (int i = start; i <= end && i < n; i++) {
+				int k = idx(i, i + 1, n) - (i + 1);
+				for (int j = i + 1; j < n; j++) {
 					try {
-						sd.d = distance.computeDistance(points.get(i), points.get(j));
+						distances[k + j] = distance.computeDistance(points.get(i), points.get(j));
 					} catch (SignatureException e) {
 						throw new ClusteringException(e);
 					}
-//					log(" - " + sd.d);
-					distances.add(sd);
 				}
 			}
-			return distances;
+			return end - start + 1;
 		}
 	}
 	
+	/** The largest number of points, the condensed matrix being indexed by an int. */
+	public final static int MAX_POINTS = 65536;
+	
 	private SignatureDistance distance;
 	private int[] affectation;
 	private int nbClasses;
 	private double threshold;
 	
-	private int idx(int i, int j, int n) {
-		return j + i * (2 * n - 1 - i) / 2;
+	/** The condensed distance matrix, d(i, j) for i < j at idx(i, j, n). */
+	private double[] distances;
+	
+	static int idx(int i, int j, int n) {
+		return (int) (j - i - 1 + (long) i * (2 * n - 1 - i) / 2);
 	}
 	
 	public AgglomerativeClustering(boolean display) {
@@ -71,85 +71,199 @@ public class AgglomerativeClustering<T extends Signature> extends DefaultCluster
 		return nbClasses;
 	}
 
-	@Override
-	public void compute(List<T> points) throws ClusteringException {
-		List<AgglomerativeClusteringSingleDistance> distances = new ArrayList<AgglomerativeClusteringSingleDistance>();
+	/**
+	 * Compute the condensed distance matrix, in parallel on the second level
+	 * TaskManager. Each task gets rows with about the same number of pairs.
+	 * 
+	 * @param points
+	 *            the points
+	 * @return the matrix
+	 * @throws ClusteringException
+	 *             the clustering exception
+	 */
+	double[] computeDistances(List<T> points) throws ClusteringException {
+		int n = points.size();
+		if (n > MAX_POINTS) {
+			throw new ClusteringException("Too many points for AgglomerativeClustering (" + n + "/" + MAX_POINTS + ")");
+		}
 		
-		info("AgglomerativeClustering - Distances cache");
 		TaskManager tm = TaskManager.getSecondLevelInstance();
 		int nbSplit = tm.getCorePoolSize();
-		int nb = (points.size() - 1) * points.size() / 2;
-		int splitSize = nb / nbSplit;
+		long nb = (long) (n - 1) * n / 2;
+		long splitSize = nb / nbSplit;
 		
-		int done = 0;
-		int start = 0;
-		List<Future<List<AgglomerativeClusteringSingleDistance>>> results = new ArrayList<Future<List<AgglomerativeClusteringSingleDistance>>>();
-		for (int end = 0; end < points.size(); end++) {
-			done += (points.size() - 1 - end);
-			if (done > splitSize) {
-				results.add(tm.submit(new ComputeDistancesWorker(points, start, end)));
-				done = 0;
-				start = end + 1;
+		distances = new double[(int) nb];
+		try {
+			long done = 0;
+			int start = 0;
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int end = 0; end < n; end++) {
+				done += (n - 1 - end);
+				if (done > splitSize) {
+					results.add(tm.submit(new ComputeDistancesWorker(points, start, end)));
+					done = 0;
+					start = end + 1;
+				}
 			}
-		}
-		if (done > 0) {
-			results.add(tm.submit(new ComputeDistancesWorker(points, start, points.size())));
-		}
-		
-		for (Future<List<AgglomerativeClusteringSingleDistance>> f : results) {
-			try {
-				distances.addAll(f.get());
-			} catch (InterruptedException e) {
-				throw new ClusteringException(e);
-			} catch (ExecutionException e) {
-				throw new ClusteringException(e);
+			if (done > 0) {
+				results.add(tm.submit(new ComputeDistancesWorker(points, start, n - 1)));
 			}
+			
+			for (Future<Integer> f : results) {
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					throw new ClusteringException(e);
+				} catch (ExecutionException e) {
+					throw new ClusteringException(e);
+				}
+			}
+			
+			return distances;
+		} finally {
+			distances = null;
 		}
+	}
+
+	@Override
+	public void compute(List<T> points) throws ClusteringException {
+		int n = points.size();
 		
-		info("AgglomerativeClustering - nb = " + nb + " / results = " + distances.size());
-		
-		// log("AgglomerativeClustering - Distances : " + distances.size() + " / " + idx(points.size() - 1, points.size() - 1, points.size()));
+		info("AgglomerativeClustering - Distances cache");
+		double[] dist = computeDistances(points);
 		
-		info("AgglomerativeClustering - Sorting distances");
+		info("AgglomerativeClustering - nb = " + dist.length);
 		
-		Collections.sort(distances, new Comparator<AgglomerativeClusteringSingleDistance>() {
-
-			@Override
-			public int compare(AgglomerativeClusteringSingleDistance o1, AgglomerativeClusteringSingleDistance o2) {
-				return (int)Math.signum(o1.d - o2.d);
+		if (dist.length > 0) {
+			double max = dist[0];
+			double min = dist[0];
+			for (double d : dist) {
+				max = Math.max(max, d);
+				min = Math.min(min, d);
 			}
-		});
+			info("AgglomerativeClustering - min = " + min);
+			info("AgglomerativeClustering - max = " + max);
+		}
 		
-		double max = Collections.max(distances).d;
-		double min = Collections.min(distances).d;
+		info("AgglomerativeClustering - Agglomerating");
 		
-		info("AgglomerativeClustering - min = " + min);
-		info("AgglomerativeClustering - max = " + max);
+		// the classes are the connected components of the pairs closer than
+		// the threshold, so the order of the pairs does not matter
+		int[] parent = newForest(n);
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++, k++) {
+				if (dist[k] <= threshold) {
+					union(parent, i, j);
+				}
+			}
+		}
 		
-		info("AgglomerativeClustering - Agglomerating");
-		affectation = new int[points.size()];
-		Arrays.fill(affectation, 0);
-		nbClasses = 0;
-		for (AgglomerativeClusteringSingleDistance sd : distances) {
-			if (sd.d <= threshold) {
-				if (affectation[sd.i] > 0) {
-					if (affectation[sd.j] == 0) {
-						affectation[sd.j] = affectation[sd.i];
-					}
-				} else {
-					if (affectation[sd.j] > 0) {
-						affectation[sd.i] = affectation[sd.j];
-					} else {
-						nbClasses++;
-						info("classes : " + nbClasses);
-						affectation[sd.i] = nbClasses;
-						affectation[sd.j] = nbClasses;
-					}
+		affectation = labels(parent);
+		nbClasses = nbClasses(affectation);
+	}
+
+	/**
+	 * Label the classes of a forest, in the order of their first point. The
+	 * points alone in their class get 0, the others 1 to the number of
+	 * classes.
+	 * 
+	 * @param parent
+	 *            the forest
+	 * @return the affectations
+	 */
+	static int[] labels(int[] parent) {
+		int n = parent.length;
+		int[] size = new int[n];
+		for (int i = 0; i < n; i++) {
+			size[find(parent, i)]++;
+		}
+		int[] label = new int[n];
+		int[] aff = new int[n];
+		int nb = 0;
+		for (int i = 0; i < n; i++) {
+			int r = find(parent, i);
+			if (size[r] > 1) {
+				if (label[r] == 0) {
+					nb++;
+					label[r] = nb;
 				}
-			} else {
-				break;
+				aff[i] = label[r];
 			}
 		}
+		return aff;
+	}
+
+	/**
+	 * Number of classes of labelled affectations.
+	 * 
+	 * @param aff
+	 *            the affectations
+	 * @return the number of classes
+	 */
+	static int nbClasses(int[] aff) {
+		int nb = 0;
+		for (int a : aff) {
+			nb = Math.max(nb, a);
+		}
+		return nb;
+	}
+
+	/**
+	 * A forest of single points.
+	 * 
+	 * @param n
+	 *            the number of points
+	 * @return the parent of each point
+	 */
+	static int[] newForest(int n) {
+		int[] parent = new int[n];
+		for (int i = 0; i < n; i++) {
+			parent[i] = i;
+		}
+		return parent;
+	}
+
+	/**
+	 * Root of the tree of a point, with path halving.
+	 * 
+	 * @param parent
+	 *            the forest
+	 * @param i
+	 *            the point
+	 * @return the root
+	 */
+	static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Merge the trees of two points, the smallest root becoming the root.
+	 * 
+	 * @param parent
+	 *            the forest
+	 * @param i
+	 *            a point
+	 * @param j
+	 *            another point
+	 * @return false if they were already in the same tree
+	 */
+	static boolean union(int[] parent, int i, int j) {
+		int ri = find(parent, i);
+		int rj = find(parent, j);
+		if (ri == rj) {
+			return false;
+		}
+		if (ri < rj) {
+			parent[rj] = ri;
+		} else {
+			parent[ri] = rj;
+		}
+		return true;
 	}
 
 	@Override
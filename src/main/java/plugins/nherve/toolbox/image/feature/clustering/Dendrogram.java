@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.clustering;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Single linkage dendrogram, built from a minimum spanning tree of the points.
+ * The merges are sorted by height : merge k joins the clusters getLeft(k) and
+ * getRight(k) at distance getHeight(k) and creates the cluster n + k, the
+ * clusters 0 to n - 1 being the points themselves.
+ * 
+ * Cutting it at a threshold gives the connected components of the pairs of
+ * points not farther than the threshold, without any distance computation.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class Dendrogram {
+
+	/** The number of points. */
+	private final int nbPoints;
+
+	/** The first point of each edge of the tree, sorted by weight. */
+	private final int[] from;
+
+	/** The second point of each edge. */
+	private final int[] to;
+
+	/** The weight of each edge, i.e. the height of each merge. */
+	private final double[] heights;
+
+	/** The first cluster of each merge. */
+	private final int[] left;
+
+	/** The second cluster of each merge. */
+	private final int[] right;
+
+	/** The number of points of the cluster created by each merge. */
+	private final int[] sizes;
+
+	/**
+	 * Instantiates a new dendrogram.
+	 * 
+	 * @param nbPoints
+	 *            the number of points
+	 * @param edgeFrom
+	 *            the first point of each edge of a spanning tree
+	 * @param edgeTo
+	 *            the second point of each edge
+	 * @param weights
+	 *            the weight of each edge
+	 */
+	public Dendrogram(int nbPoints, int[] edgeFrom, int[] edgeTo, final double[] weights) {
+		super();
+		this.nbPoints = nbPoints;
+		int nb = weights.length;
+
+		Integer[] order = new Integer[nb];
+		for (int e = 0; e < nb; e++) {
+			order[e] = e;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(weights[o1], weights[o2]);
+			}
+		});
+
+		from = new int[nb];
+		to = new int[nb];
+		heights = new double[nb];
+		left = new int[nb];
+		right = new int[nb];
+		sizes = new int[nb];
+
+		int[] parent = AgglomerativeClustering.newForest(nbPoints);
+		int[] cluster = new int[nbPoints];
+		int[] size = new int[nbPoints];
+		for (int p = 0; p < nbPoints; p++) {
+			cluster[p] = p;
+			size[p] = 1;
+		}
+		for (int k = 0; k < nb; k++) {
+			int e = order[k];
+			from[k] = edgeFrom[e];
+			to[k] = edgeTo[e];
+			heights[k] = weights[e];
+
+			int ri = AgglomerativeClustering.find(parent, from[k]);
+			int rj = AgglomerativeClustering.find(parent, to[k]);
+			left[k] = Math.min(cluster[ri], cluster[rj]);
+			right[k] = Math.max(cluster[ri], cluster[rj]);
+			sizes[k] = size[ri] + size[rj];
+			AgglomerativeClustering.union(parent, ri, rj);
+			int r = AgglomerativeClustering.find(parent, ri);
+			cluster[r] = nbPoints + k;
+			size[r] = sizes[k];
+		}
+	}
+
+	/**
+	 * Cut the dendrogram. The points alone in their cluster get 0, the others
+	 * 1 to the number of clusters, in the order of their first point, as in
+	 * {@link AgglomerativeClustering}.
+	 * 
+	 * @param threshold
+	 *            the largest distance between two points of a cluster that
+	 *            links them
+	 * @return the affectations
+	 */
+	public int[] cut(double threshold) {
+		int[] parent = AgglomerativeClustering.newForest(nbPoints);
+		for (int k = 0; (k < heights.length) && (heights[k] <= threshold); k++) {
+			AgglomerativeClustering.union(parent, from[k], to[k]);
+		}
+		return AgglomerativeClustering.labels(parent);
+	}
+
+	/**
+	 * Gets the height of a merge.
+	 * 
+	 * @param k
+	 *            the merge
+	 * @return the height
+	 */
+	public double getHeight(int k) {
+		return heights[k];
+	}
+
+	/**
+	 * Gets the first cluster of a merge.
+	 * 
+	 * @param k
+	 *            the merge
+	 * @return the cluster
+	 */
+	public int getLeft(int k) {
+		return left[k];
+	}
+
+	/**
+	 * Gets the number of merges, n - 1 when all the points end up linked.
+	 * 
+	 * @return the nb merges
+	 */
+	public int getNbMerges() {
+		return heights.length;
+	}
+
+	/**
+	 * Gets the number of points.
+	 * 
+	 * @return the nb points
+	 */
+	public int getNbPoints() {
+		return nbPoints;
+	}
+
+	/**
+	 * Gets the second cluster of a merge.
+	 * 
+	 * @param k
+	 *            the merge
+	 * @return the cluster
+	 */
+	public int getRight(int k) {
+		return right[k];
+	}
+
+	/**
+	 * Gets the number of points of the cluster created by a merge.
+	 * 
+	 * @param k
+	 *            the merge
+	 * @return the size
+	 */
+	public int getSize(int k) {
+		return sizes[k];
+	}
+
+}
@@ -19,10 +19,11 @@
 package plugins.nherve.toolbox.image.feature.clustering;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+import plugins.nherve.toolbox.concurrent.TaskManager;
 import plugins.nherve.toolbox.image.feature.DefaultClusteringAlgorithmImpl;
 import plugins.nherve.toolbox.image.feature.Distance;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
@@ -53,6 +54,15 @@ public class HierarchicalKMeans extends DefaultClusteringAlgorithmImpl<DefaultVe
 	
 	/** The final km. */
 	private KMeans finalKM;
+	
+	/** The tree of the centroids. */
+	private VocabularyTree tree;
+	
+	/** The hierarchical affectation. */
+	private boolean hierarchicalAffectation;
+	
+	/** The beam width. */
+	private int beamWidth;
 
 	/**
 	 * Instantiates a new hierarchical k means.
@@ -73,43 +83,142 @@ public class HierarchicalKMeans extends DefaultClusteringAlgorithmImpl<DefaultVe
 		this.eachLevelNbMaxIterations = eachLevelNbMaxIterations;
 		this.eachLevelStabilizationCriterion = eachLevelStabilizationCriterion;
 		setSubDisplayEnabled(false);
+		setHierarchicalAffectation(false);
+		setBeamWidth(1);
+	}
+
+	/**
+	 * Clustering of the points of one node of the tree. The sub-clusterings of
+	 * its children are forked, so that the siblings are computed concurrently
+	 * and the idle threads steal the pending nodes whatever their level.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class NodeTask extends RecursiveTask<List<VocabularyTree.Node>> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 4702871365493520436L;
+
+		/** The points of the node. */
+		private final List<DefaultVectorSignature> points;
+
+		/** The level of the node. */
+		private final int level;
+
+		/**
+		 * Instantiates a new node task.
+		 * 
+		 * @param points
+		 *            the points
+		 * @param level
+		 *            the level
+		 */
+		public NodeTask(List<DefaultVectorSignature> points, int level) {
+			super();
+			this.points = points;
+			this.level = level;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected List<VocabularyTree.Node> compute() {
+			try {
+				KMeans km = new KMeans(eachLevelNbClasses, eachLevelNbMaxIterations, eachLevelStabilizationCriterion);
+				km.setLogEnabled(isSubDisplayEnabled());
+				km.compute(points);
+
+				List<DefaultVectorSignature> ct = km.getCentroids();
+				List<VocabularyTree.Node> nodes = new ArrayList<VocabularyTree.Node>();
+				if (level + 1 >= nbLevels) {
+					for (DefaultVectorSignature c : ct) {
+						nodes.add(new VocabularyTree.Node(c, null));
+					}
+					return nodes;
+				}
+
+				List<List<DefaultVectorSignature>> ppc = split(points, km.getAffectations(), ct.size());
+				List<NodeTask> children = new ArrayList<NodeTask>();
+				for (List<DefaultVectorSignature> sub : ppc) {
+					children.add(new NodeTask(sub, level + 1));
+				}
+				invokeAll(children);
+
+				for (int i = 0; i < ct.size(); i++) {
+					nodes.add(new VocabularyTree.Node(ct.get(i), children.get(i).join()));
+				}
+				return nodes;
+			} catch (ClusteringException e) {
+				throw new RuntimeException(e);
+			}
+		}
 	}
 
 	/**
-	 * Compute next level.
+	 * Split the points by affectation.
 	 * 
-	 * @param currentLevel
-	 *            the current level
-	 * @return the map
+	 * @param points
+	 *            the points
+	 * @param aff
+	 *            the affectations
+	 * @param nbClusters
+	 *            the nb clusters
+	 * @return the points of each cluster
+	 */
+	static List<List<DefaultVectorSignature>> split(List<DefaultVectorSignature> points, int[] aff, int nbClusters) {
+		List<List<DefaultVectorSignature>> ppc = new ArrayList<List<DefaultVectorSignature>>();
+		for (int i = 0; i < nbClusters; i++) {
+			ppc.add(new ArrayList<DefaultVectorSignature>());
+		}
+		int a = 0;
+		for (DefaultVectorSignature vs : points) {
+			ppc.get(aff[a]).add(vs);
+			a++;
+		}
+		return ppc;
+	}
+
+	/**
+	 * Compute the tree. The sub-clusterings run on a work stealing pool as
+	 * large as the second level TaskManager, which still does the
+	 * affectations of each KMeans.
+	 * 
+	 * @param points
+	 *            the points
+	 * @return the tree
 	 * @throws ClusteringException
 	 *             the clustering exception
 	 */
-	private Map<DefaultVectorSignature, List<DefaultVectorSignature>> computeNextLevel(Map<DefaultVectorSignature, List<DefaultVectorSignature>> currentLevel) throws ClusteringException {
-		Map<DefaultVectorSignature, List<DefaultVectorSignature>> nextLevel = new HashMap<DefaultVectorSignature, List<DefaultVectorSignature>>();
-
-		for (List<DefaultVectorSignature> points : currentLevel.values()) {
-			KMeans km = new KMeans(eachLevelNbClasses, eachLevelNbMaxIterations, eachLevelStabilizationCriterion);
-			km.setLogEnabled(isSubDisplayEnabled());
-			km.compute(points);
-			
-			int[] aff = km.getAffectations();
-			List<DefaultVectorSignature> ct = km.getCentroids();
-			ArrayList<ArrayList<DefaultVectorSignature>> ppc = new ArrayList<ArrayList<DefaultVectorSignature>>();
-			for (int i = 0; i < ct.size(); i++) {
-				ppc.add(new ArrayList<DefaultVectorSignature>());
-			}
-			int a = 0;
-			for (DefaultVectorSignature vs : points) {
-				ppc.get(aff[a]).add(vs);
-				a++;
-			}
-			
-			for (int i = 0; i < ct.size(); i++) {
-				nextLevel.put(ct.get(i), ppc.get(i));
-			}
+	private VocabularyTree computeTree(List<DefaultVectorSignature> points) throws ClusteringException {
+		ForkJoinPool pool = new ForkJoinPool(TaskManager.getSecondLevelInstance().getCorePoolSize());
+		try {
+			return VocabularyTree.build(pool.invoke(new NodeTask(points, 0)));
+		} catch (SignatureException e) {
+			throw new ClusteringException(e);
+		} catch (RuntimeException e) {
+			throw clusteringException(e);
+		} finally {
+			pool.shutdown();
 		}
+	}
 
-		return nextLevel;
+	/**
+	 * Get back the error of a sub-clustering.
+	 * 
+	 * @param e
+	 *            the exception thrown by the pool
+	 * @return the clustering exception
+	 */
+	static ClusteringException clusteringException(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof ClusteringException) {
+				return (ClusteringException) t;
+			}
+		}
+		return new ClusteringException(e);
 	}
 
 	/* (non-Javadoc)
@@ -119,18 +228,19 @@ public class HierarchicalKMeans extends DefaultClusteringAlgorithmImpl<DefaultVe
 	public void compute(List<DefaultVectorSignature> points) throws ClusteringException {
 		info("Launching HierarchicalKMeans on " + points.size() + " points to produce " + nbLevels + " levels of " + eachLevelNbClasses + " classes");
 		
-		Map<DefaultVectorSignature, List<DefaultVectorSignature>> currentLevel = new HashMap<DefaultVectorSignature, List<DefaultVectorSignature>>();
-		currentLevel.put(null, points);
+		tree = computeTree(points);
+		List<DefaultVectorSignature> leaves = tree.getLeaves();
 		
-		for (int l = 0; l < nbLevels; l++) {
-			info("----------------------------------------- Computing level " + l);
-			currentLevel = computeNextLevel(currentLevel);
+		if (hierarchicalAffectation) {
+			// no need to compare the points with all the leaves
+			setFinalCentroids(leaves);
+			return;
 		}
 		
-		finalKM = new KMeans(currentLevel.size(), 0, 0);
+		finalKM = new KMeans(leaves.size(), 0, 0);
 		finalKM.setLogEnabled(isLogEnabled());
 		finalKM.setInitialCentroidsType(KMeans.PROVIDED_INTITAL_CENTROIDS);
-		for (DefaultVectorSignature ct : currentLevel.keySet()) {
+		for (DefaultVectorSignature ct : leaves) {
 			finalKM.addInitialCentroid(ct, false);
 		}
 		finalKM.compute(points);
@@ -141,9 +251,25 @@ public class HierarchicalKMeans extends DefaultClusteringAlgorithmImpl<DefaultVe
 	 */
 	@Override
 	public int[] getAffectations(List<DefaultVectorSignature> points) throws ClusteringException {
+		if (hierarchicalAffectation) {
+			try {
+				return tree.quantize(points, beamWidth);
+			} catch (SignatureException e) {
+				throw new ClusteringException(e);
+			}
+		}
 		return finalKM.getAffectations(points);
 	}
 
+	/**
+	 * Gets the beam width of the hierarchical affectation.
+	 * 
+	 * @return the beam width
+	 */
+	public int getBeamWidth() {
+		return beamWidth;
+	}
+
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#getCentroids()
 	 */
@@ -168,6 +294,24 @@ public class HierarchicalKMeans extends DefaultClusteringAlgorithmImpl<DefaultVe
 		return finalKM.computeDistance(s1, s2);
 	}
 
+	/**
+	 * Gets the tree of the centroids.
+	 * 
+	 * @return the tree
+	 */
+	public VocabularyTree getTree() {
+		return tree;
+	}
+
+	/**
+	 * Checks if the affectations are computed by descending the tree.
+	 * 
+	 * @return true, if is hierarchical affectation
+	 */
+	public boolean isHierarchicalAffectation() {
+		return hierarchicalAffectation;
+	}
+
 	/**
 	 * Checks if is sub display enabled.
 	 * 
@@ -177,6 +321,42 @@ public class HierarchicalKMeans extends DefaultClusteringAlgorithmImpl<DefaultVe
 		return subDisplayEnabled;
 	}
 
+	/**
+	 * Sets the beam width of the hierarchical affectation, the number of
+	 * nodes kept at each level. With 1, the nearest child is followed.
+	 * 
+	 * @param beamWidth
+	 *            the new beam width
+	 */
+	public void setBeamWidth(int beamWidth) {
+		this.beamWidth = Math.max(1, beamWidth);
+	}
+
+	/**
+	 * Use the leaves of a tree as the final centroids.
+	 * 
+	 * @param leaves
+	 *            the leaves
+	 */
+	private void setFinalCentroids(List<DefaultVectorSignature> leaves) {
+		finalKM = new KMeans(leaves.size(), 0, 0);
+		finalKM.setLogEnabled(isLogEnabled());
+		finalKM.setCentroids(leaves);
+	}
+
+	/**
+	 * Sets the affectation mode. By default, the points are compared with
+	 * all the leaves. When the tree is descended, the affectation of a point
+	 * costs about nbLevels x eachLevelNbClasses x beamWidth distances, but
+	 * may not give the nearest leaf.
+	 * 
+	 * @param hierarchicalAffectation
+	 *            the new hierarchical affectation
+	 */
+	public void setHierarchicalAffectation(boolean hierarchicalAffectation) {
+		this.hierarchicalAffectation = hierarchicalAffectation;
+	}
+
 	/**
 	 * Sets the sub display enabled.
 	 * 
@@ -187,4 +367,15 @@ public class HierarchicalKMeans extends DefaultClusteringAlgorithmImpl<DefaultVe
 		this.subDisplayEnabled = subDisplayEnabled;
 	}
 
+	/**
+	 * Use a tree, computed or loaded, instead of computing one.
+	 * 
+	 * @param tree
+	 *            the new tree
+	 */
+	public void setTree(VocabularyTree tree) {
+		this.tree = tree;
+		setFinalCentroids(tree.getLeaves());
+	}
+
 }
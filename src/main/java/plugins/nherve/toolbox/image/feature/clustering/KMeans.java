@@ -21,18 +21,26 @@ package plugins.nherve.toolbox.image.feature.clustering;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import plugins.nherve.toolbox.Algorithm;
 import plugins.nherve.toolbox.concurrent.MultipleDataTask;
 import plugins.nherve.toolbox.concurrent.TaskException;
 import plugins.nherve.toolbox.concurrent.TaskManager;
 import plugins.nherve.toolbox.image.feature.DefaultClusteringAlgorithmImpl;
 import plugins.nherve.toolbox.image.feature.Distance;
 import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.signature.CompactSparseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.FloatDenseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.L2DistanceMatrix;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.SparseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
 
 
@@ -83,6 +91,24 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 			affectation[idx] = closestCentroid;
 		}
 
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call()
+		 */
+		@Override
+		public Integer call() {
+			L2DistanceMatrix m = centroidMatrix;
+			if (m == null) {
+				return super.call();
+			}
+			try {
+				m.nearest(getAllData(), getIdx1(), getIdx2(), affectation);
+				return outputCall();
+			} catch (Exception e) {
+				Algorithm.err(e);
+				return null;
+			}
+		}
+
 		/* (non-Javadoc)
 		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#outputCall()
 		 */
@@ -97,6 +123,274 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 
 	}
 
+	/**
+	 * The Class ComputeBoundedAffectationWorker. Affectation of the points
+	 * with the triangle inequality : a point keeps its centroid without any
+	 * distance computation as long as its upper bound to it is below its lower
+	 * bound to all the other ones.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	public class ComputeBoundedAffectationWorker extends MultipleDataTask<DefaultVectorSignature, Long> {
+
+		/** The number of distances computed. */
+		private long nbDist;
+
+		/**
+		 * Instantiates a new compute bounded affectation worker.
+		 * 
+		 * @param allData
+		 *            the all data
+		 * @param idx1
+		 *            the idx1
+		 * @param idx2
+		 *            the idx2
+		 */
+		public ComputeBoundedAffectationWorker(List<DefaultVectorSignature> allData, int idx1, int idx2) {
+			super(allData, idx1, idx2);
+			nbDist = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call(java.lang.Object, int)
+		 */
+		@Override
+		public void call(DefaultVectorSignature data, int idx) throws SignatureException {
+			int a = affectation[idx];
+			double da = -1;
+			if (boundsReady) {
+				double lower = Math.max(lowerBounds[idx], down(centroidGaps[a] - upperBounds[idx]));
+				if (up(upperBounds[idx]) < down(lower)) {
+					return;
+				}
+				da = computeDistance(data, centroids.get(a));
+				nbDist++;
+				upperBounds[idx] = up(da);
+				if (up(upperBounds[idx]) < down(lower)) {
+					return;
+				}
+			}
+
+			double minDist = Double.MAX_VALUE;
+			double secondDist = Double.MAX_VALUE;
+			int closestCentroid = 0;
+			int c = 0;
+			for (DefaultVectorSignature s : centroids) {
+				double d;
+				if ((c == a) && (da >= 0)) {
+					d = da;
+				} else {
+					d = computeDistance(data, s);
+					nbDist++;
+				}
+				if (d < minDist) {
+					secondDist = minDist;
+					minDist = d;
+					closestCentroid = c;
+				} else if (d < secondDist) {
+					secondDist = d;
+				}
+				c++;
+			}
+			affectation[idx] = closestCentroid;
+			upperBounds[idx] = up(minDist);
+			lowerBounds[idx] = down(secondDist);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#outputCall()
+		 */
+		@Override
+		public Long outputCall() {
+			return nbDist;
+		}
+
+		@Override
+		public void processContextualData() {
+		}
+
+	}
+
+	/**
+	 * The Class SeedingDistanceWorker. Update the squared distance of each
+	 * point to its nearest seed with the seeds added since the last update.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	public class SeedingDistanceWorker extends MultipleDataTask<DefaultVectorSignature, Integer> {
+
+		/**
+		 * Instantiates a new seeding distance worker.
+		 * 
+		 * @param allData
+		 *            the all data
+		 * @param idx1
+		 *            the idx1
+		 * @param idx2
+		 *            the idx2
+		 */
+		public SeedingDistanceWorker(List<DefaultVectorSignature> allData, int idx1, int idx2) {
+			super(allData, idx1, idx2);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call(java.lang.Object, int)
+		 */
+		@Override
+		public void call(DefaultVectorSignature data, int idx) throws SignatureException {
+			for (int c = nbUpdatedSeeds; c < seeds.size(); c++) {
+				double d = computeDistance(data, seeds.get(c));
+				d *= d;
+				if (d < seedDistances[idx]) {
+					seedDistances[idx] = d;
+					seedClosest[idx] = c;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#outputCall()
+		 */
+		@Override
+		public Integer outputCall() {
+			return 0;
+		}
+
+		@Override
+		public void processContextualData() {
+		}
+
+	}
+
+	/**
+	 * The Class ComputeCentroidSumsWorker. Sum the points of its range by
+	 * affected centroid, in an accumulator borrowed from the pool of the
+	 * KMeans. Each centroid has dim + 1 slots in the accumulator, the last one
+	 * being the number of points.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	public class ComputeCentroidSumsWorker extends MultipleDataTask<DefaultVectorSignature, double[]> {
+
+		/** The accumulator. */
+		private double[] sums;
+
+		/**
+		 * Instantiates a new compute centroid sums worker.
+		 * 
+		 * @param allData
+		 *            the all data
+		 * @param idx1
+		 *            the idx1
+		 * @param idx2
+		 *            the idx2
+		 */
+		public ComputeCentroidSumsWorker(List<DefaultVectorSignature> allData, int idx1, int idx2) {
+			super(allData, idx1, idx2);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call(java.lang.Object, int)
+		 */
+		@Override
+		public void call(DefaultVectorSignature data, int idx) throws SignatureException {
+			int c = affectation[idx];
+			if (movable[c]) {
+				int off = c * sumsStride;
+				accumulate(data, sums, off);
+				sums[off + sumsStride - 1]++;
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call()
+		 */
+		@Override
+		public double[] call() {
+			sums = centroidSums.poll();
+			if ((sums == null) || (sums.length != nbClasses * sumsStride)) {
+				sums = new double[nbClasses * sumsStride];
+			} else {
+				Arrays.fill(sums, 0);
+			}
+			return super.call();
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#outputCall()
+		 */
+		@Override
+		public double[] outputCall() {
+			return sums;
+		}
+
+		@Override
+		public void processContextualData() {
+		}
+
+	}
+
+	/**
+	 * The Class ReduceCentroidSumsWorker. Reduce the accumulators of the
+	 * ComputeCentroidSumsWorker for the centroids of its range, always in the
+	 * same order, and set the new centroids.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	public class ReduceCentroidSumsWorker extends MultipleDataTask<DefaultVectorSignature, Integer> {
+
+		/**
+		 * Instantiates a new reduce centroid sums worker.
+		 * 
+		 * @param allData
+		 *            the all data
+		 * @param idx1
+		 *            the idx1
+		 * @param idx2
+		 *            the idx2
+		 */
+		public ReduceCentroidSumsWorker(List<DefaultVectorSignature> allData, int idx1, int idx2) {
+			super(allData, idx1, idx2);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call(java.lang.Object, int)
+		 */
+		@Override
+		public void call(DefaultVectorSignature data, int idx) throws SignatureException {
+			if (!movable[idx]) {
+				return;
+			}
+			int off = idx * sumsStride;
+			int dim = sumsStride - 1;
+			double[] r = partialSums.get(0);
+			for (int p = 1; p < partialSums.size(); p++) {
+				double[] o = partialSums.get(p);
+				for (int d = off; d < off + sumsStride; d++) {
+					r[d] += o[d];
+				}
+			}
+			double card = r[off + dim];
+			double coef = card > 0 ? 1.0 / card : 1.0;
+			for (int d = 0; d < dim; d++) {
+				data.set(d, r[off + d] * coef);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#outputCall()
+		 */
+		@Override
+		public Integer outputCall() {
+			return 0;
+		}
+
+		@Override
+		public void processContextualData() {
+		}
+
+	}
+
 	/** The Constant SMART_INTITAL_CENTROIDS. */
 	public final static int SMART_INTITAL_CENTROIDS = 1;
 	
@@ -106,6 +400,15 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 	/** The Constant PROVIDED_INTITAL_CENTROIDS. */
 	public final static int PROVIDED_INTITAL_CENTROIDS = 3;
 
+	/** The Constant KMEANS_PP_INTITAL_CENTROIDS, k-means++ seeding. */
+	public final static int KMEANS_PP_INTITAL_CENTROIDS = 4;
+
+	/** The Constant KMEANS_PARALLEL_INTITAL_CENTROIDS, k-means|| seeding. */
+	public final static int KMEANS_PARALLEL_INTITAL_CENTROIDS = 5;
+
+	/** The Constant DEFAULT_SEEDING_ROUNDS. */
+	public final static int DEFAULT_SEEDING_ROUNDS = 5;
+
 	/** The distance. */
 	private SignatureDistance<VectorSignature> distance;
 	
@@ -133,6 +436,78 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 	/** The affectation. */
 	private int[] affectation;
 
+	/** The distance matrix on the centroids, used by the L2 distance. */
+	private L2DistanceMatrix centroidMatrix;
+
+	/** The number of iterations of the last run. */
+	private int nbIterations;
+
+	/** The seed of the random generator. */
+	private long seed;
+
+	/** The random generator of the current run. */
+	private Random random;
+
+	/** The number of sampling rounds of the k-means|| seeding. */
+	private int seedingRounds;
+
+	/** The oversampling factor of the k-means|| seeding. */
+	private double oversampling;
+
+	/** The seeds being chosen. */
+	private List<DefaultVectorSignature> seeds;
+
+	/** The number of seeds already taken into account in seedDistances. */
+	private int nbUpdatedSeeds;
+
+	/** The squared distance of each point to its nearest seed. */
+	private double[] seedDistances;
+
+	/** The nearest seed of each point. */
+	private int[] seedClosest;
+
+	/** Use the triangle inequality to skip distance computations. */
+	private boolean accelerated;
+
+	/** The bounds of the points are valid for the current centroids. */
+	private boolean boundsReady;
+
+	/** Upper bound of the distance of each point to its centroid. */
+	private double[] upperBounds;
+
+	/** Lower bound of the distance of each point to the other centroids. */
+	private double[] lowerBounds;
+
+	/** Distance of each centroid to its nearest other centroid. */
+	private double[] centroidGaps;
+
+	/** Relative error of a computed distance. */
+	private double margin;
+
+	/** The number of distances computed by the last accelerated run. */
+	private long nbDistances;
+
+	/** The number of point to centroid distances it has avoided. */
+	private long nbSkippedDistances;
+
+	/** The pool of accumulators of the centroid sums, reused between the iterations. */
+	private final Queue<double[]> centroidSums;
+
+	/** The accumulators filled during the current iteration. */
+	private List<double[]> partialSums;
+
+	/** The number of slots of a centroid in an accumulator. */
+	private int sumsStride;
+
+	/** Whether each centroid is recomputed. */
+	private boolean[] movable;
+
+	/** The centroids computed at the last iteration. */
+	private List<DefaultVectorSignature> computedCentroids;
+
+	/** The centroids that can be overwritten at the next iteration. */
+	private List<DefaultVectorSignature> spareCentroids;
+
 	/**
 	 * Instantiates a new k means.
 	 * 
@@ -162,6 +537,11 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 		this.stabilizationCriterion = stabilizationCriterion;
 		centroids = null;
 		affectation = null;
+		accelerated = false;
+		seed = System.currentTimeMillis();
+		seedingRounds = DEFAULT_SEEDING_ROUNDS;
+		oversampling = 2;
+		centroidSums = new ConcurrentLinkedQueue<double[]>();
 	}
 
 	/**
@@ -204,11 +584,24 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 			return;
 		}
 
+		boolean bounded = accelerated && (distance.getClass() == L2Distance.class);
+		if (accelerated && !bounded) {
+			warn("KMeans acceleration is only available for the L2 distance");
+		}
+		nbDistances = 0;
+		nbSkippedDistances = 0;
+		random = new Random(seed);
+		nbIterations = 0;
+
 		try {
 
 			do {
 				initialCentroids(points);
-				computeAffectation(points);
+				if (bounded) {
+					initBounds(points);
+				} else {
+					computeAffectation(points);
+				}
 			} while ((initialCentroidsType == SMART_INTITAL_CENTROIDS) && emptyCluster());
 
 			int iteration = 0;
@@ -221,7 +614,11 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 				stab = computeStabilizationCriterion(oldCentroids);
 				//log("[It " + iteration + "] computeStabilizationCriterion done");
 				
-				computeAffectation(points);
+				if (bounded) {
+					computeBoundedAffectation(points, oldCentroids);
+				} else {
+					computeAffectation(points);
+				}
 
 				info("[It " + iteration + "] " + stab);
 				
@@ -231,6 +628,11 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 
 				iteration++;
 			} while ((iteration < nbMaxIterations) && (stab > stabilizationCriterion));
+			nbIterations = iteration;
+
+			if (bounded) {
+				info("KMeans computed " + nbDistances + " distances, " + nbSkippedDistances + " avoided");
+			}
 
 			if (isLogEnabled()) {
 				emptyCluster();
@@ -241,6 +643,14 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 
 		} catch (SignatureException e) {
 			throw new ClusteringException(e);
+		} finally {
+			upperBounds = null;
+			lowerBounds = null;
+			centroidGaps = null;
+			centroidSums.clear();
+			partialSums = null;
+			computedCentroids = null;
+			spareCentroids = null;
 		}
 	}
 
@@ -251,6 +661,7 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 	 *            the points
 	 */
 	private void computeAffectation(List<DefaultVectorSignature> points) {
+		centroidMatrix = centroidMatrix();
 		TaskManager tm = TaskManager.getSecondLevelInstance();
 		try {
 			tm.submitMultiForAll(points, ComputeAffectationWorker.class, this, "KMeans", 0);
@@ -259,10 +670,168 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
+		centroidMatrix = null;
 	}
 
 	/**
-	 * Compute centroids.
+	 * Compute the affectation with the bounds, after the centroids have moved.
+	 * 
+	 * @param points
+	 *            the points
+	 * @param oldCentroids
+	 *            the previous centroids
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void computeBoundedAffectation(List<DefaultVectorSignature> points, List<DefaultVectorSignature> oldCentroids) throws SignatureException {
+		int k = centroids.size();
+
+		// a point moves at most as far as its centroid, and gets at most as
+		// close to the other ones as the one that moved the most
+		double[] moves = new double[k];
+		int mostMoved = 0;
+		for (int c = 0; c < k; c++) {
+			moves[c] = up(computeDistance(oldCentroids.get(c), centroids.get(c)));
+			if (moves[c] > moves[mostMoved]) {
+				mostMoved = c;
+			}
+		}
+		double secondMove = 0;
+		for (int c = 0; c < k; c++) {
+			if ((c != mostMoved) && (moves[c] > secondMove)) {
+				secondMove = moves[c];
+			}
+		}
+		nbDistances += k;
+
+		for (int p = 0; p < affectation.length; p++) {
+			int a = affectation[p];
+			upperBounds[p] = up(upperBounds[p] + moves[a]);
+			lowerBounds[p] = down(lowerBounds[p] - (a == mostMoved ? secondMove : moves[mostMoved]));
+		}
+
+		computeCentroidGaps();
+		boundsReady = true;
+		long nb = runBoundedAffectation(points);
+		nbDistances += nb;
+		nbSkippedDistances += (long) points.size() * k - nb;
+		info(" - " + ((long) points.size() * k - nb) + " / " + ((long) points.size() * k) + " distances avoided");
+	}
+
+	/**
+	 * Compute the distance of each centroid to its nearest other one.
+	 * 
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void computeCentroidGaps() throws SignatureException {
+		int k = centroids.size();
+		double[] gaps = new double[k];
+		Arrays.fill(gaps, Double.MAX_VALUE);
+		for (int c1 = 0; c1 < k; c1++) {
+			for (int c2 = c1 + 1; c2 < k; c2++) {
+				double d = computeDistance(centroids.get(c1), centroids.get(c2));
+				gaps[c1] = Math.min(gaps[c1], d);
+				gaps[c2] = Math.min(gaps[c2], d);
+			}
+		}
+		for (int c = 0; c < k; c++) {
+			gaps[c] = down(gaps[c]);
+		}
+		nbDistances += (long) k * (k - 1) / 2;
+		centroidGaps = gaps;
+	}
+
+	/**
+	 * Lower a bound by the maximum relative error of a computed distance.
+	 * 
+	 * @param d
+	 *            the d
+	 * @return the lowered bound
+	 */
+	private double down(double d) {
+		return d - Math.abs(d) * margin;
+	}
+
+	/**
+	 * Compute the first affectation, with all the distances, and initialize
+	 * the bounds.
+	 * 
+	 * @param points
+	 *            the points
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void initBounds(List<DefaultVectorSignature> points) throws SignatureException {
+		// the L2 distances are sums of positive terms, their relative error
+		// is bounded by a few ulps per dimension
+		margin = (points.get(0).getSize() + 8) * Math.ulp(1d);
+		upperBounds = new double[points.size()];
+		lowerBounds = new double[points.size()];
+		boundsReady = false;
+		nbDistances += runBoundedAffectation(points);
+	}
+
+	/**
+	 * Launch the bounded affectation workers.
+	 * 
+	 * @param points
+	 *            the points
+	 * @return the number of distances computed
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private long runBoundedAffectation(List<DefaultVectorSignature> points) throws SignatureException {
+		TaskManager tm = TaskManager.getSecondLevelInstance();
+		long nb = 0;
+		try {
+			for (Long n : tm.submitMultiForAll(points, ComputeBoundedAffectationWorker.class, this, "KMeans", 0)) {
+				if (n == null) {
+					throw new SignatureException("KMeans bounded affectation failed");
+				}
+				nb += n;
+			}
+		} catch (TaskException e) {
+			throw new SignatureException(e);
+		} catch (InterruptedException e) {
+			throw new SignatureException(e);
+		}
+		return nb;
+	}
+
+	/**
+	 * Raise a bound by the maximum relative error of a computed distance.
+	 * 
+	 * @param d
+	 *            the d
+	 * @return the raised bound
+	 */
+	private double up(double d) {
+		return d + Math.abs(d) * margin;
+	}
+
+	/**
+	 * Distance matrix on the current centroids. It is only available for the
+	 * L2 distance, the nearest centroids it gives are the same as the ones of a
+	 * scan of the centroids with it.
+	 * 
+	 * @return the matrix, null if the distance is not the L2 one
+	 */
+	private L2DistanceMatrix centroidMatrix() {
+		if ((distance == null) || (distance.getClass() != L2Distance.class) || (centroids == null) || centroids.isEmpty()) {
+			return null;
+		}
+		try {
+			return new L2DistanceMatrix(centroids);
+		} catch (SignatureException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compute centroids. The points are summed in parallel in per task
+	 * accumulators that are then reduced in parallel by centroid. The
+	 * accumulators and the centroids of the previous iterations are reused.
 	 * 
 	 * @param points
 	 *            the points
@@ -274,41 +843,107 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 	 */
 	private List<DefaultVectorSignature> computeCentroids(final List<DefaultVectorSignature> points, final List<DefaultVectorSignature> oldCentroids) throws SignatureException {
 		int dim = points.get(0).getSize();
-		centroids = new ArrayList<DefaultVectorSignature>();
+		if ((movable == null) || (movable.length != nbClasses)) {
+			movable = new boolean[nbClasses];
+		}
+
+		List<DefaultVectorSignature> next = spareCentroids;
+		if ((next == null) || (next.size() != nbClasses)) {
+			next = new ArrayList<DefaultVectorSignature>(nbClasses);
+			for (int c = 0; c < nbClasses; c++) {
+				next.add(null);
+			}
+		}
 		for (int c = 0; c < nbClasses; c++) {
-			if ((initialCentroidsType == PROVIDED_INTITAL_CENTROIDS) && (!ableToMove.get(c)) && (oldCentroids != null)) {
+			movable[c] = (initialCentroidsType != PROVIDED_INTITAL_CENTROIDS) || ableToMove.get(c);
+			if (!movable[c]) {
 				try {
-					centroids.add(oldCentroids.get(c).clone());
+					next.set(c, oldCentroids != null ? oldCentroids.get(c).clone() : new DenseVectorSignature(dim));
 				} catch (CloneNotSupportedException e) {
 					throw new SignatureException(e.getMessage());
 				}
 			} else {
-				centroids.add(new DenseVectorSignature(dim));
+				DefaultVectorSignature s = next.get(c);
+				if (!(s instanceof DenseVectorSignature) || (s.getSize() != dim)) {
+					next.set(c, new DenseVectorSignature(dim));
+				}
 			}
 		}
-		int[] cardinality = new int[nbClasses];
-		Arrays.fill(cardinality, 0);
 
-		int p = 0;
-		for (DefaultVectorSignature s : points) {
-			if ((initialCentroidsType != PROVIDED_INTITAL_CENTROIDS) || (ableToMove.get(affectation[p]))) {
-				centroids.get(affectation[p]).add(s);
-				cardinality[affectation[p]]++;
+		sumsStride = dim + 1;
+		TaskManager tm = TaskManager.getSecondLevelInstance();
+		try {
+			partialSums = tm.submitMultiForAll(points, ComputeCentroidSumsWorker.class, this, "KMeans", 0);
+			for (double[] sums : partialSums) {
+				if (sums == null) {
+					throw new SignatureException("KMeans centroid sums failed");
+				}
 			}
-			p++;
-		}
-
-		int c = 0;
-		for (DefaultVectorSignature s : centroids) {
-			if (cardinality[c] > 0) {
-				s.multiply(1.0 / cardinality[c]);
+			tm.submitMultiForAll(next, ReduceCentroidSumsWorker.class, this, "KMeans", 0);
+		} catch (TaskException e) {
+			throw new SignatureException(e);
+		} catch (InterruptedException e) {
+			throw new SignatureException(e);
+		} finally {
+			if (partialSums != null) {
+				for (double[] sums : partialSums) {
+					if (sums != null) {
+						centroidSums.offer(sums);
+					}
+				}
+				partialSums = null;
 			}
-			c++;
 		}
 
+		spareCentroids = (oldCentroids == computedCentroids) ? oldCentroids : null;
+		computedCentroids = next;
+		centroids = next;
 		return centroids;
 	}
 
+	/**
+	 * Add a point to an accumulator, without going through the dimensions
+	 * that are not stored for the sparse signatures.
+	 * 
+	 * @param s
+	 *            the point
+	 * @param sums
+	 *            the accumulator
+	 * @param off
+	 *            the offset of the centroid in the accumulator
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private static void accumulate(DefaultVectorSignature s, double[] sums, int off) throws SignatureException {
+		if (s instanceof DenseVectorSignature) {
+			double[] data = ((DenseVectorSignature) s).getReadOnlyData();
+			for (int d = 0; d < data.length; d++) {
+				sums[off + d] += data[d];
+			}
+		} else if (s instanceof CompactSparseVectorSignature) {
+			CompactSparseVectorSignature cs = (CompactSparseVectorSignature) s;
+			int[] idx = cs.getIndexes();
+			double[] val = cs.getReadOnlyValues();
+			int nnz = cs.getNonZeroBins();
+			for (int i = 0; i < nnz; i++) {
+				sums[off + idx[i]] += val[i];
+			}
+		} else if (s instanceof SparseVectorSignature) {
+			for (Map.Entry<Integer, Double> e : ((SparseVectorSignature) s).getReadOnlyData().entrySet()) {
+				sums[off + e.getKey()] += e.getValue();
+			}
+		} else if (s instanceof FloatDenseVectorSignature) {
+			float[] data = ((FloatDenseVectorSignature) s).getReadOnlyData();
+			for (int d = 0; d < data.length; d++) {
+				sums[off + d] += data[d];
+			}
+		} else {
+			for (int d = 0; d < s.getSize(); d++) {
+				sums[off + d] += s.get(d);
+			}
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.Distance#computeDistance(java.lang.Object, java.lang.Object)
 	 */
@@ -388,6 +1023,12 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 		int[] othAff = new int[pts.size()];
 
 		try {
+			L2DistanceMatrix m = centroidMatrix();
+			if (m != null) {
+				m.nearest(pts, 0, pts.size(), othAff);
+				return othAff;
+			}
+
 			int p = 0;
 			for (DefaultVectorSignature s : pts) {
 				double minDist = Double.MAX_VALUE;
@@ -419,6 +1060,35 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 		return centroids;
 	}
 
+	/**
+	 * Gets the distance.
+	 * 
+	 * @return the distance
+	 */
+	public SignatureDistance<VectorSignature> getDistance() {
+		return distance;
+	}
+
+	/**
+	 * Gets the number of distances computed by the last accelerated run,
+	 * including the ones between centroids.
+	 * 
+	 * @return the nb distances
+	 */
+	public long getNbDistances() {
+		return nbDistances;
+	}
+
+	/**
+	 * Gets the number of point to centroid distances the last accelerated run
+	 * has avoided, compared to the standard algorithm.
+	 * 
+	 * @return the nb skipped distances
+	 */
+	public long getNbSkippedDistances() {
+		return nbSkippedDistances;
+	}
+
 	/**
 	 * Gets the initial centroids type.
 	 * 
@@ -435,6 +1105,15 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 		return nbClasses;
 	}
 
+	/**
+	 * Gets the number of iterations of the last run.
+	 * 
+	 * @return the nb iterations
+	 */
+	public int getNbIterations() {
+		return nbIterations;
+	}
+
 	/**
 	 * Gets the nb max iterations.
 	 * 
@@ -499,8 +1178,22 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 				centroids.add(s);
 				v += step;
 			}
+		} else if ((initialCentroidsType == KMEANS_PP_INTITAL_CENTROIDS) || (initialCentroidsType == KMEANS_PARALLEL_INTITAL_CENTROIDS)) {
+			List<DefaultVectorSignature> chosen;
+			if (initialCentroidsType == KMEANS_PP_INTITAL_CENTROIDS) {
+				chosen = plusPlusSeeding(points, null, new ArrayList<DefaultVectorSignature>());
+			} else {
+				chosen = parallelSeeding(points);
+			}
+			try {
+				for (DefaultVectorSignature s : chosen) {
+					centroids.add(s.clone());
+				}
+			} catch (CloneNotSupportedException e) {
+				throw new SignatureException(e);
+			}
 		} else {
-			Random rd = new Random(System.currentTimeMillis());
+			Random rd = random;
 			boolean[] affected = new boolean[points.size()];
 			Arrays.fill(affected, false);
 			int c = 0;
@@ -547,6 +1240,175 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 		info("initialCentroids done");
 	}
 
+	/**
+	 * Checks if the triangle inequality is used to skip distance
+	 * computations.
+	 * 
+	 * @return true, if is accelerated
+	 */
+	public boolean isAccelerated() {
+		return accelerated;
+	}
+
+	/**
+	 * Use the triangle inequality to skip most of the distance computations
+	 * once the clusters stabilize (Hamerly's algorithm). It only applies to
+	 * the L2 distance, the affectations are the same as without it.
+	 * 
+	 * @param accelerated
+	 *            the new accelerated
+	 */
+	public void setAccelerated(boolean accelerated) {
+		this.accelerated = accelerated;
+	}
+
+	/**
+	 * k-means|| seeding (Bahmani et al., Scalable K-Means++, 2012). A few
+	 * rounds oversample the points with a probability proportional to their
+	 * squared distance to the current candidates, the distance updates of each
+	 * round running on the {@link TaskManager}. The candidates, weighted by the
+	 * number of points they are the nearest of, are then reduced to the
+	 * centroids with a weighted k-means++.
+	 * 
+	 * @param points
+	 *            the points
+	 * @return the seeds
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private List<DefaultVectorSignature> parallelSeeding(final List<DefaultVectorSignature> points) throws SignatureException {
+		startSeeding(points.size());
+		seeds.add(points.get(random.nextInt(points.size())));
+		updateSeedDistances(points);
+
+		double l = oversampling * nbClasses;
+		for (int r = 0; r < seedingRounds; r++) {
+			double phi = 0;
+			for (double d : seedDistances) {
+				phi += d;
+			}
+			if (!(phi > 0)) {
+				break;
+			}
+			// points already chosen are at distance 0 and can't be drawn again
+			for (int p = 0; p < seedDistances.length; p++) {
+				if (random.nextDouble() * phi < l * seedDistances[p]) {
+					seeds.add(points.get(p));
+				}
+			}
+			updateSeedDistances(points);
+		}
+
+		List<DefaultVectorSignature> candidates = seeds;
+		info("k-means|| : " + candidates.size() + " candidates after " + seedingRounds + " rounds");
+		if (candidates.size() <= nbClasses) {
+			return plusPlusSeeding(points, null, candidates);
+		}
+
+		double[] weights = new double[candidates.size()];
+		for (int c : seedClosest) {
+			weights[c]++;
+		}
+		return plusPlusSeeding(candidates, weights, new ArrayList<DefaultVectorSignature>());
+	}
+
+	/**
+	 * k-means++ seeding (Arthur and Vassilvitskii, 2007) : each new seed is
+	 * drawn with a probability proportional to its weight times its squared
+	 * distance to the nearest seed already chosen.
+	 * 
+	 * @param points
+	 *            the points
+	 * @param weights
+	 *            the weights of the points, null for all at 1
+	 * @param initialSeeds
+	 *            seeds already chosen among the points
+	 * @return the seeds
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private List<DefaultVectorSignature> plusPlusSeeding(final List<DefaultVectorSignature> points, double[] weights, List<DefaultVectorSignature> initialSeeds) throws SignatureException {
+		startSeeding(points.size());
+		seeds.addAll(initialSeeds);
+		if (seeds.isEmpty()) {
+			seeds.add(points.get(random.nextInt(points.size())));
+		}
+
+		while (seeds.size() < nbClasses) {
+			updateSeedDistances(points);
+			double sum = 0;
+			for (int p = 0; p < seedDistances.length; p++) {
+				sum += (weights == null ? 1 : weights[p]) * seedDistances[p];
+			}
+			if (!(sum > 0)) {
+				// less distinct points than classes
+				seeds.add(points.get(random.nextInt(points.size())));
+				continue;
+			}
+			double target = random.nextDouble() * sum;
+			int chosen = -1;
+			for (int p = 0; p < seedDistances.length; p++) {
+				double w = (weights == null ? 1 : weights[p]) * seedDistances[p];
+				if (w > 0) {
+					chosen = p;
+					target -= w;
+					if (target < 0) {
+						break;
+					}
+				}
+			}
+			seeds.add(points.get(chosen));
+		}
+
+		List<DefaultVectorSignature> result = seeds;
+		seeds = null;
+		seedDistances = null;
+		seedClosest = null;
+		return result;
+	}
+
+	/**
+	 * Reset the seeding state.
+	 * 
+	 * @param nbPoints
+	 *            the nb points
+	 */
+	private void startSeeding(int nbPoints) {
+		seeds = new ArrayList<DefaultVectorSignature>();
+		nbUpdatedSeeds = 0;
+		seedDistances = new double[nbPoints];
+		Arrays.fill(seedDistances, Double.POSITIVE_INFINITY);
+		seedClosest = new int[nbPoints];
+	}
+
+	/**
+	 * Take the seeds added since the last call into account in the distances
+	 * of the points to their nearest seed.
+	 * 
+	 * @param points
+	 *            the points
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void updateSeedDistances(List<DefaultVectorSignature> points) throws SignatureException {
+		if (nbUpdatedSeeds == seeds.size()) {
+			return;
+		}
+		TaskManager tm = TaskManager.getSecondLevelInstance();
+		try {
+			for (Integer r : tm.submitMultiForAll(points, SeedingDistanceWorker.class, this, "KMeans seeding", 0)) {
+				if (r == null) {
+					throw new SignatureException("KMeans seeding failed");
+				}
+			}
+		} catch (TaskException e) {
+			throw new SignatureException(e);
+		} catch (InterruptedException e) {
+			throw new SignatureException(e);
+		}
+		nbUpdatedSeeds = seeds.size();
+	}
+
 	/**
 	 * Sets the centroids.
 	 * 
@@ -602,6 +1464,38 @@ public class KMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignatur
 		this.nbMaxIterations = nbMaxIterations;
 	}
 
+	/**
+	 * Sets the oversampling factor of the k-means|| seeding : each round draws
+	 * about oversampling * nbClasses candidates.
+	 * 
+	 * @param oversampling
+	 *            the new oversampling
+	 */
+	public void setOversampling(double oversampling) {
+		this.oversampling = oversampling;
+	}
+
+	/**
+	 * Sets the seed of the random generator used by the initializations, so
+	 * that runs are reproducible.
+	 * 
+	 * @param seed
+	 *            the new seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the number of sampling rounds of the k-means|| seeding.
+	 * 
+	 * @param seedingRounds
+	 *            the new seeding rounds
+	 */
+	public void setSeedingRounds(int seedingRounds) {
+		this.seedingRounds = seedingRounds;
+	}
+
 	/**
 	 * Sets the stabilization criterion.
 	 * 
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.clustering;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import plugins.nherve.toolbox.image.feature.DefaultClusteringAlgorithmImpl;
+import plugins.nherve.toolbox.image.feature.Distance;
+import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.DistanceKernels;
+import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.L2DistanceMatrix;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * Mini-batch KMeans (Sculley, Web-Scale K-Means Clustering, 2010). The points
+ * are read from a stream, one batch at a time : each batch is affected to the
+ * current centroids, then each centroid moves towards its points with a
+ * learning rate of one over the number of points it has received so far.
+ * Only the centroids and the current batch are kept in memory, so that a
+ * vocabulary can be learnt on a collection that does not fit in it, for
+ * instance with the signatures streamed from disk by a
+ * {@link plugins.nherve.toolbox.image.db.SignatureFileIterator}.
+ * 
+ * The stream should not be sorted by cluster : the signatures of a database
+ * file, grouped by image, are fine.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class MiniBatchKMeans extends DefaultClusteringAlgorithmImpl<DefaultVectorSignature> implements Distance<DefaultVectorSignature> {
+
+	/** The Constant DEFAULT_BATCH_SIZE. */
+	public final static int DEFAULT_BATCH_SIZE = 1000;
+
+	/** The distance. */
+	private SignatureDistance<VectorSignature> distance;
+
+	/** The nb classes. */
+	private int nbClasses;
+
+	/** The batch size. */
+	private int batchSize;
+
+	/** The nb max batches, 0 to read the whole stream. */
+	private int nbMaxBatches;
+
+	/** The seed. */
+	private long seed;
+
+	/** The values of the centroids. */
+	private double[][] values;
+
+	/** The number of points each centroid has received. */
+	private long[] counts;
+
+	/** The centroids. */
+	private List<DefaultVectorSignature> centroids;
+
+	/** The number of points read by the last run. */
+	private long nbPoints;
+
+	/** The number of batches of the last run. */
+	private int nbBatches;
+
+	/**
+	 * Instantiates a new mini batch k means.
+	 * 
+	 * @param nbClasses
+	 *            the nb classes
+	 */
+	public MiniBatchKMeans(int nbClasses) {
+		this(nbClasses, DEFAULT_BATCH_SIZE, 0);
+	}
+
+	/**
+	 * Instantiates a new mini batch k means.
+	 * 
+	 * @param nbClasses
+	 *            the nb classes
+	 * @param batchSize
+	 *            the batch size
+	 * @param nbMaxBatches
+	 *            the nb max batches, 0 to read the whole stream
+	 */
+	public MiniBatchKMeans(int nbClasses, int batchSize, int nbMaxBatches) {
+		super(false);
+		distance = new L2Distance();
+		this.nbClasses = nbClasses;
+		this.batchSize = Math.max(1, batchSize);
+		this.nbMaxBatches = nbMaxBatches;
+		seed = System.currentTimeMillis();
+		centroids = null;
+	}
+
+	/**
+	 * Affect the points of a batch to the current centroids.
+	 * 
+	 * @param batch
+	 *            the batch
+	 * @param current
+	 *            the current centroids
+	 * @param aff
+	 *            the affectations
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void affect(List<? extends DefaultVectorSignature> batch, List<DefaultVectorSignature> current, int[] aff) throws SignatureException {
+		if (distance.getClass() == L2Distance.class) {
+			new L2DistanceMatrix(current).nearest(batch, 0, batch.size(), aff);
+			return;
+		}
+		for (int p = 0; p < batch.size(); p++) {
+			double minDist = Double.MAX_VALUE;
+			int closestCentroid = 0;
+			for (int c = 0; c < current.size(); c++) {
+				double d = computeDistance(batch.get(p), current.get(c));
+				if (d < minDist) {
+					minDist = d;
+					closestCentroid = c;
+				}
+			}
+			aff[p] = closestCentroid;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#compute(java
+	 * .util.List)
+	 */
+	@Override
+	public void compute(final List<DefaultVectorSignature> points) throws ClusteringException {
+		// one pass in a random order
+		final int[] order = new int[points.size()];
+		for (int p = 0; p < order.length; p++) {
+			order[p] = p;
+		}
+		Random rd = new Random(seed);
+		for (int p = order.length - 1; p > 0; p--) {
+			int o = rd.nextInt(p + 1);
+			int tmp = order[p];
+			order[p] = order[o];
+			order[o] = tmp;
+		}
+
+		compute(new Iterator<DefaultVectorSignature>() {
+			private int p = 0;
+
+			@Override
+			public boolean hasNext() {
+				return p < order.length;
+			}
+
+			@Override
+			public DefaultVectorSignature next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return points.get(order[p++]);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+
+	/**
+	 * Compute the centroids from a stream of points.
+	 * 
+	 * @param points
+	 *            the points
+	 * @throws ClusteringException
+	 *             the clustering exception
+	 */
+	public void compute(Iterator<? extends DefaultVectorSignature> points) throws ClusteringException {
+		info("Launching MiniBatchKMeans to produce " + nbClasses + " classes, batches of " + batchSize);
+
+		if (nbClasses < 2) {
+			throw new ClusteringException("nbClasses == " + nbClasses);
+		}
+
+		Random rd = new Random(seed);
+		values = null;
+		counts = new long[nbClasses];
+		centroids = null;
+		nbPoints = 0;
+		nbBatches = 0;
+
+		long start = System.currentTimeMillis();
+		List<DefaultVectorSignature> batch = new ArrayList<DefaultVectorSignature>(Math.max(batchSize, nbClasses));
+		int[] aff = new int[Math.max(batchSize, nbClasses)];
+		try {
+			while ((nbMaxBatches <= 0) || (nbBatches < nbMaxBatches)) {
+				int size = (values == null) ? Math.max(batchSize, nbClasses) : batchSize;
+				batch.clear();
+				while ((batch.size() < size) && points.hasNext()) {
+					batch.add(points.next());
+				}
+				if (batch.isEmpty()) {
+					break;
+				}
+				nbPoints += batch.size();
+
+				if (values == null) {
+					initialCentroids(batch, rd);
+				}
+
+				affect(batch, getCurrentCentroids(), aff);
+				for (int p = 0; p < batch.size(); p++) {
+					int c = aff[p];
+					counts[c]++;
+					double eta = 1d / counts[c];
+					double[] v = values[c];
+					double[] x = DistanceKernels.toArray(batch.get(p));
+					for (int d = 0; d < v.length; d++) {
+						v[d] += eta * (x[d] - v[d]);
+					}
+				}
+
+				nbBatches++;
+				if (nbBatches % 100 == 0) {
+					info(" - " + nbBatches + " batches, " + nbPoints + " points");
+				}
+			}
+		} catch (SignatureException e) {
+			throw new ClusteringException(e);
+		}
+
+		if (values == null) {
+			throw new ClusteringException("No point to cluster");
+		}
+
+		centroids = new ArrayList<DefaultVectorSignature>(nbClasses);
+		for (double[] v : values) {
+			centroids.add(new DenseVectorSignature(v.clone()));
+		}
+		values = null;
+
+		info("MiniBatchKMeans done : " + nbBatches + " batches, " + nbPoints + " points in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.Distance#computeDistance(java.lang
+	 * .Object, java.lang.Object)
+	 */
+	@Override
+	public double computeDistance(DefaultVectorSignature s1, DefaultVectorSignature s2) throws SignatureException {
+		return distance.computeDistance(s1, s2);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#getAffectations
+	 * (java.util.List)
+	 */
+	@Override
+	public int[] getAffectations(List<DefaultVectorSignature> points) throws ClusteringException {
+		if (centroids == null) {
+			throw new ClusteringException("MiniBatchKMeans not computed");
+		}
+		int[] aff = new int[points.size()];
+		try {
+			affect(points, centroids, aff);
+		} catch (SignatureException e) {
+			throw new ClusteringException(e);
+		}
+		return aff;
+	}
+
+	/**
+	 * Gets the batch size.
+	 * 
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#getCentroids()
+	 */
+	@Override
+	public List<DefaultVectorSignature> getCentroids() throws ClusteringException {
+		return centroids;
+	}
+
+	/**
+	 * Gets the number of points each centroid has received during the last
+	 * run.
+	 * 
+	 * @return the counts
+	 */
+	public long[] getCounts() {
+		return counts;
+	}
+
+	/**
+	 * Wrap the current values of the centroids as signatures.
+	 * 
+	 * @return the centroids
+	 */
+	private List<DefaultVectorSignature> getCurrentCentroids() {
+		List<DefaultVectorSignature> current = new ArrayList<DefaultVectorSignature>(values.length);
+		for (double[] v : values) {
+			current.add(new DenseVectorSignature(v));
+		}
+		return current;
+	}
+
+	/**
+	 * Gets the distance.
+	 * 
+	 * @return the distance
+	 */
+	public SignatureDistance<VectorSignature> getDistance() {
+		return distance;
+	}
+
+	/**
+	 * Gets the number of batches of the last run.
+	 * 
+	 * @return the nb batches
+	 */
+	public int getNbBatches() {
+		return nbBatches;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#getNbClasses()
+	 */
+	@Override
+	public int getNbClasses() {
+		return nbClasses;
+	}
+
+	/**
+	 * Gets the nb max batches.
+	 * 
+	 * @return the nb max batches
+	 */
+	public int getNbMaxBatches() {
+		return nbMaxBatches;
+	}
+
+	/**
+	 * Gets the number of points read by the last run.
+	 * 
+	 * @return the nb points
+	 */
+	public long getNbPoints() {
+		return nbPoints;
+	}
+
+	/**
+	 * Choose the initial centroids among the points of the first batch, all
+	 * different from each other.
+	 * 
+	 * @param batch
+	 *            the batch
+	 * @param rd
+	 *            the random generator
+	 * @throws ClusteringException
+	 *             the clustering exception
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void initialCentroids(List<DefaultVectorSignature> batch, Random rd) throws ClusteringException, SignatureException {
+		List<DefaultVectorSignature> chosen = new ArrayList<DefaultVectorSignature>(nbClasses);
+		int[] order = new int[batch.size()];
+		for (int p = 0; p < order.length; p++) {
+			order[p] = p;
+		}
+		for (int p = 0; (p < order.length) && (chosen.size() < nbClasses); p++) {
+			int o = p + rd.nextInt(order.length - p);
+			int tmp = order[p];
+			order[p] = order[o];
+			order[o] = tmp;
+
+			DefaultVectorSignature s = batch.get(order[p]);
+			boolean tooClose = false;
+			for (DefaultVectorSignature c : chosen) {
+				if (computeDistance(s, c) == 0) {
+					tooClose = true;
+					break;
+				}
+			}
+			if (!tooClose) {
+				chosen.add(s);
+			}
+		}
+		if (chosen.size() < nbClasses) {
+			throw new ClusteringException("Not enough distinct points in the first batch (" + chosen.size() + " / " + nbClasses + ")");
+		}
+
+		values = new double[nbClasses][];
+		for (int c = 0; c < nbClasses; c++) {
+			values[c] = DistanceKernels.toArray(chosen.get(c)).clone();
+		}
+	}
+
+	/**
+	 * Sets the distance used to affect the points. The centroids are always
+	 * means, it should be the L2 one or a close one.
+	 * 
+	 * @param distance
+	 *            the new distance
+	 */
+	public void setDistance(SignatureDistance<VectorSignature> distance) {
+		this.distance = distance;
+	}
+
+	/**
+	 * Sets the nb max batches.
+	 * 
+	 * @param nbMaxBatches
+	 *            the new nb max batches, 0 to read the whole stream
+	 */
+	public void setNbMaxBatches(int nbMaxBatches) {
+		this.nbMaxBatches = nbMaxBatches;
+	}
+
+	/**
+	 * Sets the seed of the random generator.
+	 * 
+	 * @param seed
+	 *            the new seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+}
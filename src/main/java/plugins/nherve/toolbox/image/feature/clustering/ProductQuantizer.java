@@ -0,0 +1,415 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.clustering;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+/**
+ * Product quantization codec (Jegou, Douze &amp; Schmid). The vector space is
+ * split in consecutive sub-spaces, each one quantized by its own
+ * {@link KMeans} of at most 256 centroids, so that a signature is stored as
+ * one byte per sub-space.
+ * 
+ * The distance between a query and an encoded signature is computed
+ * asymmetrically : the query is kept exact, and a per-query table gives the
+ * contribution of each centroid of each sub-space.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class ProductQuantizer extends Algorithm {
+
+	/** The Constant VERSION. */
+	public final static String VERSION = "ProductQuantizer_v1.0.0";
+
+	/** The Constant MAX_CENTROIDS. */
+	public final static int MAX_CENTROIDS = 256;
+
+	/**
+	 * Load a codec.
+	 * 
+	 * @param fc
+	 *            the file channel
+	 * @return the codec
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static ProductQuantizer load(FileChannel fc) throws IOException {
+		String version = PersistenceToolbox.loadString(fc);
+		if (!VERSION.equals(version)) {
+			throw new IOException("Incompatible codec version (" + version + "/" + VERSION + ")");
+		}
+		int dim = PersistenceToolbox.loadInt(fc);
+		int nbSubspaces = PersistenceToolbox.loadInt(fc);
+		int nbCentroids = PersistenceToolbox.loadInt(fc);
+		ProductQuantizer pq = new ProductQuantizer(dim, nbSubspaces, nbCentroids);
+		for (int j = 0; j < nbSubspaces; j++) {
+			pq.centroids[j] = PersistenceToolbox.loadDenseVectorSignature(fc).getData();
+		}
+		return pq;
+	}
+
+	/**
+	 * Train a codec.
+	 * 
+	 * @param points
+	 *            the training signatures
+	 * @param nbSubspaces
+	 *            the number of sub-spaces, i.e. the number of bytes of a code
+	 * @param nbCentroids
+	 *            the number of centroids of each sub-space, at most 256
+	 * @param nbMaxIterations
+	 *            the nb max iterations of each KMeans
+	 * @return the codec
+	 * @throws ClusteringException
+	 *             the clustering exception
+	 */
+	public static ProductQuantizer train(List<? extends VectorSignature> points, int nbSubspaces, int nbCentroids, int nbMaxIterations) throws ClusteringException {
+		if (points.isEmpty()) {
+			throw new ClusteringException("No training signature");
+		}
+		int dim = points.get(0).getSize();
+		if ((nbSubspaces < 1) || (nbSubspaces > dim)) {
+			throw new ClusteringException("Wrong number of sub-spaces (" + nbSubspaces + " for " + dim + " dimensions)");
+		}
+		if ((nbCentroids < 2) || (nbCentroids > MAX_CENTROIDS)) {
+			throw new ClusteringException("Wrong number of centroids (" + nbCentroids + ")");
+		}
+
+		ProductQuantizer pq = new ProductQuantizer(dim, nbSubspaces, nbCentroids);
+		try {
+			List<double[]> values = new ArrayList<double[]>(points.size());
+			for (VectorSignature s : points) {
+				values.add(values(s));
+			}
+
+			for (int j = 0; j < nbSubspaces; j++) {
+				int from = pq.start[j];
+				int len = pq.start[j + 1] - from;
+				List<DefaultVectorSignature> sub = new ArrayList<DefaultVectorSignature>(values.size());
+				for (double[] v : values) {
+					double[] sv = new double[len];
+					System.arraycopy(v, from, sv, 0, len);
+					sub.add(new DenseVectorSignature(sv));
+				}
+
+				List<DefaultVectorSignature> ctr = distinct(sub, nbCentroids);
+				if (ctr == null) {
+					KMeans km = new KMeans(nbCentroids, nbMaxIterations, 0);
+					km.compute(sub);
+					ctr = km.getCentroids();
+				}
+				double[] c = new double[nbCentroids * len];
+				for (int k = 0; k < nbCentroids; k++) {
+					// less distinct points than centroids : the missing ones are copies
+					double[] cv = ((DenseVectorSignature) ctr.get(Math.min(k, ctr.size() - 1))).getReadOnlyData();
+					System.arraycopy(cv, 0, c, k * len, len);
+				}
+				pq.centroids[j] = c;
+				pq.info("ProductQuantizer sub-space " + (j + 1) + " / " + nbSubspaces + " trained");
+			}
+		} catch (SignatureException e) {
+			throw new ClusteringException(e);
+		}
+		return pq;
+	}
+
+	/**
+	 * Gets the distinct signatures of a sub-space, if there are not more than
+	 * the number of centroids. The KMeans initialization needs more distinct
+	 * points than centroids.
+	 * 
+	 * @param sub
+	 *            the sub-space signatures
+	 * @param nbCentroids
+	 *            the nb centroids
+	 * @return the distinct signatures, null if there are more than nbCentroids
+	 */
+	private static List<DefaultVectorSignature> distinct(List<DefaultVectorSignature> sub, int nbCentroids) {
+		Map<List<Double>, DefaultVectorSignature> distinct = new LinkedHashMap<List<Double>, DefaultVectorSignature>();
+		for (DefaultVectorSignature s : sub) {
+			double[] v = ((DenseVectorSignature) s).getReadOnlyData();
+			List<Double> key = new ArrayList<Double>(v.length);
+			for (double d : v) {
+				key.add(d);
+			}
+			distinct.put(key, s);
+			if (distinct.size() > nbCentroids) {
+				return null;
+			}
+		}
+		return new ArrayList<DefaultVectorSignature>(distinct.values());
+	}
+
+	/**
+	 * Gets the values of a signature.
+	 * 
+	 * @param s
+	 *            the s
+	 * @return the values
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private static double[] values(VectorSignature s) throws SignatureException {
+		if (s instanceof DenseVectorSignature) {
+			return ((DenseVectorSignature) s).getReadOnlyData();
+		}
+		double[] v = new double[s.getSize()];
+		for (int d = 0; d < v.length; d++) {
+			v[d] = s.get(d);
+		}
+		return v;
+	}
+
+	/** The dimension. */
+	private final int dim;
+
+	/** The number of sub-spaces. */
+	private final int nbSubspaces;
+
+	/** The number of centroids of each sub-space. */
+	private final int nbCentroids;
+
+	/** The first dimension of each sub-space, and dim. */
+	private final int[] start;
+
+	/** The centroids of each sub-space, one after the other. */
+	private final double[][] centroids;
+
+	/**
+	 * Instantiates a new product quantizer.
+	 * 
+	 * @param dim
+	 *            the dim
+	 * @param nbSubspaces
+	 *            the nb subspaces
+	 * @param nbCentroids
+	 *            the nb centroids
+	 */
+	private ProductQuantizer(int dim, int nbSubspaces, int nbCentroids) {
+		super();
+		this.dim = dim;
+		this.nbSubspaces = nbSubspaces;
+		this.nbCentroids = nbCentroids;
+		this.start = new int[nbSubspaces + 1];
+		for (int j = 0; j <= nbSubspaces; j++) {
+			start[j] = (int) ((long) dim * j / nbSubspaces);
+		}
+		this.centroids = new double[nbSubspaces][];
+	}
+
+	/**
+	 * Approximate distance between a query and an encoded signature.
+	 * 
+	 * @param table
+	 *            the table of the query, see computeTable
+	 * @param codes
+	 *            the codes
+	 * @param offset
+	 *            the offset of the code in the array
+	 * @return the sum of the contributions of the sub-spaces
+	 */
+	public double distance(double[] table, byte[] codes, int offset) {
+		double d = 0;
+		for (int j = 0, t = 0; j < nbSubspaces; j++, t += nbCentroids) {
+			d += table[t + (codes[offset + j] & 0xFF)];
+		}
+		return d;
+	}
+
+	/**
+	 * Compute the table of the contributions of each centroid of each
+	 * sub-space to the distance to a query.
+	 * 
+	 * @param query
+	 *            the query
+	 * @param l1
+	 *            true for the L1 distance, the squared L2 distance otherwise
+	 * @return the table
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public double[] computeTable(VectorSignature query, boolean l1) throws SignatureException {
+		checkSize(query);
+		double[] q = values(query);
+		double[] table = new double[nbSubspaces * nbCentroids];
+		for (int j = 0; j < nbSubspaces; j++) {
+			int from = start[j];
+			int len = start[j + 1] - from;
+			double[] c = centroids[j];
+			for (int k = 0; k < nbCentroids; k++) {
+				double sum = 0;
+				int o = k * len;
+				if (l1) {
+					for (int d = 0; d < len; d++) {
+						sum += Math.abs(q[from + d] - c[o + d]);
+					}
+				} else {
+					for (int d = 0; d < len; d++) {
+						double e = q[from + d] - c[o + d];
+						sum += e * e;
+					}
+				}
+				table[j * nbCentroids + k] = sum;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Check the size of a signature.
+	 * 
+	 * @param s
+	 *            the s
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void checkSize(VectorSignature s) throws SignatureException {
+		if (s.getSize() != dim) {
+			throw new SignatureException("VectorSignature dimensions mismatch (" + s.getSize() + " / " + dim + ")");
+		}
+	}
+
+	/**
+	 * Decode a signature, each sub-space being replaced by its centroid.
+	 * 
+	 * @param codes
+	 *            the codes
+	 * @param offset
+	 *            the offset of the code in the array
+	 * @return the signature
+	 */
+	public DenseVectorSignature decode(byte[] codes, int offset) {
+		double[] v = new double[dim];
+		for (int j = 0; j < nbSubspaces; j++) {
+			int len = start[j + 1] - start[j];
+			System.arraycopy(centroids[j], (codes[offset + j] & 0xFF) * len, v, start[j], len);
+		}
+		return new DenseVectorSignature(v);
+	}
+
+	/**
+	 * Dump the codec.
+	 * 
+	 * @param fc
+	 *            the file channel
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dump(FileChannel fc) throws IOException {
+		PersistenceToolbox.dumpString(fc, VERSION);
+		PersistenceToolbox.dumpInt(fc, dim);
+		PersistenceToolbox.dumpInt(fc, nbSubspaces);
+		PersistenceToolbox.dumpInt(fc, nbCentroids);
+		for (int j = 0; j < nbSubspaces; j++) {
+			PersistenceToolbox.dumpDenseVectorSignature(fc, new DenseVectorSignature(centroids[j]));
+		}
+	}
+
+	/**
+	 * Encode a signature.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @param codes
+	 *            the array where the code is written
+	 * @param offset
+	 *            the offset of the code in the array
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public void encode(VectorSignature s, byte[] codes, int offset) throws SignatureException {
+		checkSize(s);
+		double[] v = values(s);
+		for (int j = 0; j < nbSubspaces; j++) {
+			int from = start[j];
+			int len = start[j + 1] - from;
+			double[] c = centroids[j];
+			double best = Double.MAX_VALUE;
+			int closest = 0;
+			for (int k = 0; k < nbCentroids; k++) {
+				double sum = 0;
+				int o = k * len;
+				for (int d = 0; (d < len) && (sum < best); d++) {
+					double e = v[from + d] - c[o + d];
+					sum += e * e;
+				}
+				if (sum < best) {
+					best = sum;
+					closest = k;
+				}
+			}
+			codes[offset + j] = (byte) closest;
+		}
+	}
+
+	/**
+	 * Encode a signature.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @return the code
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public byte[] encode(VectorSignature s) throws SignatureException {
+		byte[] codes = new byte[nbSubspaces];
+		encode(s, codes, 0);
+		return codes;
+	}
+
+	/**
+	 * Gets the dimension of the signatures.
+	 * 
+	 * @return the dim
+	 */
+	public int getDim() {
+		return dim;
+	}
+
+	/**
+	 * Gets the number of centroids of each sub-space.
+	 * 
+	 * @return the nb centroids
+	 */
+	public int getNbCentroids() {
+		return nbCentroids;
+	}
+
+	/**
+	 * Gets the number of sub-spaces, which is the size of a code in bytes.
+	 * 
+	 * @return the nb subspaces
+	 */
+	public int getNbSubspaces() {
+		return nbSubspaces;
+	}
+
+}
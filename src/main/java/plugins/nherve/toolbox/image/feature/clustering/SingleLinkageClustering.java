@@ -0,0 +1,305 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.clustering;
+
+import java.util.Arrays;
+import java.util.List;
+
+import plugins.nherve.toolbox.concurrent.MultipleDataTask;
+import plugins.nherve.toolbox.concurrent.TaskException;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.feature.DefaultClusteringAlgorithmImpl;
+import plugins.nherve.toolbox.image.feature.Signature;
+import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * Single linkage clustering through a minimum spanning tree of the points,
+ * computed with Prim's algorithm. The distances are computed on demand, in
+ * O(n^2) time but O(n) memory, the points being compared with the last point
+ * added to the tree in parallel on the second level TaskManager.
+ * 
+ * For a given threshold, the affectations are the same as the ones of
+ * {@link AgglomerativeClustering}. The {@link Dendrogram} is kept, so that the
+ * threshold can be changed without any new distance computation.
+ * 
+ * @param <T>
+ *            the generic type
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class SingleLinkageClustering<T extends Signature> extends DefaultClusteringAlgorithmImpl<T> {
+
+	/**
+	 * The Class PrimWorker. Update the distance of the points of its range to
+	 * the tree with the point just added, and find the nearest one.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	public class PrimWorker extends MultipleDataTask<T, Integer> {
+
+		/** The nearest point of the range. */
+		private int nearest;
+
+		/**
+		 * Instantiates a new prim worker.
+		 * 
+		 * @param allData
+		 *            the all data
+		 * @param idx1
+		 *            the idx1
+		 * @param idx2
+		 *            the idx2
+		 */
+		public PrimWorker(List<T> allData, int idx1, int idx2) {
+			super(allData, idx1, idx2);
+			nearest = -1;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call(java.lang.Object, int)
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public void call(T data, int idx) throws SignatureException {
+			if (inTree[idx]) {
+				return;
+			}
+			// same argument order as the condensed matrix of
+			// AgglomerativeClustering, for the same values
+			double d = idx < added ? distance.computeDistance(data, get(added)) : distance.computeDistance(get(added), data);
+			if (d < best[idx]) {
+				best[idx] = d;
+				bestFrom[idx] = added;
+			}
+			if ((nearest < 0) || (best[idx] < best[nearest])) {
+				nearest = idx;
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#outputCall()
+		 */
+		@Override
+		public Integer outputCall() {
+			return nearest;
+		}
+
+		@Override
+		public void processContextualData() {
+		}
+
+	}
+
+	/** The distance. */
+	@SuppressWarnings("rawtypes")
+	private SignatureDistance distance;
+
+	/** The threshold. */
+	private double threshold;
+
+	/** The dendrogram. */
+	private Dendrogram dendrogram;
+
+	/** The affectations. */
+	private int[] affectation;
+
+	/** The nb classes. */
+	private int nbClasses;
+
+	/** The point just added to the tree. */
+	private int added;
+
+	/** Whether each point is in the tree. */
+	private boolean[] inTree;
+
+	/** The distance of each point to the tree. */
+	private double[] best;
+
+	/** The nearest point of the tree for each point. */
+	private int[] bestFrom;
+
+	/**
+	 * Instantiates a new single linkage clustering.
+	 * 
+	 * @param display
+	 *            the display
+	 */
+	public SingleLinkageClustering(boolean display) {
+		super(display);
+
+		distance = new L2Distance();
+		threshold = 2;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#compute(java.util
+	 * .List)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void compute(List<T> points) throws ClusteringException {
+		int n = points.size();
+		info("SingleLinkageClustering - Minimum spanning tree of " + n + " points");
+
+		int[] edgeFrom = new int[Math.max(0, n - 1)];
+		int[] edgeTo = new int[edgeFrom.length];
+		double[] weights = new double[edgeFrom.length];
+
+		if (n > 1) {
+			inTree = new boolean[n];
+			best = new double[n];
+			bestFrom = new int[n];
+			Arrays.fill(best, Double.POSITIVE_INFINITY);
+
+			TaskManager tm = TaskManager.getSecondLevelInstance();
+			Class<? extends MultipleDataTask<T, Integer>> worker = (Class<? extends MultipleDataTask<T, Integer>>) (Class<?>) PrimWorker.class;
+			try {
+				added = 0;
+				inTree[0] = true;
+				for (int e = 0; e < n - 1; e++) {
+					int next = -1;
+					for (Integer nearest : tm.submitMultiForAll(points, worker, this, "SingleLinkageClustering", 0)) {
+						if (nearest == null) {
+							throw new ClusteringException("SingleLinkageClustering failed");
+						}
+						if ((nearest >= 0) && ((next < 0) || (best[nearest] < best[next]))) {
+							next = nearest;
+						}
+					}
+					edgeFrom[e] = bestFrom[next];
+					edgeTo[e] = next;
+					weights[e] = best[next];
+					inTree[next] = true;
+					added = next;
+				}
+			} catch (TaskException e) {
+				throw new ClusteringException(e);
+			} catch (InterruptedException e) {
+				throw new ClusteringException(e);
+			} finally {
+				inTree = null;
+				best = null;
+				bestFrom = null;
+			}
+		}
+
+		dendrogram = new Dendrogram(n, edgeFrom, edgeTo, weights);
+		cut();
+	}
+
+	/**
+	 * Cut the dendrogram at the current threshold.
+	 */
+	private void cut() {
+		affectation = dendrogram.cut(threshold);
+		nbClasses = AgglomerativeClustering.nbClasses(affectation);
+	}
+
+	/**
+	 * Gets the affectations.
+	 * 
+	 * @return the affectations
+	 * @throws ClusteringException
+	 *             the clustering exception
+	 */
+	public int[] getAffectations() throws ClusteringException {
+		return affectation;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#getAffectations
+	 * (java.util.List)
+	 */
+	@Override
+	public int[] getAffectations(List<T> points) throws ClusteringException {
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#getCentroids()
+	 */
+	@Override
+	public List<T> getCentroids() throws ClusteringException {
+		return null;
+	}
+
+	/**
+	 * Gets the dendrogram.
+	 * 
+	 * @return the dendrogram
+	 */
+	public Dendrogram getDendrogram() {
+		return dendrogram;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.ClusteringAlgorithm#getNbClasses()
+	 */
+	@Override
+	public int getNbClasses() {
+		return nbClasses;
+	}
+
+	/**
+	 * Gets the threshold.
+	 * 
+	 * @return the threshold
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the distance.
+	 * 
+	 * @param distance
+	 *            the new distance
+	 */
+	public void setDistance(SignatureDistance<T> distance) {
+		this.distance = distance;
+	}
+
+	/**
+	 * Sets the threshold. Once computed, the affectations are updated from the
+	 * dendrogram.
+	 * 
+	 * @param threshold
+	 *            the new threshold
+	 */
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+		if (dendrogram != null) {
+			cut();
+		}
+	}
+
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.clustering;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.concurrent.MultipleDataTask;
+import plugins.nherve.toolbox.concurrent.TaskException;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureBlock;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance;
+
+/**
+ * Vocabulary tree (Nister &amp; Stewenius) : the tree of centroids built by a
+ * {@link HierarchicalKMeans}, used to quantize a signature by descending it
+ * level by level instead of comparing it with all the leaves. At each level,
+ * only the children of the best nodes of the previous one are compared, so
+ * that a lookup costs about depth x branching x beam width distances.
+ * 
+ * The centroids are stored in a single {@link SignatureBlock}, the children of
+ * a node being consecutive rows.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class VocabularyTree extends Algorithm {
+
+	/**
+	 * A node of the tree, as built by the clustering.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	public static class Node {
+
+		/** The centroid. */
+		private final DefaultVectorSignature centroid;
+
+		/** The children, null for a leaf. */
+		private final List<Node> children;
+
+		/**
+		 * Instantiates a new node.
+		 * 
+		 * @param centroid
+		 *            the centroid
+		 * @param children
+		 *            the children, null for a leaf
+		 */
+		public Node(DefaultVectorSignature centroid, List<Node> children) {
+			super();
+			this.centroid = centroid;
+			this.children = children;
+		}
+	}
+
+	/**
+	 * The Class QuantizeWorker.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	public class QuantizeWorker extends MultipleDataTask<VectorSignature, Integer> {
+
+		/**
+		 * Instantiates a new quantize worker.
+		 * 
+		 * @param allData
+		 *            the all data
+		 * @param idx1
+		 *            the idx1
+		 * @param idx2
+		 *            the idx2
+		 */
+		public QuantizeWorker(List<VectorSignature> allData, int idx1, int idx2) {
+			super(allData, idx1, idx2);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call(java.lang.Object, int)
+		 */
+		@Override
+		public void call(VectorSignature data, int idx) throws SignatureException {
+			quantized[idx] = quantize(data, quantizeBeamWidth);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#outputCall()
+		 */
+		@Override
+		public Integer outputCall() {
+			return 0;
+		}
+
+		@Override
+		public void processContextualData() {
+		}
+
+	}
+
+	/** The Constant VERSION. */
+	public final static String VERSION = "VocabularyTree_v1.0.0";
+
+	/**
+	 * Build a tree. The leaves are numbered in depth first order, the order
+	 * of the children being kept. The inner nodes without any leaf below them
+	 * are removed.
+	 * 
+	 * @param roots
+	 *            the children of the root
+	 * @return the tree
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public static VocabularyTree build(List<Node> roots) throws SignatureException {
+		List<Node> kept = prune(roots);
+		if (kept.isEmpty()) {
+			throw new SignatureException("Empty vocabulary tree");
+		}
+
+		// breadth first order, the children of a node are consecutive
+		List<Node> order = new ArrayList<Node>(kept);
+		int[] firstChild = new int[order.size()];
+		int[] nbChildren = new int[order.size()];
+		for (int n = 0; n < order.size(); n++) {
+			Node node = order.get(n);
+			if (n >= firstChild.length) {
+				firstChild = Arrays.copyOf(firstChild, Math.max(order.size(), 2 * firstChild.length));
+				nbChildren = Arrays.copyOf(nbChildren, firstChild.length);
+			}
+			if (node.children == null) {
+				firstChild[n] = -1;
+				nbChildren[n] = 0;
+			} else {
+				firstChild[n] = order.size();
+				nbChildren[n] = node.children.size();
+				order.addAll(node.children);
+			}
+		}
+		firstChild = Arrays.copyOf(firstChild, order.size());
+		nbChildren = Arrays.copyOf(nbChildren, order.size());
+
+		SignatureBlock block = new SignatureBlock(order.size(), order.get(0).centroid.getSize());
+		for (int n = 0; n < order.size(); n++) {
+			block.set(n, order.get(n).centroid);
+		}
+
+		return new VocabularyTree(kept.size(), firstChild, nbChildren, block);
+	}
+
+	/**
+	 * Insert a node in the list of the best ones, sorted by distance.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param d
+	 *            its distance
+	 * @param ids
+	 *            the best nodes
+	 * @param dists
+	 *            their distances
+	 * @param nb
+	 *            the number of best nodes
+	 * @param beamWidth
+	 *            the maximum number of best nodes
+	 * @return the new number of best nodes
+	 */
+	private static int insert(int node, double d, int[] ids, double[] dists, int nb, int beamWidth) {
+		if ((nb == beamWidth) && (d >= dists[nb - 1])) {
+			return nb;
+		}
+		int p = nb < beamWidth ? nb : nb - 1;
+		while ((p > 0) && (dists[p - 1] > d)) {
+			ids[p] = ids[p - 1];
+			dists[p] = dists[p - 1];
+			p--;
+		}
+		ids[p] = node;
+		dists[p] = d;
+		return nb < beamWidth ? nb + 1 : nb;
+	}
+
+	/**
+	 * Load a tree.
+	 * 
+	 * @param fc
+	 *            the file channel
+	 * @return the tree
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static VocabularyTree load(FileChannel fc) throws IOException {
+		String version = PersistenceToolbox.loadString(fc);
+		if (!VERSION.equals(version)) {
+			throw new IOException("Incompatible vocabulary tree version (" + version + "/" + VERSION + ")");
+		}
+		int dim = PersistenceToolbox.loadInt(fc);
+		int nbRootChildren = PersistenceToolbox.loadInt(fc);
+		int[] firstChild = PersistenceToolbox.loadFullIntArray(fc);
+		int[] nbChildren = PersistenceToolbox.loadFullIntArray(fc);
+		if ((firstChild.length != nbChildren.length) || (nbRootChildren <= 0) || (nbRootChildren > firstChild.length)) {
+			throw new IOException("Corrupted vocabulary tree (" + nbRootChildren + "/" + firstChild.length + "/" + nbChildren.length + ")");
+		}
+		SignatureBlock block = new SignatureBlock(firstChild.length, dim);
+		try {
+			for (int n = 0; n < firstChild.length; n++) {
+				block.set(n, PersistenceToolbox.loadDenseVectorSignature(fc));
+			}
+		} catch (SignatureException e) {
+			throw new IOException(e);
+		}
+		return new VocabularyTree(nbRootChildren, firstChild, nbChildren, block);
+	}
+
+	/**
+	 * Remove the nodes that have no leaf below them.
+	 * 
+	 * @param nodes
+	 *            the nodes
+	 * @return the remaining nodes
+	 */
+	private static List<Node> prune(List<Node> nodes) {
+		List<Node> kept = new ArrayList<Node>();
+		for (Node n : nodes) {
+			if (n.children == null) {
+				kept.add(n);
+			} else {
+				List<Node> children = prune(n.children);
+				if (!children.isEmpty()) {
+					kept.add(new Node(n.centroid, children));
+				}
+			}
+		}
+		return kept;
+	}
+
+	/** The number of children of the root. They are the first rows. */
+	private final int nbRootChildren;
+
+	/** The row of the first child of each node, -1 for the leaves. */
+	private final int[] firstChild;
+
+	/** The number of children of each node. */
+	private final int[] nbChildren;
+
+	/** The leaf index of each node, -1 for the inner nodes. */
+	private final int[] leaf;
+
+	/** The node of each leaf. */
+	private final int[] leafNodes;
+
+	/** The largest number of children of a node. */
+	private final int maxChildren;
+
+	/** The centroids of the nodes. */
+	private final SignatureBlock block;
+
+	/** The distance. */
+	private VectorSignatureDistance distance;
+
+	/** The results of the current batch quantization. */
+	private int[] quantized;
+
+	/** The beam width of the current batch quantization. */
+	private int quantizeBeamWidth;
+
+	/**
+	 * Instantiates a new vocabulary tree.
+	 * 
+	 * @param nbRootChildren
+	 *            the number of children of the root
+	 * @param firstChild
+	 *            the row of the first child of each node
+	 * @param nbChildren
+	 *            the number of children of each node
+	 * @param block
+	 *            the centroids of the nodes, in breadth first order
+	 */
+	private VocabularyTree(int nbRootChildren, int[] firstChild, int[] nbChildren, SignatureBlock block) {
+		super();
+		this.nbRootChildren = nbRootChildren;
+		this.firstChild = firstChild;
+		this.nbChildren = nbChildren;
+		this.block = block;
+		this.distance = new L2Distance();
+
+		int max = nbRootChildren;
+		int nbLeaves = 0;
+		for (int n = 0; n < nbChildren.length; n++) {
+			max = Math.max(max, nbChildren[n]);
+			if (nbChildren[n] == 0) {
+				nbLeaves++;
+			}
+		}
+		this.maxChildren = max;
+		this.leaf = new int[nbChildren.length];
+		this.leafNodes = new int[nbLeaves];
+		numberLeaves(0, nbRootChildren, 0);
+	}
+
+	/**
+	 * Dump the tree. The distance is not saved.
+	 * 
+	 * @param fc
+	 *            the file channel
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void dump(FileChannel fc) throws IOException {
+		PersistenceToolbox.dumpString(fc, VERSION);
+		PersistenceToolbox.dumpInt(fc, block.getDim());
+		PersistenceToolbox.dumpInt(fc, nbRootChildren);
+		PersistenceToolbox.dumpFullIntArray(fc, firstChild);
+		PersistenceToolbox.dumpFullIntArray(fc, nbChildren);
+		for (int n = 0; n < firstChild.length; n++) {
+			PersistenceToolbox.dumpDenseVectorSignature(fc, block.getSignature(n));
+		}
+	}
+
+	/**
+	 * Compare a signature with consecutive nodes and keep the best ones.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @param first
+	 *            the first node
+	 * @param nb
+	 *            the number of nodes
+	 * @param buffer
+	 *            the distances buffer
+	 * @param ids
+	 *            the best nodes
+	 * @param dists
+	 *            their distances
+	 * @param nbBest
+	 *            the number of best nodes
+	 * @param beamWidth
+	 *            the maximum number of best nodes
+	 * @return the new number of best nodes
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private int expand(VectorSignature s, int first, int nb, double[] buffer, int[] ids, double[] dists, int nbBest, int beamWidth) throws SignatureException {
+		distance.computeDistances(s, block, first, first + nb, buffer, 0);
+		for (int c = 0; c < nb; c++) {
+			nbBest = insert(first + c, buffer[c], ids, dists, nbBest, beamWidth);
+		}
+		return nbBest;
+	}
+
+	/**
+	 * Gets the dimension.
+	 * 
+	 * @return the dim
+	 */
+	public int getDim() {
+		return block.getDim();
+	}
+
+	/**
+	 * Gets the distance.
+	 * 
+	 * @return the distance
+	 */
+	public VectorSignatureDistance getDistance() {
+		return distance;
+	}
+
+	/**
+	 * Gets the centroids of the leaves, in the order of their indexes.
+	 * 
+	 * @return the leaves
+	 */
+	public List<DefaultVectorSignature> getLeaves() {
+		List<DefaultVectorSignature> leaves = new ArrayList<DefaultVectorSignature>(leafNodes.length);
+		for (int node : leafNodes) {
+			leaves.add(block.getSignature(node));
+		}
+		return leaves;
+	}
+
+	/**
+	 * Gets the number of leaves.
+	 * 
+	 * @return the nb leaves
+	 */
+	public int getNbLeaves() {
+		return leafNodes.length;
+	}
+
+	/**
+	 * Gets the number of nodes, the root excluded.
+	 * 
+	 * @return the nb nodes
+	 */
+	public int getNbNodes() {
+		return firstChild.length;
+	}
+
+	/**
+	 * Number the leaves below consecutive nodes, in depth first order.
+	 * 
+	 * @param first
+	 *            the first node
+	 * @param nb
+	 *            the number of nodes
+	 * @param next
+	 *            the next leaf index
+	 * @return the next leaf index
+	 */
+	private int numberLeaves(int first, int nb, int next) {
+		for (int n = first; n < first + nb; n++) {
+			if (nbChildren[n] == 0) {
+				leaf[n] = next;
+				leafNodes[next] = n;
+				next++;
+			} else {
+				leaf[n] = -1;
+				next = numberLeaves(firstChild[n], nbChildren[n], next);
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Quantize a signature. With a beam width of 1, the nearest child is
+	 * followed at each level. With a larger one, the children of the
+	 * beamWidth best nodes of a level are compared to choose the best ones of
+	 * the next level, which reduces the errors due to the greedy descent.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @param beamWidth
+	 *            the beam width
+	 * @return the index of the leaf
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public int quantize(VectorSignature s, int beamWidth) throws SignatureException {
+		beamWidth = Math.max(1, beamWidth);
+		double[] buffer = new double[maxChildren];
+		int[] ids = new int[beamWidth];
+		double[] dists = new double[beamWidth];
+		int[] nextIds = new int[beamWidth];
+		double[] nextDists = new double[beamWidth];
+
+		int nb = expand(s, 0, nbRootChildren, buffer, ids, dists, 0, beamWidth);
+		boolean inner = true;
+		while (inner) {
+			inner = false;
+			int nbNext = 0;
+			for (int b = 0; b < nb; b++) {
+				int n = ids[b];
+				if (nbChildren[n] == 0) {
+					nbNext = insert(n, dists[b], nextIds, nextDists, nbNext, beamWidth);
+				} else {
+					inner = true;
+					nbNext = expand(s, firstChild[n], nbChildren[n], buffer, nextIds, nextDists, nbNext, beamWidth);
+				}
+			}
+			int[] ti = ids;
+			ids = nextIds;
+			nextIds = ti;
+			double[] td = dists;
+			dists = nextDists;
+			nextDists = td;
+			nb = nbNext;
+		}
+
+		return leaf[ids[0]];
+	}
+
+	/**
+	 * Quantize signatures in parallel, on the second level TaskManager.
+	 * 
+	 * @param points
+	 *            the signatures
+	 * @param beamWidth
+	 *            the beam width
+	 * @return the index of the leaf of each signature
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized int[] quantize(List<? extends VectorSignature> points, int beamWidth) throws SignatureException {
+		quantized = new int[points.size()];
+		quantizeBeamWidth = beamWidth;
+		TaskManager tm = TaskManager.getSecondLevelInstance();
+		try {
+			for (Integer r : tm.submitMultiForAll((List<VectorSignature>) points, QuantizeWorker.class, this, "VocabularyTree", 0)) {
+				if (r == null) {
+					throw new SignatureException("VocabularyTree quantization failed");
+				}
+			}
+			return quantized;
+		} catch (TaskException e) {
+			throw new SignatureException(e);
+		} catch (InterruptedException e) {
+			throw new SignatureException(e);
+		} finally {
+			quantized = null;
+		}
+	}
+
+	/**
+	 * Sets the distance.
+	 * 
+	 * @param distance
+	 *            the new distance
+	 */
+	public void setDistance(VectorSignatureDistance distance) {
+		this.distance = distance;
+	}
+
+}
@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
+import plugins.nherve.toolbox.Algorithm;
 import plugins.nherve.toolbox.PerfMonitor;
 import plugins.nherve.toolbox.concurrent.MultipleDataTask;
 import plugins.nherve.toolbox.concurrent.TaskException;
@@ -33,6 +34,8 @@ import plugins.nherve.toolbox.image.feature.clustering.ClusteringException;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.L2DistanceMatrix;
+import plugins.nherve.toolbox.image.feature.signature.SignatureBlock;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
 import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
 
@@ -71,7 +74,6 @@ public class FuzzyCMeans extends DefaultFuzzyClusteringAlgorithmImpl {
 		 */
 		@Override
 		public void call(DefaultVectorSignature vs, int idx) throws Exception {
-			double nexp = 2d / (fuzzyfier - 1);
 			double[] dst = new double[nbClasses];
 			int c = 0;
 			for (DefaultVectorSignature s : centroids) {
@@ -79,15 +81,49 @@ public class FuzzyCMeans extends DefaultFuzzyClusteringAlgorithmImpl {
 				c++;
 			}
 
-			for (int c1 = 0; c1 < nbClasses; c1++) {
-				double m = 0;
-				double num = dst[c1];
-				for (int c2 = 0; c2 < nbClasses; c2++) {
-					m += Math.pow(num / dst[c2], nexp);
+			memberships(dst, 0, memberships[idx]);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.concurrent.MultipleDataTask#call()
+		 */
+		@Override
+		public Integer call() {
+			L2DistanceMatrix m = centroidMatrix;
+			if (m == null) {
+				return super.call();
+			}
+			try {
+				List<DefaultVectorSignature> points = getAllData();
+				SignatureBlock rows = new SignatureBlock(L2DistanceMatrix.ROW_TILE, m.getColumns().getDim());
+				double[] dst = new double[rows.size() * nbClasses];
+				double[] rowSqNorms = new double[rows.size()];
+				for (int p = getIdx1(); p < getIdx2(); p += rows.size()) {
+					int n = Math.min(rows.size(), getIdx2() - p);
+					for (int r = 0; r < n; r++) {
+						rows.set(r, points.get(p + r));
+					}
+					m.squaredDistances(rows, 0, n, dst, rowSqNorms);
+					for (int r = 0, i = 0; r < n; r++) {
+						for (int c = 0; c < nbClasses; c++, i++) {
+							// the error of the decomposition is absolute, a
+							// point close to a centroid must not get a null
+							// distance
+							if (dst[i] <= m.getError(rowSqNorms[r], c)) {
+								dst[i] = m.exactSquaredDistance(rows, r, c);
+							}
+							dst[i] = Math.sqrt(dst[i]);
+						}
+					}
+					for (int r = 0; r < n; r++) {
+						memberships(dst, r * nbClasses, memberships[p + r]);
+					}
 				}
-				memberships[idx][c1] = 1d / m;
+				return outputCall();
+			} catch (Exception e) {
+				Algorithm.err(e);
+				return null;
 			}
-
 		}
 
 		/* (non-Javadoc)
@@ -128,6 +164,9 @@ public class FuzzyCMeans extends DefaultFuzzyClusteringAlgorithmImpl {
 	/** The fuzzyfier. */
 	private double fuzzyfier;
 
+	/** The distance matrix on the centroids, used by the L2 distance. */
+	private L2DistanceMatrix centroidMatrix;
+
 	/**
 	 * Instantiates a new fuzzy c means.
 	 * 
@@ -213,6 +252,7 @@ public class FuzzyCMeans extends DefaultFuzzyClusteringAlgorithmImpl {
 	 *            the points
 	 */
 	private void computeMemberships(List<DefaultVectorSignature> points) {
+		centroidMatrix = centroidMatrix();
 		TaskManager tm = TaskManager.getSecondLevelInstance();
 		try {
 			tm.submitMultiForAll(points, ComputeMembershipWorker.class, this, "FCM", 0);
@@ -221,6 +261,49 @@ public class FuzzyCMeans extends DefaultFuzzyClusteringAlgorithmImpl {
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
+		centroidMatrix = null;
+	}
+
+	/**
+	 * Distance matrix on the current centroids, only available for the L2
+	 * distance. The distances it gives are approximations, with an absolute
+	 * error bounded by {@link L2DistanceMatrix#getError(double, int)}. They
+	 * are fine for the memberships, except for the ones below their bound,
+	 * which are computed again exactly.
+	 * 
+	 * @return the matrix, null if the distance is not the L2 one
+	 */
+	private L2DistanceMatrix centroidMatrix() {
+		if ((distance == null) || (distance.getClass() != L2Distance.class) || (centroids == null) || centroids.isEmpty()) {
+			return null;
+		}
+		try {
+			return new L2DistanceMatrix(centroids);
+		} catch (SignatureException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compute the memberships of a point from its distances to the centroids.
+	 * 
+	 * @param dst
+	 *            the distances
+	 * @param offset
+	 *            the offset of the distances of the point in dst
+	 * @param m
+	 *            the memberships
+	 */
+	private void memberships(double[] dst, int offset, double[] m) {
+		double nexp = 2d / (fuzzyfier - 1);
+		for (int c1 = 0; c1 < nbClasses; c1++) {
+			double im = 0;
+			double num = dst[offset + c1];
+			for (int c2 = 0; c2 < nbClasses; c2++) {
+				im += Math.pow(num / dst[offset + c2], nexp);
+			}
+			m[c1] = 1d / im;
+		}
 	}
 
 	/* (non-Javadoc)
@@ -373,7 +456,6 @@ public class FuzzyCMeans extends DefaultFuzzyClusteringAlgorithmImpl {
 	@Override
 	public double[] getMemberships(DefaultVectorSignature point) throws ClusteringException {
 		try {
-			double nexp = 2d / (fuzzyfier - 1);
 			double[] dst = new double[nbClasses];
 			double[] m = new double[nbClasses];
 			int c = 0;
@@ -382,14 +464,7 @@ public class FuzzyCMeans extends DefaultFuzzyClusteringAlgorithmImpl {
 				c++;
 			}
 
-			for (int c1 = 0; c1 < nbClasses; c1++) {
-				double im = 0;
-				double num = dst[c1];
-				for (int c2 = 0; c2 < nbClasses; c2++) {
-					im += Math.pow(num / dst[c2], nexp);
-				}
-				m[c1] = 1d / im;
-			}
+			memberships(dst, 0, m);
 
 			return m;
 		} catch (SignatureException e) {
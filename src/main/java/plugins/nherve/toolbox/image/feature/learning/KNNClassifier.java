@@ -18,10 +18,13 @@
  */
 package plugins.nherve.toolbox.image.feature.learning;
 
-import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import java.util.Arrays;
+
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureBlock;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance;
 
 /**
  * The Class KNNClassifier.
@@ -30,14 +33,14 @@ import plugins.nherve.toolbox.image.feature.signature.SignatureException;
  */
 public class KNNClassifier extends LearningAlgorithm {
 	
-	/** The positive. */
-	private DefaultVectorSignature[] positive;
+	/** The positive examples. */
+	private SignatureBlock positive;
 	
-	/** The negative. */
-	private DefaultVectorSignature[] negative;
+	/** The negative examples. */
+	private SignatureBlock negative;
 	
 	/** The dist. */
-	private SignatureDistance dist;
+	private VectorSignatureDistance dist;
 
 	/**
 	 * Instantiates a new kNN classifier.
@@ -57,17 +60,21 @@ public class KNNClassifier extends LearningAlgorithm {
 		double minDist = Double.MAX_VALUE;
 		
 		try {
-			double d = 0.0;
-			for (DefaultVectorSignature ps : positive) {
-				d = dist.computeDistance(sig, ps);
-				if (d < minDist) {
-					minDist = d;
+			double[] d = new double[Math.max(positive.size(), negative.size())];
+			if (positive.size() > 0) {
+				dist.computeDistances(sig, positive, 0, positive.size(), d, 0);
+			}
+			for (int i = 0; i < positive.size(); i++) {
+				if (d[i] < minDist) {
+					minDist = d[i];
 				}
 			}
 			
-			for (DefaultVectorSignature ps : negative) {
-				d = dist.computeDistance(sig, ps);
-				if (d < minDist) {
+			if (negative.size() > 0) {
+				dist.computeDistances(sig, negative, 0, negative.size(), d, 0);
+			}
+			for (int i = 0; i < negative.size(); i++) {
+				if (d[i] < minDist) {
 					return false;
 				}
 			}
@@ -84,8 +91,12 @@ public class KNNClassifier extends LearningAlgorithm {
 	 */
 	@Override
 	protected void learnImpl(DefaultVectorSignature[] positive, DefaultVectorSignature[] negative) throws ClassifierException {
-		this.positive = positive;
-		this.negative = negative;
+		try {
+			this.positive = new SignatureBlock(Arrays.asList(positive));
+			this.negative = new SignatureBlock(Arrays.asList(negative));
+		} catch (SignatureException e) {
+			throw new ClassifierException(e);
+		}
 	}
 
 	/* (non-Javadoc)
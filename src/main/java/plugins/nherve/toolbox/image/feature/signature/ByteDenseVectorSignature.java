@@ -0,0 +1,455 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ * 
+ * This file is part of NHerveTools.
+ * 
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Dense vector signature scalar quantized on one byte per dimension. The value
+ * of a dimension is <code>offset + scale * q</code>, q being the stored signed
+ * byte, so a signature covers 256 evenly spaced values between the bounds
+ * given when it has been quantized. The values set afterwards are quantized
+ * with the same bounds, a value out of them is refused. The operations on the
+ * whole signature (add, multiply, normalizations, setAll, concat) quantize the
+ * result again with new bounds, so that two signatures modified this way may
+ * no longer share the same quantization.
+ * 
+ * The distances between two signatures sharing the same bounds are computed
+ * directly on the bytes.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class ByteDenseVectorSignature extends DefaultVectorSignature {
+
+	/**
+	 * The Class BDVSIterator.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class BDVSIterator implements Iterator<Integer> {
+
+		/** The d. */
+		private int d;
+
+		/**
+		 * Instantiates a new iterator.
+		 */
+		public BDVSIterator() {
+			super();
+			this.d = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while (d < data.length) {
+				if (offset + scale * data[d] != 0) {
+					return true;
+				}
+				d++;
+			}
+
+			return false;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public Integer next() {
+			int r = d;
+			d++;
+			return r;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			// not used
+		}
+	}
+
+	/** The number of quantization levels. */
+	public final static int LEVELS = 256;
+
+	/**
+	 * Quantize a signature between its own minimum and maximum values.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @return the quantized signature
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public static ByteDenseVectorSignature quantize(VectorSignature s) throws SignatureException {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int d = 0; d < s.getSize(); d++) {
+			double v = s.get(d);
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		if (s.getSize() == 0) {
+			min = 0;
+			max = 0;
+		}
+		return quantize(s, min, max);
+	}
+
+	/**
+	 * Quantize a signature between fixed bounds. The signatures quantized
+	 * with the same bounds are compared on their bytes.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @param min
+	 *            the min
+	 * @param max
+	 *            the max
+	 * @return the quantized signature
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public static ByteDenseVectorSignature quantize(VectorSignature s, double min, double max) throws SignatureException {
+		ByteDenseVectorSignature q = new ByteDenseVectorSignature(s.getSize(), min, max);
+		for (int d = 0; d < s.getSize(); d++) {
+			q.data[d] = q.level(Math.max(min, Math.min(max, s.get(d))));
+		}
+		return q;
+	}
+
+	/** The data. */
+	private byte[] data;
+
+	/** The value of the 0 byte. */
+	private double offset;
+
+	/** The step between two levels. */
+	private double scale;
+
+	/**
+	 * Instantiates a new byte dense vector signature.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param offset
+	 *            the value of the 0 byte
+	 * @param scale
+	 *            the step between two levels
+	 */
+	public ByteDenseVectorSignature(byte[] data, double offset, double scale) {
+		super();
+		this.data = data;
+		this.offset = offset;
+		this.scale = scale;
+	}
+
+	/**
+	 * Instantiates a new byte dense vector signature, all its values being at
+	 * the minimum.
+	 * 
+	 * @param size
+	 *            the size
+	 * @param min
+	 *            the min
+	 * @param max
+	 *            the max
+	 */
+	public ByteDenseVectorSignature(int size, double min, double max) {
+		super();
+		this.data = new byte[size];
+		this.scale = (max - min) / (LEVELS - 1);
+		this.offset = min - Byte.MIN_VALUE * scale;
+		Arrays.fill(data, Byte.MIN_VALUE);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#add(plugins.nherve.toolbox.image.feature.signature.VectorSignature)
+	 */
+	@Override
+	public void add(VectorSignature other) throws SignatureException {
+		add(other, 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#add(plugins.nherve.toolbox.image.feature.signature.VectorSignature, double)
+	 */
+	@Override
+	public void add(VectorSignature other, double mult) throws SignatureException {
+		double[] values = new double[data.length];
+		for (int d = 0; d < data.length; d++) {
+			values[d] = get(d) + other.get(d) * mult;
+		}
+		requantize(values);
+	}
+
+	/**
+	 * Check index.
+	 * 
+	 * @param idx
+	 *            the idx
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void checkIndex(int idx) throws SignatureException {
+		if ((idx < 0) || (idx >= data.length)) {
+			throw new SignatureException("Invalid signature index (" + idx + ")");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#clone()
+	 */
+	@Override
+	public ByteDenseVectorSignature clone() throws CloneNotSupportedException {
+		return new ByteDenseVectorSignature(data.clone(), offset, scale);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#concat(plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature)
+	 */
+	@Override
+	public void concat(DefaultVectorSignature other) throws SignatureException {
+		int sz = data.length;
+		double[] values = new double[sz + other.getSize()];
+		for (int d = 0; d < sz; d++) {
+			values[d] = get(d);
+		}
+		for (int i = 0; i < other.getSize(); i++) {
+			values[sz + i] = other.get(i);
+		}
+		requantize(values);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#dot(plugins.nherve.toolbox.image.feature.signature.VectorSignature)
+	 */
+	@Override
+	public double dot(VectorSignature other) throws SignatureException {
+		if (other instanceof ByteDenseVectorSignature) {
+			// sum of (o1 + s1.q1)(o2 + s2.q2), computed on the bytes
+			ByteDenseVectorSignature o = (ByteDenseVectorSignature) other;
+			byte[] od = o.data;
+			long sum1 = 0;
+			long sum2 = 0;
+			long dot = 0;
+			for (int d = 0; d < data.length; d++) {
+				sum1 += data[d];
+				sum2 += od[d];
+				dot += data[d] * od[d];
+			}
+			return data.length * offset * o.offset + offset * o.scale * sum2 + o.offset * scale * sum1 + scale * o.scale * dot;
+		}
+		if (other instanceof DenseVectorSignature) {
+			double[] od = ((DenseVectorSignature) other).getReadOnlyData();
+			double sum = 0;
+			double dot = 0;
+			for (int d = 0; d < data.length; d++) {
+				sum += od[d];
+				dot += data[d] * od[d];
+			}
+			return offset * sum + scale * dot;
+		}
+		return super.dot(other);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#get(int)
+	 */
+	@Override
+	public double get(int idx) throws SignatureException {
+		checkIndex(idx);
+		return offset + scale * data[idx];
+	}
+
+	/**
+	 * Gets the data. The array is the storage of the signature and may be
+	 * modified, the cached norm is forgotten.
+	 * 
+	 * @return the data
+	 */
+	public byte[] getData() {
+		invalidateNorm();
+		return data;
+	}
+
+	/**
+	 * Gets the data, which must not be modified through this array, see
+	 * {@link #getData()}.
+	 * 
+	 * @return the data
+	 */
+	public byte[] getReadOnlyData() {
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getNonZeroBins()
+	 */
+	@Override
+	public int getNonZeroBins() throws SignatureException {
+		int res = 0;
+		for (byte q : data) {
+			if (offset + scale * q != 0) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Gets the value of the 0 byte.
+	 * 
+	 * @return the offset
+	 */
+	public double getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the step between two levels.
+	 * 
+	 * @return the scale
+	 */
+	public double getScale() {
+		return scale;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return data == null ? 0 : data.length;
+	}
+
+	/**
+	 * Checks if both signatures have been quantized with the same bounds.
+	 * 
+	 * @param other
+	 *            the other
+	 * @return true, if successful
+	 */
+	public boolean hasSameQuantization(ByteDenseVectorSignature other) {
+		return (offset == other.offset) && (scale == other.scale);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<Integer> iterator() {
+		return new BDVSIterator();
+	}
+
+	/**
+	 * Gets the level of a value within the bounds.
+	 * 
+	 * @param val
+	 *            the val
+	 * @return the level
+	 */
+	private byte level(double val) {
+		return (byte) (scale == 0 ? 0 : Math.round((val - offset) / scale));
+	}
+
+	/**
+	 * Multiply all the values, the bounds are multiplied and the bytes are
+	 * kept as they are.
+	 * 
+	 * @param coef
+	 *            the coef
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	@Override
+	public void multiply(double coef) throws SignatureException {
+		offset *= coef;
+		scale *= coef;
+		invalidateNorm();
+	}
+
+	/**
+	 * Quantize again the signature between the minimum and maximum of the
+	 * given values.
+	 * 
+	 * @param values
+	 *            the values
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void requantize(double[] values) throws SignatureException {
+		double min = values.length == 0 ? 0 : Double.POSITIVE_INFINITY;
+		double max = values.length == 0 ? 0 : Double.NEGATIVE_INFINITY;
+		for (double v : values) {
+			if (Double.isNaN(v) || Double.isInfinite(v)) {
+				throw new SignatureException("Unable to quantize the value " + v);
+			}
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		scale = (max - min) / (LEVELS - 1);
+		offset = min - Byte.MIN_VALUE * scale;
+		if (data.length != values.length) {
+			data = new byte[values.length];
+		}
+		for (int d = 0; d < values.length; d++) {
+			data[d] = level(values[d]);
+		}
+		invalidateNorm();
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#set(int, double)
+	 */
+	@Override
+	public void set(int idx, double val) throws SignatureException {
+		checkIndex(idx);
+		long q = scale == 0 ? 0 : Math.round((val - offset) / scale);
+		if (Double.isNaN(val) || (q < Byte.MIN_VALUE) || (q > Byte.MAX_VALUE) || ((scale == 0) && (val != offset))) {
+			throw new SignatureException("Value out of the quantization bounds (" + val + ")");
+		}
+		data[idx] = (byte) q;
+		invalidateNorm();
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#setAll(double)
+	 */
+	@Override
+	public void setAll(double val) throws SignatureException {
+		double[] values = new double[data.length];
+		Arrays.fill(values, val);
+		requantize(values);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#setSize(int)
+	 */
+	@Override
+	public void setSize(int s) {
+		// ignored
+	}
+}
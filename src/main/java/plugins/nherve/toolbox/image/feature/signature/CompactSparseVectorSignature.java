@@ -0,0 +1,567 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+/**
+ * Sparse vector signature stored as two parallel arrays : the sorted indexes
+ * of the non zero bins and their values. Unlike {@link SparseVectorSignature}
+ * nothing is boxed, which keeps the memory footprint close to 12 bytes per
+ * non zero bin and lets the distances run plain merge loops on the arrays.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class CompactSparseVectorSignature extends DefaultVectorSignature {
+
+	/**
+	 * The Class CSVSIterator.
+	 *
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class CSVSIterator implements Iterator<Integer> {
+
+		/** The position. */
+		private int p;
+
+		/**
+		 * Instantiates a new iterator.
+		 */
+		public CSVSIterator() {
+			super();
+			p = 0;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return p < nnz;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public Integer next() {
+			if (p >= nnz) {
+				throw new NoSuchElementException("Array index: " + p);
+			}
+			return indexes[p++];
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			// not used
+		}
+	}
+
+	/** The Constant DEFAULT_CAPACITY. */
+	private final static int DEFAULT_CAPACITY = 8;
+
+	/** The size. */
+	private int size;
+
+	/** The number of non zero bins. */
+	private int nnz;
+
+	/** The sorted indexes of the non zero bins. */
+	private int[] indexes;
+
+	/** The values of the non zero bins. */
+	private double[] values;
+
+	/**
+	 * Instantiates a new compact sparse vector signature.
+	 *
+	 * @param size
+	 *            the size
+	 */
+	public CompactSparseVectorSignature(int size) {
+		this(size, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new compact sparse vector signature.
+	 *
+	 * @param size
+	 *            the size
+	 * @param capacity
+	 *            the expected number of non zero bins
+	 */
+	public CompactSparseVectorSignature(int size, int capacity) {
+		super();
+		this.size = size;
+		this.nnz = 0;
+		this.indexes = new int[Math.max(capacity, 1)];
+		this.values = new double[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Instantiates a new compact sparse vector signature on already built
+	 * arrays. The indexes must be strictly increasing and the values non zero,
+	 * the arrays are used as is.
+	 *
+	 * @param size
+	 *            the size
+	 * @param indexes
+	 *            the indexes
+	 * @param values
+	 *            the values
+	 * @param nnz
+	 *            the number of valid entries in the arrays
+	 */
+	public CompactSparseVectorSignature(int size, int[] indexes, double[] values, int nnz) {
+		super();
+		if ((indexes.length < nnz) || (values.length < nnz)) {
+			throw new IllegalArgumentException("Arrays too small for " + nnz + " non zero bins");
+		}
+		this.size = size;
+		this.indexes = indexes;
+		this.values = values;
+		this.nnz = nnz;
+	}
+
+	/**
+	 * Instantiates a new compact sparse vector signature from a map based one.
+	 *
+	 * @param other
+	 *            the other
+	 */
+	public CompactSparseVectorSignature(SparseVectorSignature other) {
+		this(other.getSize(), other.getReadOnlyData().size());
+		if (other.getReadOnlyData() instanceof SortedMap<?, ?>) {
+			for (Entry<Integer, Double> e : other.getReadOnlyData().entrySet()) {
+				indexes[nnz] = e.getKey();
+				values[nnz] = e.getValue();
+				nnz++;
+			}
+		} else {
+			for (Entry<Integer, Double> e : other.getReadOnlyData().entrySet()) {
+				insert(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	@Override
+	public void add(VectorSignature other) throws SignatureException {
+		if (other instanceof CompactSparseVectorSignature) {
+			CompactSparseVectorSignature o = (CompactSparseVectorSignature) other;
+			int[] oi = o.indexes;
+			double[] ov = o.values;
+			int on = o.nnz;
+
+			int[] ni = new int[nnz + on];
+			double[] nv = new double[nnz + on];
+			int n = 0;
+			int p1 = 0;
+			int p2 = 0;
+			while ((p1 < nnz) && (p2 < on)) {
+				if (indexes[p1] == oi[p2]) {
+					double v = values[p1] + ov[p2];
+					if (v != 0) {
+						ni[n] = indexes[p1];
+						nv[n] = v;
+						n++;
+					}
+					p1++;
+					p2++;
+				} else if (indexes[p1] < oi[p2]) {
+					ni[n] = indexes[p1];
+					nv[n] = values[p1];
+					n++;
+					p1++;
+				} else {
+					ni[n] = oi[p2];
+					nv[n] = ov[p2];
+					n++;
+					p2++;
+				}
+			}
+			while (p1 < nnz) {
+				ni[n] = indexes[p1];
+				nv[n] = values[p1];
+				n++;
+				p1++;
+			}
+			while (p2 < on) {
+				ni[n] = oi[p2];
+				nv[n] = ov[p2];
+				n++;
+				p2++;
+			}
+
+			indexes = ni;
+			values = nv;
+			nnz = n;
+			invalidateNorm();
+		} else {
+			super.add(other);
+		}
+	}
+
+	@Override
+	public void addTo(int idx, double val) throws SignatureException {
+		checkIndex(idx);
+		int p = Arrays.binarySearch(indexes, 0, nnz, idx);
+		if (p >= 0) {
+			double v = values[p] + val;
+			if (v == 0) {
+				removeAt(p);
+			} else {
+				values[p] = v;
+			}
+		} else if (val != 0) {
+			insertAt(-(p + 1), idx, val);
+		}
+		invalidateNorm();
+	}
+
+	/**
+	 * Check index.
+	 *
+	 * @param idx
+	 *            the idx
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void checkIndex(int idx) throws SignatureException {
+		if ((idx < 0) || (idx >= size)) {
+			throw new SignatureException("Invalid signature index (" + idx + ")");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#clone()
+	 */
+	@Override
+	public CompactSparseVectorSignature clone() throws CloneNotSupportedException {
+		return new CompactSparseVectorSignature(size, Arrays.copyOf(indexes, Math.max(nnz, 1)), Arrays.copyOf(values, Math.max(nnz, 1)), nnz);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#concat(plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature)
+	 */
+	@Override
+	public void concat(DefaultVectorSignature other) throws SignatureException {
+		int offset = size;
+		size += other.getSize();
+		if (other instanceof CompactSparseVectorSignature) {
+			CompactSparseVectorSignature o = (CompactSparseVectorSignature) other;
+			ensureCapacity(nnz + o.nnz);
+			for (int p = 0; p < o.nnz; p++) {
+				indexes[nnz] = o.indexes[p] + offset;
+				values[nnz] = o.values[p];
+				nnz++;
+			}
+		} else {
+			for (int i = 0; i < other.getSize(); i++) {
+				double v = other.get(i);
+				if (v != 0) {
+					ensureCapacity(nnz + 1);
+					indexes[nnz] = i + offset;
+					values[nnz] = v;
+					nnz++;
+				}
+			}
+		}
+		invalidateNorm();
+	}
+
+	@Override
+	public double dot(VectorSignature other) throws SignatureException {
+		double dot = 0;
+		if (other instanceof CompactSparseVectorSignature) {
+			CompactSparseVectorSignature o = (CompactSparseVectorSignature) other;
+			int p1 = 0;
+			int p2 = 0;
+			while ((p1 < nnz) && (p2 < o.nnz)) {
+				int i1 = indexes[p1];
+				int i2 = o.indexes[p2];
+				if (i1 == i2) {
+					dot += values[p1] * o.values[p2];
+					p1++;
+					p2++;
+				} else if (i1 < i2) {
+					p1++;
+				} else {
+					p2++;
+				}
+			}
+		} else if (other instanceof DenseVectorSignature) {
+			double[] od = ((DenseVectorSignature) other).getReadOnlyData();
+			for (int p = 0; p < nnz; p++) {
+				dot += values[p] * od[indexes[p]];
+			}
+		} else {
+			for (int p = 0; p < nnz; p++) {
+				dot += values[p] * other.get(indexes[p]);
+			}
+		}
+		return dot;
+	}
+
+	/**
+	 * Ensure capacity.
+	 *
+	 * @param capacity
+	 *            the capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > indexes.length) {
+			int nc = Math.max(capacity, indexes.length + (indexes.length >> 1) + 1);
+			indexes = Arrays.copyOf(indexes, nc);
+			values = Arrays.copyOf(values, nc);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#get(int)
+	 */
+	@Override
+	public double get(int idx) throws SignatureException {
+		int p = Arrays.binarySearch(indexes, 0, nnz, idx);
+		if (p >= 0) {
+			return values[p];
+		}
+
+		checkIndex(idx);
+
+		return 0;
+	}
+
+	/**
+	 * Gets the indexes of the non zero bins. Only the first
+	 * {@link #getNonZeroBins()} entries are meaningful.
+	 *
+	 * @return the indexes
+	 */
+	public int[] getIndexes() {
+		return indexes;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getNonZeroBins()
+	 */
+	@Override
+	public int getNonZeroBins() {
+		return nnz;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the values of the non zero bins. Only the first
+	 * {@link #getNonZeroBins()} entries are meaningful. The array is the
+	 * storage of the signature and may be modified, the cached norm is
+	 * forgotten.
+	 *
+	 * @return the values
+	 */
+	public double[] getValues() {
+		invalidateNorm();
+		return values;
+	}
+
+	/**
+	 * Gets the values of the non zero bins, which must not be modified through
+	 * this array, see {@link #getValues()}.
+	 *
+	 * @return the values
+	 */
+	public double[] getReadOnlyValues() {
+		return values;
+	}
+
+	/**
+	 * Insert a value, keeping the arrays sorted.
+	 *
+	 * @param idx
+	 *            the idx
+	 * @param val
+	 *            the val
+	 */
+	private void insert(int idx, double val) {
+		int p = Arrays.binarySearch(indexes, 0, nnz, idx);
+		if (p >= 0) {
+			values[p] = val;
+		} else {
+			insertAt(-(p + 1), idx, val);
+		}
+	}
+
+	/**
+	 * Insert at.
+	 *
+	 * @param p
+	 *            the position
+	 * @param idx
+	 *            the idx
+	 * @param val
+	 *            the val
+	 */
+	private void insertAt(int p, int idx, double val) {
+		ensureCapacity(nnz + 1);
+		if (p < nnz) {
+			System.arraycopy(indexes, p, indexes, p + 1, nnz - p);
+			System.arraycopy(values, p, values, p + 1, nnz - p);
+		}
+		indexes[p] = idx;
+		values[p] = val;
+		nnz++;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<Integer> iterator() {
+		return new CSVSIterator();
+	}
+
+	@Override
+	public void multiply(double coef) throws SignatureException {
+		if (coef == 0) {
+			nnz = 0;
+		}
+		for (int p = 0; p < nnz; p++) {
+			values[p] *= coef;
+		}
+		invalidateNorm();
+	}
+
+	@Override
+	public double norm() throws SignatureException {
+		double norm = 0;
+		for (int p = 0; p < nnz; p++) {
+			norm += values[p] * values[p];
+		}
+
+		return Math.sqrt(norm);
+	}
+
+	/**
+	 * Removes the at.
+	 *
+	 * @param p
+	 *            the position
+	 */
+	private void removeAt(int p) {
+		nnz--;
+		if (p < nnz) {
+			System.arraycopy(indexes, p + 1, indexes, p, nnz - p);
+			System.arraycopy(values, p + 1, values, p, nnz - p);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#set(int, double)
+	 */
+	@Override
+	public void set(int idx, double val) throws SignatureException {
+		checkIndex(idx);
+
+		int p = Arrays.binarySearch(indexes, 0, nnz, idx);
+		if (p >= 0) {
+			if (val == 0) {
+				removeAt(p);
+			} else {
+				values[p] = val;
+			}
+		} else if (val != 0) {
+			insertAt(-(p + 1), idx, val);
+		}
+		invalidateNorm();
+	}
+
+	@Override
+	public void setSize(int s) {
+		size = s;
+	}
+
+	@Override
+	public double sum() throws SignatureException {
+		double sum = 0;
+		for (int p = 0; p < nnz; p++) {
+			sum += values[p];
+		}
+		return sum;
+	}
+
+	/**
+	 * Release the unused capacity of the internal arrays.
+	 */
+	public void trimToSize() {
+		if (indexes.length > nnz) {
+			indexes = Arrays.copyOf(indexes, Math.max(nnz, 1));
+			values = Arrays.copyOf(values, Math.max(nnz, 1));
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int p = 0; p < nnz; p++) {
+			if (p > 0) {
+				sb.append("  ");
+			}
+			sb.append(indexes[p] + ":" + df.format(values[p]));
+		}
+
+		try {
+			return "CompactSparseVectorSignature [size=" + size + ", sum=" + df.format(sum()) + "] " + sb.toString();
+		} catch (SignatureException e) {
+			return e.getClass().getName() + " : " + e.getMessage();
+		}
+	}
+}
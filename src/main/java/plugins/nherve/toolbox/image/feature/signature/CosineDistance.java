@@ -20,14 +20,13 @@ package plugins.nherve.toolbox.image.feature.signature;
 
 import java.util.Iterator;
 
-import plugins.nherve.toolbox.image.feature.SignatureDistance;
 
 /**
  * The Class VectorAngleDistance.
  *
  * @author Nicolas HERVE - nherve@ina.fr
  */
-public class CosineDistance extends SignatureDistance<VectorSignature> {
+public class CosineDistance extends VectorSignatureDistance {
 	private boolean similarity;
 
 	public CosineDistance() {
@@ -49,88 +48,165 @@ public class CosineDistance extends SignatureDistance<VectorSignature> {
 			throw new SignatureException("VectorSignature dimensions mismatch");
 		}
 
-		try {
-			VectorSignature s1 = (VectorSignature) vs1b.clone();
-			VectorSignature s2 = (VectorSignature) vs2b.clone();
-			
-			s1.normalizeL2(false);
-			s2.normalizeL2(false);
+		double n1 = norm(vs1b);
+		double n2 = norm(vs2b);
+		double dot = 0.0;
+		if ((n1 > 0) && (n2 > 0)) {
+			dot = dot(vs1b, vs2b) / (n1 * n2);
+		}
 
-			double dot = 0.0;
+		return similarity ? dot : 1.0 - dot;
+	}
 
-			if ((s1 instanceof SparseVectorSignature) && (s2 instanceof SparseVectorSignature)) {
-				SparseVectorSignature sv1 = (SparseVectorSignature) s1;
-				SparseVectorSignature sv2 = (SparseVectorSignature) s2;
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeDistances
+	 * (plugins.nherve.toolbox.image.feature.signature.VectorSignature,
+	 * plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int, int,
+	 * double[], int)
+	 */
+	@Override
+	public void computeDistances(VectorSignature query, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		if (query.getSize() != block.getDim()) {
+			throw new SignatureException("VectorSignature dimensions mismatch");
+		}
+		DistanceKernels.dot(DistanceKernels.toArray(query), 0, block.getData(), from, to, block.getDim(), result, offset);
+		fromDots(norm(query), block.getNorms(), from, to, result, offset);
+	}
 
-				Iterator<Integer> idx1it = sv1.iterator();
-				Iterator<Integer> idx2it = sv2.iterator();
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeRows(plugins.nherve.toolbox.image.feature.signature.SignatureBlock,
+	 * int, plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int,
+	 * int, double[], int)
+	 */
+	@Override
+	protected void computeRows(SignatureBlock queries, int q, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		DistanceKernels.dot(queries.getData(), q * queries.getDim(), block.getData(), from, to, block.getDim(), result, offset);
+		fromDots(queries.getNorms()[q], block.getNorms(), from, to, result, offset);
+	}
 
-				int idx1 = Integer.MAX_VALUE;
-				int idx2 = Integer.MAX_VALUE;
+	/**
+	 * Replace dot products by the cosine distances.
+	 * 
+	 * @param qn
+	 *            the norm of the query
+	 * @param norms
+	 *            the norms of the rows
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param result
+	 *            the result
+	 * @param offset
+	 *            the offset of the first row
+	 */
+	private void fromDots(double qn, double[] norms, int from, int to, double[] result, int offset) {
+		for (int r = from; r < to; r++, offset++) {
+			double n = qn * norms[r];
+			double dot = ((qn > 0) && (norms[r] > 0)) ? result[offset] / n : 0.0;
+			result[offset] = similarity ? dot : 1.0 - dot;
+		}
+	}
 
-				if (idx1it.hasNext()) {
-					idx1 = idx1it.next();
-				}
+	/**
+	 * Dot product of two signatures.
+	 * 
+	 * @param vs1
+	 *            the vs1
+	 * @param vs2
+	 *            the vs2
+	 * @return the dot product
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static double dot(VectorSignature vs1, VectorSignature vs2) throws SignatureException {
+		double dot = 0.0;
+
+		if ((vs1 instanceof SparseVectorSignature) && (vs2 instanceof SparseVectorSignature)) {
+			SparseVectorSignature sv1 = (SparseVectorSignature) vs1;
+			SparseVectorSignature sv2 = (SparseVectorSignature) vs2;
+
+			Iterator<Integer> idx1it = sv1.iterator();
+			Iterator<Integer> idx2it = sv2.iterator();
+
+			int idx1 = Integer.MAX_VALUE;
+			int idx2 = Integer.MAX_VALUE;
+
+			if (idx1it.hasNext()) {
+				idx1 = idx1it.next();
+			}
 
-				if (idx2it.hasNext()) {
-					idx2 = idx2it.next();
-				}
+			if (idx2it.hasNext()) {
+				idx2 = idx2it.next();
+			}
+
+			while ((idx1 < Integer.MAX_VALUE) && (idx2 < Integer.MAX_VALUE)) {
+				if (idx1 == idx2) {
+					dot += sv1.get(idx1) * sv2.get(idx2);
 
-				double v1 = 0;
-				double v2 = 0;
-				while ((idx1 < Integer.MAX_VALUE) || (idx2 < Integer.MAX_VALUE)) {
-					if (idx1 == idx2) {
-						v1 = sv1.get(idx1);
-						v2 = sv2.get(idx2);
-						dot += v1 * v2;
-
-						if (idx1it.hasNext()) {
-							idx1 = idx1it.next();
-						} else {
-							idx1 = Integer.MAX_VALUE;
-						}
-
-						if (idx2it.hasNext()) {
-							idx2 = idx2it.next();
-						} else {
-							idx2 = Integer.MAX_VALUE;
-						}
-					} else if (idx1 > idx2) {
-						if (idx2it.hasNext()) {
-							idx2 = idx2it.next();
-						} else {
-							idx2 = Integer.MAX_VALUE;
-						}
+					if (idx1it.hasNext()) {
+						idx1 = idx1it.next();
 					} else {
-						if (idx1it.hasNext()) {
-							idx1 = idx1it.next();
-						} else {
-							idx1 = Integer.MAX_VALUE;
-						}
+						idx1 = Integer.MAX_VALUE;
 					}
-				}
-
-			} else if ((s1 instanceof DenseVectorSignature) && (s2 instanceof DenseVectorSignature)) {
-				double[] as1 = ((DenseVectorSignature) s1).getData();
-				double[] as2 = ((DenseVectorSignature) s2).getData();
 
-				for (int i = 0; i < as1.length; i++) {
-					dot += as1[i] * as2[i];
-				}
-			} else {
-				double v1 = 0;
-				double v2 = 0;
-				for (int i = 0; i < s1.getSize(); i++) {
-					v1 = s1.get(i);
-					v2 = s2.get(i);
-					dot += v1 * v2;
+					if (idx2it.hasNext()) {
+						idx2 = idx2it.next();
+					} else {
+						idx2 = Integer.MAX_VALUE;
+					}
+				} else if (idx1 > idx2) {
+					if (idx2it.hasNext()) {
+						idx2 = idx2it.next();
+					} else {
+						idx2 = Integer.MAX_VALUE;
+					}
+				} else {
+					if (idx1it.hasNext()) {
+						idx1 = idx1it.next();
+					} else {
+						idx1 = Integer.MAX_VALUE;
+					}
 				}
 			}
+		} else if (vs1 instanceof DefaultVectorSignature) {
+			dot = ((DefaultVectorSignature) vs1).dot(vs2);
+		} else {
+			for (int i = 0; i < vs1.getSize(); i++) {
+				dot += vs1.get(i) * vs2.get(i);
+			}
+		}
 
-			return similarity ? dot : 1.0 - dot;
-		} catch (CloneNotSupportedException e) {
-			throw new SignatureException(e);
+		return dot;
+	}
+
+	/**
+	 * L2 norm of a signature, cached by the signature when possible.
+	 * 
+	 * @param s
+	 *            the s
+	 * @return the norm
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static double norm(VectorSignature s) throws SignatureException {
+		if (s instanceof DefaultVectorSignature) {
+			return ((DefaultVectorSignature) s).getNorm();
+		}
+		double norm = 0;
+		for (int i = 0; i < s.getSize(); i++) {
+			double v = s.get(i);
+			norm += v * v;
 		}
+		return Math.sqrt(norm);
 	}
 
 	public boolean isSimilarity() {
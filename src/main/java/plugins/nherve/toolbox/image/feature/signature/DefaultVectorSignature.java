@@ -37,6 +37,12 @@ public abstract class DefaultVectorSignature implements VectorSignature {
 	/** The Constant SPARSE_VECTOR_SIGNATURE. */
 	public final static int SPARSE_VECTOR_SIGNATURE = 2;
 
+	/** The Constant COMPACT_SPARSE_VECTOR_SIGNATURE. */
+	public final static int COMPACT_SPARSE_VECTOR_SIGNATURE = 3;
+
+	/** The Constant FLOAT_DENSE_VECTOR_SIGNATURE. */
+	public final static int FLOAT_DENSE_VECTOR_SIGNATURE = 4;
+
 	/**
 	 * Gets the empty signature.
 	 *
@@ -52,6 +58,10 @@ public abstract class DefaultVectorSignature implements VectorSignature {
 			return new DenseVectorSignature(size);
 		case SPARSE_VECTOR_SIGNATURE:
 			return new SparseVectorSignature(size);
+		case COMPACT_SPARSE_VECTOR_SIGNATURE:
+			return new CompactSparseVectorSignature(size);
+		case FLOAT_DENSE_VECTOR_SIGNATURE:
+			return new FloatDenseVectorSignature(size);
 		default:
 			return null;
 		}
@@ -60,12 +70,16 @@ public abstract class DefaultVectorSignature implements VectorSignature {
 	/** The additional information. */
 	private Object additionalInformation;
 
+	/** The cached L2 norm, negative when it has to be computed. */
+	private volatile double cachedNorm;
+
 	/**
 	 * Instantiates a new vector signature.
 	 */
 	public DefaultVectorSignature() {
 		super();
 		setAdditionalInformation(null);
+		cachedNorm = -1;
 	}
 
 	/**
@@ -148,6 +162,37 @@ public abstract class DefaultVectorSignature implements VectorSignature {
 		return additionalInformation;
 	}
 
+	/**
+	 * Gets the L2 norm. It is computed on the first call and kept until the
+	 * signature is modified.
+	 *
+	 * @return the norm
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public double getNorm() throws SignatureException {
+		double n = cachedNorm;
+		if (n < 0) {
+			n = norm();
+			cachedNorm = n;
+		}
+		return n;
+	}
+
+	/**
+	 * Forget the cached norm. Every method that modifies the values of a
+	 * signature without going through {@link #set(int, double)} has to call
+	 * it, as well as the implementations of set and the accessors that give
+	 * the storage of the signature. Only the first call after the norm has
+	 * been computed writes the field, so that a bulk update through set does
+	 * not pay a volatile write per value.
+	 */
+	protected void invalidateNorm() {
+		if (cachedNorm >= 0) {
+			cachedNorm = -1;
+		}
+	}
+
 	/**
 	 * Multiply.
 	 *
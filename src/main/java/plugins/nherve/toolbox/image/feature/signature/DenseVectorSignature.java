@@ -181,6 +181,21 @@ public class DenseVectorSignature extends DefaultVectorSignature {
 		}
 		
 		data = newData;
+		invalidateNorm();
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#dot(plugins.nherve.toolbox.image.feature.signature.VectorSignature)
+	 */
+	@Override
+	public double dot(VectorSignature other) throws SignatureException {
+		if (other instanceof DenseVectorSignature) {
+			return DistanceKernels.dot(data, 0, ((DenseVectorSignature) other).data, 0, data.length);
+		}
+		if ((other instanceof FloatDenseVectorSignature) || (other instanceof ByteDenseVectorSignature) || (other instanceof CompactSparseVectorSignature) || (other instanceof MappedVectorSignature)) {
+			return ((DefaultVectorSignature) other).dot(this);
+		}
+		return super.dot(other);
 	}
 
 	/* (non-Javadoc)
@@ -192,11 +207,23 @@ public class DenseVectorSignature extends DefaultVectorSignature {
 	}
 
 	/**
-	 * Gets the data.
+	 * Gets the data. The array is the storage of the signature and may be
+	 * modified, the cached norm is forgotten.
 	 * 
 	 * @return the data
 	 */
 	public double[] getData() {
+		invalidateNorm();
+		return data;
+	}
+
+	/**
+	 * Gets the data, which must not be modified through this array, see
+	 * {@link #getData()}.
+	 * 
+	 * @return the data
+	 */
+	public double[] getReadOnlyData() {
 		return data;
 	}
 
@@ -236,6 +263,7 @@ public class DenseVectorSignature extends DefaultVectorSignature {
 	@Override
 	public void set(int idx, double val) throws SignatureException {
 		data[idx] = val;
+		invalidateNorm();
 	}
 
 	@Override
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ * 
+ * This file is part of NHerveTools.
+ * 
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+/**
+ * Distance loops over contiguous arrays of doubles, a vector being given by
+ * an array and the offset of its first value.
+ * 
+ * The sums are always accumulated in the order of the dimensions, so that a
+ * distance has exactly the same value whatever the signature types and the
+ * method used to compute it. The batch loops get their speed from four rows
+ * being processed together : each query value is read once for the four of
+ * them and the four independent sums do not wait for each other, which lets
+ * the JIT pipeline the loop.
+ * 
+ * The pairwise versions with a threshold check it every {@link #CHECK_STEP}
+ * dimensions and return a partial sum as soon as it is above.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public final class DistanceKernels {
+
+	/** Number of dimensions accumulated between two checks of the threshold. */
+	public final static int CHECK_STEP = 16;
+
+	/** Approximate number of values of a block of rows kept in cache. */
+	private final static int TILE_VALUES = 4096;
+
+	/**
+	 * Dot product.
+	 * 
+	 * @param a
+	 *            the a
+	 * @param aOff
+	 *            the offset of the first vector in a
+	 * @param b
+	 *            the b
+	 * @param bOff
+	 *            the offset of the second vector in b
+	 * @param dim
+	 *            the dimension
+	 * @return the dot product
+	 */
+	public static double dot(double[] a, int aOff, double[] b, int bOff, int dim) {
+		double s = 0;
+		for (int d = 0; d < dim; d++) {
+			s += a[aOff + d] * b[bOff + d];
+		}
+		return s;
+	}
+
+	/**
+	 * Dot products of one query with consecutive rows of a matrix.
+	 * 
+	 * @param q
+	 *            the query
+	 * @param qOff
+	 *            the offset of the query in q
+	 * @param m
+	 *            the matrix, row major
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param dim
+	 *            the dimension
+	 * @param out
+	 *            the results
+	 * @param outOff
+	 *            the offset of the first result
+	 */
+	public static void dot(double[] q, int qOff, double[] m, int from, int to, int dim, double[] out, int outOff) {
+		int r = from;
+		for (; r + 3 < to; r += 4, outOff += 4) {
+			int o0 = r * dim;
+			int o1 = o0 + dim;
+			int o2 = o1 + dim;
+			int o3 = o2 + dim;
+			double s0 = 0;
+			double s1 = 0;
+			double s2 = 0;
+			double s3 = 0;
+			for (int d = 0; d < dim; d++) {
+				double v = q[qOff + d];
+				s0 += v * m[o0 + d];
+				s1 += v * m[o1 + d];
+				s2 += v * m[o2 + d];
+				s3 += v * m[o3 + d];
+			}
+			out[outOff] = s0;
+			out[outOff + 1] = s1;
+			out[outOff + 2] = s2;
+			out[outOff + 3] = s3;
+		}
+		for (; r < to; r++, outOff++) {
+			out[outOff] = dot(q, qOff, m, r * dim, dim);
+		}
+	}
+
+	/**
+	 * L1 distance.
+	 * 
+	 * @param a
+	 *            the a
+	 * @param aOff
+	 *            the offset of the first vector in a
+	 * @param b
+	 *            the b
+	 * @param bOff
+	 *            the offset of the second vector in b
+	 * @param dim
+	 *            the dimension
+	 * @param threshold
+	 *            the threshold
+	 * @return the distance, or a partial sum above the threshold
+	 */
+	public static double l1(double[] a, int aOff, double[] b, int bOff, int dim, double threshold) {
+		double s = 0;
+		int d = 0;
+		while (d < dim) {
+			int end = Math.min(dim, d + CHECK_STEP);
+			for (; d < end; d++) {
+				s += Math.abs(a[aOff + d] - b[bOff + d]);
+			}
+			if (s > threshold) {
+				break;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * L1 distances between one query and consecutive rows of a matrix.
+	 * 
+	 * @param q
+	 *            the query
+	 * @param qOff
+	 *            the offset of the query in q
+	 * @param m
+	 *            the matrix, row major
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param dim
+	 *            the dimension
+	 * @param out
+	 *            the results
+	 * @param outOff
+	 *            the offset of the first result
+	 */
+	public static void l1(double[] q, int qOff, double[] m, int from, int to, int dim, double[] out, int outOff) {
+		int r = from;
+		for (; r + 3 < to; r += 4, outOff += 4) {
+			int o0 = r * dim;
+			int o1 = o0 + dim;
+			int o2 = o1 + dim;
+			int o3 = o2 + dim;
+			double s0 = 0;
+			double s1 = 0;
+			double s2 = 0;
+			double s3 = 0;
+			for (int d = 0; d < dim; d++) {
+				double v = q[qOff + d];
+				s0 += Math.abs(v - m[o0 + d]);
+				s1 += Math.abs(v - m[o1 + d]);
+				s2 += Math.abs(v - m[o2 + d]);
+				s3 += Math.abs(v - m[o3 + d]);
+			}
+			out[outOff] = s0;
+			out[outOff + 1] = s1;
+			out[outOff + 2] = s2;
+			out[outOff + 3] = s3;
+		}
+		for (; r < to; r++, outOff++) {
+			out[outOff] = l1(q, qOff, m, r * dim, dim, Double.POSITIVE_INFINITY);
+		}
+	}
+
+	/**
+	 * Squared L2 distance.
+	 * 
+	 * @param a
+	 *            the a
+	 * @param aOff
+	 *            the offset of the first vector in a
+	 * @param b
+	 *            the b
+	 * @param bOff
+	 *            the offset of the second vector in b
+	 * @param dim
+	 *            the dimension
+	 * @param sqThreshold
+	 *            the squared threshold
+	 * @return the squared distance, or a partial sum above the threshold
+	 */
+	public static double squaredL2(double[] a, int aOff, double[] b, int bOff, int dim, double sqThreshold) {
+		double s = 0;
+		int d = 0;
+		while (d < dim) {
+			int end = Math.min(dim, d + CHECK_STEP);
+			for (; d < end; d++) {
+				double e = a[aOff + d] - b[bOff + d];
+				s += e * e;
+			}
+			if (s > sqThreshold) {
+				break;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Squared L2 distances between one query and consecutive rows of a
+	 * matrix.
+	 * 
+	 * @param q
+	 *            the query
+	 * @param qOff
+	 *            the offset of the query in q
+	 * @param m
+	 *            the matrix, row major
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param dim
+	 *            the dimension
+	 * @param out
+	 *            the results
+	 * @param outOff
+	 *            the offset of the first result
+	 */
+	public static void squaredL2(double[] q, int qOff, double[] m, int from, int to, int dim, double[] out, int outOff) {
+		int r = from;
+		for (; r + 3 < to; r += 4, outOff += 4) {
+			int o0 = r * dim;
+			int o1 = o0 + dim;
+			int o2 = o1 + dim;
+			int o3 = o2 + dim;
+			double s0 = 0;
+			double s1 = 0;
+			double s2 = 0;
+			double s3 = 0;
+			for (int d = 0; d < dim; d++) {
+				double v = q[qOff + d];
+				double e0 = v - m[o0 + d];
+				double e1 = v - m[o1 + d];
+				double e2 = v - m[o2 + d];
+				double e3 = v - m[o3 + d];
+				s0 += e0 * e0;
+				s1 += e1 * e1;
+				s2 += e2 * e2;
+				s3 += e3 * e3;
+			}
+			out[outOff] = s0;
+			out[outOff + 1] = s1;
+			out[outOff + 2] = s2;
+			out[outOff + 3] = s3;
+		}
+		for (; r < to; r++, outOff++) {
+			out[outOff] = squaredL2(q, qOff, m, r * dim, dim, Double.POSITIVE_INFINITY);
+		}
+	}
+
+	/**
+	 * Number of rows of a matrix processed together by the many versus many
+	 * loops, so that they stay in cache while all the queries go through them.
+	 * 
+	 * @param dim
+	 *            the dimension
+	 * @return the number of rows
+	 */
+	public static int tileRows(int dim) {
+		return Math.max(1, TILE_VALUES / Math.max(1, dim));
+	}
+
+	/**
+	 * Convert a signature to an array, without copy for the dense ones.
+	 * 
+	 * @param s
+	 *            the signature
+	 * @return the values
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public static double[] toArray(VectorSignature s) throws SignatureException {
+		if (s instanceof DenseVectorSignature) {
+			return ((DenseVectorSignature) s).getReadOnlyData();
+		}
+		if (s instanceof MappedVectorSignature) {
+			return ((MappedVectorSignature) s).toArray();
+		}
+		double[] a = new double[s.getSize()];
+		for (int d = 0; d < a.length; d++) {
+			a[d] = s.get(d);
+		}
+		return a;
+	}
+
+	/**
+	 * Instantiates a new distance kernels.
+	 */
+	private DistanceKernels() {
+		super();
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ * 
+ * This file is part of NHerveTools.
+ * 
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+import java.util.Iterator;
+
+/**
+ * Dense vector signature stored with single precision values, half the memory
+ * of a {@link DenseVectorSignature}.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class FloatDenseVectorSignature extends DefaultVectorSignature {
+
+	/**
+	 * The Class FDVSIterator.
+	 * 
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class FDVSIterator implements Iterator<Integer> {
+
+		/** The d. */
+		private int d;
+
+		/** The data. */
+		private final float[] data;
+
+		/**
+		 * Instantiates a new iterator.
+		 * 
+		 * @param data
+		 *            the data
+		 */
+		public FDVSIterator(final float[] data) {
+			super();
+			this.data = data;
+			this.d = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while (d < data.length) {
+				if (data[d] != 0) {
+					return true;
+				}
+				d++;
+			}
+
+			return false;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public Integer next() {
+			int r = d;
+			d++;
+			return r;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			// not used
+		}
+	}
+
+	/** The data. */
+	private float[] data;
+
+	/**
+	 * Instantiates a new float dense vector signature.
+	 * 
+	 * @param data
+	 *            the data
+	 */
+	public FloatDenseVectorSignature(float[] data) {
+		super();
+		this.data = data;
+	}
+
+	/**
+	 * Instantiates a new float dense vector signature.
+	 * 
+	 * @param size
+	 *            the size
+	 */
+	public FloatDenseVectorSignature(int size) {
+		super();
+		data = new float[size];
+	}
+
+	/**
+	 * Instantiates a new float dense vector signature, copy of an other
+	 * signature.
+	 * 
+	 * @param other
+	 *            the other
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public FloatDenseVectorSignature(VectorSignature other) throws SignatureException {
+		this(other.getSize());
+		for (int d = 0; d < data.length; d++) {
+			data[d] = (float) other.get(d);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#clone()
+	 */
+	@Override
+	public FloatDenseVectorSignature clone() throws CloneNotSupportedException {
+		return new FloatDenseVectorSignature(data.clone());
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#concat(plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature)
+	 */
+	@Override
+	public void concat(DefaultVectorSignature other) throws SignatureException {
+		float[] newData = new float[data.length + other.getSize()];
+		System.arraycopy(data, 0, newData, 0, data.length);
+		for (int i = 0; i < other.getSize(); i++) {
+			newData[data.length + i] = (float) other.get(i);
+		}
+		data = newData;
+		invalidateNorm();
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#dot(plugins.nherve.toolbox.image.feature.signature.VectorSignature)
+	 */
+	@Override
+	public double dot(VectorSignature other) throws SignatureException {
+		double dot = 0;
+		if (other instanceof FloatDenseVectorSignature) {
+			float[] od = ((FloatDenseVectorSignature) other).data;
+			for (int d = 0; d < data.length; d++) {
+				dot += (double) data[d] * od[d];
+			}
+			return dot;
+		}
+		if (other instanceof DenseVectorSignature) {
+			double[] od = ((DenseVectorSignature) other).getReadOnlyData();
+			for (int d = 0; d < data.length; d++) {
+				dot += data[d] * od[d];
+			}
+			return dot;
+		}
+		return super.dot(other);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#get(int)
+	 */
+	@Override
+	public double get(int idx) throws SignatureException {
+		return data[idx];
+	}
+
+	/**
+	 * Gets the data. The array is the storage of the signature and may be
+	 * modified, the cached norm is forgotten.
+	 * 
+	 * @return the data
+	 */
+	public float[] getData() {
+		invalidateNorm();
+		return data;
+	}
+
+	/**
+	 * Gets the data, which must not be modified through this array, see
+	 * {@link #getData()}.
+	 * 
+	 * @return the data
+	 */
+	public float[] getReadOnlyData() {
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getNonZeroBins()
+	 */
+	@Override
+	public int getNonZeroBins() throws SignatureException {
+		int res = 0;
+		for (float v : data) {
+			if (v != 0) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return data == null ? 0 : data.length;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<Integer> iterator() {
+		return new FDVSIterator(data);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#set(int, double)
+	 */
+	@Override
+	public void set(int idx, double val) throws SignatureException {
+		data[idx] = (float) val;
+		invalidateNorm();
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#setSize(int)
+	 */
+	@Override
+	public void setSize(int s) {
+		// ignored
+	}
+}
@@ -21,14 +21,12 @@ package plugins.nherve.toolbox.image.feature.signature;
 
 import java.util.Iterator;
 
-import plugins.nherve.toolbox.image.feature.SignatureDistance;
-
 /**
  * The Class L1Distance.
  * 
  * @author Nicolas HERVE - nherve@ina.fr
  */
-public class L1Distance extends SignatureDistance<VectorSignature> {
+public class L1Distance extends VectorSignatureDistance {
 
 	/**
 	 * Instantiates a new l1 distance.
@@ -47,6 +45,19 @@ public class L1Distance extends SignatureDistance<VectorSignature> {
 	 */
 	@Override
 	public double computeDistance(VectorSignature vs1, VectorSignature vs2) throws SignatureException {
+		return computeDistance(vs1, vs2, Double.POSITIVE_INFINITY);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.SignatureDistance#computeDistance
+	 * (plugins.nherve.toolbox.image.feature.Signature,
+	 * plugins.nherve.toolbox.image.feature.Signature, double)
+	 */
+	@Override
+	public double computeDistance(VectorSignature vs1, VectorSignature vs2, double threshold) throws SignatureException {
 		if ((vs1 == null) || (vs2 == null)) {
 			throw new SignatureException("Null signature in L1Distance.compute()");
 		}
@@ -104,12 +115,53 @@ public class L1Distance extends SignatureDistance<VectorSignature> {
 					}
 				}
 			}
-		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof DenseVectorSignature) {
-			double[] s1 = ((DenseVectorSignature)vs1).getData();
-			double[] s2 = ((DenseVectorSignature)vs2).getData();
-			for (int dim = 0; dim < s1.length; dim++) {
-				sum += Math.abs(s1[dim] - s2[dim]);
+		} else if (vs1 instanceof CompactSparseVectorSignature && vs2 instanceof CompactSparseVectorSignature) {
+			CompactSparseVectorSignature s1 = (CompactSparseVectorSignature) vs1;
+			CompactSparseVectorSignature s2 = (CompactSparseVectorSignature) vs2;
+			int[] i1 = s1.getIndexes();
+			int[] i2 = s2.getIndexes();
+			double[] v1 = s1.getReadOnlyValues();
+			double[] v2 = s2.getReadOnlyValues();
+			int n1 = s1.getNonZeroBins();
+			int n2 = s2.getNonZeroBins();
+			int p1 = 0;
+			int p2 = 0;
+
+			while ((p1 < n1) && (p2 < n2)) {
+				if (i1[p1] == i2[p2]) {
+					sum += Math.abs(v1[p1] - v2[p2]);
+					p1++;
+					p2++;
+				} else if (i1[p1] > i2[p2]) {
+					sum += Math.abs(v2[p2]);
+					p2++;
+				} else {
+					sum += Math.abs(v1[p1]);
+					p1++;
+				}
+			}
+			for (; p1 < n1; p1++) {
+				sum += Math.abs(v1[p1]);
+			}
+			for (; p2 < n2; p2++) {
+				sum += Math.abs(v2[p2]);
 			}
+		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof DenseVectorSignature) {
+			double[] s1 = ((DenseVectorSignature)vs1).getReadOnlyData();
+			double[] s2 = ((DenseVectorSignature)vs2).getReadOnlyData();
+			sum = DistanceKernels.l1(s1, 0, s2, 0, s1.length, threshold);
+		} else if (vs1 instanceof FloatDenseVectorSignature && vs2 instanceof FloatDenseVectorSignature) {
+			sum = sum(((FloatDenseVectorSignature) vs1).getReadOnlyData(), ((FloatDenseVectorSignature) vs2).getReadOnlyData(), threshold);
+		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof FloatDenseVectorSignature) {
+			sum = sum(((DenseVectorSignature) vs1).getReadOnlyData(), ((FloatDenseVectorSignature) vs2).getReadOnlyData(), threshold);
+		} else if (vs1 instanceof FloatDenseVectorSignature && vs2 instanceof DenseVectorSignature) {
+			sum = sum(((DenseVectorSignature) vs2).getReadOnlyData(), ((FloatDenseVectorSignature) vs1).getReadOnlyData(), threshold);
+		} else if (vs1 instanceof ByteDenseVectorSignature && vs2 instanceof ByteDenseVectorSignature) {
+			sum = sum((ByteDenseVectorSignature) vs1, (ByteDenseVectorSignature) vs2, threshold);
+		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof ByteDenseVectorSignature) {
+			sum = sum(((DenseVectorSignature) vs1).getReadOnlyData(), (ByteDenseVectorSignature) vs2, threshold);
+		} else if (vs1 instanceof ByteDenseVectorSignature && vs2 instanceof DenseVectorSignature) {
+			sum = sum(((DenseVectorSignature) vs2).getReadOnlyData(), (ByteDenseVectorSignature) vs1, threshold);
 		} else {
 			for (int dim = 0; dim < vs1.getSize(); dim++) {
 				double e = vs1.get(dim) - vs2.get(dim);
@@ -120,4 +172,166 @@ public class L1Distance extends SignatureDistance<VectorSignature> {
 		return sum;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeDistances
+	 * (plugins.nherve.toolbox.image.feature.signature.VectorSignature,
+	 * plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int, int,
+	 * double[], int)
+	 */
+	@Override
+	public void computeDistances(VectorSignature query, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		if (query.getSize() != block.getDim()) {
+			throw new SignatureException("VectorSignature dimensions mismatch");
+		}
+		DistanceKernels.l1(DistanceKernels.toArray(query), 0, block.getData(), from, to, block.getDim(), result, offset);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeRows(plugins.nherve.toolbox.image.feature.signature.SignatureBlock,
+	 * int, plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int,
+	 * int, double[], int)
+	 */
+	@Override
+	protected void computeRows(SignatureBlock queries, int q, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		DistanceKernels.l1(queries.getData(), q * queries.getDim(), block.getData(), from, to, block.getDim(), result, offset);
+	}
+
+	/**
+	 * Distance between two signatures quantized on bytes. When they share the
+	 * same bounds, the sum is computed on the bytes only.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param threshold
+	 *            the threshold
+	 * @return the distance, or a partial sum above the threshold
+	 */
+	private static double sum(ByteDenseVectorSignature s1, ByteDenseVectorSignature s2, double threshold) {
+		byte[] q1 = s1.getReadOnlyData();
+		byte[] q2 = s2.getReadOnlyData();
+		double sum = 0;
+		int dim = 0;
+		if (s1.hasSameQuantization(s2)) {
+			double sc = Math.abs(s1.getScale());
+			long qsum = 0;
+			while (dim < q1.length) {
+				int end = Math.min(q1.length, dim + 4 * ABORT_CHECK_STEP);
+				for (; dim < end; dim++) {
+					qsum += Math.abs(q1[dim] - q2[dim]);
+				}
+				sum = qsum * sc;
+				if (sum > threshold) {
+					return sum;
+				}
+			}
+			return sum;
+		}
+		double o = s1.getOffset() - s2.getOffset();
+		double sc1 = s1.getScale();
+		double sc2 = s2.getScale();
+		while (dim < q1.length) {
+			int end = Math.min(q1.length, dim + ABORT_CHECK_STEP);
+			for (; dim < end; dim++) {
+				sum += Math.abs(o + sc1 * q1[dim] - sc2 * q2[dim]);
+			}
+			if (sum > threshold) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Distance between a double and a byte signature.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param threshold
+	 *            the threshold
+	 * @return the distance, or a partial sum above the threshold
+	 */
+	private static double sum(double[] s1, ByteDenseVectorSignature s2, double threshold) {
+		byte[] q2 = s2.getReadOnlyData();
+		double o = s2.getOffset();
+		double sc = s2.getScale();
+		double sum = 0;
+		int dim = 0;
+		while (dim < s1.length) {
+			int end = Math.min(s1.length, dim + ABORT_CHECK_STEP);
+			for (; dim < end; dim++) {
+				sum += Math.abs(s1[dim] - o - sc * q2[dim]);
+			}
+			if (sum > threshold) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Distance between a double and a float signature.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param threshold
+	 *            the threshold
+	 * @return the distance, or a partial sum above the threshold
+	 */
+	private static double sum(double[] s1, float[] s2, double threshold) {
+		double sum = 0;
+		int dim = 0;
+		while (dim < s1.length) {
+			int end = Math.min(s1.length, dim + ABORT_CHECK_STEP);
+			for (; dim < end; dim++) {
+				sum += Math.abs(s1[dim] - s2[dim]);
+			}
+			if (sum > threshold) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Distance between two float signatures.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param threshold
+	 *            the threshold
+	 * @return the distance, or a partial sum above the threshold
+	 */
+	private static double sum(float[] s1, float[] s2, double threshold) {
+		double sum = 0;
+		int dim = 0;
+		while (dim < s1.length) {
+			int end = Math.min(s1.length, dim + ABORT_CHECK_STEP);
+			float p = 0;
+			for (; dim < end; dim++) {
+				p += Math.abs(s1[dim] - s2[dim]);
+			}
+			sum += p;
+			if (sum > threshold) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
 }
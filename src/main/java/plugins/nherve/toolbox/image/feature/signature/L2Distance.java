@@ -21,14 +21,12 @@ package plugins.nherve.toolbox.image.feature.signature;
 
 import java.util.Iterator;
 
-import plugins.nherve.toolbox.image.feature.SignatureDistance;
-
 /**
  * The Class L2Distance.
  * 
  * @author Nicolas HERVE - nherve@ina.fr
  */
-public class L2Distance extends SignatureDistance<VectorSignature> {
+public class L2Distance extends VectorSignatureDistance {
 
 	/**
 	 * Instantiates a new l2 distance.
@@ -47,6 +45,19 @@ public class L2Distance extends SignatureDistance<VectorSignature> {
 	 */
 	@Override
 	public double computeDistance(VectorSignature vs1, VectorSignature vs2) throws SignatureException {
+		return computeDistance(vs1, vs2, Double.POSITIVE_INFINITY);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.SignatureDistance#computeDistance
+	 * (plugins.nherve.toolbox.image.feature.Signature,
+	 * plugins.nherve.toolbox.image.feature.Signature, double)
+	 */
+	@Override
+	public double computeDistance(VectorSignature vs1, VectorSignature vs2, double threshold) throws SignatureException {
 		if ((vs1 == null) || (vs2 == null)) {
 			throw new SignatureException("Null signature in L2Distance.compute()");
 		}
@@ -56,6 +67,7 @@ public class L2Distance extends SignatureDistance<VectorSignature> {
 
 		double e = 0.0;
 		double d = 0.0;
+		double sqThreshold = threshold < 0 ? -1 : threshold * threshold;
 
 		if (vs1 instanceof SparseVectorSignature && vs2 instanceof SparseVectorSignature) {
 			SparseVectorSignature s1 = (SparseVectorSignature) vs1;
@@ -107,13 +119,54 @@ public class L2Distance extends SignatureDistance<VectorSignature> {
 					}
 				}
 			}
-		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof DenseVectorSignature) {
-			double[] s1 = ((DenseVectorSignature)vs1).getData();
-			double[] s2 = ((DenseVectorSignature)vs2).getData();
-			for (int dim = 0; dim < s1.length; dim++) {
-				e = s1[dim] - s2[dim];
+		} else if (vs1 instanceof CompactSparseVectorSignature && vs2 instanceof CompactSparseVectorSignature) {
+			CompactSparseVectorSignature s1 = (CompactSparseVectorSignature) vs1;
+			CompactSparseVectorSignature s2 = (CompactSparseVectorSignature) vs2;
+			int[] i1 = s1.getIndexes();
+			int[] i2 = s2.getIndexes();
+			double[] v1 = s1.getReadOnlyValues();
+			double[] v2 = s2.getReadOnlyValues();
+			int n1 = s1.getNonZeroBins();
+			int n2 = s2.getNonZeroBins();
+			int p1 = 0;
+			int p2 = 0;
+
+			while ((p1 < n1) && (p2 < n2)) {
+				if (i1[p1] == i2[p2]) {
+					e = v1[p1] - v2[p2];
+					p1++;
+					p2++;
+				} else if (i1[p1] > i2[p2]) {
+					e = v2[p2];
+					p2++;
+				} else {
+					e = v1[p1];
+					p1++;
+				}
 				d += e * e;
 			}
+			for (; p1 < n1; p1++) {
+				d += v1[p1] * v1[p1];
+			}
+			for (; p2 < n2; p2++) {
+				d += v2[p2] * v2[p2];
+			}
+		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof DenseVectorSignature) {
+			double[] s1 = ((DenseVectorSignature)vs1).getReadOnlyData();
+			double[] s2 = ((DenseVectorSignature)vs2).getReadOnlyData();
+			d = DistanceKernels.squaredL2(s1, 0, s2, 0, s1.length, sqThreshold);
+		} else if (vs1 instanceof FloatDenseVectorSignature && vs2 instanceof FloatDenseVectorSignature) {
+			d = squared(((FloatDenseVectorSignature) vs1).getReadOnlyData(), ((FloatDenseVectorSignature) vs2).getReadOnlyData(), sqThreshold);
+		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof FloatDenseVectorSignature) {
+			d = squared(((DenseVectorSignature) vs1).getReadOnlyData(), ((FloatDenseVectorSignature) vs2).getReadOnlyData(), sqThreshold);
+		} else if (vs1 instanceof FloatDenseVectorSignature && vs2 instanceof DenseVectorSignature) {
+			d = squared(((DenseVectorSignature) vs2).getReadOnlyData(), ((FloatDenseVectorSignature) vs1).getReadOnlyData(), sqThreshold);
+		} else if (vs1 instanceof ByteDenseVectorSignature && vs2 instanceof ByteDenseVectorSignature) {
+			d = squared((ByteDenseVectorSignature) vs1, (ByteDenseVectorSignature) vs2, sqThreshold);
+		} else if (vs1 instanceof DenseVectorSignature && vs2 instanceof ByteDenseVectorSignature) {
+			d = squared(((DenseVectorSignature) vs1).getReadOnlyData(), (ByteDenseVectorSignature) vs2, sqThreshold);
+		} else if (vs1 instanceof ByteDenseVectorSignature && vs2 instanceof DenseVectorSignature) {
+			d = squared(((DenseVectorSignature) vs2).getReadOnlyData(), (ByteDenseVectorSignature) vs1, sqThreshold);
 		} else {
 			for (int dim = 0; dim < vs1.getSize(); dim++) {
 				e = vs1.get(dim) - vs2.get(dim);
@@ -124,4 +177,189 @@ public class L2Distance extends SignatureDistance<VectorSignature> {
 		return Math.sqrt(d);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeDistances
+	 * (plugins.nherve.toolbox.image.feature.signature.VectorSignature,
+	 * plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int, int,
+	 * double[], int)
+	 */
+	@Override
+	public void computeDistances(VectorSignature query, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		if (query.getSize() != block.getDim()) {
+			throw new SignatureException("VectorSignature dimensions mismatch");
+		}
+		DistanceKernels.squaredL2(DistanceKernels.toArray(query), 0, block.getData(), from, to, block.getDim(), result, offset);
+		sqrt(result, offset, offset + to - from);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeRows(plugins.nherve.toolbox.image.feature.signature.SignatureBlock,
+	 * int, plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int,
+	 * int, double[], int)
+	 */
+	@Override
+	protected void computeRows(SignatureBlock queries, int q, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		DistanceKernels.squaredL2(queries.getData(), q * queries.getDim(), block.getData(), from, to, block.getDim(), result, offset);
+		sqrt(result, offset, offset + to - from);
+	}
+
+	/**
+	 * Replace squared distances by the distances.
+	 * 
+	 * @param result
+	 *            the result
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to
+	 */
+	private static void sqrt(double[] result, int from, int to) {
+		for (int i = from; i < to; i++) {
+			result[i] = Math.sqrt(result[i]);
+		}
+	}
+
+	/**
+	 * Squared distance between two signatures quantized on bytes. When they
+	 * share the same bounds, the sum is computed on the bytes only.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param sqThreshold
+	 *            the squared threshold
+	 * @return the squared distance, or a partial sum above the threshold
+	 */
+	private static double squared(ByteDenseVectorSignature s1, ByteDenseVectorSignature s2, double sqThreshold) {
+		byte[] q1 = s1.getReadOnlyData();
+		byte[] q2 = s2.getReadOnlyData();
+		double d = 0;
+		int dim = 0;
+		if (s1.hasSameQuantization(s2)) {
+			double sc2 = s1.getScale() * s1.getScale();
+			long sum = 0;
+			while (dim < q1.length) {
+				int end = Math.min(q1.length, dim + 4 * ABORT_CHECK_STEP);
+				for (; dim < end; dim++) {
+					int e = q1[dim] - q2[dim];
+					sum += e * e;
+				}
+				d = sum * sc2;
+				if (d > sqThreshold) {
+					return d;
+				}
+			}
+			return d;
+		}
+		double o = s1.getOffset() - s2.getOffset();
+		double sc1 = s1.getScale();
+		double sc2 = s2.getScale();
+		while (dim < q1.length) {
+			int end = Math.min(q1.length, dim + ABORT_CHECK_STEP);
+			for (; dim < end; dim++) {
+				double e = o + sc1 * q1[dim] - sc2 * q2[dim];
+				d += e * e;
+			}
+			if (d > sqThreshold) {
+				return d;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Squared distance between a double and a byte signature.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param sqThreshold
+	 *            the squared threshold
+	 * @return the squared distance, or a partial sum above the threshold
+	 */
+	private static double squared(double[] s1, ByteDenseVectorSignature s2, double sqThreshold) {
+		byte[] q2 = s2.getReadOnlyData();
+		double o = s2.getOffset();
+		double sc = s2.getScale();
+		double d = 0;
+		int dim = 0;
+		while (dim < s1.length) {
+			int end = Math.min(s1.length, dim + ABORT_CHECK_STEP);
+			for (; dim < end; dim++) {
+				double e = s1[dim] - o - sc * q2[dim];
+				d += e * e;
+			}
+			if (d > sqThreshold) {
+				return d;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Squared distance between a double and a float signature.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param sqThreshold
+	 *            the squared threshold
+	 * @return the squared distance, or a partial sum above the threshold
+	 */
+	private static double squared(double[] s1, float[] s2, double sqThreshold) {
+		double d = 0;
+		int dim = 0;
+		while (dim < s1.length) {
+			int end = Math.min(s1.length, dim + ABORT_CHECK_STEP);
+			for (; dim < end; dim++) {
+				double e = s1[dim] - s2[dim];
+				d += e * e;
+			}
+			if (d > sqThreshold) {
+				return d;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Squared distance between two float signatures.
+	 * 
+	 * @param s1
+	 *            the s1
+	 * @param s2
+	 *            the s2
+	 * @param sqThreshold
+	 *            the squared threshold
+	 * @return the squared distance, or a partial sum above the threshold
+	 */
+	private static double squared(float[] s1, float[] s2, double sqThreshold) {
+		double d = 0;
+		int dim = 0;
+		while (dim < s1.length) {
+			int end = Math.min(s1.length, dim + ABORT_CHECK_STEP);
+			float p = 0;
+			for (; dim < end; dim++) {
+				float e = s1[dim] - s2[dim];
+				p += e * e;
+			}
+			d += p;
+			if (d > sqThreshold) {
+				return d;
+			}
+		}
+		return d;
+	}
+
 }
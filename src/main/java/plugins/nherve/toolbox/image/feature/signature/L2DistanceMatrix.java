@@ -0,0 +1,397 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ * 
+ * This file is part of NHerveTools.
+ * 
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+import java.util.List;
+
+/**
+ * Squared L2 distances between a set of rows and a fixed set of columns
+ * (typically the centroids of a clustering), computed as a matrix product
+ * with the decomposition ||a - b||^2 = ||a||^2 + ||b||^2 - 2 a.b. The squared
+ * norms of the columns are computed once, the dot products are computed on
+ * tiles of rows and columns that stay in cache, two rows against four
+ * columns at a time.
+ * 
+ * The decomposition is not computed in the same order as the
+ * {@link L2Distance}, its results are approximations. Each of them comes
+ * with a bound of its error, {@link #getError(double, int)}, which is used
+ * by {@link #nearest(SignatureBlock, int, int, int[], int)} to recompute
+ * exactly the few columns that may be the closest one : the nearest column
+ * is always the one the {@link L2Distance} would give.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class L2DistanceMatrix {
+
+	/** Number of rows copied in a block by the nearest methods on lists. */
+	public final static int ROW_TILE = 32;
+
+	/** The columns. */
+	private final SignatureBlock columns;
+
+	/** The squared norms of the columns. */
+	private final double[] sqNorms;
+
+	/** Relative error of a decomposed distance. */
+	private final double errorFactor;
+
+	/** Number of columns of a tile. */
+	private final int tile;
+
+	/**
+	 * Instantiates a new distance matrix.
+	 * 
+	 * @param columns
+	 *            the columns
+	 */
+	public L2DistanceMatrix(SignatureBlock columns) {
+		super();
+		this.columns = columns;
+		int dim = columns.getDim();
+		double[] data = columns.getData();
+		sqNorms = new double[columns.size()];
+		for (int c = 0; c < sqNorms.length; c++) {
+			sqNorms[c] = squaredNorm(data, c * dim, dim);
+		}
+		// the norms and the dot product each err by at most dim ulps of
+		// their magnitude, as does the exact sum the result is compared to
+		errorFactor = (2 * dim + 8) * Math.ulp(1d);
+		tile = DistanceKernels.tileRows(dim);
+	}
+
+	/**
+	 * Instantiates a new distance matrix.
+	 * 
+	 * @param columns
+	 *            the columns
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public L2DistanceMatrix(List<? extends VectorSignature> columns) throws SignatureException {
+		this(new SignatureBlock(columns));
+	}
+
+	/**
+	 * Squared norm of a vector.
+	 * 
+	 * @param a
+	 *            the a
+	 * @param off
+	 *            the offset of the vector in a
+	 * @param dim
+	 *            the dimension
+	 * @return the squared norm
+	 */
+	public static double squaredNorm(double[] a, int off, int dim) {
+		return DistanceKernels.dot(a, off, a, off, dim);
+	}
+
+	/**
+	 * Dot products of consecutive rows with all the columns.
+	 * 
+	 * @param a
+	 *            the rows data
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param out
+	 *            the dot products, out[(i - from) * size() + c]
+	 */
+	private void dots(double[] a, int from, int to, double[] out) {
+		double[] b = columns.getData();
+		int dim = columns.getDim();
+		int n = columns.size();
+		for (int ct = 0; ct < n; ct += tile) {
+			int cEnd = Math.min(n, ct + tile);
+			int i = from;
+			for (; i + 1 < to; i += 2) {
+				int a0 = i * dim;
+				int a1 = a0 + dim;
+				int o0 = (i - from) * n;
+				int o1 = o0 + n;
+				int c = ct;
+				for (; c + 3 < cEnd; c += 4) {
+					int b0 = c * dim;
+					int b1 = b0 + dim;
+					int b2 = b1 + dim;
+					int b3 = b2 + dim;
+					double s00 = 0;
+					double s01 = 0;
+					double s02 = 0;
+					double s03 = 0;
+					double s10 = 0;
+					double s11 = 0;
+					double s12 = 0;
+					double s13 = 0;
+					for (int d = 0; d < dim; d++) {
+						double x0 = a[a0 + d];
+						double x1 = a[a1 + d];
+						double y0 = b[b0 + d];
+						double y1 = b[b1 + d];
+						double y2 = b[b2 + d];
+						double y3 = b[b3 + d];
+						s00 += x0 * y0;
+						s01 += x0 * y1;
+						s02 += x0 * y2;
+						s03 += x0 * y3;
+						s10 += x1 * y0;
+						s11 += x1 * y1;
+						s12 += x1 * y2;
+						s13 += x1 * y3;
+					}
+					out[o0 + c] = s00;
+					out[o0 + c + 1] = s01;
+					out[o0 + c + 2] = s02;
+					out[o0 + c + 3] = s03;
+					out[o1 + c] = s10;
+					out[o1 + c + 1] = s11;
+					out[o1 + c + 2] = s12;
+					out[o1 + c + 3] = s13;
+				}
+				for (; c < cEnd; c++) {
+					out[o0 + c] = DistanceKernels.dot(a, a0, b, c * dim, dim);
+					out[o1 + c] = DistanceKernels.dot(a, a1, b, c * dim, dim);
+				}
+			}
+			if (i < to) {
+				DistanceKernels.dot(a, i * dim, b, ct, cEnd, dim, out, (i - from) * n + ct);
+			}
+		}
+	}
+
+	/**
+	 * Exact squared distance between a row and a column, as computed by the
+	 * {@link L2Distance}.
+	 * 
+	 * @param rows
+	 *            the rows
+	 * @param row
+	 *            the row
+	 * @param col
+	 *            the column
+	 * @return the squared distance
+	 */
+	public double exactSquaredDistance(SignatureBlock rows, int row, int col) {
+		int dim = columns.getDim();
+		return DistanceKernels.squaredL2(rows.getData(), row * dim, columns.getData(), col * dim, dim, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Gets the columns.
+	 * 
+	 * @return the columns
+	 */
+	public SignatureBlock getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Bound of the difference between an approximated squared distance and
+	 * the exact one.
+	 * 
+	 * @param rowSquaredNorm
+	 *            the squared norm of the row
+	 * @param col
+	 *            the column
+	 * @return the error bound
+	 */
+	public double getError(double rowSquaredNorm, int col) {
+		return errorFactor * (rowSquaredNorm + sqNorms[col]);
+	}
+
+	/**
+	 * Gets the squared norm of a column.
+	 * 
+	 * @param col
+	 *            the column
+	 * @return the squared norm
+	 */
+	public double getSquaredNorm(int col) {
+		return sqNorms[col];
+	}
+
+	/**
+	 * Index of the nearest column of each signature of a list.
+	 * 
+	 * @param points
+	 *            the points
+	 * @param from
+	 *            the first point
+	 * @param to
+	 *            the last point, excluded
+	 * @param result
+	 *            the nearest columns, result[p] for point p
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public void nearest(List<? extends VectorSignature> points, int from, int to, int[] result) throws SignatureException {
+		SignatureBlock rows = new SignatureBlock(Math.min(ROW_TILE, to - from), columns.getDim());
+		double[] buffer = new double[rows.size() * size()];
+		double[] rowSqNorms = new double[rows.size()];
+		for (int p = from; p < to; p += rows.size()) {
+			int n = Math.min(rows.size(), to - p);
+			for (int r = 0; r < n; r++) {
+				rows.set(r, points.get(p + r));
+			}
+			nearest(rows, 0, n, result, p, buffer, rowSqNorms);
+		}
+	}
+
+	/**
+	 * Index of the nearest column of consecutive rows of a block. Ties are
+	 * given to the first column.
+	 * 
+	 * @param rows
+	 *            the rows
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param result
+	 *            the nearest columns
+	 * @param offset
+	 *            the offset of the first result
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public void nearest(SignatureBlock rows, int from, int to, int[] result, int offset) throws SignatureException {
+		int n = Math.min(ROW_TILE, to - from);
+		double[] buffer = new double[Math.max(0, n) * size()];
+		double[] rowSqNorms = new double[Math.max(0, n)];
+		for (int i = from; i < to; i += n) {
+			int end = Math.min(to, i + n);
+			nearest(rows, i, end, result, offset + i - from, buffer, rowSqNorms);
+		}
+	}
+
+	/**
+	 * Nearest columns of a tile of rows.
+	 * 
+	 * @param rows
+	 *            the rows
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param result
+	 *            the nearest columns
+	 * @param offset
+	 *            the offset of the first result
+	 * @param buffer
+	 *            the approximated distances
+	 * @param rowSqNorms
+	 *            the squared norms of the rows
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void nearest(SignatureBlock rows, int from, int to, int[] result, int offset, double[] buffer, double[] rowSqNorms) throws SignatureException {
+		squaredDistances(rows, from, to, buffer, rowSqNorms);
+		int n = size();
+		for (int i = from; i < to; i++) {
+			int o = (i - from) * n;
+			double rn = rowSqNorms[i - from];
+
+			double bound = Double.POSITIVE_INFINITY;
+			for (int c = 0; c < n; c++) {
+				bound = Math.min(bound, buffer[o + c] + getError(rn, c));
+			}
+
+			// same comparison as a scan with the L2Distance
+			double minDist = Double.MAX_VALUE;
+			int closest = 0;
+			for (int c = 0; c < n; c++) {
+				if (buffer[o + c] - getError(rn, c) <= bound) {
+					double d = Math.sqrt(exactSquaredDistance(rows, i, c));
+					if (d < minDist) {
+						minDist = d;
+						closest = c;
+					}
+				}
+			}
+			result[offset + i - from] = closest;
+		}
+	}
+
+	/**
+	 * Number of columns.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return columns.size();
+	}
+
+	/**
+	 * Approximated squared distances between consecutive rows of a block and
+	 * all the columns.
+	 * 
+	 * @param rows
+	 *            the rows
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param out
+	 *            the squared distances, out[(i - from) * size() + c] for row i
+	 *            and column c
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public void squaredDistances(SignatureBlock rows, int from, int to, double[] out) throws SignatureException {
+		squaredDistances(rows, from, to, out, new double[to - from]);
+	}
+
+	/**
+	 * Approximated squared distances between consecutive rows of a block and
+	 * all the columns, also giving the squared norms of the rows needed by
+	 * {@link #getError(double, int)}.
+	 * 
+	 * @param rows
+	 *            the rows
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param out
+	 *            the squared distances, out[(i - from) * size() + c] for row i
+	 *            and column c
+	 * @param rowSqNorms
+	 *            the squared norms of the rows, rowSqNorms[i - from]
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public void squaredDistances(SignatureBlock rows, int from, int to, double[] out, double[] rowSqNorms) throws SignatureException {
+		if (rows.getDim() != columns.getDim()) {
+			throw new SignatureException("VectorSignature dimensions mismatch");
+		}
+		int dim = rows.getDim();
+		double[] a = rows.getData();
+		int n = size();
+		dots(a, from, to, out);
+		for (int i = from; i < to; i++) {
+			double rn = squaredNorm(a, i * dim, dim);
+			rowSqNorms[i - from] = rn;
+			for (int c = 0, o = (i - from) * n; c < n; c++, o++) {
+				out[o] = Math.max(0, rn + sqNorms[c] - 2 * out[o]);
+			}
+		}
+	}
+}
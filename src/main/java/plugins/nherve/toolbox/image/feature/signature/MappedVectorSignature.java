@@ -0,0 +1,317 @@
+/*
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ *
+ * This file is part of NHerveTools.
+ *
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+
+/**
+ * Read only dense signature backed by one row of a shared buffer, usually a
+ * memory mapped file. Nothing is copied on the heap, the values are read
+ * directly from the buffer. Use {@link #clone()} to get a modifiable
+ * {@link DenseVectorSignature}.
+ *
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class MappedVectorSignature extends DefaultVectorSignature {
+
+	/**
+	 * The Class MVSIterator.
+	 *
+	 * @author Nicolas HERVE - nherve@ina.fr
+	 */
+	private class MVSIterator implements Iterator<Integer> {
+
+		/** The d. */
+		private int d;
+
+		/**
+		 * Instantiates a new iterator.
+		 */
+		public MVSIterator() {
+			super();
+			this.d = 0;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while (d < size) {
+				if (value(d) != 0) {
+					return true;
+				}
+				d++;
+			}
+
+			return false;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public Integer next() {
+			int r = d;
+			d++;
+			return r;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			// not used
+		}
+	}
+
+	/** The double data, null when the row is stored as float. */
+	private final DoubleBuffer doubleData;
+
+	/** The float data, null when the row is stored as double. */
+	private final FloatBuffer floatData;
+
+	/** The offset of the row in the buffer. */
+	private final int offset;
+
+	/** The size. */
+	private final int size;
+
+	/**
+	 * Instantiates a new mapped vector signature on a double buffer.
+	 *
+	 * @param data
+	 *            the data
+	 * @param offset
+	 *            the offset
+	 * @param size
+	 *            the size
+	 */
+	public MappedVectorSignature(DoubleBuffer data, int offset, int size) {
+		super();
+		this.doubleData = data;
+		this.floatData = null;
+		this.offset = offset;
+		this.size = size;
+	}
+
+	/**
+	 * Instantiates a new mapped vector signature on a float buffer.
+	 *
+	 * @param data
+	 *            the data
+	 * @param offset
+	 *            the offset
+	 * @param size
+	 *            the size
+	 */
+	public MappedVectorSignature(FloatBuffer data, int offset, int size) {
+		super();
+		this.doubleData = null;
+		this.floatData = data;
+		this.offset = offset;
+		this.size = size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#clone()
+	 */
+	@Override
+	public DenseVectorSignature clone() throws CloneNotSupportedException {
+		return new DenseVectorSignature(toArray());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#concat(plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature)
+	 */
+	@Override
+	public void concat(DefaultVectorSignature other) throws SignatureException {
+		throw new SignatureException("MappedVectorSignature is read only");
+	}
+
+	/**
+	 * Copy the row in the provided array.
+	 *
+	 * @param dest
+	 *            the destination, at least getSize() long
+	 */
+	public void copyTo(double[] dest) {
+		if (doubleData != null) {
+			for (int d = 0; d < size; d++) {
+				dest[d] = doubleData.get(offset + d);
+			}
+		} else {
+			for (int d = 0; d < size; d++) {
+				dest[d] = floatData.get(offset + d);
+			}
+		}
+	}
+
+	@Override
+	public double dot(VectorSignature other) throws SignatureException {
+		double dot = 0;
+		if (other instanceof DenseVectorSignature) {
+			double[] od = ((DenseVectorSignature) other).getReadOnlyData();
+			for (int d = 0; d < size; d++) {
+				dot += value(d) * od[d];
+			}
+		} else {
+			for (int d = 0; d < size; d++) {
+				dot += value(d) * other.get(d);
+			}
+		}
+		return dot;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#get(int)
+	 */
+	@Override
+	public double get(int idx) throws SignatureException {
+		if ((idx < 0) || (idx >= size)) {
+			throw new SignatureException("Invalid signature index (" + idx + ")");
+		}
+		return value(idx);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getNonZeroBins()
+	 */
+	@Override
+	public int getNonZeroBins() throws SignatureException {
+		int res = 0;
+		for (int d = 0; d < size; d++) {
+			if (value(d) != 0) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.VectorSignature#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Checks if the row is stored as float.
+	 *
+	 * @return true, if is float
+	 */
+	public boolean isFloat() {
+		return floatData != null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<Integer> iterator() {
+		return new MVSIterator();
+	}
+
+	@Override
+	public void multiply(double coef) throws SignatureException {
+		throw new SignatureException("MappedVectorSignature is read only");
+	}
+
+	@Override
+	public double norm() throws SignatureException {
+		double norm = 0;
+		for (int d = 0; d < size; d++) {
+			double v = value(d);
+			norm += v * v;
+		}
+
+		return Math.sqrt(norm);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature#set(int, double)
+	 */
+	@Override
+	public void set(int idx, double val) throws SignatureException {
+		throw new SignatureException("MappedVectorSignature is read only");
+	}
+
+	@Override
+	public void setSize(int s) {
+		throw new UnsupportedOperationException("MappedVectorSignature is read only");
+	}
+
+	@Override
+	public double sum() throws SignatureException {
+		double sum = 0;
+		for (int d = 0; d < size; d++) {
+			sum += value(d);
+		}
+		return sum;
+	}
+
+	/**
+	 * Copy the row in a new array.
+	 *
+	 * @return the array
+	 */
+	public double[] toArray() {
+		double[] res = new double[size];
+		copyTo(res);
+		return res;
+	}
+
+	/**
+	 * Unchecked access to a value.
+	 *
+	 * @param idx
+	 *            the idx
+	 * @return the value
+	 */
+	private double value(int idx) {
+		if (doubleData != null) {
+			return doubleData.get(offset + idx);
+		}
+		return floatData.get(offset + idx);
+	}
+}
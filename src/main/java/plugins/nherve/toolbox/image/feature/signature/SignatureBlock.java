@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ * 
+ * This file is part of NHerveTools.
+ * 
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+import java.util.List;
+
+/**
+ * A set of signatures of the same dimension stored in a single row major
+ * array, to be compared with the batch methods of
+ * {@link VectorSignatureDistance}.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public class SignatureBlock {
+
+	/** The dimension. */
+	private final int dim;
+
+	/** The number of rows. */
+	private final int size;
+
+	/** The values. */
+	private final double[] data;
+
+	/** The L2 norms of the rows, computed on demand. */
+	private double[] norms;
+
+	/**
+	 * Instantiates a new block with all its values at 0.
+	 * 
+	 * @param size
+	 *            the number of rows
+	 * @param dim
+	 *            the dimension
+	 */
+	public SignatureBlock(int size, int dim) {
+		super();
+		this.size = size;
+		this.dim = dim;
+		this.data = new double[size * dim];
+		this.norms = null;
+	}
+
+	/**
+	 * Instantiates a new block, copy of a list of signatures.
+	 * 
+	 * @param sigs
+	 *            the signatures
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public SignatureBlock(List<? extends VectorSignature> sigs) throws SignatureException {
+		this(sigs.size(), sigs.isEmpty() ? 0 : sigs.get(0).getSize());
+		for (int r = 0; r < size; r++) {
+			set(r, sigs.get(r));
+		}
+	}
+
+	/**
+	 * Gets the values.
+	 * 
+	 * @return the data
+	 */
+	public double[] getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the dimension.
+	 * 
+	 * @return the dim
+	 */
+	public int getDim() {
+		return dim;
+	}
+
+	/**
+	 * Gets the L2 norms of the rows.
+	 * 
+	 * @return the norms
+	 */
+	public synchronized double[] getNorms() {
+		if (norms == null) {
+			double[] n = new double[size];
+			for (int r = 0; r < size; r++) {
+				n[r] = Math.sqrt(DistanceKernels.dot(data, r * dim, data, r * dim, dim));
+			}
+			norms = n;
+		}
+		return norms;
+	}
+
+	/**
+	 * Gets a copy of a row.
+	 * 
+	 * @param row
+	 *            the row
+	 * @return the signature
+	 */
+	public DenseVectorSignature getSignature(int row) {
+		double[] v = new double[dim];
+		System.arraycopy(data, row * dim, v, 0, dim);
+		return new DenseVectorSignature(v);
+	}
+
+	/**
+	 * Copy a signature in a row.
+	 * 
+	 * @param row
+	 *            the row
+	 * @param s
+	 *            the signature
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public synchronized void set(int row, VectorSignature s) throws SignatureException {
+		if (s.getSize() != dim) {
+			throw new SignatureException("VectorSignature dimensions mismatch (" + s.getSize() + "/" + dim + ")");
+		}
+		if (s instanceof DenseVectorSignature) {
+			System.arraycopy(((DenseVectorSignature) s).getReadOnlyData(), 0, data, row * dim, dim);
+		} else {
+			for (int d = 0, o = row * dim; d < dim; d++, o++) {
+				data[o] = s.get(d);
+			}
+		}
+		norms = null;
+	}
+
+	/**
+	 * Number of rows.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+}
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -74,6 +75,7 @@ public class SparseVectorSignature extends DefaultVectorSignature {
 				v = data.get(idx);
 				data.put(idx, (v == null ? 0 : v) + e.getValue());
 			}
+			invalidateNorm();
 		} else {
 			super.add(other);
 		}
@@ -123,6 +125,7 @@ public class SparseVectorSignature extends DefaultVectorSignature {
 
 		size = newSize;
 		data = newData;
+		invalidateNorm();
 	}
 
 	/*
@@ -146,14 +149,28 @@ public class SparseVectorSignature extends DefaultVectorSignature {
 	}
 
 	/**
-	 * Gets the data.
+	 * Gets the data. The map is the storage of the signature and may be
+	 * modified, the cached norm is forgotten.
 	 *
 	 * @return the data
 	 */
 	public Map<Integer, Double> getData() {
+		invalidateNorm();
 		return data;
 	}
 
+	/**
+	 * Gets an unmodifiable view of the data.
+	 *
+	 * @return the data
+	 */
+	public Map<Integer, Double> getReadOnlyData() {
+		if (data instanceof SortedMap<?, ?>) {
+			return Collections.unmodifiableSortedMap((SortedMap<Integer, Double>) data);
+		}
+		return Collections.unmodifiableMap(data);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -203,6 +220,7 @@ public class SparseVectorSignature extends DefaultVectorSignature {
 			for (int idx : toRemove) {
 				data.remove(idx);
 			}
+			invalidateNorm();
 		}
 	}
 
@@ -211,6 +229,7 @@ public class SparseVectorSignature extends DefaultVectorSignature {
 		for (int idx : this) {
 			data.put(idx, data.get(idx) * coef);
 		}
+		invalidateNorm();
 	}
 
 	@Override
@@ -240,6 +259,7 @@ public class SparseVectorSignature extends DefaultVectorSignature {
 		} else {
 			data.put(idx, val);
 		}
+		invalidateNorm();
 	}
 
 	@Override
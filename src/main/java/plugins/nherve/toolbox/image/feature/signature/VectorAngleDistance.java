@@ -18,16 +18,12 @@
  */
 package plugins.nherve.toolbox.image.feature.signature;
 
-import java.util.Iterator;
-
-import plugins.nherve.toolbox.image.feature.SignatureDistance;
-
 /**
  * The Class VectorAngleDistance.
  *
  * @author Nicolas HERVE - nherve@ina.fr
  */
-public class VectorAngleDistance extends SignatureDistance<VectorSignature> {
+public class VectorAngleDistance extends VectorSignatureDistance {
 	private boolean similarity;
 
 	public VectorAngleDistance() {
@@ -49,91 +45,64 @@ public class VectorAngleDistance extends SignatureDistance<VectorSignature> {
 			throw new SignatureException("VectorSignature dimensions mismatch");
 		}
 
-		double dist = 0.0;
-		double sqsum1 = 0.0;
-		double sqsum2 = 0.0;
-
-		if ((vs1 instanceof SparseVectorSignature) && (vs2 instanceof SparseVectorSignature)) {
-			SparseVectorSignature s1 = (SparseVectorSignature) vs1;
-			SparseVectorSignature s2 = (SparseVectorSignature) vs2;
-
-			Iterator<Integer> idx1it = s1.iterator();
-			Iterator<Integer> idx2it = s2.iterator();
-
-			int idx1 = Integer.MAX_VALUE;
-			int idx2 = Integer.MAX_VALUE;
-
-			if (idx1it.hasNext()) {
-				idx1 = idx1it.next();
-			}
-
-			if (idx2it.hasNext()) {
-				idx2 = idx2it.next();
-			}
-
-			double v1 = 0;
-			double v2 = 0;
-			while ((idx1 < Integer.MAX_VALUE) || (idx2 < Integer.MAX_VALUE)) {
-				if (idx1 == idx2) {
-					v1 = s1.get(idx1);
-					v2 = s2.get(idx2);
-					dist += v1 * v2;
-					sqsum1 += v1 * v1;
-					sqsum2 += v2 * v2;
-
-					if (idx1it.hasNext()) {
-						idx1 = idx1it.next();
-					} else {
-						idx1 = Integer.MAX_VALUE;
-					}
-
-					if (idx2it.hasNext()) {
-						idx2 = idx2it.next();
-					} else {
-						idx2 = Integer.MAX_VALUE;
-					}
-				} else if (idx1 > idx2) {
-					v2 = s2.get(idx2);
-					sqsum2 += v2 * v2;
-					if (idx2it.hasNext()) {
-						idx2 = idx2it.next();
-					} else {
-						idx2 = Integer.MAX_VALUE;
-					}
-				} else {
-					v1 = s1.get(idx1);
-					sqsum1 += v1 * v1;
-					if (idx1it.hasNext()) {
-						idx1 = idx1it.next();
-					} else {
-						idx1 = Integer.MAX_VALUE;
-					}
-				}
-			}
-
-		} else if ((vs1 instanceof DenseVectorSignature) && (vs2 instanceof DenseVectorSignature)) {
-			double[] s1 = ((DenseVectorSignature) vs1).getData();
-			double[] s2 = ((DenseVectorSignature) vs2).getData();
-
-			for (int i = 0; i < s1.length; i++) {
-				dist += s1[i] * s2[i];
-				sqsum1 += s1[i] * s1[i];
-				sqsum2 += s2[i] * s2[i];
-			}
-		} else {
-			double v1 = 0;
-			double v2 = 0;
-			for (int i = 0; i < vs1.getSize(); i++) {
-				v1 = vs1.get(i);
-				v2 = vs2.get(i);
-				dist += v1 * v2;
-				sqsum1 += v1 * v1;
-				sqsum2 += v2 * v2;
-			}
+		double sq = CosineDistance.norm(vs1) * CosineDistance.norm(vs2);
+		double dist = sq == 0. ? 0. : CosineDistance.dot(vs1, vs2);
+
+		return fromDot(dist, sq);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeDistances
+	 * (plugins.nherve.toolbox.image.feature.signature.VectorSignature,
+	 * plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int, int,
+	 * double[], int)
+	 */
+	@Override
+	public void computeDistances(VectorSignature query, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		if (query.getSize() != block.getDim()) {
+			throw new SignatureException("VectorSignature dimensions mismatch");
 		}
+		DistanceKernels.dot(DistanceKernels.toArray(query), 0, block.getData(), from, to, block.getDim(), result, offset);
+		double qn = CosineDistance.norm(query);
+		double[] norms = block.getNorms();
+		for (int r = from; r < to; r++, offset++) {
+			result[offset] = fromDot(result[offset], qn * norms[r]);
+		}
+	}
 
-		double sq = Math.sqrt(sqsum1 * sqsum2);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance
+	 * #computeRows(plugins.nherve.toolbox.image.feature.signature.SignatureBlock,
+	 * int, plugins.nherve.toolbox.image.feature.signature.SignatureBlock, int,
+	 * int, double[], int)
+	 */
+	@Override
+	protected void computeRows(SignatureBlock queries, int q, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		DistanceKernels.dot(queries.getData(), q * queries.getDim(), block.getData(), from, to, block.getDim(), result, offset);
+		double qn = queries.getNorms()[q];
+		double[] norms = block.getNorms();
+		for (int r = from; r < to; r++, offset++) {
+			result[offset] = fromDot(result[offset], qn * norms[r]);
+		}
+	}
 
+	/**
+	 * Distance from the dot product and the product of the norms.
+	 * 
+	 * @param dist
+	 *            the dot product
+	 * @param sq
+	 *            the product of the norms
+	 * @return the distance or similarity
+	 */
+	private double fromDot(double dist, double sq) {
 		// if ((sq == 0.) || (dist == 0.)) {
 		// dist = 2.;
 		// } else {
@@ -151,10 +120,8 @@ public class VectorAngleDistance extends SignatureDistance<VectorSignature> {
 			return similarity ? 0. : 1.;
 		}
 
-		double r = dist / sq;
-		if (Math.abs(r) > 1) {
-			return similarity ? 1. : 0.;
-		}
+		// rounding may push the cosine of (anti)colinear vectors out of [-1, 1]
+		double r = Math.max(-1., Math.min(1., dist / sq));
 
 		return similarity ? r : (2 * Math.acos(r)) / Math.PI;
 	}
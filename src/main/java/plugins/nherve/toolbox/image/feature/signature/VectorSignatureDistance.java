@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012 Institut National de l'Audiovisuel.
+ * 
+ * This file is part of NHerveTools.
+ * 
+ * NHerveTools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerveTools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerveTools. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.signature;
+
+import plugins.nherve.toolbox.image.feature.SignatureDistance;
+
+/**
+ * Distance between vector signatures that can also be computed in batch,
+ * between one signature and the rows of a {@link SignatureBlock} or between
+ * all the rows of two blocks. The batch versions avoid the type checks and
+ * virtual calls of the pairwise method. By default they go through it, the
+ * distances of the toolbox override them with the {@link DistanceKernels}.
+ * 
+ * @author Nicolas HERVE - nherve@ina.fr
+ */
+public abstract class VectorSignatureDistance extends SignatureDistance<VectorSignature> {
+
+	/**
+	 * Instantiates a new vector signature distance.
+	 */
+	public VectorSignatureDistance() {
+		super();
+	}
+
+	/**
+	 * Compute the distances between a signature and consecutive rows of a
+	 * block.
+	 * 
+	 * @param query
+	 *            the query
+	 * @param block
+	 *            the block
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param result
+	 *            the distances, result[offset + r - from] for row r
+	 * @param offset
+	 *            the offset of the first distance
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public void computeDistances(VectorSignature query, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		for (int r = from; r < to; r++) {
+			result[offset + r - from] = computeDistance(query, block.getSignature(r));
+		}
+	}
+
+	/**
+	 * Compute the distances between all the rows of two blocks.
+	 * 
+	 * @param queries
+	 *            the queries
+	 * @param block
+	 *            the block
+	 * @param result
+	 *            the distances, result[q * block.size() + r] for query q and
+	 *            row r
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public void computeDistances(SignatureBlock queries, SignatureBlock block, double[] result) throws SignatureException {
+		checkDimensions(queries, block);
+		int tile = DistanceKernels.tileRows(block.getDim());
+		for (int from = 0; from < block.size(); from += tile) {
+			int to = Math.min(block.size(), from + tile);
+			for (int q = 0; q < queries.size(); q++) {
+				computeRows(queries, q, block, from, to, result, q * block.size() + from);
+			}
+		}
+	}
+
+	/**
+	 * Check that two blocks have the same dimension.
+	 * 
+	 * @param b1
+	 *            the b1
+	 * @param b2
+	 *            the b2
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	protected static void checkDimensions(SignatureBlock b1, SignatureBlock b2) throws SignatureException {
+		if (b1.getDim() != b2.getDim()) {
+			throw new SignatureException("VectorSignature dimensions mismatch");
+		}
+	}
+
+	/**
+	 * Compute the distances between a row of a block and consecutive rows of
+	 * an other one.
+	 * 
+	 * @param queries
+	 *            the queries
+	 * @param q
+	 *            the query row
+	 * @param block
+	 *            the block
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the last row, excluded
+	 * @param result
+	 *            the result
+	 * @param offset
+	 *            the offset of the first distance
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	protected void computeRows(SignatureBlock queries, int q, SignatureBlock block, int from, int to, double[] result, int offset) throws SignatureException {
+		computeDistances(queries.getSignature(q), block, from, to, result, offset);
+	}
+}
@@ -0,0 +1,318 @@
+package plugins.nherve.toolbox.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import plugins.nherve.toolbox.BufferedFileChannel;
+import plugins.nherve.toolbox.PersistenceToolbox;
+import plugins.nherve.toolbox.image.feature.Signature;
+import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
+import plugins.nherve.toolbox.image.feature.signature.ByteDenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.CompactSparseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.FloatDenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.IndexSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.SparseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+public class TestBufferedFileChannel {
+
+	/** Number of signature types written by randomSignature. */
+	public final static int NB_TYPES = 8;
+
+	/** Sizes around the buffer, so that the records cross its boundary. */
+	public final static int BIG = BufferedFileChannel.DEFAULT_BUFFER_SIZE / 4;
+
+	public Random rd = new Random(8524631l);
+
+	/**
+	 * The two channels compared, a buffered one and a plain one, each on its
+	 * own file.
+	 */
+	public static class Channels {
+		public File bf;
+		public File pf;
+		public RandomAccessFile braf;
+		public RandomAccessFile praf;
+		public BufferedFileChannel buffered;
+		public FileChannel plain;
+
+		public Channels() throws IOException {
+			bf = File.createTempFile("bfc", ".obj");
+			pf = File.createTempFile("pfc", ".obj");
+			bf.deleteOnExit();
+			pf.deleteOnExit();
+			open();
+		}
+
+		public void open() throws IOException {
+			braf = new RandomAccessFile(bf, "rw");
+			praf = new RandomAccessFile(pf, "rw");
+			buffered = new BufferedFileChannel(braf.getChannel());
+			plain = praf.getChannel();
+		}
+
+		public void close() throws IOException {
+			buffered.flush();
+			braf.close();
+			praf.close();
+		}
+
+		public void checkPosition() throws IOException {
+			Assert.assertEquals(plain.position(), buffered.position());
+		}
+
+		public void checkSameFiles() throws IOException {
+			buffered.flush();
+			Assert.assertEquals(pf.length(), bf.length());
+			byte[] b1 = new byte[(int) pf.length()];
+			byte[] b2 = new byte[(int) bf.length()];
+			praf.seek(0);
+			praf.readFully(b1);
+			braf.seek(0);
+			braf.readFully(b2);
+			Assert.assertTrue(Arrays.equals(b1, b2));
+		}
+	}
+
+	public double[] randomData(int dim) {
+		double[] data = new double[dim];
+		for (int d = 0; d < dim; d++) {
+			data[d] = rd.nextDouble();
+		}
+		return data;
+	}
+
+	/**
+	 * A random signature of each type, the sizes being either small or large
+	 * enough to cross the buffer boundary.
+	 */
+	public Signature randomSignature(int type, boolean big) throws SignatureException {
+		int dim = big ? BIG + rd.nextInt(BIG) : 1 + rd.nextInt(200);
+		switch (type) {
+		case 0:
+			return null;
+		case 1:
+			return new DenseVectorSignature(randomData(dim));
+		case 2:
+			float[] f = new float[dim];
+			for (int d = 0; d < dim; d++) {
+				f[d] = rd.nextFloat();
+			}
+			return new FloatDenseVectorSignature(f);
+		case 3:
+			return ByteDenseVectorSignature.quantize(new DenseVectorSignature(randomData(dim * 4)));
+		case 4:
+			SparseVectorSignature s = new SparseVectorSignature(dim * 10);
+			for (int d = 0; d < dim / 4 + 1; d++) {
+				s.set(rd.nextInt(dim * 10), rd.nextDouble());
+			}
+			return s;
+		case 5:
+			int nnz = dim / 4 + 1;
+			int[] indexes = new int[nnz];
+			double[] values = new double[nnz];
+			for (int d = 0; d < nnz; d++) {
+				indexes[d] = d * 10 + rd.nextInt(10);
+				values[d] = rd.nextDouble();
+			}
+			return new CompactSparseVectorSignature(dim * 10, indexes, values, nnz);
+		case 6:
+			int[] idx = new int[dim];
+			for (int d = 0; d < dim; d++) {
+				idx[d] = rd.nextInt();
+			}
+			return new IndexSignature(idx);
+		default:
+			BagOfSignatures<DefaultVectorSignature> bag = new BagOfSignatures<DefaultVectorSignature>();
+			int nb = 1 + rd.nextInt(5);
+			for (int i = 0; i < nb; i++) {
+				bag.add((DefaultVectorSignature) randomSignature(1 + rd.nextInt(5), big && (i == 0)));
+			}
+			return bag;
+		}
+	}
+
+	public Signature loadSignature(FileChannel fc, Signature expected) throws IOException {
+		if (expected instanceof IndexSignature) {
+			Assert.assertEquals(PersistenceToolbox.INDEX_TYPE, PersistenceToolbox.loadInt(fc));
+			return PersistenceToolbox.loadIndexSignature(fc);
+		}
+		if (expected instanceof BagOfSignatures<?>) {
+			return PersistenceToolbox.loadBagOfSignatures(fc);
+		}
+		return PersistenceToolbox.loadVectorSignature(fc);
+	}
+
+	public void checkSame(Signature expected, Signature actual) throws SignatureException {
+		if (expected == null) {
+			Assert.assertNull(actual);
+			return;
+		}
+		Assert.assertNotNull(actual);
+		Assert.assertEquals(expected.getClass(), actual.getClass());
+		if (expected instanceof IndexSignature) {
+			IndexSignature e = (IndexSignature) expected;
+			IndexSignature a = (IndexSignature) actual;
+			Assert.assertEquals(e.getSize(), a.getSize());
+			for (int d = 0; d < e.getSize(); d++) {
+				Assert.assertEquals(e.get(d), a.get(d));
+			}
+		} else if (expected instanceof BagOfSignatures<?>) {
+			List<?> e = ((BagOfSignatures<?>) expected).getSignatures();
+			List<?> a = ((BagOfSignatures<?>) actual).getSignatures();
+			Assert.assertEquals(e.size(), a.size());
+			for (int i = 0; i < e.size(); i++) {
+				checkSame((Signature) e.get(i), (Signature) a.get(i));
+			}
+		} else {
+			VectorSignature e = (VectorSignature) expected;
+			VectorSignature a = (VectorSignature) actual;
+			Assert.assertEquals(e.getSize(), a.getSize());
+			for (int d = 0; d < e.getSize(); d++) {
+				Assert.assertEquals(e.get(d), a.get(d), 0);
+			}
+		}
+	}
+
+	@Test
+	public void runAllTests() {
+		try {
+			testSignatures(300, 0.02);
+			testSignatures(40, 0.3);
+			testMixed(2000);
+		} catch (Exception e) {
+			Assert.fail(e.getClass().getName() + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Dump the same signatures through both channels, compare the files and
+	 * read them back in order, with random skips and seeks to the previous
+	 * and next records.
+	 */
+	public void testSignatures(int nb, double bigRatio) throws Exception {
+		System.out.println("testSignatures(" + nb + ", " + bigRatio + ")");
+		Channels c = new Channels();
+		try {
+			List<Signature> sigs = new ArrayList<Signature>();
+			long[] offsets = new long[nb];
+			PersistenceToolbox.dumpInt(c.buffered, nb);
+			PersistenceToolbox.dumpInt(c.plain, nb);
+			for (int i = 0; i < nb; i++) {
+				Signature s = randomSignature(i % NB_TYPES, rd.nextDouble() < bigRatio);
+				sigs.add(s);
+				PersistenceToolbox.dumpLong(c.buffered, i);
+				PersistenceToolbox.dumpLong(c.plain, i);
+				c.checkPosition();
+				offsets[i] = c.plain.position();
+				PersistenceToolbox.dumpSignature(c.buffered, s);
+				PersistenceToolbox.dumpSignature(c.plain, s);
+				c.checkPosition();
+			}
+			c.checkSameFiles();
+			c.close();
+
+			c.open();
+			Assert.assertEquals(nb, PersistenceToolbox.loadInt(c.buffered));
+			Assert.assertEquals(nb, PersistenceToolbox.loadInt(c.plain));
+			for (int i = 0; i < nb; i++) {
+				Assert.assertEquals(i, PersistenceToolbox.loadLong(c.buffered));
+				Assert.assertEquals(i, PersistenceToolbox.loadLong(c.plain));
+				c.checkPosition();
+				if (rd.nextBoolean()) {
+					PersistenceToolbox.skipSignature(c.buffered);
+					PersistenceToolbox.skipSignature(c.plain);
+				} else {
+					checkSame(sigs.get(i), loadSignature(c.buffered, sigs.get(i)));
+					checkSame(sigs.get(i), loadSignature(c.plain, sigs.get(i)));
+				}
+				c.checkPosition();
+
+				// go back to a previous record or forward to the next one
+				int j = rd.nextBoolean() ? rd.nextInt(i + 1) : Math.min(i + 1, nb - 1);
+				c.buffered.position(offsets[j]);
+				checkSame(sigs.get(j), loadSignature(c.buffered, sigs.get(j)));
+				c.buffered.position(offsets[i]);
+				PersistenceToolbox.skipSignature(c.buffered);
+				c.checkPosition();
+
+				BufferedFileChannel block = BufferedFileChannel.readBlock(c.plain, offsets[j], (int) ((j + 1 < nb ? offsets[j + 1] : c.plain.size()) - offsets[j]));
+				checkSame(sigs.get(j), loadSignature(block, sigs.get(j)));
+			}
+			Assert.assertEquals(c.plain.size(), c.buffered.position());
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Random reads, writes and seeks on both channels, switching between the
+	 * read and the write modes, with arrays larger than the buffer.
+	 */
+	public void testMixed(int nbOps) throws Exception {
+		System.out.println("testMixed(" + nbOps + ")");
+		Channels c = new Channels();
+		try {
+			for (int op = 0; op < nbOps; op++) {
+				long size = c.plain.size();
+				switch (rd.nextInt(6)) {
+				case 0:
+					long pos = size == 0 ? 0 : (long) (rd.nextDouble() * size);
+					c.buffered.position(pos);
+					c.plain.position(pos);
+					break;
+				case 1:
+					int i = rd.nextInt();
+					PersistenceToolbox.dumpInt(c.buffered, i);
+					PersistenceToolbox.dumpInt(c.plain, i);
+					break;
+				case 2:
+					double d = rd.nextDouble();
+					PersistenceToolbox.dumpDouble(c.buffered, d);
+					PersistenceToolbox.dumpDouble(c.plain, d);
+					break;
+				case 3:
+					long[] l = new long[rd.nextBoolean() ? rd.nextInt(100) : BIG / 2 + rd.nextInt(BIG)];
+					for (int k = 0; k < l.length; k++) {
+						l[k] = rd.nextLong();
+					}
+					PersistenceToolbox.dumpFullLongArray(c.buffered, l);
+					PersistenceToolbox.dumpFullLongArray(c.plain, l);
+					c.checkPosition();
+					c.buffered.position(c.buffered.position() - 8l * l.length - 4);
+					c.plain.position(c.plain.position() - 8l * l.length - 4);
+					Assert.assertTrue(Arrays.equals(l, PersistenceToolbox.loadFullLongArray(c.buffered)));
+					Assert.assertTrue(Arrays.equals(l, PersistenceToolbox.loadFullLongArray(c.plain)));
+					break;
+				case 4:
+					if (c.plain.position() + 8 <= size) {
+						Assert.assertEquals(PersistenceToolbox.loadLong(c.plain), PersistenceToolbox.loadLong(c.buffered));
+					}
+					break;
+				default:
+					if (c.plain.position() + 4 <= size) {
+						Assert.assertEquals(PersistenceToolbox.loadInt(c.plain), PersistenceToolbox.loadInt(c.buffered));
+					}
+					break;
+				}
+				c.checkPosition();
+				Assert.assertEquals(c.plain.size(), c.buffered.size());
+			}
+			c.checkSameFiles();
+		} finally {
+			c.close();
+		}
+	}
+}
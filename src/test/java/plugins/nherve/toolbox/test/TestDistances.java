@@ -2,6 +2,7 @@ package plugins.nherve.toolbox.test;
 
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
@@ -10,19 +11,33 @@ import org.junit.Test;
 
 import junit.framework.Assert;
 import plugins.nherve.toolbox.image.feature.SignatureDistance;
+import plugins.nherve.toolbox.image.feature.signature.ByteDenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.CompactSparseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.CosineDistance;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.DynamicSparseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.FloatDenseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.L1Distance;
 import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureBlock;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
 import plugins.nherve.toolbox.image.feature.signature.SparseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.VectorAngleDistance;
 import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignatureDistance;
 
 public class TestDistances {
 
+	/** Number of signature types holding the exact values. */
+	public final static int EXACT_TYPES = 4;
+
+	/** Tolerance for the float and byte signatures and the batch distances. */
+	public final static double DELTA = 1e-6;
+
+	/** Step of the byte signatures, also exact in float. */
+	public final static double BYTE_SCALE = 1. / 128;
+
 	public Random rd = new Random(1586412l);
 
 	public double[] randomData(int dim, double sparsity, boolean negValues) {
@@ -41,6 +56,55 @@ public class TestDistances {
 		return data;
 	}
 
+	/**
+	 * Round the values to the levels of the byte signatures, so that all the
+	 * signature types hold exactly the same values.
+	 */
+	public double[] quantizableData(int dim, double sparsity, boolean negValues) {
+		double[] data = randomData(dim, sparsity, negValues);
+		for (int d = 0; d < dim; d++) {
+			data[d] = Math.round(data[d] * 127) * BYTE_SCALE;
+		}
+		return data;
+	}
+
+	public DefaultVectorSignature[] allTypes(double[] data, boolean norm) throws SignatureException {
+		int dim = data.length;
+		DenseVectorSignature dense = new DenseVectorSignature(dim);
+		SparseVectorSignature sparse = new SparseVectorSignature(dim);
+		DynamicSparseVectorSignature dynamic = new DynamicSparseVectorSignature();
+		CompactSparseVectorSignature compact = new CompactSparseVectorSignature(dim);
+		FloatDenseVectorSignature fdense = new FloatDenseVectorSignature(dim);
+		ByteDenseVectorSignature bdense = new ByteDenseVectorSignature(new byte[dim], 0, BYTE_SCALE);
+		for (int d = 0; d < dim; d++) {
+			dense.set(d, data[d]);
+			sparse.set(d, data[d]);
+			dynamic.set(d, data[d]);
+			compact.set(d, data[d]);
+			fdense.set(d, data[d]);
+			bdense.set(d, data[d]);
+		}
+		DefaultVectorSignature[] sigs = new DefaultVectorSignature[] { dense, sparse, dynamic, compact, fdense, bdense };
+		if (norm) {
+			for (DefaultVectorSignature s : sigs) {
+				s.normalizeL2(false);
+			}
+		}
+		return sigs;
+	}
+
+	@SuppressWarnings("unchecked")
+	public SignatureDistance<VectorSignature>[] allDistances() {
+		SignatureDistance<VectorSignature>[] dist = new SignatureDistance[6];
+		dist[0] = new L1Distance();
+		dist[1] = new L2Distance();
+		dist[2] = new VectorAngleDistance();
+		dist[3] = new VectorAngleDistance(true);
+		dist[4] = new CosineDistance();
+		dist[5] = new CosineDistance(true);
+		return dist;
+	}
+
 	@Test
 	public void runAllTests() {
 		try {
@@ -51,6 +115,8 @@ public class TestDistances {
 					test(dim, sparsity, 10, true, false);
 					test(dim, sparsity, 10, false, false);
 				}
+				testBatch(dim, 0.4, 10, true, true);
+				testBatch(dim, 0.4, 10, false, false);
 				compareCosineAndVectorAngle(dim, 0, true);
 				compareCosineAndVectorAngle(dim, 0, false);
 			}
@@ -114,48 +180,34 @@ public class TestDistances {
 
 	public void test(int dim, double sparsity, int nb, boolean negValues, boolean norm) throws SignatureException {
 		System.out.println("test(" + dim + ", " + sparsity + ", " + nb + ", " + negValues + ", " + norm + ")");
-		final int sigType = 3;
-		final int distType = 6;
+		final int sigType = 6;
 
 		DefaultVectorSignature[][] sigs = new DefaultVectorSignature[sigType][nb];
 
 		for (int n = 0; n < nb; n++) {
-			double[] data = randomData(dim, sparsity, negValues);
-			DenseVectorSignature dense = new DenseVectorSignature(dim);
-			SparseVectorSignature sparse = new SparseVectorSignature(dim);
-			DynamicSparseVectorSignature dynamic = new DynamicSparseVectorSignature();
-			for (int d = 0; d < dim; d++) {
-				dense.set(d, data[d]);
-				sparse.set(d, data[d]);
-				dynamic.set(d, data[d]);
-			}
-			if (norm) {
-				dense.normalizeL2(false);
-				sparse.normalizeL2(false);
-				dynamic.normalizeL2(false);
+			DefaultVectorSignature[] all = allTypes(quantizableData(dim, sparsity, negValues), norm);
+			for (int m = 0; m < sigType; m++) {
+				sigs[m][n] = all[m];
 			}
-			sigs[0][n] = dense;
-			sigs[1][n] = sparse;
-			sigs[2][n] = dynamic;
 		}
 
-		@SuppressWarnings("unchecked")
-		SignatureDistance<VectorSignature>[] dist = new SignatureDistance[distType];
-		dist[0] = new L1Distance();
-		dist[1] = new L2Distance();
-		dist[2] = new VectorAngleDistance();
-		dist[3] = new VectorAngleDistance(true);
-		dist[4] = new CosineDistance();
-		dist[5] = new CosineDistance(true);
+		SignatureDistance<VectorSignature>[] dist = allDistances();
+		final int distType = dist.length;
 
 		for (int i = 0; i < nb; i++) {
 			for (int j = 0; j < nb; j++) {
 				for (int d = 0; d < distType; d++) {
 					int idx = 0;
 					double previous = 0;
+					double reference = dist[d].computeDistance(sigs[0][i], sigs[0][j]);
 					for (int m = 0; m < sigType; m++) {
 						for (int n = 0; n < sigType; n++) {
 							double computed = dist[d].computeDistance(sigs[m][i], sigs[n][j]);
+							if ((m >= EXACT_TYPES) || (n >= EXACT_TYPES)) {
+								// float and byte storage, the values are the same but rounded differently once normalized
+								Assert.assertEquals(reference, computed, DELTA);
+								continue;
+							}
 							if (idx > 0) {
 								Assert.assertEquals(previous, computed);
 								// if (computed != previous) {
@@ -177,4 +229,50 @@ public class TestDistances {
 			}
 		}
 	}
+
+	/**
+	 * The batch distances, between a signature and a block or between two
+	 * blocks, have to match the pairwise ones, whatever the signature types.
+	 */
+	public void testBatch(int dim, double sparsity, int nb, boolean negValues, boolean norm) throws SignatureException {
+		System.out.println("testBatch(" + dim + ", " + sparsity + ", " + nb + ", " + negValues + ", " + norm + ")");
+		final int sigType = 6;
+
+		List<List<DefaultVectorSignature>> sigs = new ArrayList<List<DefaultVectorSignature>>();
+		for (int m = 0; m < sigType; m++) {
+			sigs.add(new ArrayList<DefaultVectorSignature>());
+		}
+		for (int n = 0; n < nb; n++) {
+			DefaultVectorSignature[] all = allTypes(quantizableData(dim, sparsity, negValues), norm);
+			for (int m = 0; m < sigType; m++) {
+				sigs.get(m).add(all[m]);
+			}
+		}
+
+		for (SignatureDistance<VectorSignature> sd : allDistances()) {
+			VectorSignatureDistance dist = (VectorSignatureDistance) sd;
+			for (int m = 0; m < sigType; m++) {
+				SignatureBlock queries = new SignatureBlock(sigs.get(m));
+				for (int n = 0; n < sigType; n++) {
+					SignatureBlock block = new SignatureBlock(sigs.get(n));
+					double[] all = new double[nb * nb];
+					dist.computeDistances(queries, block, all);
+					for (int i = 0; i < nb; i++) {
+						double[] row = new double[nb + 1];
+						Arrays.fill(row, -1);
+						int from = i % 2;
+						dist.computeDistances(sigs.get(m).get(i), block, from, nb, row, 1);
+						Assert.assertEquals(-1., row[0]);
+						for (int j = 0; j < nb; j++) {
+							double expected = dist.computeDistance(sigs.get(m).get(i), sigs.get(n).get(j));
+							Assert.assertEquals(expected, all[i * nb + j], DELTA);
+							if (j >= from) {
+								Assert.assertEquals(expected, row[1 + j - from], DELTA);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,101 @@
+package plugins.nherve.toolbox.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import plugins.nherve.toolbox.image.feature.clustering.ClusteringException;
+import plugins.nherve.toolbox.image.feature.clustering.KMeans;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+public class TestKMeans {
+
+	public Random rd = new Random(3698521l);
+
+	/**
+	 * Points around random centers, so that the clusters stabilize and the
+	 * bounds avoid most of the distances.
+	 */
+	public List<DefaultVectorSignature> randomPoints(int nb, int dim, int nbCenters, double spread) throws SignatureException {
+		double[][] centers = new double[nbCenters][dim];
+		for (double[] c : centers) {
+			for (int d = 0; d < dim; d++) {
+				c[d] = rd.nextDouble() * 10;
+			}
+		}
+		List<DefaultVectorSignature> points = new ArrayList<DefaultVectorSignature>();
+		for (int n = 0; n < nb; n++) {
+			double[] c = centers[rd.nextInt(nbCenters)];
+			DenseVectorSignature p = new DenseVectorSignature(dim);
+			for (int d = 0; d < dim; d++) {
+				p.set(d, c[d] + rd.nextGaussian() * spread);
+			}
+			points.add(p);
+		}
+		return points;
+	}
+
+	public KMeans run(List<DefaultVectorSignature> points, List<DefaultVectorSignature> initial, boolean accelerated) throws ClusteringException {
+		KMeans km = new KMeans(initial.size(), 100, 0);
+		km.setLogEnabled(false);
+		km.setInitialCentroidsType(KMeans.PROVIDED_INTITAL_CENTROIDS);
+		for (DefaultVectorSignature c : initial) {
+			km.addInitialCentroid(c, true);
+		}
+		km.setAccelerated(accelerated);
+		km.compute(points);
+		return km;
+	}
+
+	@Test
+	public void runAllTests() {
+		try {
+			testAccelerated(2000, 8, 10, 12, 1.0);
+			testAccelerated(2000, 8, 10, 12, 4.0);
+			testAccelerated(1000, 32, 5, 20, 0.5);
+			testAccelerated(500, 2, 20, 7, 2.0);
+		} catch (Exception e) {
+			Assert.fail(e.getClass().getName() + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The accelerated k-means has to give exactly the same affectations and
+	 * centroids as the standard one, from the same initial centroids.
+	 */
+	public void testAccelerated(int nb, int dim, int nbCenters, int k, double spread) throws Exception {
+		System.out.println("testAccelerated(" + nb + ", " + dim + ", " + nbCenters + ", " + k + ", " + spread + ")");
+		List<DefaultVectorSignature> points = randomPoints(nb, dim, nbCenters, spread);
+		List<DefaultVectorSignature> initial = new ArrayList<DefaultVectorSignature>();
+		for (int c = 0; c < k; c++) {
+			initial.add(points.get(rd.nextInt(nb)).clone());
+		}
+
+		KMeans standard = run(points, initial, false);
+		KMeans accelerated = run(points, initial, true);
+
+		Assert.assertEquals(standard.getNbIterations(), accelerated.getNbIterations());
+		Assert.assertTrue(accelerated.getNbSkippedDistances() > 0);
+
+		int[] a1 = standard.getAffectations();
+		int[] a2 = accelerated.getAffectations();
+		Assert.assertEquals(a1.length, a2.length);
+		for (int p = 0; p < a1.length; p++) {
+			Assert.assertEquals(a1[p], a2[p]);
+		}
+
+		List<DefaultVectorSignature> c1 = standard.getCentroids();
+		List<DefaultVectorSignature> c2 = accelerated.getCentroids();
+		Assert.assertEquals(c1.size(), c2.size());
+		for (int c = 0; c < c1.size(); c++) {
+			for (int d = 0; d < dim; d++) {
+				Assert.assertEquals(c1.get(c).get(d), c2.get(c).get(d), 1e-9);
+			}
+		}
+	}
+}
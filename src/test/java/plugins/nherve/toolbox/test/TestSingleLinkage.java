@@ -0,0 +1,118 @@
+package plugins.nherve.toolbox.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import plugins.nherve.toolbox.image.feature.clustering.AgglomerativeClustering;
+import plugins.nherve.toolbox.image.feature.clustering.SingleLinkageClustering;
+import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.L2Distance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
+
+public class TestSingleLinkage {
+
+	public Random rd = new Random(9517534l);
+
+	/**
+	 * Points around random centers, on a coarse grid so that some pairs are at
+	 * exactly the same distance.
+	 */
+	public List<VectorSignature> randomPoints(int nb, int dim, int nbCenters, double spread) throws SignatureException {
+		double[][] centers = new double[nbCenters][dim];
+		for (double[] c : centers) {
+			for (int d = 0; d < dim; d++) {
+				c[d] = rd.nextInt(20);
+			}
+		}
+		List<VectorSignature> points = new ArrayList<VectorSignature>();
+		for (int n = 0; n < nb; n++) {
+			double[] c = centers[rd.nextInt(nbCenters)];
+			DenseVectorSignature p = new DenseVectorSignature(dim);
+			for (int d = 0; d < dim; d++) {
+				p.set(d, c[d] + Math.round(rd.nextGaussian() * spread));
+			}
+			points.add(p);
+		}
+		return points;
+	}
+
+	public void check(int[] expected, int[] actual) {
+		Assert.assertEquals(expected.length, actual.length);
+		for (int p = 0; p < expected.length; p++) {
+			Assert.assertEquals(expected[p], actual[p]);
+		}
+	}
+
+	@Test
+	public void runAllTests() {
+		try {
+			testThresholds(1, 3, 1, 1.0);
+			testThresholds(2, 3, 1, 1.0);
+			testThresholds(200, 2, 5, 1.0);
+			testThresholds(300, 4, 8, 2.0);
+			testThresholds(150, 16, 3, 0.5);
+		} catch (Exception e) {
+			Assert.fail(e.getClass().getName() + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The single linkage clustering has to give the same affectations as the
+	 * agglomerative clustering, when computed at a threshold and when the
+	 * dendrogram is re-cut at another one. Some thresholds are exact pair
+	 * distances, to check that both keep the pairs at the threshold.
+	 */
+	public void testThresholds(int nb, int dim, int nbCenters, double spread) throws Exception {
+		System.out.println("testThresholds(" + nb + ", " + dim + ", " + nbCenters + ", " + spread + ")");
+		List<VectorSignature> points = randomPoints(nb, dim, nbCenters, spread);
+		L2Distance distance = new L2Distance();
+
+		List<Double> thresholds = new ArrayList<Double>();
+		thresholds.add(-1d);
+		thresholds.add(0d);
+		for (int t = 0; t < 5; t++) {
+			thresholds.add(rd.nextDouble() * 10);
+		}
+		if (nb > 1) {
+			for (int t = 0; t < 5; t++) {
+				int i = rd.nextInt(nb);
+				int j = rd.nextInt(nb);
+				thresholds.add(distance.computeDistance(points.get(i), points.get(j)));
+			}
+		}
+		thresholds.add(Double.POSITIVE_INFINITY);
+
+		SingleLinkageClustering<VectorSignature> slc = new SingleLinkageClustering<VectorSignature>(false);
+		slc.setLogEnabled(false);
+		slc.setDistance(distance);
+		slc.setThreshold(thresholds.get(2));
+		slc.compute(points);
+		Assert.assertEquals(nb, slc.getDendrogram().getNbPoints());
+
+		for (double threshold : thresholds) {
+			AgglomerativeClustering<VectorSignature> ac = new AgglomerativeClustering<VectorSignature>(false);
+			ac.setLogEnabled(false);
+			ac.setDistance(distance);
+			ac.setThreshold(threshold);
+			ac.compute(points);
+
+			SingleLinkageClustering<VectorSignature> computed = new SingleLinkageClustering<VectorSignature>(false);
+			computed.setLogEnabled(false);
+			computed.setDistance(distance);
+			computed.setThreshold(threshold);
+			computed.compute(points);
+			check(ac.getAffectations(), computed.getAffectations());
+			Assert.assertEquals(ac.getNbClasses(), computed.getNbClasses());
+
+			slc.setThreshold(threshold);
+			Assert.assertEquals(threshold, slc.getThreshold(), 0);
+			check(ac.getAffectations(), slc.getAffectations());
+			Assert.assertEquals(ac.getNbClasses(), slc.getNbClasses());
+		}
+	}
+}
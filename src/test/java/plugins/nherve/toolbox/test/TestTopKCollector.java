@@ -0,0 +1,157 @@
+package plugins.nherve.toolbox.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import plugins.nherve.toolbox.image.db.TopKCollector;
+
+public class TestTopKCollector {
+
+	public Random rd = new Random(7412589l);
+
+	/**
+	 * An answer of the brute force reference.
+	 */
+	public static class Answer {
+		public int item;
+		public int lid;
+		public double d;
+
+		public Answer(int item, int lid, double d) {
+			super();
+			this.item = item;
+			this.lid = lid;
+			this.d = d;
+		}
+	}
+
+	public final static Comparator<Answer> ORDER = new Comparator<Answer>() {
+		@Override
+		public int compare(Answer o1, Answer o2) {
+			int res = Double.compare(o1.d, o2.d);
+			if (res == 0) {
+				res = Integer.compare(o1.item, o2.item);
+			}
+			if (res == 0) {
+				res = Integer.compare(o1.lid, o2.lid);
+			}
+			return res;
+		}
+	};
+
+	/**
+	 * Random answers, with few distinct distances so that there are many ties,
+	 * and several local ids per item.
+	 */
+	public List<Answer> randomAnswers(int nb, int nbDistances) {
+		List<Answer> answers = new ArrayList<Answer>();
+		int item = 0;
+		while (answers.size() < nb) {
+			int nbLids = rd.nextInt(4);
+			if (nbLids == 0) {
+				answers.add(new Answer(item, -1, rd.nextInt(nbDistances)));
+			} else {
+				for (int lid = 0; lid < nbLids; lid++) {
+					answers.add(new Answer(item, lid, rd.nextInt(nbDistances)));
+				}
+			}
+			item++;
+		}
+		Collections.shuffle(answers, rd);
+		return answers;
+	}
+
+	public List<Answer> bruteForce(List<Answer> answers, int k) {
+		List<Answer> sorted = new ArrayList<Answer>(answers);
+		Collections.sort(sorted, ORDER);
+		return sorted.subList(0, Math.min(k, sorted.size()));
+	}
+
+	public void check(List<Answer> expected, TopKCollector collector) {
+		collector.sort();
+		Assert.assertEquals(expected.size(), collector.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Assert.assertEquals(expected.get(i).d, collector.getDistance(i), 0);
+			Assert.assertEquals(expected.get(i).item, collector.getItem(i));
+			Assert.assertEquals(expected.get(i).lid, collector.getLid(i));
+		}
+	}
+
+	@Test
+	public void runAllTests() {
+		for (int k : new int[] { 1, 2, 5, 10, 37 }) {
+			for (int nb : new int[] { 0, 1, k - 1, k, k + 1, 200 }) {
+				for (int nbDistances : new int[] { 1, 3, 1000 }) {
+					testOffer(Math.max(0, nb), k, nbDistances);
+					testMerge(Math.max(0, nb), k, nbDistances, 4);
+				}
+			}
+		}
+	}
+
+	public void testOffer(int nb, int k, int nbDistances) {
+		List<Answer> answers = randomAnswers(nb, nbDistances);
+		TopKCollector collector = new TopKCollector(k);
+		List<Answer> seen = new ArrayList<Answer>();
+		for (Answer a : answers) {
+			List<Answer> before = bruteForce(seen, k);
+			seen.add(a);
+			List<Answer> after = bruteForce(seen, k);
+
+			boolean kept = collector.offer(a.item, a.lid, a.d);
+			Assert.assertEquals(after.contains(a), kept);
+			Assert.assertEquals(after.size(), collector.size());
+			Assert.assertEquals(after.size() == k, collector.isFull());
+
+			double threshold = (after.size() < k) ? Double.POSITIVE_INFINITY : after.get(k - 1).d;
+			Assert.assertEquals(threshold, collector.getThreshold(), 0);
+			if (before.size() == k) {
+				// a distance above the threshold can never enter the heap
+				Assert.assertTrue((a.d <= before.get(k - 1).d) || !kept);
+			}
+		}
+		check(bruteForce(answers, k), collector);
+	}
+
+	public void testMerge(int nb, int k, int nbDistances, int nbParts) {
+		List<Answer> answers = randomAnswers(nb, nbDistances);
+		TopKCollector all = new TopKCollector(k);
+		for (int p = 0; p < nbParts; p++) {
+			TopKCollector part = new TopKCollector(k);
+			for (int i = p; i < answers.size(); i += nbParts) {
+				Answer a = answers.get(i);
+				part.offer(a.item, a.lid, a.d);
+			}
+			all.merge(part);
+		}
+		check(bruteForce(answers, k), all);
+	}
+
+	@Test
+	public void testEmptyAndSorted() {
+		TopKCollector none = new TopKCollector(0);
+		Assert.assertFalse(none.offer(0, -1, 0));
+		Assert.assertEquals(0, none.size());
+		Assert.assertTrue(none.isFull());
+		Assert.assertEquals(Double.NEGATIVE_INFINITY, none.getThreshold(), 0);
+
+		TopKCollector collector = new TopKCollector(3);
+		collector.offer(4, -1, 1);
+		collector.sort();
+		try {
+			collector.offer(5, -1, 0);
+			Assert.fail("offer after sort");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		collector.sort();
+		Assert.assertEquals(1, collector.size());
+		Assert.assertEquals(4, collector.getItem(0));
+	}
+}